@@ -2,6 +2,10 @@ package net.osmand.data;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import net.osmand.osm.edit.Node;
 import net.osmand.osm.edit.Way;
 
@@ -13,6 +17,8 @@ public class MultipolygonTest {
 	private Way poly1_1_of_2;
 	private Way poly1_2_of_2;
 	private int wayid;
+	// ids of nodes with not integer coordinates
+	private long nodeid = 1000000;
 	private Way poly2;
 	private Way openedBaseCircle;
 	private Way closedBaseCircle;
@@ -187,6 +193,102 @@ public class MultipolygonTest {
 		assertTrue(testee.hasOpenedPolygons());
 	}
 
+	@Test
+	public void testContainsPointIndexedConcave() {
+		Random rnd = new Random(0);
+		MultipolygonBuilder bld = new MultipolygonBuilder();
+		bld.addOuterWay(star(rnd, 0, 0, 1, 40));
+		checkContainsPointIndexed(new Boundary(bld), rnd);
+	}
+
+	@Test
+	public void testContainsPointIndexedHoles() {
+		Random rnd = new Random(1);
+		MultipolygonBuilder bld = new MultipolygonBuilder();
+		bld.addOuterWay(star(rnd, 0, 0, 2, 60));
+		bld.addInnerWay(square(0, 0, 0.2));
+		bld.addInnerWay(star(rnd, 0.45, 0, 0.15, 12));
+		checkContainsPointIndexed(new Boundary(bld), rnd);
+	}
+
+	@Test
+	public void testContainsPointIndexedMultipleRings() {
+		Random rnd = new Random(2);
+		MultipolygonBuilder bld = new MultipolygonBuilder();
+		bld.addOuterWay(star(rnd, 0, 0, 1, 30));
+		bld.addOuterWay(star(rnd, 3, 5, 0.5, 20));
+		// ring is split into 2 ways
+		Way ring = star(rnd, -4, 2, 0.8, 30);
+		List<Node> nodes = ring.getNodes();
+		bld.addOuterWay(polygon(nodes.subList(0, 16).toArray(new Node[0])));
+		bld.addOuterWay(polygon(nodes.subList(15, nodes.size()).toArray(new Node[0])));
+		bld.addInnerWay(square(0, 0, 0.2));
+		checkContainsPointIndexed(new Boundary(bld), rnd);
+	}
+
+	// closed concave ring: vertices at random radius between r / 3 and r around the center
+	private Way star(Random rnd, double lat, double lon, double r, int vertices) {
+		List<Node> nodes = new ArrayList<Node>();
+		for (int i = 0; i < vertices; i++) {
+			double angle = 2 * Math.PI * i / vertices;
+			double radius = i % 2 == 0 ? r : r / 3 + rnd.nextDouble() * r / 2;
+			nodes.add(new Node(lat + radius * Math.sin(angle), lon + radius * Math.cos(angle), nodeid++));
+		}
+		nodes.add(nodes.get(0));
+		return polygon(nodes.toArray(new Node[0]));
+	}
+
+	private Way square(double lat, double lon, double half) {
+		Node first = new Node(lat - half, lon - half, nodeid++);
+		return polygon(first, new Node(lat - half, lon + half, nodeid++), new Node(lat + half, lon + half, nodeid++),
+				new Node(lat + half, lon - half, nodeid++), first);
+	}
+
+	private void checkContainsPointIndexed(Boundary boundary, Random rnd) {
+		List<LatLon> points = new ArrayList<LatLon>();
+		double left = 180, right = -180, top = -90, bottom = 90;
+		Multipolygon mp = boundary.getMultipolygon();
+		List<Ring> rings = new ArrayList<Ring>(mp.getOuterRings());
+		rings.addAll(mp.getInnerRings());
+		for (Ring r : rings) {
+			for (Node n : r.getBorder()) {
+				// vertices are on the borders of the polygon
+				points.add(new LatLon(n.getLatitude(), n.getLongitude()));
+				left = Math.min(left, n.getLongitude());
+				right = Math.max(right, n.getLongitude());
+				top = Math.max(top, n.getLatitude());
+				bottom = Math.min(bottom, n.getLatitude());
+			}
+		}
+		double w = right - left;
+		double h = top - bottom;
+		for (int i = 0; i < 20000; i++) {
+			points.add(new LatLon(bottom - h / 10 + rnd.nextDouble() * h * 1.2, left - w / 10 + rnd.nextDouble() * w * 1.2));
+		}
+		// borders of grid cells (grid is built over bbox of the rings)
+		int side = boundary.getGridIndex().getGridSide();
+		for (int k = 0; k <= side; k++) {
+			for (int i = 0; i < 50; i++) {
+				points.add(new LatLon(bottom + rnd.nextDouble() * h, left + k * w / side));
+				points.add(new LatLon(bottom + k * h / side, left + rnd.nextDouble() * w));
+			}
+			for (int j = 0; j <= side; j++) {
+				points.add(new LatLon(bottom + j * h / side, left + k * w / side));
+			}
+		}
+		assertTrue(boundary.getGridIndex().getEdgeCells() < side * side);
+		int inside = 0;
+		for (LatLon p : points) {
+			boolean expected = boundary.containsPoint(p);
+			assertEquals(p.toString(), expected, boundary.containsPointIndexed(p));
+			assertEquals(p.toString(), expected, boundary.containsPointIndexed(p.getLatitude(), p.getLongitude()));
+			if (expected) {
+				inside++;
+			}
+		}
+		assertTrue(inside > 0 && inside < points.size());
+	}
+
 	@Test
 	public void testMergingExistingPolygons() {
 		MultipolygonBuilder bld = new MultipolygonBuilder();
@@ -0,0 +1,113 @@
+package net.osmand.benchmarks;
+
+import net.osmand.osm.edit.Node;
+import net.osmand.util.Algorithms;
+import net.osmand.util.MapUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic data for benchmarks, every fixture is generated from a fixed seed so runs are comparable.
+ */
+public class BenchmarkFixtures {
+
+	public static final long SEED = 20240517L;
+
+	public static final String[][] TAGS = {
+			{ "highway", "residential" }, { "highway", "primary" }, { "highway", "footway" },
+			{ "building", "yes" }, { "landuse", "forest" }, { "natural", "water" }, { "waterway", "stream" },
+			{ "amenity", "parking" }, { "surface", "asphalt" }, { "oneway", "yes" }, { "lanes", "2" },
+			{ "maxspeed", "50" }, { "lit", "yes" }, { "access", "private" }, { "layer", "1" },
+			{ "bridge", "yes" }, { "tunnel", "yes" }, { "railway", "rail" }, { "leisure", "park" },
+			{ "shop", "supermarket" } };
+
+	public static final String[] NAMES = { "Main Street", "Hauptstraße", "Rue de la Paix", "Calle Mayor",
+			"Улица Ленина", "中央通り", "Park Avenue", "Via Roma" };
+
+	/**
+	 * Random tags, every map has one of the main tags first and optionally a name.
+	 */
+	public static List<Map<String, String>> tagMaps(Random rnd, int count, int maxTags) {
+		List<Map<String, String>> res = new ArrayList<Map<String, String>>(count);
+		for (int i = 0; i < count; i++) {
+			Map<String, String> tags = new LinkedHashMap<String, String>();
+			int n = 1 + rnd.nextInt(maxTags);
+			for (int j = 0; j < n; j++) {
+				String[] t = TAGS[rnd.nextInt(TAGS.length)];
+				tags.put(t[0], t[1]);
+			}
+			if (rnd.nextBoolean()) {
+				tags.put("name", NAMES[rnd.nextInt(NAMES.length)]);
+			}
+			res.add(tags);
+		}
+		return res;
+	}
+
+	/**
+	 * Tags in the format of the osm db tags blob (key \0 value \0 ...).
+	 */
+	public static byte[] serializeTags(Map<String, String> tags) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			for (Map.Entry<String, String> e : tags.entrySet()) {
+				out.write(e.getKey().getBytes(StandardCharsets.UTF_8));
+				out.write(0);
+				out.write(e.getValue().getBytes(StandardCharsets.UTF_8));
+				out.write(0);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Closed noisy polygon around lat/lon, first and last nodes are the same.
+	 */
+	public static List<Node> polygon(Random rnd, double lat, double lon, double radius, int points, long startId) {
+		List<Node> res = new ArrayList<Node>(points + 1);
+		for (int i = 0; i < points; i++) {
+			double angle = 2 * Math.PI * i / points;
+			double r = radius * (0.8 + 0.4 * rnd.nextDouble());
+			res.add(new Node(lat + r * Math.sin(angle), lon + r * Math.cos(angle), startId + i));
+		}
+		res.add(res.get(0));
+		return res;
+	}
+
+	/**
+	 * Random walk of x31/y31 points as a way would look like: small steps with occasional jumps.
+	 */
+	public static int[] walk(Random rnd, double lat, double lon, int points) {
+		int[] res = new int[points * 2];
+		int x = MapUtils.get31TileNumberX(lon);
+		int y = MapUtils.get31TileNumberY(lat);
+		for (int i = 0; i < points; i++) {
+			int step = rnd.nextInt(20) == 0 ? 1 << 14 : 1 << 8;
+			x += rnd.nextInt(2 * step + 1) - step;
+			y += rnd.nextInt(2 * step + 1) - step;
+			res[2 * i] = x;
+			res[2 * i + 1] = y;
+		}
+		return res;
+	}
+
+	/**
+	 * Coordinates as they are stored in map db (int x, int y per point).
+	 */
+	public static byte[] toCoordinateBytes(int[] xy) {
+		byte[] res = new byte[xy.length * 4];
+		for (int i = 0; i < xy.length; i++) {
+			Algorithms.putIntToBytes(res, i * 4, xy[i]);
+		}
+		return res;
+	}
+}
@@ -0,0 +1,104 @@
+package net.osmand.benchmarks;
+
+import com.google.protobuf.CodedOutputStream;
+import net.osmand.binary.OsmandOdb.MapDataBlock;
+import net.osmand.binary.OsmandOdb.OsmAndRoutingIndex.RouteDataBlock;
+import net.osmand.obf.preparation.BinaryMapIndexWriter;
+import net.osmand.obf.preparation.BinaryMapIndexWriter.RoutePointToWrite;
+import net.osmand.osm.MapRoutingTypes.MapPointName;
+import net.osmand.osm.MapRoutingTypes.MapRouteType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delta (zigzag varint) encoding of coordinates by BinaryMapIndexWriter.writeMapData and writeRouteData
+ * for 1000 synthetic ways, nothing is written to a file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CoordinateEncodingBenchmark {
+
+	private static final int WAYS = 1000;
+
+	@Param({ "10", "200" })
+	public int points;
+
+	@Param({ "false", "true" })
+	public boolean simplify;
+
+	private BinaryMapIndexWriter writer;
+	private byte[][] coordinates;
+	private RoutePointToWrite[][] routePoints;
+	private int[] left;
+	private int[] top;
+	private final int[] types = { 1, 5, 12 };
+	private final int[] addTypes = { 3 };
+
+	@Setup
+	public void setup() throws IOException {
+		writer = new BinaryMapIndexWriter(null, CodedOutputStream.newInstance(OutputStream.nullOutputStream()));
+		Random rnd = new Random(BenchmarkFixtures.SEED);
+		coordinates = new byte[WAYS][];
+		routePoints = new RoutePointToWrite[WAYS][];
+		left = new int[WAYS];
+		top = new int[WAYS];
+		for (int i = 0; i < WAYS; i++) {
+			int[] xy = BenchmarkFixtures.walk(rnd, 40 + rnd.nextDouble() * 10, rnd.nextDouble() * 10, points);
+			coordinates[i] = BenchmarkFixtures.toCoordinateBytes(xy);
+			routePoints[i] = new RoutePointToWrite[points];
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+			for (int k = 0; k < points; k++) {
+				RoutePointToWrite p = new RoutePointToWrite();
+				p.x = xy[2 * k];
+				p.y = xy[2 * k + 1];
+				if (rnd.nextInt(10) == 0) {
+					p.types.add(2);
+				}
+				routePoints[i][k] = p;
+				minX = Math.min(minX, p.x);
+				minY = Math.min(minY, p.y);
+			}
+			left[i] = minX;
+			top[i] = minY;
+		}
+	}
+
+	@Benchmark
+	public void writeMapData(Blackhole bh) throws IOException {
+		Map<String, Integer> stringTable = new HashMap<String, Integer>();
+		MapDataBlock.Builder block = MapDataBlock.newBuilder();
+		for (int i = 0; i < WAYS; i++) {
+			bh.consume(writer.writeMapData(i, left[i], top[i], false, coordinates[i], null, types, addTypes, null,
+					null, null, stringTable, block, simplify));
+		}
+	}
+
+	@Benchmark
+	public void writeRouteData(Blackhole bh) throws IOException {
+		Map<String, Integer> stringTable = new HashMap<String, Integer>();
+		Map<MapRouteType, String> names = Collections.emptyMap();
+		List<MapPointName> pointNames = Collections.emptyList();
+		RouteDataBlock.Builder block = RouteDataBlock.newBuilder();
+		for (int i = 0; i < WAYS; i++) {
+			bh.consume(writer.writeRouteData(i, left[i], top[i], types, routePoints[i], names, stringTable,
+					pointNames, block, simplify, false));
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package net.osmand.benchmarks;
+
+import com.google.protobuf.ByteString;
+import crosby.binary.BinaryParser;
+import crosby.binary.Osmformat;
+import crosby.binary.file.BlockInputStream;
+import crosby.binary.file.BlockOutputStream;
+import crosby.binary.file.BlockOutputStream.CompressFlags;
+import crosby.binary.file.FileBlock;
+import crosby.binary.file.ParallelBlockInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of pbf blocks: protobuf parsing of one block and the whole pipeline (inflate, parse, iterate entities)
+ * for a synthetic file with dense nodes and ways.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PbfDecodeBenchmark {
+
+	private static final int NODES_PER_BLOCK = 8000;
+	private static final int WAYS_PER_BLOCK = 1000;
+	private static final int GRANULARITY = 100;
+
+	@Param({ "16" })
+	public int blocks;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private byte[] file;
+	private FileBlock dataBlock;
+
+	private static class CountingParser extends BinaryParser {
+		final Blackhole bh;
+
+		CountingParser(Blackhole bh) {
+			this.bh = bh;
+		}
+
+		@Override
+		protected void parseRelations(List<Osmformat.Relation> rels) {
+			bh.consume(rels.size());
+		}
+
+		@Override
+		protected void parseDense(Osmformat.DenseNodes nodes) {
+			long id = 0, lat = 0, lon = 0;
+			int kv = 0;
+			for (int i = 0; i < nodes.getIdCount(); i++) {
+				id += nodes.getId(i);
+				lat += nodes.getLat(i);
+				lon += nodes.getLon(i);
+				bh.consume(parseLat(lat) + parseLon(lon));
+				while (kv < nodes.getKeysValsCount() && nodes.getKeysVals(kv) != 0) {
+					bh.consume(getStringById(nodes.getKeysVals(kv)));
+					bh.consume(getStringById(nodes.getKeysVals(kv + 1)));
+					kv += 2;
+				}
+				kv++;
+			}
+			bh.consume(id);
+		}
+
+		@Override
+		protected void parseNodes(List<Osmformat.Node> nodes) {
+			bh.consume(nodes.size());
+		}
+
+		@Override
+		protected void parseWays(List<Osmformat.Way> ways) {
+			for (Osmformat.Way w : ways) {
+				long ref = 0;
+				for (int i = 0; i < w.getRefsCount(); i++) {
+					ref += w.getRefs(i);
+				}
+				bh.consume(ref);
+				for (int i = 0; i < w.getKeysCount(); i++) {
+					bh.consume(getStringById(w.getKeys(i)));
+					bh.consume(getStringById(w.getVals(i)));
+				}
+			}
+		}
+
+		@Override
+		protected void parse(Osmformat.HeaderBlock header) {
+			bh.consume(header);
+		}
+
+		@Override
+		public void complete() {
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		Random rnd = new Random(BenchmarkFixtures.SEED);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BlockOutputStream bos = new BlockOutputStream(out);
+		Osmformat.HeaderBlock header = Osmformat.HeaderBlock.newBuilder()
+				.addRequiredFeatures("OsmSchema-V0.6").addRequiredFeatures("DenseNodes").build();
+		bos.write(FileBlock.newInstance("OSMHeader", header.toByteString(), null), CompressFlags.DEFLATE);
+		long nodeId = 1;
+		for (int b = 0; b < blocks; b++) {
+			Osmformat.PrimitiveBlock block = primitiveBlock(rnd, nodeId);
+			nodeId += NODES_PER_BLOCK;
+			FileBlock fb = FileBlock.newInstance("OSMData", block.toByteString(), null);
+			if (dataBlock == null) {
+				dataBlock = fb;
+			}
+			bos.write(fb, CompressFlags.DEFLATE);
+		}
+		bos.flush();
+		file = out.toByteArray();
+	}
+
+	private static Osmformat.PrimitiveBlock primitiveBlock(Random rnd, long firstId) {
+		List<String> strings = new ArrayList<String>();
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		// string 0 is the delimiter for dense nodes
+		strings.add("");
+		Osmformat.DenseNodes.Builder dense = Osmformat.DenseNodes.newBuilder();
+		long prevId = 0, prevLat = 0, prevLon = 0;
+		// 52, 13 degrees in units of granularity (100 nanodegrees)
+		long lat = 520000000L, lon = 130000000L;
+		for (int i = 0; i < NODES_PER_BLOCK; i++) {
+			long id = firstId + i;
+			lat += rnd.nextInt(2001) - 1000;
+			lon += rnd.nextInt(2001) - 1000;
+			dense.addId(id - prevId).addLat(lat - prevLat).addLon(lon - prevLon);
+			prevId = id;
+			prevLat = lat;
+			prevLon = lon;
+			if (rnd.nextInt(10) == 0) {
+				for (Map.Entry<String, String> e : BenchmarkFixtures.tagMaps(rnd, 1, 3).get(0).entrySet()) {
+					dense.addKeysVals(stringId(e.getKey(), strings, stringIds));
+					dense.addKeysVals(stringId(e.getValue(), strings, stringIds));
+				}
+			}
+			dense.addKeysVals(0);
+		}
+		Osmformat.PrimitiveGroup.Builder ways = Osmformat.PrimitiveGroup.newBuilder();
+		for (int i = 0; i < WAYS_PER_BLOCK; i++) {
+			Osmformat.Way.Builder w = Osmformat.Way.newBuilder().setId(firstId + i);
+			int refs = 2 + rnd.nextInt(30);
+			long prev = 0;
+			for (int j = 0; j < refs; j++) {
+				long ref = firstId + rnd.nextInt(NODES_PER_BLOCK);
+				w.addRefs(ref - prev);
+				prev = ref;
+			}
+			for (Map.Entry<String, String> e : BenchmarkFixtures.tagMaps(rnd, 1, 5).get(0).entrySet()) {
+				w.addKeys(stringId(e.getKey(), strings, stringIds));
+				w.addVals(stringId(e.getValue(), strings, stringIds));
+			}
+			ways.addWays(w);
+		}
+		Osmformat.StringTable.Builder st = Osmformat.StringTable.newBuilder();
+		for (String s : strings) {
+			st.addS(ByteString.copyFromUtf8(s));
+		}
+		return Osmformat.PrimitiveBlock.newBuilder().setStringtable(st).setGranularity(GRANULARITY)
+				.addPrimitivegroup(Osmformat.PrimitiveGroup.newBuilder().setDense(dense))
+				.addPrimitivegroup(ways).build();
+	}
+
+	private static int stringId(String s, List<String> strings, Map<String, Integer> stringIds) {
+		Integer id = stringIds.get(s);
+		if (id == null) {
+			id = strings.size();
+			strings.add(s);
+			stringIds.put(s, id);
+		}
+		return id;
+	}
+
+	@Benchmark
+	public Object decodeBlock(Blackhole bh) {
+		return new CountingParser(bh).decodeBlock(dataBlock);
+	}
+
+	@Benchmark
+	public void processFile(Blackhole bh) throws IOException {
+		CountingParser parser = new CountingParser(bh);
+		if (threads > 1) {
+			new ParallelBlockInputStream<>(new ByteArrayInputStream(file), parser, threads).process();
+		} else {
+			new BlockInputStream(new ByteArrayInputStream(file), parser).process();
+		}
+	}
+}
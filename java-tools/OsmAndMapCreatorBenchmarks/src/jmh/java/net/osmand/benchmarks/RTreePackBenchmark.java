@@ -0,0 +1,97 @@
+package net.osmand.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import rtree.IllegalValueException;
+import rtree.LeafElement;
+import rtree.Pack;
+import rtree.PackedRTree;
+import rtree.RTreeException;
+import rtree.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * STR packing of map rtree: file based rtree.Pack.packTree and in memory PackedRTree for the same rectangles
+ * (clustered small objects as map data looks like).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class RTreePackBenchmark {
+
+	@Param({ "10000", "200000" })
+	public int elements;
+
+	private File dir;
+	private int[] rects;
+	private List<LeafElement> leafs;
+
+	@Setup
+	public void setup() throws IOException, IllegalValueException {
+		dir = Files.createTempDirectory("rtree-bench").toFile();
+		Random rnd = new Random(BenchmarkFixtures.SEED);
+		rects = new int[elements * 4];
+		leafs = new ArrayList<LeafElement>(elements);
+		int clusterX = 0, clusterY = 0;
+		for (int i = 0; i < elements; i++) {
+			if (i % 1000 == 0) {
+				clusterX = rnd.nextInt(1 << 30);
+				clusterY = rnd.nextInt(1 << 30);
+			}
+			int x = clusterX + rnd.nextInt(1 << 20);
+			int y = clusterY + rnd.nextInt(1 << 20);
+			int w = rnd.nextInt(1 << 12), h = rnd.nextInt(1 << 12);
+			rects[4 * i] = x;
+			rects[4 * i + 1] = y;
+			rects[4 * i + 2] = x + w;
+			rects[4 * i + 3] = y + h;
+			leafs.add(new LeafElement(new Rect(x, y, x + w, y + h), i));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public int packTree() {
+		int res = new Pack().packTree(leafs, new File(dir, "pack.rtree").getAbsolutePath());
+		if (res != 0) {
+			throw new IllegalStateException("Pack failed with " + res);
+		}
+		return res;
+	}
+
+	@Benchmark
+	public long packedRTree() throws IOException, IllegalValueException, RTreeException {
+		try (PackedRTree tree = new PackedRTree(new File(dir, "packed.spill"), Long.MAX_VALUE)) {
+			for (int i = 0; i < elements; i++) {
+				tree.add(rects[4 * i], rects[4 * i + 1], rects[4 * i + 2], rects[4 * i + 3], i);
+			}
+			tree.pack();
+			return tree.getRootIndex();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package net.osmand.benchmarks;
+
+import net.osmand.obf.preparation.OsmDbAccessor;
+import net.osmand.osm.edit.Way;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the tags blob of osm db (OsmDbAccessor.readTags) for 10000 entities.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadTagsBenchmark {
+
+	private static final int ENTITIES = 10000;
+
+	private byte[][] tags;
+
+	@Setup
+	public void setup() {
+		List<Map<String, String>> maps = BenchmarkFixtures.tagMaps(new Random(BenchmarkFixtures.SEED), ENTITIES, 8);
+		tags = new byte[ENTITIES][];
+		for (int i = 0; i < ENTITIES; i++) {
+			tags[i] = BenchmarkFixtures.serializeTags(maps.get(i));
+		}
+	}
+
+	@Benchmark
+	public void readTags(Blackhole bh) {
+		for (int i = 0; i < tags.length; i++) {
+			Way w = new Way(i);
+			OsmDbAccessor.parseTags(w, tags[i]);
+			bh.consume(w);
+		}
+	}
+}
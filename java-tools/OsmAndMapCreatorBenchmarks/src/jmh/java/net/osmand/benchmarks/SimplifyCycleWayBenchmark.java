@@ -0,0 +1,57 @@
+package net.osmand.benchmarks;
+
+import net.osmand.obf.preparation.IndexVectorMapCreator;
+import net.osmand.osm.edit.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simplification of closed ways for low zooms (IndexVectorMapCreator.simplifyCycleWay) on noisy polygons
+ * from a few hundred meters to tens of kilometers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimplifyCycleWayBenchmark {
+
+	private static final int POLYGONS = 100;
+
+	@Param({ "8", "11" })
+	public int zoom;
+
+	@Param({ "50", "2000" })
+	public int points;
+
+	private List<List<Node>> polygons;
+
+	@Setup
+	public void setup() {
+		Random rnd = new Random(BenchmarkFixtures.SEED);
+		polygons = new ArrayList<List<Node>>();
+		for (int i = 0; i < POLYGONS; i++) {
+			double radius = 0.005 * (1 + rnd.nextInt(50));
+			polygons.add(BenchmarkFixtures.polygon(rnd, 40 + rnd.nextDouble() * 10, rnd.nextDouble() * 10, radius,
+					points, (long) i * points));
+		}
+	}
+
+	@Benchmark
+	public void simplifyCycleWay(Blackhole bh) throws SQLException {
+		for (List<Node> p : polygons) {
+			bh.consume(IndexVectorMapCreator.simplifyCycleWay(p, zoom, 2));
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package net.osmand.benchmarks;
+
+import gnu.trove.list.array.TIntArrayList;
+import net.osmand.osm.MapRenderingTypes.MapRulType;
+import net.osmand.osm.MapRenderingTypesEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Map tag encoding (tag transformations and rule type lookup) by MapRenderingTypesEncoder for 10000 ways
+ * with the default rendering types.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TagEncodingBenchmark {
+
+	private static final int ENTITIES = 10000;
+
+	@Param({ "13", "8" })
+	public int zoom;
+
+	private MapRenderingTypesEncoder encoder;
+	private List<Map<String, String>> tags;
+
+	@Setup
+	public void setup() {
+		encoder = new MapRenderingTypesEncoder("");
+		tags = BenchmarkFixtures.tagMaps(new Random(BenchmarkFixtures.SEED), ENTITIES, 6);
+	}
+
+	@Benchmark
+	public void encodeEntityWithType(Blackhole bh) {
+		TIntArrayList outTypes = new TIntArrayList();
+		TIntArrayList outAddTypes = new TIntArrayList();
+		TreeMap<MapRulType, String> names = new TreeMap<MapRulType, String>();
+		List<MapRulType> tempList = new ArrayList<MapRulType>();
+		for (Map<String, String> t : tags) {
+			// copy as the tags could be transformed in place
+			boolean res = encoder.encodeEntityWithType(false, new LinkedHashMap<String, String>(t), zoom, outTypes,
+					outAddTypes, names, tempList);
+			bh.consume(res);
+			bh.consume(outTypes.size() + outAddTypes.size() + names.size());
+		}
+	}
+}
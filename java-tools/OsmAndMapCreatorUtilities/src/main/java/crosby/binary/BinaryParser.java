@@ -4,14 +4,15 @@ package crosby.binary;
 import java.util.Date;
 import java.util.List;
 
+import com.google.protobuf.GeneratedMessage;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import crosby.binary.Osmformat;
-import crosby.binary.file.BlockReaderAdapter;
 import crosby.binary.file.FileBlock;
 import crosby.binary.file.FileBlockPosition;
+import crosby.binary.file.ParallelBlockReaderAdapter;
 
-public abstract class BinaryParser implements BlockReaderAdapter {
+public abstract class BinaryParser implements ParallelBlockReaderAdapter<GeneratedMessage> {
     protected int granularity;
     private long lat_offset;
     private long lon_offset;
@@ -39,23 +40,35 @@ public abstract class BinaryParser implements BlockReaderAdapter {
 
     @Override
     public void handleBlock(FileBlock message) {
-        // TODO Auto-generated method stub
+        handleDecodedBlock(message, decodeBlock(message));
+    }
+
+    /**
+     * Parse the protocol buffer of the block. Doesn't use the parser state, so it
+     * could be called concurrently for different blocks.
+     */
+    @Override
+    public GeneratedMessage decodeBlock(FileBlock message) {
         try {
             if (message.getType().equals("OSMHeader")) {
-                Osmformat.HeaderBlock headerblock = Osmformat.HeaderBlock
-                        .parseFrom(message.getData());
-                parse(headerblock);
+                return Osmformat.HeaderBlock.parseFrom(message.getData());
             } else if (message.getType().equals("OSMData")) {
-                Osmformat.PrimitiveBlock primblock = Osmformat.PrimitiveBlock
-                        .parseFrom(message.getData());
-                parse(primblock);
+                return Osmformat.PrimitiveBlock.parseFrom(message.getData());
             }
+            return null;
         } catch (InvalidProtocolBufferException e) {
-            // TODO Auto-generated catch block
             e.printStackTrace();
             throw new Error("ParseError"); // TODO
         }
+    }
 
+    @Override
+    public void handleDecodedBlock(FileBlock message, GeneratedMessage decoded) {
+        if (decoded instanceof Osmformat.HeaderBlock) {
+            parse((Osmformat.HeaderBlock) decoded);
+        } else if (decoded instanceof Osmformat.PrimitiveBlock) {
+            parse((Osmformat.PrimitiveBlock) decoded);
+        }
     }
 
 
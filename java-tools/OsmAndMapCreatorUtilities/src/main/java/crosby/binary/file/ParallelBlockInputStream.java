@@ -0,0 +1,117 @@
+package crosby.binary.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads fileblocks from the stream on the calling thread, inflates and decodes
+ * them on a pool of worker threads and hands the decoded blocks back to the
+ * adaptor in the original file order.
+ *
+ * At most threads * PENDING_BLOCKS_PER_THREAD blocks are kept in flight, so
+ * memory stays bounded even when the consumer is slower than the decoders.
+ */
+public class ParallelBlockInputStream<T> {
+
+    private static final int PENDING_BLOCKS_PER_THREAD = 4;
+
+    private final InputStream input;
+    private final ParallelBlockReaderAdapter<T> adaptor;
+    private final int threads;
+
+    public ParallelBlockInputStream(InputStream input, ParallelBlockReaderAdapter<T> adaptor, int threads) {
+        this.input = input;
+        this.adaptor = adaptor;
+        this.threads = Math.max(1, threads);
+    }
+
+    public void process() throws IOException {
+        ExecutorService service = Executors.newFixedThreadPool(threads, new DecoderThreadFactory());
+        ArrayDeque<Future<DecodedBlock<T>>> pending = new ArrayDeque<Future<DecodedBlock<T>>>();
+        int maxPending = threads * PENDING_BLOCKS_PER_THREAD;
+        try {
+            while (input.available() > 0) {
+                final FileBlockHead head = FileBlockHead.readHead(input);
+                if (adaptor.skipBlock(head)) {
+                    head.skipContents(input);
+                    continue;
+                }
+                final byte[] raw = head.readRawContents(input);
+                pending.add(service.submit(new Callable<DecodedBlock<T>>() {
+                    @Override
+                    public DecodedBlock<T> call() throws Exception {
+                        FileBlock block = head.parseData(raw);
+                        return new DecodedBlock<T>(block, adaptor.decodeBlock(block));
+                    }
+                }));
+                if (pending.size() >= maxPending) {
+                    deliver(pending.poll());
+                }
+            }
+            while (!pending.isEmpty()) {
+                deliver(pending.poll());
+            }
+        } finally {
+            for (Future<DecodedBlock<T>> f : pending) {
+                f.cancel(true);
+            }
+            service.shutdownNow();
+        }
+        adaptor.complete();
+    }
+
+    private void deliver(Future<DecodedBlock<T>> future) throws IOException {
+        DecodedBlock<T> decoded;
+        try {
+            decoded = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding blocks");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+        adaptor.handleDecodedBlock(decoded.block, decoded.value);
+    }
+
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private static class DecodedBlock<T> {
+        final FileBlock block;
+        final T value;
+
+        DecodedBlock(FileBlock block, T value) {
+            this.block = block;
+            this.value = value;
+        }
+    }
+
+    private static class DecoderThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "pbf-decoder-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package crosby.binary.file;
+
+/**
+ * An adaptor that splits the handling of a block into a decoding step, which
+ * may run concurrently on worker threads, and a delivery step, which is always
+ * called in file order on the reading thread.
+ */
+public interface ParallelBlockReaderAdapter<T> extends BlockReaderAdapter {
+
+    /**
+     * Decode the inflated block. Called concurrently from worker threads, so
+     * implementations must not touch shared state here.
+     */
+    T decodeBlock(FileBlock message);
+
+    /** Called with the result of decodeBlock, in file order. */
+    void handleDecodedBlock(FileBlock message, T decoded);
+}
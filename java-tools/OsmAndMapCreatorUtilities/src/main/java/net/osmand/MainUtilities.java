@@ -292,6 +292,9 @@ public class MainUtilities {
 			} else if (s.startsWith("--max-height-tiles-in-ram=")) {
 				settings.maxHeightTilesInRam = Integer.parseInt(s.substring(s.indexOf('=') + 1));
 				it.remove();
+			} else if (s.startsWith("--max-height-data-mb=")) {
+				settings.maxHeightDataBytes = Long.parseLong(s.substring(s.indexOf('=') + 1)) << 20;
+				it.remove();
 			} else if (s.startsWith("--srtm=")) {
 				settings.srtmDataFolderUrl = s.substring(s.indexOf('=') + 1);
 				it.remove();
@@ -317,6 +320,40 @@ public class MainUtilities {
 			} else if (s.startsWith("--ignore-propagate")) {
 				settings.ignorePropagate = true;
 				it.remove();
+			} else if (s.equals("--node-location-store")) {
+				settings.nodeLocationStore = true;
+				it.remove();
+			} else if (s.startsWith("--osm-db-writer-queue=")) {
+				settings.osmDbWriterQueue = Integer.parseInt(s.substring("--osm-db-writer-queue=".length()));
+				it.remove();
+			} else if (s.startsWith("--osm-db-batch-size=")) {
+				settings.osmDbBatchSize = Integer.parseInt(s.substring("--osm-db-batch-size=".length()));
+				it.remove();
+			} else if (s.startsWith("--osm-db-sort-buffer-mb=")) {
+				settings.osmDbSortBufferSize = Long.parseLong(s.substring("--osm-db-sort-buffer-mb=".length())) << 20;
+				it.remove();
+			} else if (s.startsWith("--entity-threads=")) {
+				settings.entityIterationThreads = Integer.parseInt(s.substring("--entity-threads=".length()));
+				it.remove();
+			} else if (s.equals("--parallel-index-writing")) {
+				settings.parallelIndexWriting = true;
+				it.remove();
+			} else if (s.startsWith("--low-level-threads=")) {
+				settings.lowLevelWaysThreads = Integer.parseInt(s.substring("--low-level-threads=".length()));
+				it.remove();
+			} else if (s.equals("--packed-rtree")) {
+				settings.packedRTree = true;
+				it.remove();
+			} else if (s.startsWith("--packed-rtree-heap-mb=")) {
+				settings.packedRTree = true;
+				settings.packedRTreeHeapLimit = Long.parseLong(s.substring("--packed-rtree-heap-mb=".length())) << 20;
+				it.remove();
+			} else if (s.startsWith("--poi-threads=")) {
+				settings.poiIndexThreads = Integer.parseInt(s.substring("--poi-threads=".length()));
+				it.remove();
+			} else if (s.startsWith("--pbf-decode-threads=")) {
+				settings.pbfDecodeThreads = Integer.parseInt(s.substring("--pbf-decode-threads=".length()));
+				it.remove();
 			}
 		}
 	}
@@ -344,6 +381,9 @@ public class MainUtilities {
 		if (settings.maxHeightTilesInRam > 0) {
 			IndexHeightData.MAXIMUM_LOADED_DATA = settings.maxHeightTilesInRam;
 		}
+		if (settings.maxHeightDataBytes > 0) {
+			IndexHeightData.MAXIMUM_LOADED_BYTES = settings.maxHeightDataBytes;
+		}
 		IndexCreator ic = new IndexCreator(new File("."), settings);
 		ic.setDialects(settings.processInRam ? DBDialect.SQLITE_IN_MEMORY : DBDialect.SQLITE,
 				settings.processInRam ? DBDialect.SQLITE_IN_MEMORY : DBDialect.SQLITE);
@@ -382,7 +382,11 @@ public class NativeJavaRendering extends NativeLibrary {
 	}
 	
 	public RenderingImageResult renderImage(RenderingImageContext renderingImageContext) throws IOException {
-		RenderingGenerationResult generationResult = render(renderingImageContext);
+		return readImage(render(renderingImageContext));
+	}
+
+	// decodes png of the bitmap buffer and frees it, doesn't use native library
+	public RenderingImageResult readImage(RenderingGenerationResult generationResult) throws IOException {
 		InputStream inputStream = new InputStream() {
 			int nextInd = 0;
 			@Override
@@ -12,6 +12,8 @@ public class Boundary {
 	private long adminCenterId;
 	private CityType cityType;
 	private Multipolygon multipolygon;
+	// built on first indexed query, reset when polygon changes
+	private BoundaryGridIndex gridIndex;
 
 	public Boundary(MultipolygonBuilder m) {
 		multipolygon = m.build();
@@ -21,8 +23,27 @@ public class Boundary {
 		return multipolygon.containsPoint(latitude, longitude);
 	}
 
-	public void mergeWith(Boundary boundary) {
+	public synchronized void mergeWith(Boundary boundary) {
 		multipolygon.mergeWith(boundary.multipolygon);
+		gridIndex = null;
+	}
+
+	/**
+	 * Same as containsPoint but uses prepared grid index, use for boundaries that are tested many times
+	 */
+	public boolean containsPointIndexed(double latitude, double longitude) {
+		return getGridIndex().containsPoint(latitude, longitude);
+	}
+
+	public boolean containsPointIndexed(LatLon location) {
+		return getGridIndex().containsPoint(location);
+	}
+
+	public synchronized BoundaryGridIndex getGridIndex() {
+		if (gridIndex == null) {
+			gridIndex = BoundaryGridIndex.build(this);
+		}
+		return gridIndex;
 	}
 
 	public boolean containsPoint(LatLon location) {
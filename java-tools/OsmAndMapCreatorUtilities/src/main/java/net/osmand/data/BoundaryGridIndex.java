@@ -0,0 +1,208 @@
+package net.osmand.data;
+
+import gnu.trove.list.array.TIntArrayList;
+import net.osmand.osm.edit.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prepared boundary for repeated point in polygon tests.
+ *
+ * The bbox of the boundary is split into a grid, cells crossed by any ring segment are marked as edge cells. Inside
+ * of a connected area of other cells the result of the polygon test can't change, so it's calculated once per area
+ * (exact test in the center of one cell) and the cells are marked inside or outside. Only points in edge cells need
+ * the exact multipolygon test.
+ */
+public class BoundaryGridIndex {
+
+	private static final byte UNKNOWN = 0;
+	private static final byte OUTSIDE = 1;
+	private static final byte INSIDE = 2;
+	private static final byte EDGE = 3;
+
+	private static final int MIN_SIDE = 4;
+	private static final int MAX_SIDE = 256;
+	// cells are extended by this part when segments are rasterized, so rounding never misses an edge cell
+	private static final double CELL_EPS = 0.05;
+
+	private final Boundary boundary;
+	private final double left;
+	private final double right;
+	private final double top;
+	private final double bottom;
+	private final int side;
+	private final double cellWidth;
+	private final double cellHeight;
+	private final byte[] cells;
+	private int edgeCells;
+
+	private BoundaryGridIndex(Boundary boundary, double left, double right, double top, double bottom, int side) {
+		this.boundary = boundary;
+		this.left = left;
+		this.right = right;
+		this.top = top;
+		this.bottom = bottom;
+		this.side = side;
+		this.cellWidth = (right - left) / side;
+		this.cellHeight = (top - bottom) / side;
+		this.cells = new byte[side * side];
+	}
+
+	public static BoundaryGridIndex build(Boundary boundary) {
+		Multipolygon mp = boundary.getMultipolygon();
+		List<List<Node>> rings = new ArrayList<List<Node>>();
+		for (Ring r : mp.getOuterRings()) {
+			rings.add(r.getBorder());
+		}
+		for (Ring r : mp.getInnerRings()) {
+			rings.add(r.getBorder());
+		}
+		double left = 180, right = -180, top = -90, bottom = 90;
+		int segments = 0;
+		for (List<Node> ring : rings) {
+			for (Node n : ring) {
+				left = Math.min(left, n.getLongitude());
+				right = Math.max(right, n.getLongitude());
+				top = Math.max(top, n.getLatitude());
+				bottom = Math.min(bottom, n.getLatitude());
+			}
+			segments += ring.size();
+		}
+		if (segments == 0 || left >= right || bottom >= top) {
+			// degenerated boundary, every point is tested exactly
+			BoundaryGridIndex index = new BoundaryGridIndex(boundary, left, right, top, bottom, 1);
+			index.cells[0] = EDGE;
+			index.edgeCells = 1;
+			return index;
+		}
+		int side = Math.max(MIN_SIDE, Math.min(MAX_SIDE, (int) Math.sqrt(segments) * 2));
+		BoundaryGridIndex index = new BoundaryGridIndex(boundary, left, right, top, bottom, side);
+		for (List<Node> ring : rings) {
+			int sz = ring.size();
+			for (int i = 0; i < sz; i++) {
+				// closing segment is added for not closed rings as well
+				Node a = ring.get(i);
+				Node b = ring.get(i == sz - 1 ? 0 : i + 1);
+				index.markSegment(a.getLongitude(), a.getLatitude(), b.getLongitude(), b.getLatitude());
+			}
+		}
+		index.classifyCells();
+		return index;
+	}
+
+	private void markSegment(double x1, double y1, double x2, double y2) {
+		if (x1 > x2) {
+			double t = x1;
+			x1 = x2;
+			x2 = t;
+			t = y1;
+			y1 = y2;
+			y2 = t;
+		}
+		double epsX = cellWidth * CELL_EPS;
+		double epsY = cellHeight * CELL_EPS;
+		int c1 = col(x1 - epsX);
+		int c2 = col(x2 + epsX);
+		for (int c = c1; c <= c2; c++) {
+			// part of the segment inside of the (extended) column
+			double xs = Math.max(x1, left + c * cellWidth - epsX);
+			double xe = Math.min(x2, left + (c + 1) * cellWidth + epsX);
+			double ys, ye;
+			if (x2 == x1) {
+				ys = y1;
+				ye = y2;
+			} else {
+				ys = y1 + (y2 - y1) * (xs - x1) / (x2 - x1);
+				ye = y1 + (y2 - y1) * (xe - x1) / (x2 - x1);
+			}
+			int r1 = row(Math.min(ys, ye) - epsY);
+			int r2 = row(Math.max(ys, ye) + epsY);
+			for (int r = r1; r <= r2; r++) {
+				if (cells[r * side + c] != EDGE) {
+					cells[r * side + c] = EDGE;
+					edgeCells++;
+				}
+			}
+		}
+	}
+
+	private void classifyCells() {
+		TIntArrayList queue = new TIntArrayList();
+		for (int start = 0; start < cells.length; start++) {
+			if (cells[start] != UNKNOWN) {
+				continue;
+			}
+			// connected cells without segments are all inside or all outside
+			int c = start % side;
+			int r = start / side;
+			boolean inside = boundary.containsPoint(bottom + (r + 0.5) * cellHeight, left + (c + 0.5) * cellWidth);
+			byte state = inside ? INSIDE : OUTSIDE;
+			cells[start] = state;
+			queue.resetQuick();
+			queue.add(start);
+			while (!queue.isEmpty()) {
+				int cell = queue.removeAt(queue.size() - 1);
+				int cc = cell % side;
+				int cr = cell / side;
+				if (cc > 0) {
+					visit(queue, cell - 1, state);
+				}
+				if (cc < side - 1) {
+					visit(queue, cell + 1, state);
+				}
+				if (cr > 0) {
+					visit(queue, cell - side, state);
+				}
+				if (cr < side - 1) {
+					visit(queue, cell + side, state);
+				}
+			}
+		}
+	}
+
+	private void visit(TIntArrayList queue, int cell, byte state) {
+		if (cells[cell] == UNKNOWN) {
+			cells[cell] = state;
+			queue.add(cell);
+		}
+	}
+
+	private int col(double lon) {
+		return Math.max(0, Math.min(side - 1, (int) Math.floor((lon - left) / cellWidth)));
+	}
+
+	private int row(double lat) {
+		return Math.max(0, Math.min(side - 1, (int) Math.floor((lat - bottom) / cellHeight)));
+	}
+
+	public boolean containsPoint(double latitude, double longitude) {
+		if (longitude < left || longitude > right || latitude < bottom || latitude > top) {
+			return false;
+		}
+		if (side == 1) {
+			return boundary.containsPoint(latitude, longitude);
+		}
+		byte state = cells[row(latitude) * side + col(longitude)];
+		if (state == EDGE) {
+			return boundary.containsPoint(latitude, longitude);
+		}
+		return state == INSIDE;
+	}
+
+	public boolean containsPoint(LatLon location) {
+		return containsPoint(location.getLatitude(), location.getLongitude());
+	}
+
+	public Boundary getBoundary() {
+		return boundary;
+	}
+
+	public int getGridSide() {
+		return side;
+	}
+
+	public int getEdgeCells() {
+		return edgeCells;
+	}
+}
@@ -1,8 +1,12 @@
 package net.osmand.obf.diff;
 
+import net.osmand.binary.BinaryIndexPart;
 import net.osmand.binary.BinaryMapDataObject;
+import net.osmand.binary.BinaryMapIndexReader;
 import net.osmand.binary.BinaryMapIndexReader.MapIndex;
+import net.osmand.binary.BinaryMapPoiReaderAdapter.PoiRegion;
 import net.osmand.binary.BinaryMapRouteReaderAdapter.RouteRegion;
+import net.osmand.binary.BinaryMapTransportReaderAdapter.TransportIndex;
 import net.osmand.binary.MapZooms.MapZoomPair;
 import net.osmand.binary.RouteDataObject;
 import net.osmand.data.Amenity;
@@ -12,13 +16,24 @@ import net.osmand.data.TransportStop;
 import net.osmand.obf.BinaryInspector;
 import net.osmand.osm.edit.Entity.EntityId;
 import net.osmand.osm.edit.Entity.EntityType;
+import net.osmand.util.Algorithms;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPInputStream;
 
 import gnu.trove.iterator.TLongObjectIterator;
 import gnu.trove.map.hash.TLongObjectHashMap;
@@ -34,6 +49,26 @@ public class ObfDiffGenerator {
 	private static final String OSMAND_CHANGE_TAG = "osmand_change";
 	public static boolean COMPARE_TRANSPORT = true;
 
+	// sections are compared concurrently, with 1 thread they are read and compared one by one
+	private int threads = 1;
+
+	private enum DiffSection {
+		MAP, ROUTE, POI, TRANSPORT;
+
+		boolean accept(BinaryIndexPart p) {
+			switch (this) {
+			case MAP:
+				return p instanceof MapIndex;
+			case ROUTE:
+				return p instanceof RouteRegion;
+			case POI:
+				return p instanceof PoiRegion;
+			default:
+				return p instanceof TransportIndex;
+			}
+		}
+	}
+
 	public static void main(String[] args) throws IOException, RTreeException {
 		if(args.length == 1 && args[0].equals("test")) {
 			args = new String[3];
@@ -44,7 +79,7 @@ public class ObfDiffGenerator {
 //			args[3] = "19_07_29_20_30_diff.osm.gz";
 		}
 		if (args.length < 3) {
-			System.out.println("Usage: <path to old obf> <path to new obf> <[result file name] or [stdout]> <path to diff file (optional)>");
+			System.out.println("Usage: <path to old obf> <path to new obf> <[result file name] or [stdout]> <path to diff file (optional)> [--threads=<threads>]");
 			System.exit(1);
 			return;
 		}
@@ -58,6 +93,15 @@ public class ObfDiffGenerator {
 	}
 
 	private void run(String[] args) throws IOException, RTreeException, SQLException {
+		List<String> argsList = new ArrayList<>();
+		for (String a : args) {
+			if (a.startsWith("--threads=")) {
+				threads = Math.max(1, Integer.parseInt(a.substring("--threads=".length())));
+			} else {
+				argsList.add(a);
+			}
+		}
+		args = argsList.toArray(new String[0]);
 		File start = new File(args[0]);
 		File end = new File(args[1]);
 		File diff = args.length < 4 ? null : new File(args[3]);
@@ -76,11 +120,6 @@ public class ObfDiffGenerator {
 	}
 
 	private void generateDiff(File start, File end, File result, File diff) throws IOException, RTreeException, SQLException {
-		ObfFileInMemory fStart = new ObfFileInMemory();
-		fStart.readObfFiles(Collections.singletonList(start));
-		ObfFileInMemory fEnd = new ObfFileInMemory();
-		fEnd.readObfFiles(Collections.singletonList(end));
-
 		Set<EntityId> allModifiedObjIds = new HashSet<>();
 		if (diff != null) {
 			try {
@@ -90,12 +129,63 @@ public class ObfDiffGenerator {
 			}
 		}
 
-		System.out.println("Comparing the files...");
-		compareMapData(fStart, fEnd, result == null, allModifiedObjIds);
-		compareRouteData(fStart, fEnd, result == null, allModifiedObjIds);
-		comparePOI(fStart, fEnd, result == null, allModifiedObjIds);
-		if (COMPARE_TRANSPORT) {
-			compareTransport(fStart, fEnd, result == null, allModifiedObjIds);
+		boolean print = result == null;
+		ObfFileInMemory fEnd = new ObfFileInMemory();
+		File startObf = unzipObf(start);
+		File endObf = unzipObf(end);
+		try {
+			try (RandomAccessFile raf = new RandomAccessFile(endObf, "r")) {
+				BinaryMapIndexReader reader = new BinaryMapIndexReader(raf, endObf);
+				fEnd.updateTimestamp(reader.getDateCreated());
+				fEnd.setOsmAndOwner(reader.getOwner());
+			}
+			System.out.println("Comparing the files...");
+			List<DiffSection> sections = new ArrayList<>(Arrays.asList(DiffSection.MAP, DiffSection.ROUTE, DiffSection.POI));
+			if (COMPARE_TRANSPORT) {
+				sections.add(DiffSection.TRANSPORT);
+			}
+			// printed differences should stay in order of sections
+			int th = print ? 1 : Math.min(threads, sections.size());
+			ExecutorService service = th > 1 ? Executors.newFixedThreadPool(th) : null;
+			try {
+				List<Future<Void>> futures = new ArrayList<>();
+				for (DiffSection section : sections) {
+					Callable<Void> task = () -> {
+						compareSection(section, startObf, endObf, fEnd, print, allModifiedObjIds);
+						return null;
+					};
+					if (service == null) {
+						FutureTask<Void> f = new FutureTask<>(task);
+						f.run();
+						futures.add(f);
+					} else {
+						futures.add(service.submit(task));
+					}
+				}
+				for (Future<Void> f : futures) {
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof RuntimeException) {
+							throw (RuntimeException) e.getCause();
+						}
+						throw new IllegalStateException(e.getCause());
+					}
+				}
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			} finally {
+				if (service != null) {
+					service.shutdownNow();
+				}
+			}
+		} finally {
+			if (startObf != start) {
+				startObf.delete();
+			}
+			if (endObf != end) {
+				endObf.delete();
+			}
 		}
 
 		System.out.println("Finished comparing.");
@@ -107,6 +197,56 @@ public class ObfDiffGenerator {
 		}
 	}
 
+	/**
+	 * Reads the section from both files and compares it. Objects of start file are not needed after comparison, so
+	 * only one section of start file is kept in memory per thread. Objects of end file which are left after
+	 * comparison are the diff.
+	 */
+	private void compareSection(DiffSection section, File start, File end, ObfFileInMemory fEnd, boolean print,
+			Set<EntityId> modifiedObjIds) throws IOException {
+		ObfFileInMemory fStart = new ObfFileInMemory();
+		readSection(fStart, start, section);
+		readSection(fEnd, end, section);
+		switch (section) {
+		case MAP:
+			compareMapData(fStart, fEnd, print, modifiedObjIds);
+			break;
+		case ROUTE:
+			compareRouteData(fStart, fEnd, print, modifiedObjIds);
+			break;
+		case POI:
+			comparePOI(fStart, fEnd, print, modifiedObjIds);
+			break;
+		case TRANSPORT:
+			compareTransport(fStart, fEnd, print, modifiedObjIds);
+			break;
+		}
+	}
+
+	private void readSection(ObfFileInMemory obf, File file, DiffSection section) throws IOException {
+		// reader is not thread safe, so every section is read with own reader
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			BinaryMapIndexReader reader = new BinaryMapIndexReader(raf, file);
+			for (BinaryIndexPart p : reader.getIndexes()) {
+				if (section.accept(p)) {
+					obf.readObfSection(reader, p);
+				}
+			}
+		}
+	}
+
+	private File unzipObf(File file) throws IOException {
+		if (!file.getName().endsWith(".gz")) {
+			return file;
+		}
+		File nonGzip = new File(file.getParentFile(), file.getName().substring(0, file.getName().length() - 3));
+		try (GZIPInputStream gzin = new GZIPInputStream(new FileInputStream(file));
+				FileOutputStream fous = new FileOutputStream(nonGzip)) {
+			Algorithms.streamCopy(gzin, fous);
+		}
+		return nonGzip;
+	}
+
 	private void compareTransport(ObfFileInMemory fStart, ObfFileInMemory fEnd, boolean print, Set<EntityId> modifiedObjIds) {
 		TLongObjectHashMap<TransportStop> startStopData = cleanStopsAndAdjustId(fStart.getTransportStops());
 		TLongObjectHashMap<TransportStop> endStopData = cleanStopsAndAdjustId(fEnd.getTransportStops());
@@ -5,6 +5,10 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import gnu.trove.map.hash.TLongObjectHashMap;
 import net.osmand.binary.*;
@@ -25,6 +29,10 @@ public class ObfDiffMerger {
 	}
 	private static final String OSMAND_CHANGE_VALUE = "delete";
 	private static final String OSMAND_CHANGE_TAG = "osmand_change";
+	private static final int DIFFS_PER_THREAD = 4;
+
+	// diff files are read concurrently and merged in the order of files
+	private int threads = 1;
 	
 	public static void main(String[] args) {
 		try {
@@ -58,6 +66,7 @@ public class ObfDiffMerger {
 	public static void mergeBulkOsmLiveDay(String[] args) {
 		try {
 			String location = args[0];
+			int threads = parseThreads(args);
 			File folder = new File(location);
 			for (File region : getSortedFiles(folder)) {
 				if (!region.isDirectory()) {
@@ -77,7 +86,9 @@ public class ObfDiffMerger {
 					}
 					
 					File flToMerge = new File(region, regionName + "_" + date.getName() + ".obf.gz");
-					boolean processed = new ObfDiffMerger().process(flToMerge, Arrays.asList(date), true);
+					ObfDiffMerger merger = new ObfDiffMerger();
+					merger.threads = threads;
+					boolean processed = merger.process(flToMerge, Arrays.asList(date), true);
 					if(processed) {
 						System.out.println("Processed " + region + " " + date + " .");
 					}
@@ -204,6 +215,16 @@ public class ObfDiffMerger {
 		}
 	}
 	
+	private static int parseThreads(String[] args) {
+		int threads = 1;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].startsWith("--threads=")) {
+				threads = Math.max(1, Integer.parseInt(args[i].substring("--threads=".length())));
+			}
+		}
+		return threads;
+	}
+
 	private static List<File> getSortedFiles(File region) {
 		List<File> f = new ArrayList<>();
 		for(File l : region.listFiles()) {
@@ -225,6 +246,7 @@ public class ObfDiffMerger {
 	public static void mergeBulkOsmLiveMonth(String[] args) {
 		try {
 			String location = args[0];
+			int threads = parseThreads(args);
 			Date currentDate = new Date();
 			String cdate = day.format(currentDate).substring(2);
 			String pdate = day.format(new Date(System.currentTimeMillis() - 1000 * 24 * 60 * 60 * 20)).substring(2);
@@ -250,7 +272,9 @@ public class ObfDiffMerger {
 				Map<String, List<File>> fls = groupFilesByMonth(regionName, days, cdate, allowedMonths);
 				for (String fl : fls.keySet()) {
 					File flToMerge = new File(region, fl);
-					boolean processed = new ObfDiffMerger().process(flToMerge, fls.get(fl), true);
+					ObfDiffMerger merger = new ObfDiffMerger();
+					merger.threads = threads;
+					boolean processed = merger.process(flToMerge, fls.get(fl), true);
 					if(processed) {
 						String s = "";
 						for(File f: fls.get(fl)) {
@@ -318,6 +342,10 @@ public class ObfDiffMerger {
 				checkTimestamps = true;
 				continue;
 			}
+			if (args[i].startsWith("--threads=")) {
+				threads = Math.max(1, Integer.parseInt(args[i].substring("--threads=".length())));
+				continue;
+			}
 			File fl = new File(args[i]);
 			if(!fl.exists()) {
 				throw new IllegalArgumentException("File not found: " + fl.getAbsolutePath());
@@ -363,11 +391,57 @@ public class ObfDiffMerger {
 			}
 		}
 		ObfFileInMemory context = new ObfFileInMemory();
-		context.readObfFiles(diffs);
+		readDiffs(context, diffs);
 		context.writeFile(result, true);
 		return true;
 	}
 
+	/**
+	 * Reads all diffs and merges them in one pass: every file is decoded into own ObfFileInMemory (concurrently)
+	 * and put into the context in the order of files, so the newest version of object is kept.
+	 */
+	private void readDiffs(ObfFileInMemory context, List<File> diffs) throws IOException {
+		if (threads <= 1) {
+			context.readObfFiles(diffs);
+			return;
+		}
+		ExecutorService service = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<ObfFileInMemory>> pending = new ArrayDeque<>();
+		try {
+			for (File diff : diffs) {
+				pending.add(service.submit(() -> {
+					ObfFileInMemory obf = new ObfFileInMemory();
+					obf.readObfFiles(Collections.singletonList(diff));
+					return obf;
+				}));
+				if (pending.size() >= threads * DIFFS_PER_THREAD) {
+					context.putAll(getDiff(pending.poll()), true);
+				}
+			}
+			while (!pending.isEmpty()) {
+				context.putAll(getDiff(pending.poll()), true);
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			service.shutdownNow();
+		}
+	}
+
+	private ObfFileInMemory getDiff(Future<ObfFileInMemory> future) throws InterruptedException, IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
 
 	
 	
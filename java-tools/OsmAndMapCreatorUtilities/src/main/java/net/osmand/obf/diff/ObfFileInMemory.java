@@ -8,6 +8,7 @@ import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TLongLongMap;
 import gnu.trove.map.hash.TLongLongHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
 import net.osmand.IndexConstants;
 import net.osmand.PlatformUtil;
 import net.osmand.ResultMatcher;
@@ -32,8 +33,10 @@ import net.osmand.util.Algorithms;
 import net.osmand.util.MapUtils;
 import org.apache.commons.logging.Log;
 import rtree.LeafElement;
+import rtree.PackedRTree;
 import rtree.RTree;
 import rtree.RTreeException;
+import rtree.ReadableRTree;
 import rtree.Rect;
 
 import java.io.*;
@@ -50,6 +53,10 @@ public class ObfFileInMemory {
 	private double latbottom = -85;
 	private double lonleft = -179.9;
 	private double lonright = 179.9;
+	// elements of one section above the limit are spilled to the non pack rtree file
+	private static final long PACKED_RTREE_HEAP_LIMIT = 128L << 20;
+	// packed rtree doesn't share state between instances, so several files could be written concurrently
+	private boolean packedRTree = false;
 	private static final Log LOG = PlatformUtil.getLog(ObfFileInMemory.class);
 
 	private Map<MapZooms.MapZoomPair, TLongObjectHashMap<BinaryMapDataObject>> mapObjects = new LinkedHashMap<>();
@@ -103,6 +110,75 @@ public class ObfFileInMemory {
 		this.transportRoutes = transportRoutes;
 	}
 
+	public void setPackedRTree(boolean packedRTree) {
+		this.packedRTree = packedRTree;
+	}
+
+	/**
+	 * Limits all following reads to objects intersecting the bbox.
+	 */
+	public void setReadBounds(double lattop, double latbottom, double lonleft, double lonright) {
+		this.lattop = lattop;
+		this.latbottom = latbottom;
+		this.lonleft = lonleft;
+		this.lonright = lonright;
+	}
+
+	/**
+	 * Keeps only objects with ids from the sets, sections without set are cleared completely. Transport routes are
+	 * kept, only routes of the written stops are written.
+	 */
+	public void retainObjects(Map<MapZoomPair, TLongHashSet> mapIds, TLongHashSet routeIds, TLongHashSet poiIds,
+			TLongHashSet transportStopIds) {
+		for (MapZoomPair pair : new ArrayList<>(getZooms())) {
+			TLongObjectHashMap<BinaryMapDataObject> objects = mapObjects.get(pair);
+			retain(objects, mapIds.get(pair));
+			if (objects.isEmpty()) {
+				mapObjects.remove(pair);
+			}
+		}
+		retain(routeObjects, routeIds);
+		retain(poiObjects, poiIds);
+		retain(transportStops, transportStopIds);
+	}
+
+	private static void retain(TLongObjectHashMap<?> objects, TLongHashSet ids) {
+		if (ids == null) {
+			objects.clear();
+			return;
+		}
+		TLongObjectIterator<?> it = objects.iterator();
+		while (it.hasNext()) {
+			it.advance();
+			if (!ids.contains(it.key())) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Puts all objects of other file, with override objects of other file replace existing ones.
+	 */
+	public void putAll(ObfFileInMemory obf, boolean override) {
+		for (MapZoomPair pair : obf.getZooms()) {
+			putMapObjects(pair, obf.get(pair).valueCollection(), override);
+		}
+		putRoutingData(obf.getRoutingData(), override);
+		putPoiData(obf.getPoiObjects(), override);
+		putTransportStops(obf.getTransportStops().valueCollection(), override);
+		TLongObjectIterator<TransportRoute> it = obf.getTransportRoutes().iterator();
+		while (it.hasNext()) {
+			it.advance();
+			if (override || !transportRoutes.containsKey(it.key())) {
+				transportRoutes.put(it.key(), it.value());
+			}
+		}
+		updateTimestamp(obf.getTimestamp());
+		if (obf.osmAndOwner != null) {
+			setOsmAndOwner(obf.osmAndOwner);
+		}
+	}
+
 	public void putMapObjects(MapZoomPair pair, Collection<BinaryMapDataObject> objects, boolean override) {
 		TLongObjectHashMap<BinaryMapDataObject> res = get(pair);
 		for (BinaryMapDataObject o : objects) {
@@ -305,37 +381,20 @@ public class ObfFileInMemory {
 									 File fileToWrite) throws IOException, RTreeException, SQLException {
 		File nonpackRtree = new File(fileToWrite.getParentFile(), "nonpacktrans." + fileToWrite.getName() + ".rtree");
 		File packRtree = new File(fileToWrite.getParentFile(), "packtrans." + fileToWrite.getName() + ".rtree");
-		RTree rtree = null;
-		try {
-			rtree = new RTree(nonpackRtree.getAbsolutePath());
+		try (SectionRTree sectionTree = new SectionRTree(nonpackRtree, packRtree)) {
 			for (TransportStop s : transportStops.valueCollection()) {
 				int x = (int) MapUtils.getTileNumberX(24, s.getLocation().getLongitude());
 				int y = (int) MapUtils.getTileNumberY(24, s.getLocation().getLatitude());
-				try {
-					rtree.insert(new LeafElement(new Rect(x, y, x, y), s.getId()));
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
+				sectionTree.insert(x, y, x, y, s.getId());
 			}
-			rtree = AbstractIndexPartCreator.packRtreeFile(rtree, nonpackRtree.getAbsolutePath(),
-					packRtree.getAbsolutePath());
-
-			long rootIndex = rtree.getFileHdr().getRootIndex();
-			rtree.Node root = rtree.getReadNode(rootIndex);
+			ReadableRTree rtree = sectionTree.pack();
+			rtree.Node root = rtree.getReadNode(rtree.getRootIndex());
 			Rect rootBounds = IndexVectorMapCreator.calcBounds(root);
 			if (rootBounds != null) {
 				writer.startTransportTreeElement(rootBounds.getMinX(), rootBounds.getMaxX(), rootBounds.getMinY(), rootBounds.getMaxY());
 				indexCreator.writeBinaryTransportTree(root, rtree, writer, transportStops, stringTable);
 				writer.endWriteTransportTreeElement();
 			}
-		} finally {
-			if (rtree != null) {
-				RandomAccessFile file = rtree.getFileHdr().getFile();
-				file.close();
-			}
-			nonpackRtree.delete();
-			packRtree.delete();
-			RTree.clearCache();
 		}
 	}
 
@@ -344,9 +403,7 @@ public class ObfFileInMemory {
 				+ fileToWrite.getName() + ".rtree");
 		File packRtree = new File(fileToWrite.getParentFile(), "packroute."
 				+ fileToWrite.getName() + ".rtree");
-		RTree rtree = null;
-		try {
-			rtree = new RTree(nonpackRtree.getAbsolutePath());
+		try (SectionRTree sectionTree = new SectionRTree(nonpackRtree, packRtree)) {
 			for (long key : routeObjs.keys()) {
 				RouteDataObject obj = routeObjs.get(key);
 				int minX = obj.getPoint31XTile(0);
@@ -359,33 +416,18 @@ public class ObfFileInMemory {
 					maxX = Math.max(maxX, obj.getPoint31XTile(i));
 					maxY = Math.max(maxY, obj.getPoint31YTile(i));
 				}
-				try {
-					rtree.insert(new LeafElement(new Rect(minX, minY, maxX, maxY), obj.getId()));
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
+				sectionTree.insert(minX, minY, maxX, maxY, obj.getId());
 			}
-			rtree = AbstractIndexPartCreator.packRtreeFile(rtree, nonpackRtree.getAbsolutePath(),
-					packRtree.getAbsolutePath());
+			ReadableRTree rtree = sectionTree.pack();
 			
 			TLongObjectHashMap<BinaryFileReference> treeHeader = new TLongObjectHashMap<BinaryFileReference>();
-			long rootIndex = rtree.getFileHdr().getRootIndex();
-			rtree.Node root = rtree.getReadNode(rootIndex);
+			rtree.Node root = rtree.getReadNode(rtree.getRootIndex());
 			Rect rootBounds = IndexVectorMapCreator.calcBounds(root);
 			if (rootBounds != null) {
 				IndexRouteCreator.writeBinaryRouteTree(root, rootBounds, rtree, writer, treeHeader, false);
 				RouteWriteContext wc = new RouteWriteContext(null, treeHeader, null, routeObjs);
 				IndexRouteCreator.writeBinaryMapBlock(root, rootBounds, rtree, writer, wc, false);
 			}
-			
-		} finally {
-			if (rtree != null) {
-				RandomAccessFile file = rtree.getFileHdr().getFile();
-				file.close();
-			}
-			nonpackRtree.delete();
-			packRtree.delete();
-			RTree.clearCache();
 		}
 		
 	}
@@ -396,9 +438,7 @@ public class ObfFileInMemory {
 				+ fileToWrite.getName() + ".rtree");
 		File packRtree = new File(fileToWrite.getParentFile(), "pack" + mapZoomPair.getMinZoom() + "."
 				+ fileToWrite.getName() + ".rtree");
-		RTree rtree = null;
-		try {
-			rtree = new RTree(nonpackRtree.getAbsolutePath());
+		try (SectionRTree sectionTree = new SectionRTree(nonpackRtree, packRtree)) {
 			for (long key : objects.keys()) {
 				BinaryMapDataObject obj = objects.get(key);
 				int minX = obj.getPoint31XTile(0);
@@ -411,18 +451,12 @@ public class ObfFileInMemory {
 					maxX = Math.max(maxX, obj.getPoint31XTile(i));
 					maxY = Math.max(maxY, obj.getPoint31YTile(i));
 				}
-				try {
-					rtree.insert(new LeafElement(new Rect(minX, minY, maxX, maxY), obj.getId()));
-				} catch (Exception e) {
-					throw new RuntimeException(e);
-				}
+				sectionTree.insert(minX, minY, maxX, maxY, obj.getId());
 			}
-			rtree = AbstractIndexPartCreator.packRtreeFile(rtree, nonpackRtree.getAbsolutePath(),
-					packRtree.getAbsolutePath());
+			ReadableRTree rtree = sectionTree.pack();
 			TLongObjectHashMap<BinaryFileReference> treeHeader = new TLongObjectHashMap<BinaryFileReference>();
 
-			long rootIndex = rtree.getFileHdr().getRootIndex();
-			rtree.Node root = rtree.getReadNode(rootIndex);
+			rtree.Node root = rtree.getReadNode(rtree.getRootIndex());
 			Rect rootBounds = IndexVectorMapCreator.calcBounds(root);
 			if (rootBounds != null) {
 				writer.startWriteMapLevelIndex(mapZoomPair.getMinZoom(), mapZoomPair.getMaxZoom(),
@@ -434,16 +468,68 @@ public class ObfFileInMemory {
 				writer.endWriteMapLevelIndex();
 
 			}
-		} finally {
-			if (rtree != null) {
-				RandomAccessFile file = rtree.getFileHdr().getFile();
-				file.close();
+		}
+
+	}
+
+	/**
+	 * Rtree of one written section. File rtree shares static caches, so only one file could be written at a time,
+	 * packed rtree is built in memory (spilled to the non pack file over the heap limit).
+	 */
+	private class SectionRTree implements Closeable {
+		private final File nonpackRtree;
+		private final File packRtree;
+		private RTree fileTree;
+		private PackedRTree packedTree;
+
+		SectionRTree(File nonpackRtree, File packRtree) throws RTreeException {
+			this.nonpackRtree = nonpackRtree;
+			this.packRtree = packRtree;
+			if (packedRTree) {
+				packedTree = new PackedRTree(nonpackRtree, PACKED_RTREE_HEAP_LIMIT);
+			} else {
+				fileTree = new RTree(nonpackRtree.getAbsolutePath());
 			}
-			nonpackRtree.delete();
-			packRtree.delete();
-			RTree.clearCache();
 		}
 
+		void insert(int minX, int minY, int maxX, int maxY, long id) {
+			try {
+				if (packedTree != null) {
+					packedTree.add(minX, minY, maxX, maxY, id);
+				} else {
+					fileTree.insert(new LeafElement(new Rect(minX, minY, maxX, maxY), id));
+				}
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		ReadableRTree pack() throws IOException {
+			if (packedTree != null) {
+				packedTree.pack();
+				return packedTree;
+			}
+			fileTree = AbstractIndexPartCreator.packRtreeFile(fileTree, nonpackRtree.getAbsolutePath(),
+					packRtree.getAbsolutePath());
+			return fileTree;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (packedTree != null) {
+					packedTree.close();
+				} else if (fileTree != null) {
+					fileTree.getFileHdr().getFile().close();
+				}
+			} finally {
+				nonpackRtree.delete();
+				packRtree.delete();
+				if (packedTree == null) {
+					RTree.clearCache();
+				}
+			}
+		}
 	}
 
 	public void updateTimestamp(long dateCreated) {
@@ -476,29 +562,7 @@ public class ObfFileInMemory {
 			}
 			RandomAccessFile raf = new RandomAccessFile(nonGzip, "r");
 			BinaryMapIndexReader indexReader = new BinaryMapIndexReader(raf, nonGzip);
-			for (BinaryIndexPart p : indexReader.getIndexes()) {
-				if (p instanceof MapIndex) {
-					MapIndex mi = (MapIndex) p;
-					for (MapRoot mr : mi.getRoots()) {
-						MapZooms.MapZoomPair pair = new MapZooms.MapZoomPair(mr.getMinZoom(), mr.getMaxZoom());
-						TLongObjectHashMap<BinaryMapDataObject> objects = readBinaryMapData(indexReader, mi,
-								mr.getMinZoom());
-						putMapObjects(pair, objects.valueCollection(), true);
-					}
-				} else if (p instanceof RouteRegion) {
-					RouteRegion rr = (RouteRegion) p;
-					readRoutingData(indexReader, rr, ZOOM_LEVEL_ROUTING, true);
-				} else if (p instanceof PoiRegion) {
-					PoiRegion pr = (PoiRegion) p;
-					TLongObjectHashMap<Map<String, Amenity>> rr = readPoiData(indexReader, pr, ZOOM_LEVEL_POI, true);
-					putPoiData(rr, true);
-				} else if (p instanceof TransportIndex) {
-					readTransportData(indexReader, (TransportIndex) p, true);
-				}
-			}
-			
-			updateTimestamp(indexReader.getDateCreated());
-			setOsmAndOwner(indexReader.getOwner());
+			readObfSections(indexReader);
 			indexReader.close();
 			raf.close();
 			if(gzip) {
@@ -506,6 +570,43 @@ public class ObfFileInMemory {
 			}
 		}
 	}
+
+	/**
+	 * Reads all sections of the opened file within the read bounds.
+	 */
+	public void readObfSections(BinaryMapIndexReader indexReader) throws IOException {
+		for (BinaryIndexPart p : indexReader.getIndexes()) {
+			readObfSection(indexReader, p);
+		}
+
+		updateTimestamp(indexReader.getDateCreated());
+		setOsmAndOwner(indexReader.getOwner());
+	}
+
+	/**
+	 * Reads one section within the read bounds. Sections of different types are stored separately, so they could
+	 * be read concurrently (each with own reader).
+	 */
+	public void readObfSection(BinaryMapIndexReader indexReader, BinaryIndexPart p) throws IOException {
+		if (p instanceof MapIndex) {
+			MapIndex mi = (MapIndex) p;
+			for (MapRoot mr : mi.getRoots()) {
+				MapZooms.MapZoomPair pair = new MapZooms.MapZoomPair(mr.getMinZoom(), mr.getMaxZoom());
+				TLongObjectHashMap<BinaryMapDataObject> objects = readBinaryMapData(indexReader, mi,
+						mr.getMinZoom());
+				putMapObjects(pair, objects.valueCollection(), true);
+			}
+		} else if (p instanceof RouteRegion) {
+			RouteRegion rr = (RouteRegion) p;
+			readRoutingData(indexReader, rr, ZOOM_LEVEL_ROUTING, true);
+		} else if (p instanceof PoiRegion) {
+			PoiRegion pr = (PoiRegion) p;
+			TLongObjectHashMap<Map<String, Amenity>> rr = readPoiData(indexReader, pr, ZOOM_LEVEL_POI, true);
+			putPoiData(rr, true);
+		} else if (p instanceof TransportIndex) {
+			readTransportData(indexReader, (TransportIndex) p, true);
+		}
+	}
 	
 	public void readTransportData(BinaryMapIndexReader indexReader, TransportIndex ind, boolean override) throws IOException {
 		SearchRequest<TransportStop> sr = BinaryMapIndexReader.buildSearchTransportRequest(
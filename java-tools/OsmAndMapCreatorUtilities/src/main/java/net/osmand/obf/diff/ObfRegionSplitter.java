@@ -1,7 +1,18 @@
 package net.osmand.obf.diff;
 
+import net.osmand.ResultMatcher;
+import net.osmand.binary.BinaryIndexPart;
 import net.osmand.binary.BinaryMapDataObject;
+import net.osmand.binary.BinaryMapIndexReader;
+import net.osmand.binary.BinaryMapIndexReader.MapIndex;
+import net.osmand.binary.BinaryMapIndexReader.MapRoot;
+import net.osmand.binary.BinaryMapIndexReader.SearchFilter;
+import net.osmand.binary.BinaryMapIndexReader.SearchRequest;
+import net.osmand.binary.BinaryMapPoiReaderAdapter.PoiRegion;
 import net.osmand.binary.BinaryMapRouteReaderAdapter;
+import net.osmand.binary.BinaryMapRouteReaderAdapter.RouteRegion;
+import net.osmand.binary.BinaryMapRouteReaderAdapter.RouteSubregion;
+import net.osmand.binary.BinaryMapTransportReaderAdapter.TransportIndex;
 import net.osmand.binary.MapZooms.MapZoomPair;
 import net.osmand.binary.RouteDataObject;
 import net.osmand.data.Amenity;
@@ -14,13 +25,57 @@ import net.osmand.osm.edit.Way;
 import net.osmand.util.Algorithms;
 import net.osmand.util.MapUtils;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPInputStream;
 
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import rtree.RTreeException;
 
 public class ObfRegionSplitter {
+
+	private static final int ELEVATION_BATCH_SIZE = 1000;
+	private static final int ELEVATION_BATCHES_PER_THREAD = 4;
+	// records of region are appended to the spill file when the buffer is full
+	private static final int SPILL_BUFFER_BYTES = 1 << 14;
+	// degrees added to read boxes of the region, so rounding of coordinates doesn't lose objects on the border
+	private static final double REGION_BBOX_MARGIN = 1e-4;
+	// region is read by boxes of tiles with its objects, so regions crossing the antimeridian or scattered over the
+	// world (overseas parts) aren't read by the world wide bbox
+	private static final int REGION_TILE_ZOOM = 6;
+	// bounds of world search, the same bounds are used to read regions
+	private static final double WORLD_LEFT = -179.9;
+	private static final double WORLD_RIGHT = 179.9;
+	private static final double WORLD_TOP = 85;
+	private static final double WORLD_BOTTOM = -85;
+	// map sections are stored by index of zoom pair (>= 0)
+	private static final int SECTION_ROUTE = -1;
+	private static final int SECTION_POI = -2;
+	private static final int SECTION_TRANSPORT = -3;
+
+	// threads to calculate elevation tags of route objects
+	private int srtmThreads = 1;
+	// object ids of regions are spilled to disk and every region is read from the source file separately
+	private boolean streaming = false;
+	// threads to write regions in streaming mode
+	private int threads = 1;
 	
 	
 	public static void main(String[] args) throws IOException {
@@ -33,7 +88,7 @@ public class ObfRegionSplitter {
 //			args[4] = "--srtm=/Users/macmini/OsmAnd/overpass/srtm/";
 		}
 		if (args.length <= 3) {
-			System.err.println("Usage: <path_to_world_obf_diff> <path_to_result_folder> <subfolder_name> <file_suffix> --srtm=<folder with srtm>");
+			System.err.println("Usage: <path_to_world_obf_diff> <path_to_result_folder> <subfolder_name> <file_suffix> --srtm=<folder with srtm> [--srtm-threads=<threads>] [--streaming [--threads=<threads>]]");
 			return;
 		}
 		
@@ -55,71 +110,428 @@ public class ObfRegionSplitter {
 		}
 
 		IndexHeightData heightData = null;
-		if (args.length > 4 && args[4].startsWith("--srtm=")) {
-			String srtmDataFolderUrl = args[4].replace("--srtm=", "");
-			File heightDir = new File(srtmDataFolderUrl);
-			if (heightDir.exists()) {
-				heightData = new IndexHeightData();
-				heightData.setSrtmData(srtmDataFolderUrl, dir);
+		for (int i = 4; i < args.length; i++) {
+			if (args[i].startsWith("--srtm=")) {
+				String srtmDataFolderUrl = args[i].replace("--srtm=", "");
+				File heightDir = new File(srtmDataFolderUrl);
+				if (heightDir.exists()) {
+					heightData = new IndexHeightData();
+					heightData.setSrtmData(srtmDataFolderUrl, dir);
+				}
+			} else if (args[i].startsWith("--srtm-threads=")) {
+				srtmThreads = Math.max(1, Integer.parseInt(args[i].substring("--srtm-threads=".length())));
+			} else if (args[i].equals("--streaming")) {
+				streaming = true;
+			} else if (args[i].startsWith("--threads=")) {
+				threads = Math.max(1, Integer.parseInt(args[i].substring("--threads=".length())));
+			}
+		}
+
+		try {
+			if (streaming) {
+				splitStreaming(worldObf, dir, subFolder, fileSuffix, heightData);
+			} else {
+				splitInMemory(worldObf, dir, subFolder, fileSuffix, heightData);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	void splitInMemory(File worldObf, File dir, String subFolder, String fileSuffix, IndexHeightData heightData)
+			throws IOException, RTreeException, SQLException {
+		ObfFileInMemory fl = new ObfFileInMemory();
+		fl.readObfFiles(Collections.singletonList(worldObf));
+		OsmandRegions osmandRegions = new OsmandRegions();
+		osmandRegions.prepareFile();
+		osmandRegions.cacheAllCountries();
+
+		Map<String, Map<MapZoomPair, TLongObjectHashMap<BinaryMapDataObject>>> regionsMapData = splitRegionMapData(fl,osmandRegions);
+		Map<String, TLongObjectHashMap<RouteDataObject>> regionsRouteData = splitRegionRouteData(fl, osmandRegions, heightData);
+		Map<String, TLongObjectHashMap<Map<String, Amenity>>> regionsPoiData = splitRegionPoiData(fl, osmandRegions);
+		Map<String, TLongObjectHashMap<TransportStop>> regionsTransportData = splitRegionTransportData(fl, osmandRegions);
+		TreeSet<String> regionNames = new TreeSet<>();
+		regionNames.addAll(regionsMapData.keySet());
+		regionNames.addAll(regionsRouteData.keySet());
+		regionNames.addAll(regionsPoiData.keySet());
+		regionNames.addAll(regionsTransportData.keySet());
+
+		for (String regionName : regionNames) {
+			File folder = new File(dir, regionName);
+			if (!Algorithms.isEmpty(subFolder)) {
+				folder = new File(folder, subFolder);
+			}
+			folder.mkdirs();
+			File result = new File(folder, Algorithms.capitalizeFirstLetter(regionName) + fileSuffix + ".obf.gz");
+			ObfFileInMemory obf = new ObfFileInMemory();
+
+			Map<MapZoomPair, TLongObjectHashMap<BinaryMapDataObject>> mp = regionsMapData.get(regionName);
+			if (mp != null) {
+				for (MapZoomPair mzPair : mp.keySet()) {
+					obf.putMapObjects(mzPair, mp.get(mzPair).valueCollection(), true);
+				}
+			}
+			
+			TLongObjectHashMap<RouteDataObject> ro = regionsRouteData.get(regionName);
+			if (ro != null) {
+				obf.putRoutingData(ro, true);
+			}
+			TLongObjectHashMap<Map<String, Amenity>> poi = regionsPoiData.get(regionName);
+			if (poi != null) {
+				obf.putPoiData(poi, true);
+			}
+			TLongObjectHashMap<TransportStop> stops = regionsTransportData.get(regionName);
+			if (stops != null) {
+				Collection<TransportStop> stopsCollection = stops.valueCollection();
+				obf.setTransportRoutes(fl.getTransportRoutes());
+				obf.putTransportStops(stopsCollection, true);
+			}
+			obf.updateTimestamp(fl.getTimestamp());
+			obf.writeFile(result, true);
+		}
+	}
+			
+
+	/**
+	 * Object ids with tiles of one region, ids are buffered and appended to the spill file of the region.
+	 */
+	private static class RegionSpill {
+		final String regionName;
+		final File file;
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(buffer);
+		// tiles (y << zoom | x) of REGION_TILE_ZOOM with points of the objects
+		final BitSet tiles = new BitSet(1 << (2 * REGION_TILE_ZOOM));
+
+		RegionSpill(String regionName, File file) {
+			this.regionName = regionName;
+			this.file = file;
+		}
+
+		void add(int section, long id, int x, int y) throws IOException {
+			out.writeInt(section);
+			out.writeLong(id);
+			int shift = 31 - REGION_TILE_ZOOM;
+			tiles.set(((y >> shift) << REGION_TILE_ZOOM) | (x >> shift));
+			if (buffer.size() >= SPILL_BUFFER_BYTES) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			if (buffer.size() > 0) {
+				try (FileOutputStream fous = new FileOutputStream(file, true)) {
+					buffer.writeTo(fous);
+				}
+				buffer.reset();
+			}
+		}
+
+		/**
+		 * Boxes of tiles covering all tiles of the region: runs of tiles in a row, the same runs of the next rows are
+		 * merged. Returns tile x, y of the left top and right bottom tile of every box.
+		 */
+		List<int[]> getTileBoxes() {
+			List<int[]> boxes = new ArrayList<>();
+			Map<Long, int[]> open = new HashMap<>();
+			int size = 1 << REGION_TILE_ZOOM;
+			for (int y = 0; y < size; y++) {
+				Map<Long, int[]> next = new HashMap<>();
+				int rowEnd = (y + 1) << REGION_TILE_ZOOM;
+				int t = tiles.nextSetBit(y << REGION_TILE_ZOOM);
+				while (t != -1 && t < rowEnd) {
+					int end = Math.min(tiles.nextClearBit(t), rowEnd);
+					int x0 = t - (y << REGION_TILE_ZOOM);
+					int x1 = end - 1 - (y << REGION_TILE_ZOOM);
+					long key = ((long) x0 << 32) | x1;
+					int[] box = open.remove(key);
+					if (box == null) {
+						box = new int[] { x0, y, x1, y };
+						boxes.add(box);
+					}
+					box[3] = y;
+					next.put(key, box);
+					t = tiles.nextSetBit(end);
+				}
+				open = next;
+			}
+			return boxes;
+		}
+	}
+
+	/**
+	 * Ids of the region read back from the spill file.
+	 */
+	private static class RegionIds {
+		final Map<MapZoomPair, TLongHashSet> map = new LinkedHashMap<>();
+		final TLongHashSet route = new TLongHashSet();
+		final TLongHashSet poi = new TLongHashSet();
+		final TLongHashSet transport = new TLongHashSet();
+
+		RegionIds(RegionSpill spill, List<MapZoomPair> mapZooms) throws IOException {
+			long records = spill.file.length() / 12;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill.file)))) {
+				for (long i = 0; i < records; i++) {
+					int section = in.readInt();
+					long id = in.readLong();
+					if (section == SECTION_ROUTE) {
+						route.add(id);
+					} else if (section == SECTION_POI) {
+						poi.add(id);
+					} else if (section == SECTION_TRANSPORT) {
+						transport.add(id);
+					} else {
+						MapZoomPair pair = mapZooms.get(section);
+						TLongHashSet ids = map.get(pair);
+						if (ids == null) {
+							ids = new TLongHashSet();
+							map.put(pair, ids);
+						}
+						ids.add(id);
+					}
+				}
 			}
 		}
+	}
 
+	/**
+	 * Splits the file in 2 passes: objects of all sections are streamed once and their ids are appended to spill
+	 * files of regions, then every region is read by bbox from the source file, filtered by ids and written. Only
+	 * objects of the written regions are kept in memory, regions are written concurrently.
+	 */
+	void splitStreaming(File worldObf, File dir, String subFolder, String fileSuffix,
+			IndexHeightData heightData) throws IOException, InterruptedException {
+		File spillDir = new File(dir, ".split_spill");
+		Algorithms.removeAllFiles(spillDir);
+		spillDir.mkdirs();
 		try {
-			ObfFileInMemory fl = new ObfFileInMemory();
-			fl.readObfFiles(Collections.singletonList(worldObf));
+			File obfFile = worldObf;
+			if (worldObf.getName().endsWith(".gz")) {
+				obfFile = new File(spillDir, worldObf.getName().substring(0, worldObf.getName().length() - 3));
+				try (GZIPInputStream gzin = new GZIPInputStream(new FileInputStream(worldObf));
+						FileOutputStream fous = new FileOutputStream(obfFile)) {
+					Algorithms.streamCopy(gzin, fous);
+				}
+			}
 			OsmandRegions osmandRegions = new OsmandRegions();
 			osmandRegions.prepareFile();
 			osmandRegions.cacheAllCountries();
 
-			Map<String, Map<MapZoomPair, TLongObjectHashMap<BinaryMapDataObject>>> regionsMapData = splitRegionMapData(fl,osmandRegions);
-			Map<String, TLongObjectHashMap<RouteDataObject>> regionsRouteData = splitRegionRouteData(fl, osmandRegions, heightData);
-			Map<String, TLongObjectHashMap<Map<String, Amenity>>> regionsPoiData = splitRegionPoiData(fl, osmandRegions);
-			Map<String, TLongObjectHashMap<TransportStop>> regionsTransportData = splitRegionTransportData(fl, osmandRegions);
-			TreeSet<String> regionNames = new TreeSet<>();
-			regionNames.addAll(regionsMapData.keySet());
-			regionNames.addAll(regionsRouteData.keySet());
-			regionNames.addAll(regionsPoiData.keySet());
-			regionNames.addAll(regionsTransportData.keySet());
-
-			for (String regionName : regionNames) {
-				File folder = new File(dir, regionName);
-				if (!Algorithms.isEmpty(subFolder)) {
-					folder = new File(folder, subFolder);
+			long time = System.currentTimeMillis();
+			Map<String, RegionSpill> spills = new TreeMap<>();
+			List<MapZoomPair> mapZooms = new ArrayList<>();
+			try (RandomAccessFile raf = new RandomAccessFile(obfFile, "r")) {
+				BinaryMapIndexReader reader = new BinaryMapIndexReader(raf, obfFile);
+				spillRegionIds(reader, osmandRegions, spillDir, spills, mapZooms);
+			}
+			for (RegionSpill spill : spills.values()) {
+				spill.flush();
+			}
+			System.out.println(String.format("Object ids of %d regions are spilled in %d sec", spills.size(),
+					(System.currentTimeMillis() - time) / 1000));
+
+			ExecutorService service = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+			List<Future<File>> results = new ArrayList<>();
+			try {
+				for (RegionSpill spill : spills.values()) {
+					File folder = new File(dir, spill.regionName);
+					if (!Algorithms.isEmpty(subFolder)) {
+						folder = new File(folder, subFolder);
+					}
+					File result = new File(folder,
+							Algorithms.capitalizeFirstLetter(spill.regionName) + fileSuffix + ".obf.gz");
+					File source = obfFile;
+					Callable<File> task = () -> writeRegion(source, spill, mapZooms, heightData, result);
+					if (service == null) {
+						FutureTask<File> f = new FutureTask<>(task);
+						f.run();
+						results.add(f);
+					} else {
+						results.add(service.submit(task));
+					}
 				}
-				folder.mkdirs();
-				File result = new File(folder, Algorithms.capitalizeFirstLetter(regionName) + fileSuffix + ".obf.gz");
-				ObfFileInMemory obf = new ObfFileInMemory();
-
-				Map<MapZoomPair, TLongObjectHashMap<BinaryMapDataObject>> mp = regionsMapData.get(regionName);
-				if (mp != null) {
-					for (MapZoomPair mzPair : mp.keySet()) {
-						obf.putMapObjects(mzPair, mp.get(mzPair).valueCollection(), true);
+				for (Future<File> f : results) {
+					try {
+						System.out.println("Written " + f.get().getName());
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof RuntimeException) {
+							throw (RuntimeException) e.getCause();
+						}
+						throw new IllegalStateException(e.getCause());
 					}
 				}
-				
-				TLongObjectHashMap<RouteDataObject> ro = regionsRouteData.get(regionName);
-				if (ro != null) {
-					obf.putRoutingData(ro, true);
+			} finally {
+				if (service != null) {
+					service.shutdownNow();
 				}
-				TLongObjectHashMap<Map<String, Amenity>> poi = regionsPoiData.get(regionName);
-				if (poi != null) {
-					obf.putPoiData(poi, true);
+			}
+		} finally {
+			Algorithms.removeAllFiles(spillDir);
+		}
+	}
+
+	private void spillRegionIds(BinaryMapIndexReader reader, OsmandRegions osmandRegions, File spillDir,
+			Map<String, RegionSpill> spills, List<MapZoomPair> mapZooms) throws IOException {
+		int left = MapUtils.get31TileNumberX(WORLD_LEFT);
+		int right = MapUtils.get31TileNumberX(WORLD_RIGHT);
+		int top = MapUtils.get31TileNumberY(WORLD_TOP);
+		int bottom = MapUtils.get31TileNumberY(WORLD_BOTTOM);
+		for (BinaryIndexPart p : reader.getIndexes()) {
+			if (p instanceof MapIndex) {
+				MapIndex mi = (MapIndex) p;
+				for (MapRoot mr : mi.getRoots()) {
+					MapZoomPair pair = new MapZoomPair(mr.getMinZoom(), mr.getMaxZoom());
+					int ind = mapZooms.indexOf(pair);
+					if (ind == -1) {
+						ind = mapZooms.size();
+						mapZooms.add(pair);
+					}
+					final int section = ind;
+					SearchRequest<BinaryMapDataObject> req = BinaryMapIndexReader.buildSearchRequest(left, right, top,
+							bottom, mr.getMinZoom(), new SearchFilter() {
+								@Override
+								public boolean accept(TIntArrayList types, MapIndex index) {
+									return true;
+								}
+							}, new SpillMatcher<BinaryMapDataObject>() {
+								@Override
+								public boolean publish(BinaryMapDataObject obj) {
+									if (!isPossibleVandalism(obj)) {
+										spill(section, obj.getId(), obj.getPoint31XTile(0), obj.getPoint31YTile(0));
+									}
+									return false;
+								}
+							}.init(osmandRegions, spillDir, spills));
+					reader.searchMapIndex(req, mi);
 				}
-				TLongObjectHashMap<TransportStop> stops = regionsTransportData.get(regionName);
-				if (stops != null) {
-					Collection<TransportStop> stopsCollection = stops.valueCollection();
-					obf.setTransportRoutes(fl.getTransportRoutes());
-					obf.putTransportStops(stopsCollection, true);
+			} else if (p instanceof RouteRegion) {
+				RouteRegion rr = (RouteRegion) p;
+				List<RouteSubregion> regions = reader.searchRouteIndexTree(
+						BinaryMapIndexReader.buildSearchRequest(left, right, top, bottom, 15, null), rr.getSubregions());
+				reader.loadRouteIndexData(regions, new SpillMatcher<RouteDataObject>() {
+					@Override
+					public boolean publish(RouteDataObject obj) {
+						if (!isPossibleVandalism(obj)) {
+							spill(SECTION_ROUTE, obj.getId(), obj.getPoint31XTile(0), obj.getPoint31YTile(0));
+						}
+						return false;
+					}
+				}.init(osmandRegions, spillDir, spills));
+			} else if (p instanceof PoiRegion) {
+				PoiRegion pr = (PoiRegion) p;
+				SearchRequest<Amenity> req = BinaryMapIndexReader.buildSearchPoiRequest(left, right, top, bottom, 15,
+						BinaryMapIndexReader.ACCEPT_ALL_POI_TYPE_FILTER, new SpillMatcher<Amenity>() {
+							@Override
+							public boolean publish(Amenity obj) {
+								spill(SECTION_POI, obj.getId(), MapUtils.get31TileNumberX(obj.getLocation().getLongitude()),
+										MapUtils.get31TileNumberY(obj.getLocation().getLatitude()));
+								return false;
+							}
+						}.init(osmandRegions, spillDir, spills));
+				reader.initCategories(pr);
+				reader.searchPoi(pr, req);
+			} else if (p instanceof TransportIndex) {
+				SearchRequest<TransportStop> req = BinaryMapIndexReader.buildSearchTransportRequest(left, right, top,
+						bottom, -1, new SpillMatcher<TransportStop>() {
+							@Override
+							public boolean publish(TransportStop obj) {
+								spill(SECTION_TRANSPORT, obj.getId(), obj.x31, obj.y31);
+								return false;
+							}
+						}.init(osmandRegions, spillDir, spills));
+				reader.searchTransportIndex((TransportIndex) p, req);
+			}
+		}
+	}
+
+	/**
+	 * Appends id of every published object to regions containing its first point, objects are not collected.
+	 */
+	private abstract static class SpillMatcher<T> implements ResultMatcher<T> {
+		private OsmandRegions osmandRegions;
+		private File spillDir;
+		private Map<String, RegionSpill> spills;
+
+		SpillMatcher<T> init(OsmandRegions osmandRegions, File spillDir, Map<String, RegionSpill> spills) {
+			this.osmandRegions = osmandRegions;
+			this.spillDir = spillDir;
+			this.spills = spills;
+			return this;
+		}
+
+		void spill(int section, long id, int x, int y) {
+			try {
+				List<BinaryMapDataObject> l = osmandRegions.query(x, y);
+				for (BinaryMapDataObject b : l) {
+					if (OsmandRegions.contain(b, x, y)) {
+						String dw = osmandRegions.getDownloadName(b);
+						WorldRegion wr = osmandRegions.getRegionDataByDownloadName(dw);
+						if (dw == null || wr == null) {
+							continue;
+						}
+						if (!Algorithms.isEmpty(dw) && (wr.isRegionMapDownload() || wr.isRegionRoadsDownload())) {
+							RegionSpill spill = spills.get(dw);
+							if (spill == null) {
+								spill = new RegionSpill(dw, new File(spillDir, dw + ".ids"));
+								spills.put(dw, spill);
+							}
+							spill.add(section, id, x, y);
+						}
+					}
 				}
-				obf.updateTimestamp(fl.getTimestamp());
-				obf.writeFile(result, true);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(1);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
 		}
 	}
-			
+
+	private File writeRegion(File obfFile, RegionSpill spill, List<MapZoomPair> mapZooms, IndexHeightData heightData,
+			File result) throws IOException, RTreeException, SQLException {
+		RegionIds ids = new RegionIds(spill, mapZooms);
+		ObfFileInMemory obf = new ObfFileInMemory();
+		// file rtree has static caches, packed rtree is needed to write regions concurrently
+		obf.setPackedRTree(true);
+		try (RandomAccessFile raf = new RandomAccessFile(obfFile, "r")) {
+			BinaryMapIndexReader reader = new BinaryMapIndexReader(raf, obfFile);
+			// objects read by several boxes replace each other
+			int shift = 31 - REGION_TILE_ZOOM;
+			for (int[] box : spill.getTileBoxes()) {
+				int left = box[0] << shift;
+				int top = box[1] << shift;
+				int right = (int) Math.min(((long) box[2] + 1 << shift) - 1, Integer.MAX_VALUE);
+				int bottom = (int) Math.min(((long) box[3] + 1 << shift) - 1, Integer.MAX_VALUE);
+				obf.setReadBounds(Math.min(WORLD_TOP, MapUtils.get31LatitudeY(top) + REGION_BBOX_MARGIN),
+						Math.max(WORLD_BOTTOM, MapUtils.get31LatitudeY(bottom) - REGION_BBOX_MARGIN),
+						Math.max(WORLD_LEFT, MapUtils.get31LongitudeX(left) - REGION_BBOX_MARGIN),
+						Math.min(WORLD_RIGHT, MapUtils.get31LongitudeX(right) + REGION_BBOX_MARGIN));
+				obf.readObfSections(reader);
+			}
+		}
+		obf.retainObjects(ids.map, ids.route, ids.poi, ids.transport);
+		if (heightData != null) {
+			// workers of regions already run concurrently, so elevation of one region is calculated in the worker
+			TLongObjectHashMap<RouteDataObject> routingData = obf.getRoutingData();
+			for (List<Long> keys : createSortedMap(routingData).values()) {
+				for (long key : keys) {
+					RouteDataObject obj = routingData.get(key);
+					Way way = createElevationWay(obj);
+					if (way != null) {
+						heightData.proccess(way);
+						applyElevationData(obj, way);
+					}
+				}
+			}
+		}
+		result.getParentFile().mkdirs();
+		obf.writeFile(result, true);
+		return result;
+	}
 
 	private Map<String, TLongObjectHashMap<Map<String, Amenity>>> splitRegionPoiData(ObfFileInMemory fl,
  			OsmandRegions osmandRegions) throws IOException {
@@ -158,38 +570,47 @@ public class ObfRegionSplitter {
 		long time = System.currentTimeMillis();
 		int count = 0;
 		Map<Integer, List<Long>> sortedMap = createSortedMap(routingData);
-		for (List<Long> keys : sortedMap.values()) {
-			for (long key : keys) {
-				RouteDataObject obj = routingData.get(key);
-				if (isPossibleVandalism(obj)) {
-					continue;
-				}
-				if (heightData != null) {
-					attachElevationData(obj, heightData);
-					count++;
-				}
-				int x = obj.getPoint31XTile(0);
-				int y = obj.getPoint31YTile(0);
-				List<BinaryMapDataObject> l = osmandRegions.query(x, y);
-				for (BinaryMapDataObject b : l) {
-					if (OsmandRegions.contain(b, x, y)) {
-						String dw = osmandRegions.getDownloadName(b);
-						WorldRegion wr = osmandRegions.getRegionDataByDownloadName(dw);
-						if (dw == null || wr == null) {
-							continue;
-						}
-						if (!Algorithms.isEmpty(dw) && (wr.isRegionMapDownload() || wr.isRegionRoadsDownload())) {
-							TLongObjectHashMap<RouteDataObject> mp = result.get(dw);
-							if (mp == null) {
-								mp = new TLongObjectHashMap<>();
-								result.put(dw, mp);
-							}
-							
-							mp.put(obj.getId(), obj);
+		// elevation of batches is calculated concurrently, route encoding rules of regions are changed only here
+		// in the order of objects
+		int threads = heightData != null ? srtmThreads : 1;
+		ExecutorService service = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		ArrayDeque<Future<List<ElevationWay>>> pending = new ArrayDeque<>();
+		try {
+			List<ElevationWay> batch = new ArrayList<>();
+			for (List<Long> keys : sortedMap.values()) {
+				for (long key : keys) {
+					RouteDataObject obj = routingData.get(key);
+					if (isPossibleVandalism(obj)) {
+						continue;
+					}
+					ElevationWay ew = new ElevationWay();
+					ew.obj = obj;
+					if (heightData != null) {
+						ew.way = createElevationWay(obj);
+						count++;
+					}
+					batch.add(ew);
+					if (batch.size() >= ELEVATION_BATCH_SIZE) {
+						pending.add(submitElevation(service, heightData, batch));
+						batch = new ArrayList<>();
+						if (pending.size() >= threads * ELEVATION_BATCHES_PER_THREAD) {
+							addRouteObjects(result, osmandRegions, getElevationResult(pending.poll()));
 						}
 					}
 				}
 			}
+			if (!batch.isEmpty()) {
+				pending.add(submitElevation(service, heightData, batch));
+			}
+			while (!pending.isEmpty()) {
+				addRouteObjects(result, osmandRegions, getElevationResult(pending.poll()));
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			if (service != null) {
+				service.shutdownNow();
+			}
 		}
 		long t = (System.currentTimeMillis() - time) / 1000L;
 		long p = t > 0 ? count / t : count;
@@ -198,6 +619,71 @@ public class ObfRegionSplitter {
 		return result;
 	}
 
+	private static class ElevationWay {
+		RouteDataObject obj;
+		Way way;
+	}
+
+	private Future<List<ElevationWay>> submitElevation(ExecutorService service, IndexHeightData heightData,
+			List<ElevationWay> batch) {
+		Callable<List<ElevationWay>> task = () -> {
+			for (ElevationWay ew : batch) {
+				if (ew.way != null) {
+					heightData.proccess(ew.way);
+				}
+			}
+			return batch;
+		};
+		if (service == null) {
+			FutureTask<List<ElevationWay>> f = new FutureTask<>(task);
+			f.run();
+			return f;
+		}
+		return service.submit(task);
+	}
+
+	private List<ElevationWay> getElevationResult(Future<List<ElevationWay>> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private void addRouteObjects(Map<String, TLongObjectHashMap<RouteDataObject>> result,
+			OsmandRegions osmandRegions, List<ElevationWay> batch) throws IOException {
+		for (ElevationWay ew : batch) {
+			RouteDataObject obj = ew.obj;
+			if (ew.way != null) {
+				applyElevationData(obj, ew.way);
+			}
+			int x = obj.getPoint31XTile(0);
+			int y = obj.getPoint31YTile(0);
+			List<BinaryMapDataObject> l = osmandRegions.query(x, y);
+			for (BinaryMapDataObject b : l) {
+				if (OsmandRegions.contain(b, x, y)) {
+					String dw = osmandRegions.getDownloadName(b);
+					WorldRegion wr = osmandRegions.getRegionDataByDownloadName(dw);
+					if (dw == null || wr == null) {
+						continue;
+					}
+					if (!Algorithms.isEmpty(dw) && (wr.isRegionMapDownload() || wr.isRegionRoadsDownload())) {
+						TLongObjectHashMap<RouteDataObject> mp = result.get(dw);
+						if (mp == null) {
+							mp = new TLongObjectHashMap<>();
+							result.put(dw, mp);
+						}
+						
+						mp.put(obj.getId(), obj);
+					}
+				}
+			}
+		}
+	}
+
 	private Map<Integer, List<Long>> createSortedMap(TLongObjectHashMap<RouteDataObject> routingData) {
 		Map<Integer, List<Long>> sortedMap = new HashMap<>();
 		for (long key : routingData.keys()) {
@@ -229,7 +715,10 @@ public class ObfRegionSplitter {
 		return sortedMap;
 	}
 
-	private void attachElevationData(RouteDataObject obj, IndexHeightData heightData) {
+	/**
+	 * @return way with nodes and tags of route object to calculate elevation tags, null if object already has them
+	 */
+	private Way createElevationWay(RouteDataObject obj) {
 
 		// Prepare Way with Nodes
 		List<Node> nodes = new ArrayList<>();
@@ -248,13 +737,15 @@ public class ObfRegionSplitter {
 			String tag = type.getTag();
 			if (IndexHeightData.ELEVATION_TAGS.contains(tag)) {
 				// already processed tags
-				return ;
+				return null;
 			}
 			// can put same tag with different values
 			restoredWay.putTag(tag, type.getValue());
 		}
-		heightData.proccess(simpleWay);
+		return simpleWay;
+	}
 
+	private void applyElevationData(RouteDataObject obj, Way simpleWay) {
 		// Write result to RouteDataObject
 		if (simpleWay.getTags().size() > 0) {
 			int[] types = Arrays.copyOf(obj.types, obj.types.length + simpleWay.getTags().size());
@@ -273,7 +764,7 @@ public class ObfRegionSplitter {
 			obj.types = types;
 		}
 
-		nodes = simpleWay.getNodes();
+		List<Node> nodes = simpleWay.getNodes();
 		for (int i = 0; i < obj.getPointsLength(); i++) {
 			Node n = nodes.get(i);
 			Map<String, String> tags = n.getTags();
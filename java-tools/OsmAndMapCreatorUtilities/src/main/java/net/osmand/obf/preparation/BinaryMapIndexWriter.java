@@ -335,7 +335,11 @@ public class BinaryMapIndexWriter {
 		Collections.sort(out, new Comparator<MapRulType>() {
 			@Override
 			public int compare(MapRulType o1, MapRulType o2) {
-				return o2.getFreq() - o1.getFreq();
+				if (o1.getFreq() != o2.getFreq()) {
+					return o2.getFreq() - o1.getFreq();
+				}
+				// types are registered concurrently, so order of equal frequencies is fixed by tag and value
+				return compareRule(o1.getTag(), o1.getValue(), o2.getTag(), o2.getValue());
 			}
 		});
 
@@ -359,6 +363,17 @@ public class BinaryMapIndexWriter {
 		}
 	}
 	
+	private static int compareRule(String tag1, String value1, String tag2, String value2) {
+		int c = tag1.compareTo(tag2);
+		if (c != 0) {
+			return c;
+		}
+		if (value1 == null || value2 == null) {
+			return value1 == null ? (value2 == null ? 0 : -1) : 1;
+		}
+		return value1.compareTo(value2);
+	}
+
 	public void writeRouteEncodingRules(List<MapRouteType> types) throws IOException {
 		checkPeekState(ROUTE_INDEX_INIT);
 
@@ -367,7 +382,10 @@ public class BinaryMapIndexWriter {
 		Collections.sort(out, new Comparator<MapRouteType>() {
 			@Override
 			public int compare(MapRouteType o1, MapRouteType o2) {
-				return o2.getFreq() - o1.getFreq();
+				if (o1.getFreq() != o2.getFreq()) {
+					return o2.getFreq() - o1.getFreq();
+				}
+				return compareRule(o1.getTag(), o1.getValue(), o2.getTag(), o2.getValue());
 			}
 		});
 
@@ -1674,14 +1692,15 @@ public class BinaryMapIndexWriter {
 		codedOutStream.writeMessageNoTag(groupsBuilder.build());
 	}
 
-	public Map<PoiTileBox, List<BinaryFileReference>> writePoiNameIndex(Map<String, Set<PoiTileBox>> namesIndex, long startPoiIndex) throws IOException {
+	public Map<PoiTileBox, List<BinaryFileReference>> writePoiNameIndex(Map<String, ? extends Collection<PoiTileBox>> namesIndex,
+			long startPoiIndex) throws IOException {
 		checkPeekState(POI_INDEX_INIT);
 		codedOutStream.writeTag(OsmandOdb.OsmAndPoiIndex.NAMEINDEX_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED32_LENGTH_DELIMITED);
 		preserveInt32Size();
 
 		Map<PoiTileBox, List<BinaryFileReference>> fpToWriteSeeks = new LinkedHashMap<PoiTileBox, List<BinaryFileReference>>();
 		Map<String, BinaryFileReference> indexedTable = writeIndexedTable(OsmandOdb.OsmAndPoiNameIndex.TABLE_FIELD_NUMBER, namesIndex.keySet());
-		for (Map.Entry<String, Set<PoiTileBox>> e : namesIndex.entrySet()) {
+		for (Map.Entry<String, ? extends Collection<PoiTileBox>> e : namesIndex.entrySet()) {
 			codedOutStream.writeTag(OsmandOdb.OsmAndPoiNameIndex.DATA_FIELD_NUMBER, FieldType.MESSAGE.getWireType());
 			BinaryFileReference nameTableRef = indexedTable.get(e.getKey());
 			codedOutStream.flush();
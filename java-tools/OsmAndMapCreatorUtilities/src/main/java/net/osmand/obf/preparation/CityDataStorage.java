@@ -3,6 +3,7 @@ package net.osmand.obf.preparation;
 import net.osmand.data.Boundary;
 import net.osmand.data.City;
 import net.osmand.data.DataTileManager;
+import net.osmand.data.LatLon;
 import net.osmand.osm.edit.Entity;
 
 import java.util.*;
@@ -43,6 +44,14 @@ public class CityDataStorage {
         cityBoundaries.put(c, b);
     }
 
+    /**
+     * Tests point against city boundary with prepared boundary index
+     */
+    public boolean isInCityBoundary(City c, LatLon location) {
+        Boundary boundary = cityBoundaries.get(c);
+        return boundary != null && boundary.containsPointIndexed(location);
+    }
+
     public boolean isCityHasBoundary(City c) {
         return cityBoundaries.containsKey(c);
     }
@@ -57,7 +66,7 @@ public class CityDataStorage {
     public void attachAllCitiesToBoundary(Boundary boundary) {
         List<City> list = new ArrayList<City>(1);
         for (City c : cities.values()) {
-            if (boundary.containsPoint(c.getLocation())) {
+            if (boundary.containsPointIndexed(c.getLocation())) {
                 list.add(c);
             }
         }
@@ -10,6 +10,7 @@ import java.sql.Statement;
 import net.osmand.util.Algorithms;
 
 import org.apache.commons.logging.Log;
+import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteJDBCLoader;
 
 
@@ -47,17 +48,37 @@ public enum DBDialect {
 		((Connection) dbConn).close();
 	}
 
+	private void loadDriver(Log log) {
+		if (System.getProperty("os.name").toLowerCase().contains("mac")) {
+			System.setProperty("org.sqlite.lib.name", "libsqlitejdbc.jnilib");
+		}
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e) {
+			log.error("Illegal configuration", e);
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Read only connection to the database file which is written by another connection (its exclusive lock should be
+	 * released first), so several readers could work in parallel.
+	 */
+	public Connection getReadOnlyDatabaseConnection(String fileName, Log log) throws SQLException {
+		if (DBDialect.SQLITE != this) {
+			// in memory database is visible only to its connection
+			throw new UnsupportedOperationException();
+		}
+		loadDriver(log);
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+		config.setSynchronous(SQLiteConfig.SynchronousMode.OFF);
+		return DriverManager.getConnection("jdbc:sqlite:" + fileName, config.toProperties());
+	}
+
     public Connection getDatabaseConnection(String fileName, Log log) throws SQLException {
 		if (DBDialect.SQLITE == this || DBDialect.SQLITE_IN_MEMORY == this) {
-			if (System.getProperty("os.name").toLowerCase().contains("mac")) {
-				System.setProperty("org.sqlite.lib.name", "libsqlitejdbc.jnilib");
-			}
-			try {
-				Class.forName("org.sqlite.JDBC");
-			} catch (ClassNotFoundException e) {
-				log.error("Illegal configuration", e);
-				throw new IllegalStateException(e);
-			}
+			loadDriver(log);
 			Connection connection = DriverManager.getConnection("jdbc:sqlite:" + (DBDialect.SQLITE_IN_MEMORY == this? ":memory:": fileName));
 			Statement statement = connection.createStatement();
 			statement.executeUpdate("PRAGMA synchronous = 0");
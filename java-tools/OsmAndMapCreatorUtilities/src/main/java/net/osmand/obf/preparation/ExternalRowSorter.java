@@ -0,0 +1,324 @@
+package net.osmand.obf.preparation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External sort of table rows by primary key (id, ord).
+ *
+ * Rows are buffered on heap (keys in primitive arrays, payloads in one byte arena), when the buffer is spilled rows
+ * are sorted and written to a run file. {@link #merge(RowConsumer)} reads all runs with a k-way merge and passes rows
+ * in key order. For duplicate keys only the row added last is passed (same as "replace into").
+ *
+ * Not thread safe.
+ */
+public class ExternalRowSorter implements Closeable {
+
+	public interface RowConsumer {
+		void accept(long id, int ord, ByteBuffer payload) throws IOException, SQLException;
+	}
+
+	private static final int MAX_FAN_IN = 128;
+	private static final int MAX_ARENA_SIZE = 1 << 30;
+	private static final int BUFFER_SIZE = 1 << 16;
+	// ids, ords, offsets, sort order and merge buffer
+	private static final int BYTES_PER_ROW = 8 + 4 + 4 + 4 + 4;
+
+	private final File dir;
+	private final String name;
+	private final List<File> runs = new ArrayList<File>();
+	private Arena arena = new Arena();
+	private DataOutputStream arenaOut = new DataOutputStream(arena);
+	private long[] ids = new long[1024];
+	private int[] ords = new int[1024];
+	private int[] offsets = new int[1024];
+	private int rows;
+	private long spilledRows;
+	private int runIndex;
+
+	private static class Arena extends ByteArrayOutputStream {
+
+		Arena() {
+			super(1 << 16);
+		}
+
+		byte[] buf() {
+			return buf;
+		}
+	}
+
+	private static class RunReader {
+		final DataInputStream in;
+		final int run;
+		long remaining;
+		long id;
+		int ord;
+		byte[] payload = new byte[256];
+		ByteBuffer bb = ByteBuffer.wrap(payload);
+
+		RunReader(File f, int run) throws IOException {
+			this.run = run;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+			remaining = in.readLong();
+		}
+
+		boolean next() throws IOException {
+			if (remaining == 0) {
+				return false;
+			}
+			remaining--;
+			id = in.readLong();
+			ord = in.readInt();
+			int len = in.readInt();
+			if (len > payload.length) {
+				payload = new byte[Math.max(len, payload.length * 2)];
+				bb = ByteBuffer.wrap(payload);
+			}
+			in.readFully(payload, 0, len);
+			bb.clear();
+			bb.limit(len);
+			return true;
+		}
+
+		int compareTo(RunReader o) {
+			if (id != o.id) {
+				return id < o.id ? -1 : 1;
+			}
+			if (ord != o.ord) {
+				return ord < o.ord ? -1 : 1;
+			}
+			return Integer.compare(run, o.run);
+		}
+	}
+
+	/**
+	 * @param dir folder for run files
+	 * @param name prefix of run files
+	 */
+	public ExternalRowSorter(File dir, String name) {
+		this.dir = dir;
+		this.name = name;
+	}
+
+	/**
+	 * Starts a new row, payload should be written to the returned stream before the next call.
+	 */
+	public DataOutputStream addRow(long id, int ord) throws IOException {
+		if (arena.size() >= MAX_ARENA_SIZE) {
+			spill();
+		}
+		if (rows == ids.length) {
+			int sz = rows * 2;
+			ids = Arrays.copyOf(ids, sz);
+			ords = Arrays.copyOf(ords, sz);
+			offsets = Arrays.copyOf(offsets, sz);
+		}
+		ids[rows] = id;
+		ords[rows] = ord;
+		offsets[rows] = arena.size();
+		rows++;
+		return arenaOut;
+	}
+
+	/**
+	 * @return approximate heap bytes of buffered rows, 0 after spill (buffers are reused for the next rows)
+	 */
+	public long getMemoryUsage() {
+		return (long) arena.size() + (long) rows * BYTES_PER_ROW;
+	}
+
+	public long getRowsCount() {
+		return spilledRows + rows;
+	}
+
+	public int getRunsCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Sorts buffered rows and writes them to a new run file.
+	 */
+	public void spill() throws IOException {
+		if (rows == 0) {
+			return;
+		}
+		int[] order = sortRows();
+		byte[] buf = arena.buf();
+		int end = arena.size();
+		int unique = 0;
+		for (int k = 0; k < rows; k++) {
+			if (k == rows - 1 || !sameKey(order[k], order[k + 1])) {
+				unique++;
+			}
+		}
+		File f = newRunFile();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE))) {
+			out.writeLong(unique);
+			for (int k = 0; k < rows; k++) {
+				int i = order[k];
+				// sort is stable, so the last of equal keys was added last
+				if (k < rows - 1 && sameKey(i, order[k + 1])) {
+					continue;
+				}
+				int len = (i == rows - 1 ? end : offsets[i + 1]) - offsets[i];
+				out.writeLong(ids[i]);
+				out.writeInt(ords[i]);
+				out.writeInt(len);
+				out.write(buf, offsets[i], len);
+			}
+		}
+		runs.add(f);
+		spilledRows += rows;
+		rows = 0;
+		arena.reset();
+	}
+
+	private boolean sameKey(int i, int j) {
+		return ids[i] == ids[j] && ords[i] == ords[j];
+	}
+
+	private int compare(int i, int j) {
+		if (ids[i] != ids[j]) {
+			return ids[i] < ids[j] ? -1 : 1;
+		}
+		return Integer.compare(ords[i], ords[j]);
+	}
+
+	// bottom up merge sort, stable and fast for the almost sorted input of pbf files
+	private int[] sortRows() {
+		int[] a = new int[rows];
+		int[] b = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			a[i] = i;
+		}
+		for (int width = 1; width < rows; width *= 2) {
+			for (int lo = 0; lo < rows; lo += 2 * width) {
+				int mid = Math.min(lo + width, rows);
+				int hi = Math.min(lo + 2 * width, rows);
+				if (mid == hi || compare(a[mid - 1], a[mid]) <= 0) {
+					System.arraycopy(a, lo, b, lo, hi - lo);
+					continue;
+				}
+				int i = lo, j = mid, k = lo;
+				while (i < mid && j < hi) {
+					b[k++] = compare(a[j], a[i]) < 0 ? a[j++] : a[i++];
+				}
+				while (i < mid) {
+					b[k++] = a[i++];
+				}
+				while (j < hi) {
+					b[k++] = a[j++];
+				}
+			}
+			int[] t = a;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	private File newRunFile() {
+		File f = new File(dir, name + ".run" + (runIndex++));
+		f.delete();
+		return f;
+	}
+
+	/**
+	 * Spills buffered rows and passes all rows sorted by (id, ord). Run files are deleted afterwards.
+	 */
+	public void merge(RowConsumer consumer) throws IOException, SQLException {
+		spill();
+		// reduce runs to the fan in, merged run keeps the position of its inputs so later runs still win
+		while (runs.size() > MAX_FAN_IN) {
+			List<File> part = runs.subList(0, MAX_FAN_IN);
+			File f = newRunFile();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE))) {
+				// row count is patched after the merge
+				out.writeLong(0);
+				final long[] cnt = new long[1];
+				mergeRuns(part, (id, ord, payload) -> {
+					out.writeLong(id);
+					out.writeInt(ord);
+					out.writeInt(payload.remaining());
+					out.write(payload.array(), 0, payload.remaining());
+					cnt[0]++;
+				});
+				out.flush();
+				try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+					raf.writeLong(cnt[0]);
+				}
+			}
+			for (File p : part) {
+				p.delete();
+			}
+			part.clear();
+			runs.add(0, f);
+		}
+		mergeRuns(runs, consumer);
+		close();
+	}
+
+	private void mergeRuns(List<File> files, RowConsumer consumer) throws IOException, SQLException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, files.size()), RunReader::compareTo);
+		List<RunReader> readers = new ArrayList<RunReader>();
+		List<RunReader> same = new ArrayList<RunReader>();
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				RunReader r = new RunReader(files.get(i), i);
+				readers.add(r);
+				if (r.next()) {
+					queue.add(r);
+				}
+			}
+			while (!queue.isEmpty()) {
+				RunReader r = queue.poll();
+				same.clear();
+				while (!queue.isEmpty() && queue.peek().id == r.id && queue.peek().ord == r.ord) {
+					// older duplicate is skipped
+					same.add(r);
+					r = queue.poll();
+				}
+				consumer.accept(r.id, r.ord, r.bb);
+				same.add(r);
+				for (RunReader s : same) {
+					if (s.next()) {
+						queue.add(s);
+					}
+				}
+			}
+		} finally {
+			for (RunReader r : readers) {
+				r.in.close();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		for (File f : runs) {
+			f.delete();
+		}
+		runs.clear();
+		rows = 0;
+		arena = new Arena();
+		arenaOut = new DataOutputStream(arena);
+		ids = new long[1024];
+		ords = new int[1024];
+		offsets = new int[1024];
+	}
+}
@@ -217,7 +217,7 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 				// try to found boundary
 				for (Boundary b : cityDataStorage.getNotAssignedBoundaries()) {
 					if (b.getAdminLevel() >= smallestAdminLevel) {
-						if (b.containsPoint(location.getLatitude(), location.getLongitude())) {
+						if (b.containsPointIndexed(location.getLatitude(), location.getLongitude())) {
 							// the bigger the admin level, the smaller the boundary :-)
 							smallestAdminLevel = b.getAdminLevel();
 							smallestBoundary = b;
@@ -612,8 +612,7 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 				continue;
 			}
 
-			Boundary boundary = cityDataStorage.getBoundaryByCity(c);
-			if (isInNames.contains(c.getName()) || (boundary != null && boundary.containsPoint(location))) {
+			if (isInNames.contains(c.getName()) || cityDataStorage.isInCityBoundary(c, location)) {
 				// revert due to massive problems with suburb, village and other inside city objects
 				//if (boundary != null && boundary.getCityType() != null && boundary.getCityType().storedAsSeparateAdminEntity()) {
 				result.add(c);
@@ -728,7 +727,7 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 							// old code
 							cityPart = findNearestCityOrSuburb(subBoundary, location); // subpart.getName();
 							// ?FIXME
-							if (subBoundary.containsPoint(location)) {
+							if (subBoundary.containsPointIndexed(location)) {
 								cityPart = subpart.getName();
 								found = true;
 								break;
@@ -1078,7 +1077,7 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 	private static final int POSTCODES_TYPE = 2;
 	private static final int VILLAGES_TYPE = 3;
 
-	public void writeBinaryAddressIndex(BinaryMapIndexWriter writer, String regionName, IProgress progress) throws IOException, SQLException {
+	public void prepareBinaryAddressIndex(IProgress progress) throws SQLException {
 		processPostcodes();
 		cleanCityPart();
 		streetDAO.close();
@@ -1087,10 +1086,14 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 		createDatabaseIndexes(mapConnection);
 		mapConnection.commit();
 
-		Map<String, City> postcodes = new TreeMap<String, City>();
-		updatePostcodeBoundaries(progress, postcodes);
+		updatePostcodeBoundaries(progress);
 		mapConnection.commit();
+	}
 
+	// map db is only read with conn (it could be a read only connection of the section)
+	public void writeBinaryAddressIndex(BinaryMapIndexWriter writer, String regionName, Connection conn,
+			IProgress progress) throws IOException, SQLException {
+		Map<String, City> postcodes = new TreeMap<String, City>();
 		List<String> additionalTags = new ArrayList<String>();
 		Map<String, Integer> tagRules = new HashMap<String, Integer>();
 		int ind = 0;
@@ -1100,15 +1103,15 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 			ind++;
 		}
 		writer.startWriteAddressIndex(regionName, additionalTags);
-		Map<CityType, List<City>> cities = readCities(mapConnection);
-		PreparedStatement streetstat = mapConnection.prepareStatement(//
+		Map<CityType, List<City>> cities = readCities(conn);
+		PreparedStatement streetstat = conn.prepareStatement(//
 				"SELECT A.id, A.name, A.name_en, A.latitude, A.longitude, "+ //$NON-NLS-1$
 				"B.id, B.name, B.name_en, B.latitude, B.longitude, B.postcode, A.cityPart, "+ //$NON-NLS-1$
 				" B.name2, B.name_en2, B.lat2, B.lon2, B.interval, B.interpolateType, A.cityPart == C.name as MainTown " +
 				"FROM street A LEFT JOIN building B ON B.street = A.id JOIN city C ON A.city = C.id " + //$NON-NLS-1$
 				"WHERE A.city = ? ORDER BY MainTown DESC, A.name ASC"); //$NON-NLS-1$
 		PreparedStatement waynodesStat =
-			 mapConnection.prepareStatement("SELECT A.id, A.latitude, A.longitude FROM street_node A WHERE A.street = ? "); //$NON-NLS-1$
+			 conn.prepareStatement("SELECT A.id, A.latitude, A.longitude FROM street_node A WHERE A.street = ? "); //$NON-NLS-1$
 
 		// collect suburbs with is in value
 		List<City> suburbs = new ArrayList<City>();
@@ -1176,7 +1179,7 @@ public class IndexAddressCreator extends AbstractIndexPartCreator {
 
 	}
 
-	private void updatePostcodeBoundaries(IProgress progress, Map<String, City> postcodes) throws SQLException {
+	private void updatePostcodeBoundaries(IProgress progress) throws SQLException {
 		progress.startTask("Process postcode boundaries", postcodeBoundaries.size());
 		Iterator<Entry<Entity, Boundary>> it = postcodeBoundaries.entrySet().iterator();
 		PreparedStatement ps =
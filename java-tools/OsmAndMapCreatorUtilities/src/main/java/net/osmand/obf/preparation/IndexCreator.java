@@ -4,6 +4,9 @@ import net.osmand.IProgress;
 import net.osmand.IndexConstants;
 import net.osmand.binary.MapZooms;
 import net.osmand.impl.ConsoleProgressImplementation;
+import net.osmand.obf.preparation.IndexRouteCreator.PreparedRouteWay;
+import net.osmand.obf.preparation.IndexVectorMapCreator.PreparedMapEntity;
+import net.osmand.obf.preparation.OsmDbAccessor.OsmDbParallelVisitor;
 import net.osmand.obf.preparation.OsmDbAccessor.OsmDbVisitor;
 import net.osmand.osm.MapPoiTypes;
 import net.osmand.osm.MapRenderingTypesEncoder;
@@ -26,9 +29,20 @@ import rtree.RTreeException;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -72,6 +86,8 @@ public class IndexCreator {
 	IndexRouteCreator indexRouteCreator;
 	IndexHeightData heightData = null;
 	PropagateToNodes propagateToNodes;
+	// shared by index creators, it's also a lock for encoding of main entities on consumer threads
+	MapRenderingTypesEncoder renderingTypes;
 
 	private File dbFile;
 	private File mapFile;
@@ -197,37 +213,47 @@ public class IndexCreator {
 
 	/* ***** END OF GETTERS/SETTERS ***** */
 
-	private void iterateMainEntity(Entity e, OsmDbAccessorContext ctx, IndexCreationContext icc) throws SQLException {
-		calculateRegionTagAndTransliterate(e, icc);
+	// index data of the main entity calculated on consumer threads
+	private static class PreparedMainEntity {
+		boolean mapIndexed;
+		boolean mapPrepared;
+		PreparedMapEntity map;
+		boolean routePrepared;
+		PreparedRouteWay route;
+	}
+
+	// region tag, transliteration and height data are calculated before in MainEntityVisitor.prepareEntity
+	private void iterateMainEntity(Entity e, PreparedMainEntity prepared, OsmDbAccessorContext ctx,
+			IndexCreationContext icc) throws SQLException {
         if (e.getTag(TIGER_OSMAND_TAG) != null) {
             indexAddressCreator.iterateMainEntity(e, ctx, icc);
             return;
         }
-		if (heightData != null && e instanceof Way) {
-			if (!settings.keepOnlyRouteRelationObjects) {// small speedup
-				heightData.proccess((Way) e);
-			}
-		}
-		if (propagateToNodes != null && e instanceof Node) {
-			propagateToNodes.propagateTagsToNode((Node) e, true);
-		}
 		if (settings.indexPOI) {
-			indexPoiCreator.iterateEntity(e, ctx, icc);
+			synchronized (renderingTypes) {
+				indexPoiCreator.iterateEntity(e, ctx, icc);
+			}
 		}
 		if (settings.indexTransport) {
 			indexTransportCreator.iterateMainEntity(e, ctx, icc);
 		}
-		if (settings.indexMap) {
-			if (settings.boundary == null || checkBoundary(e)) {
-				indexMapCreator.iterateMainEntity(e, ctx, icc);
-				indexRouteRelationCreatorV1.iterateMainEntity(e, ctx, icc);
+		if (prepared.mapIndexed) {
+			if (!prepared.mapPrepared) {
+				// tags of the entity were changed by previous index creators
+				prepared.map = indexMapCreator.prepareMainEntity(e);
 			}
+			indexMapCreator.iterateMainEntity(e, prepared.map);
+			indexRouteRelationCreatorV1.iterateMainEntity(e, ctx, icc);
 		}
 		if (settings.indexAddress) {
 			indexAddressCreator.iterateMainEntity(e, ctx, icc);
 		}
 		if (settings.indexRouting) {
-			indexRouteCreator.iterateMainEntity(e, ctx, icc);
+			if (!prepared.routePrepared) {
+				// tags of the way were changed by previous index creators
+				prepared.route = indexRouteCreator.prepareMainEntity(e, icc);
+			}
+			indexRouteCreator.iterateMainEntity(e, ctx, icc, prepared.route);
 		}
 	}
 
@@ -293,6 +319,7 @@ public class IndexCreator {
 		if (!this.settings.ignorePropagate) {
 			dbCreator.setPropagateToNodes(propagateToNodes);
 		}
+		dbCreator.setNodeLocationStore(accessor.getNodeLocationStore());
 		accessor.setCreator(dbCreator);
 
 		try {
@@ -300,9 +327,17 @@ public class IndexCreator {
 			progress.startTask(settings.getString("IndexCreator.LOADING_FILE") + readFile.getAbsolutePath(), -1); //$NON-NLS-1$
 			// 1 init database to store temporary data
 			dbCreator.initDatabase(osmDBdialect, accessor.getDbConn(), idSourceMapInd == 0, previous);
+			dbCreator.setBatchSize(settings.osmDbBatchSize);
+			if (settings.osmDbWriterQueue > 0) {
+				dbCreator.startWriter(settings.osmDbWriterQueue);
+			}
+			if (settings.osmDbSortBufferSize > 0) {
+				dbCreator.startExternalSort(dbFile.getAbsoluteFile().getParentFile(), dbFile.getName(),
+						settings.osmDbSortBufferSize);
+			}
 			storage.getFilters().add(dbCreator);
 			if (pbfFile) {
-				((OsmBaseStoragePbf) storage).parseOSMPbf(stream, progress, false);
+				((OsmBaseStoragePbf) storage).parseOSMPbf(stream, progress, false, settings.pbfDecodeThreads);
 			} else {
 				storage.parseOSM(stream, progress, streamFile, false);
 			}
@@ -333,6 +368,9 @@ public class IndexCreator {
 
 		Connection dbConn = (Connection) getDatabaseConnection(dbFile.getAbsolutePath(), osmDBdialect);
 		accessor.setDbConn(dbConn, osmDBdialect);
+		if (settings.nodeLocationStore) {
+			accessor.setNodeLocationStore(new NodeLocationStore(dbFile));
+		}
 		OsmDbCreator dbCreator = null;
 		int idShift = readFile.length < 16 ? 4 : (readFile.length < 64 ? 6 : 11);
 		if (readFile.length > (1 << 11)) {
@@ -512,6 +550,7 @@ public class IndexCreator {
 			renderingTypes = new MapRenderingTypesEncoder(null, regionName);
 		}
 
+		this.renderingTypes = renderingTypes;
 		this.propagateToNodes = new PropagateToNodes(renderingTypes);
 		this.indexTransportCreator = new IndexTransportCreator(settings);
 		this.indexPoiCreator = new IndexPoiCreator(settings, renderingTypes);
@@ -549,7 +588,8 @@ public class IndexCreator {
 				mapConnection.setAutoCommit(false);
 				try {
 					if (settings.indexMap) {
-						indexMapCreator.createRTreeFiles(getRTreeMapIndexPackFileName());
+						indexMapCreator.createRTreeFiles(getRTreeMapIndexNonPackFileName(),
+								getRTreeMapIndexPackFileName());
 					}
 					if (settings.indexRouting) {
 						indexRouteCreator.createRTreeFiles(getRTreeRouteIndexPackFileName());
@@ -624,35 +664,20 @@ public class IndexCreator {
 					mapFile.delete();
 				}
 				mapRAFile = new RandomAccessFile(mapFile, "rw");
-				BinaryMapIndexWriter writer = new BinaryMapIndexWriter(mapRAFile,
-						lastModifiedDate == null ? System.currentTimeMillis() : lastModifiedDate.longValue());
-				if (settings.indexMap) {
+				long timestamp = lastModifiedDate == null ? System.currentTimeMillis() : lastModifiedDate.longValue();
+				BinaryMapIndexWriter writer = new BinaryMapIndexWriter(mapRAFile, timestamp);
+				List<IndexSection> sections = getIndexSections(regionName);
+				prepareIndexSections(progress);
+				if (settings.parallelIndexWriting && sections.size() > 1) {
 					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing map index to binary file...", -1);
-					indexMapCreator.writeBinaryMapIndex(writer, regionName);
-				}
-				if (settings.indexRouting) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing route index to binary file...", -1);
-					indexRouteCreator.writeBinaryRouteIndex(mapFile, writer, regionName, settings.generateLowLevel);
-				}
-
-				if (settings.indexAddress) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing address index to binary file...", -1);
-					indexAddressCreator.writeBinaryAddressIndex(writer, regionName, progress);
-				}
-
-				if (settings.indexPOI) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing poi index to binary file...", -1);
-					indexPoiCreator.writeBinaryPoiIndex(writer, regionName, progress);
-				}
-
-				if (settings.indexTransport) {
-					setGeneralProgress(progress, "[95 of 100]");
-					progress.startTask("Writing transport index to binary file...", -1);
-					indexTransportCreator.writeBinaryTransportIndex(writer, regionName, mapConnection);
+					progress.startTask("Writing index sections in parallel...", -1);
+					writeIndexSectionsInParallel(sections, writer, timestamp, progress);
+				} else {
+					for (IndexSection section : sections) {
+						setGeneralProgress(progress, "[95 of 100]");
+						progress.startTask("Writing " + section.name + " index to binary file...", -1);
+						section.writer.write(writer, mapFile, mapConnection, progress);
+					}
 				}
 				progress.finishTask();
 				writer.close();
@@ -707,34 +732,278 @@ public class IndexCreator {
 		return mapFile;
 	}
 
+	private interface IndexSectionWriter {
+		// conn is the map db connection of the section (mapConnection or read only connection)
+		void write(BinaryMapIndexWriter writer, File file, Connection conn, IProgress progress)
+				throws IOException, SQLException;
+	}
+
+	private static class IndexSection {
+		final String name;
+		// sections reading map db
+		final boolean usesMapDb;
+		// sections writing into map db (base routes) need mapConnection and are written before other sections
+		final boolean writesMapDb;
+		final IndexSectionWriter writer;
+
+		IndexSection(String name, boolean usesMapDb, boolean writesMapDb, IndexSectionWriter writer) {
+			this.name = name;
+			this.usesMapDb = usesMapDb;
+			this.writesMapDb = writesMapDb;
+			this.writer = writer;
+		}
+	}
+
+	// pending inserts of the index creators are committed to map db, then sections only read it (except base routes)
+	private void prepareIndexSections(IProgress progress) throws IOException, SQLException {
+		if (settings.indexMap) {
+			indexMapCreator.prepareBinaryMapIndex();
+		}
+		if (settings.indexRouting) {
+			indexRouteCreator.prepareBinaryRouteIndex();
+		}
+		if (settings.indexAddress) {
+			indexAddressCreator.prepareBinaryAddressIndex(progress);
+		}
+		if (settings.indexTransport) {
+			indexTransportCreator.prepareBinaryTransportIndex(mapConnection);
+		}
+	}
+
+	// sections in the order they are written to obf file
+	private List<IndexSection> getIndexSections(String regionName) {
+		List<IndexSection> sections = new ArrayList<IndexSection>();
+		if (settings.indexMap) {
+			sections.add(new IndexSection("map", true, false,
+					(writer, file, conn, progress) -> indexMapCreator.writeBinaryMapIndex(writer, regionName, conn)));
+		}
+		if (settings.indexRouting) {
+			sections.add(new IndexSection("route", true, indexRouteCreator.isWritingMapDb(),
+					(writer, file, conn, progress) -> indexRouteCreator.writeBinaryRouteIndex(file, writer, regionName,
+							settings.generateLowLevel, conn)));
+		}
+		if (settings.indexAddress) {
+			sections.add(new IndexSection("address", true, false, (writer, file, conn,
+					progress) -> indexAddressCreator.writeBinaryAddressIndex(writer, regionName, conn, progress)));
+		}
+		if (settings.indexPOI) {
+			sections.add(new IndexSection("poi", false, false,
+					(writer, file, conn, progress) -> indexPoiCreator.writeBinaryPoiIndex(writer, regionName, progress)));
+		}
+		if (settings.indexTransport) {
+			sections.add(new IndexSection("transport", true, false, (writer, file, conn,
+					progress) -> indexTransportCreator.writeBinaryTransportIndex(writer, regionName, conn)));
+		}
+		return sections;
+	}
+
+	/**
+	 * Each section is written as a standalone obf part file (route section reads itself back), then the section
+	 * bytes are appended to the main file with FileChannel.transferTo. All references inside sections are relative
+	 * to the section, so they stay valid after concatenation.
+	 * <p>
+	 * Sections writing into map db (route with base routes) are written first with mapConnection. Then exclusive lock
+	 * of mapConnection is released and every section is written concurrently, sections based on map db (map, route,
+	 * address, transport) read it with their own read only connection. In memory map db is visible only to
+	 * mapConnection, so its sections are written one after another on one thread (poi section is concurrent).
+	 */
+	private void writeIndexSectionsInParallel(List<IndexSection> sections, BinaryMapIndexWriter writer, long timestamp,
+			IProgress progress) throws IOException, SQLException, InterruptedException {
+		final Map<IndexSection, long[]> sectionBounds = new ConcurrentHashMap<IndexSection, long[]>();
+		boolean separateConnections = mapIndexDBDialect == DBDialect.SQLITE;
+		List<IndexSection> mapConnectionSections = new ArrayList<IndexSection>();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (IndexSection section : sections) {
+			if (section.writesMapDb && separateConnections) {
+				sectionBounds.put(section, writeIndexSectionPart(section, timestamp, mapConnection, progress));
+			} else if (section.usesMapDb && !separateConnections) {
+				mapConnectionSections.add(section);
+			} else {
+				IProgress sectionProgress = tasks.isEmpty() ? progress : IProgress.EMPTY_PROGRESS;
+				tasks.add(() -> {
+					if (!section.usesMapDb) {
+						sectionBounds.put(section, writeIndexSectionPart(section, timestamp, null, sectionProgress));
+						return null;
+					}
+					Connection conn = mapIndexDBDialect.getReadOnlyDatabaseConnection(
+							new File(workingDir, getTempMapDBFileName()).getAbsolutePath(), log);
+					try {
+						sectionBounds.put(section, writeIndexSectionPart(section, timestamp, conn, sectionProgress));
+					} finally {
+						conn.close();
+					}
+					return null;
+				});
+			}
+		}
+		if (!mapConnectionSections.isEmpty()) {
+			tasks.add(() -> {
+				for (IndexSection section : mapConnectionSections) {
+					sectionBounds.put(section, writeIndexSectionPart(section, timestamp, mapConnection, progress));
+				}
+				return null;
+			});
+		}
+		if (separateConnections && !tasks.isEmpty()) {
+			releaseMapConnectionLock();
+		}
+		ExecutorService service = Executors.newFixedThreadPool(Math.max(1, tasks.size()));
+		try {
+			for (Future<Void> f : service.invokeAll(tasks)) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					} else if (e.getCause() instanceof SQLException) {
+						throw (SQLException) e.getCause();
+					} else if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		} finally {
+			service.shutdownNow();
+		}
+		writer.flush();
+		FileChannel out = mapRAFile.getChannel();
+		for (IndexSection section : sections) {
+			File partFile = getIndexSectionPartFile(section);
+			long[] bounds = sectionBounds.get(section);
+			try (RandomAccessFile part = new RandomAccessFile(partFile, "r")) {
+				FileChannel in = part.getChannel();
+				long pos = bounds[0];
+				while (pos < bounds[1]) {
+					pos += in.transferTo(pos, bounds[1] - pos, out);
+				}
+			}
+			partFile.delete();
+		}
+	}
+
+	// exclusive lock is kept by sqlite till the next access of the database after locking mode is changed
+	private void releaseMapConnectionLock() throws SQLException {
+		mapConnection.commit();
+		try (Statement stat = mapConnection.createStatement()) {
+			stat.executeQuery("PRAGMA locking_mode = NORMAL").close();
+			stat.executeQuery("SELECT count(*) FROM sqlite_master").close();
+		}
+		mapConnection.commit();
+	}
+
+	private long[] writeIndexSectionPart(IndexSection section, long timestamp, Connection conn, IProgress progress)
+			throws IOException, SQLException {
+		File partFile = getIndexSectionPartFile(section);
+		if (partFile.exists()) {
+			partFile.delete();
+		}
+		long start;
+		long end;
+		try (RandomAccessFile partRaf = new RandomAccessFile(partFile, "rw")) {
+			BinaryMapIndexWriter partWriter = new BinaryMapIndexWriter(partRaf, timestamp);
+			start = partWriter.getFilePointer();
+			section.writer.write(partWriter, partFile, conn, progress);
+			end = partWriter.getFilePointer();
+		}
+		log.info("Section " + section.name + " written: " + (end - start) + " bytes");
+		return new long[] { start, end };
+	}
+
+	private File getIndexSectionPartFile(IndexSection section) {
+		return new File(mapFile.getAbsolutePath() + "." + section.name + ".part");
+	}
+
 	private void iterateMainEntities(OsmDbAccessor accessor, IProgress progress, IndexCreationContext icc)
 			throws SQLException, InterruptedException {
 		setGeneralProgress(progress, "[50 / 100]");
 		progress.startTask(settings.getString("IndexCreator.PROCESS_OSM_NODES"), accessor.getAllNodes());
-		accessor.iterateOverEntities(progress, EntityType.NODE, new OsmDbVisitor() {
-			@Override
-			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
-				iterateMainEntity(e, ctx, icc);
-			}
-		});
+		accessor.iterateOverEntities(progress, EntityType.NODE, new MainEntityVisitor(icc), true,
+				settings.entityIterationThreads);
 		setGeneralProgress(progress, "[70 / 100]");
 		progress.startTask(settings.getString("IndexCreator.PROCESS_OSM_WAYS"), accessor.getAllWays());
-		accessor.iterateOverEntities(progress, EntityType.WAY, new OsmDbVisitor() {
+		accessor.iterateOverEntities(progress, EntityType.WAY, new MainEntityVisitor(icc) {
 			@Override
-			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+			public void iterateEntity(Entity e, PreparedMainEntity prepared, OsmDbAccessorContext ctx)
+					throws SQLException {
 				Way w = (Way) e;
-				propagateToNodes.calculateBorderPoints(w);
-				iterateMainEntity(e, ctx, icc);
+				synchronized (renderingTypes) {
+					propagateToNodes.calculateBorderPoints(w);
+				}
+				super.iterateEntity(e, prepared, ctx);
 			}
-		});
+		}, true, settings.entityIterationThreads);
 		setGeneralProgress(progress, "[85 / 100]");
 		progress.startTask(settings.getString("IndexCreator.PROCESS_OSM_REL"), accessor.getAllRelations());
-		accessor.iterateOverEntities(progress, EntityType.RELATION, new OsmDbVisitor() {
-			@Override
-			public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
-				iterateMainEntity(e, ctx, icc);
+		accessor.iterateOverEntities(progress, EntityType.RELATION, new MainEntityVisitor(icc), true,
+				settings.entityIterationThreads);
+	}
+
+	/**
+	 * Index data which doesn't depend on the db order is prepared on consumer threads: region tag, transliteration,
+	 * height data, tags propagated to nodes, encoded and simplified map objects and route types of the ways (if tags
+	 * of the way aren't changed by POI or map relation tags before). Rendering types are shared by index creators, so
+	 * they're encoded under their lock. Inserts into db and rtree, ids and other stateful steps (POI, transport,
+	 * address, route points) are done on the iterating thread in db order, so the result doesn't depend on number of
+	 * threads.
+	 * <p>
+	 * Tags are calculated before calculateBorderPoints of the way (previously after), border rules check only network
+	 * and border tags of the rendering types and calculated tags (region, name:en, height) aren't among them. Nodes
+	 * get calculated tags before propagateTagsToNode as before.
+	 */
+	private class MainEntityVisitor implements OsmDbParallelVisitor<PreparedMainEntity> {
+
+		private final IndexCreationContext icc;
+
+		public MainEntityVisitor(IndexCreationContext icc) {
+			this.icc = icc;
+		}
+
+		@Override
+		public PreparedMainEntity prepareEntity(Entity e) throws SQLException {
+			PreparedMainEntity prepared = new PreparedMainEntity();
+			calculateRegionTagAndTransliterate(e, icc);
+			if (e.getTag(TIGER_OSMAND_TAG) != null) {
+				return prepared;
 			}
-		});
+			// height data is safe for concurrent access and only changes tags of the way and its nodes
+			if (heightData != null && e instanceof Way) {
+				if (!settings.keepOnlyRouteRelationObjects) {// small speedup
+					heightData.proccess((Way) e);
+				}
+			}
+			// tags propagated from ways are registered while osm db is created
+			if (propagateToNodes != null && e instanceof Node) {
+				propagateToNodes.propagateTagsToNode((Node) e, true);
+			}
+			// relation group tags are put into the entity by POI and map creators and used by the next creators
+			boolean groupTags = settings.indexPOI && !settings.keepOnlyRouteRelationObjects
+					&& indexPoiCreator.tagsTransform.hasRelationGroupTags(e);
+			if (settings.indexMap && (settings.boundary == null || checkBoundary(e))) {
+				prepared.mapIndexed = true;
+				if (!groupTags) {
+					prepared.mapPrepared = true;
+					prepared.map = indexMapCreator.prepareMainEntity(e);
+					groupTags = prepared.map != null && prepared.map.hasGroupTags();
+				}
+			}
+			if (settings.indexRouting && !groupTags) {
+				prepared.routePrepared = true;
+				prepared.route = indexRouteCreator.prepareMainEntity(e, icc);
+			}
+			return prepared;
+		}
+
+		@Override
+		public void iterateEntity(Entity e, PreparedMainEntity prepared, OsmDbAccessorContext ctx)
+				throws SQLException {
+			iterateMainEntity(e, prepared, ctx, icc);
+		}
+
+		@Override
+		public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException {
+			iterateEntity(e, prepareEntity(e), ctx);
+		}
 	}
 
 	private void indexRelations(OsmDbAccessor accessor, IProgress progress, IndexCreationContext icc)
@@ -18,9 +18,47 @@ public class IndexCreatorSettings {
 	// use Sqlite in RAM instead of normal Sqlite (speeds up process but takes a lot of RAM)  
 	public boolean processInRam;
 	
+	// threads to inflate and decode pbf blocks (1 - decode on the reading thread)
+	public int pbfDecodeThreads = 1;
+
+	// keep node locations in memory mapped file instead of sqlite node table (only nodes with tags stay in db)
+	public boolean nodeLocationStore = false;
+
+	// entities waiting for the osm db writer thread (0 - convert and write entities on the parsing thread)
+	public int osmDbWriterQueue = 0;
+
+	// rows per batch (and transaction) for osm db tables
+	public int osmDbBatchSize = OsmDbCreator.BATCH_SIZE_OSM;
+
+	// heap bytes to sort osm db rows in run files and insert them in primary key order (0 - insert in input order)
+	public long osmDbSortBufferSize = 0;
+
+	// consumer threads to prepare main entities (tags, map objects and route types are encoded and simplified),
+	// prepared entities are inserted into index db on one thread in db order
+	public int entityIterationThreads = 1;
+
+	// write index sections concurrently, sections based on map db (map, route, address, transport) read it with their
+	// own read only connection (in memory map db is read by one connection, so only poi section is concurrent)
+	public boolean parallelIndexWriting = false;
+
+	// threads to combine and simplify low level ways (connected ways are processed by one thread)
+	public int lowLevelWaysThreads = 1;
+
+	// bulk load map rtree in memory (STR packing) instead of inserting into rtree file and packing it
+	public boolean packedRTree = false;
+
+	// bytes of packed rtree elements to keep on heap per map level, the rest is memory mapped from temp file
+	public long packedRTreeHeapLimit = 256L << 20;
+
+	// threads to prepare poi rows (tags, city tag groups, name prefixes) and fill poi tile tree and name index
+	public int poiIndexThreads = 1;
+
 	// maximum tiles to use in RAM
 	public int maxHeightTilesInRam = -1;
 
+	// maximum bytes of loaded height tiles (raw tiles are memory mapped), -1 - default limit
+	public long maxHeightDataBytes = -1;
+
 	// generate low level roads and maps
 	public boolean generateLowLevel = true;
 	
@@ -6,16 +6,22 @@ import java.awt.image.DataBufferFloat;
 import java.awt.image.DataBufferShort;
 import java.io.*;
 import java.net.URL;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
@@ -48,6 +54,10 @@ import software.amazon.awssdk.services.s3.model.GetObjectResponse;
 
 public class IndexHeightData {
 	public static int MAXIMUM_LOADED_DATA = 150; 
+	// bytes of loaded tiles (memory mapped raw tiles or heap without working dir), -1 - no limit
+	public static long MAXIMUM_LOADED_BYTES = 4L << 30;
+	private static final String RAW_TILE_EXT = ".raw";
+	private static final int RAW_TILE_HEADER = 8;
 	private static final double MINIMAL_DISTANCE = 0;
 	private static final int HEIGHT_ACCURACY = 4;
 	private static boolean USE_BILINEAR_INTERPOLATION = false;
@@ -66,7 +76,8 @@ public class IndexHeightData {
 	public static final double INEXISTENT_HEIGHT = Double.MIN_VALUE;
 
 	public static final int MAX_SRTM_COUNT_DOWNLOAD = 20000;
-	private int srtmCountDownload;
+	private final AtomicInteger srtmCountDownload = new AtomicInteger();
+	private int maxSrtmCountDownload = MAX_SRTM_COUNT_DOWNLOAD;
 	public static final double MAX_LAT_LON_DIST = 500 * 1000; // 500 km
 	
 	public static final Set<String> ELEVATION_TAGS = new TreeSet<>(); 
@@ -83,17 +94,34 @@ public class IndexHeightData {
 	}
 
 	
-	private Map<Integer, TileData> map = new HashMap<Integer, TileData>();
+	private final Map<Integer, TileData> map = new ConcurrentHashMap<Integer, TileData>();
+	private final Object gcLock = new Object();
+	private final AtomicLong loadedBytes = new AtomicLong();
+	// raw tiles written or mapped by this instance (they are removed on unload when there are too many)
+	private final AtomicLong rawTilesBytes = new AtomicLong();
+	// incremented on every tile load, tiles remember the last epoch they were accessed in
+	private final AtomicInteger accessEpoch = new AtomicInteger();
 
 	private static final Log log = PlatformUtil.getLog(IndexHeightData.class);
 	
+	/**
+	 * Heights of one srtm tile. Decoded GeoTIFF is converted once to a raw tile file (width, height and heights in
+	 * native order) which is memory mapped, so loaded tiles don't take heap. Data is published through volatile field
+	 * and is only read, so heights are calculated concurrently, unloaded tile keeps working for the readers that
+	 * already took its buffer.
+	 */
 	private static class TileData {
-		DataBufferShort data;
-		private int id;
+		private final int id;
+		private volatile ShortBuffer data;
 		private boolean dataLoaded;
+		// set under tile lock when tile is loaded without data (there is no file), such tile is never unloaded
+		private volatile boolean noData;
 		private int height;
 		private int width;
-		public int accessed;
+		private long bytes;
+		// tile is mapped from the raw tiles folder and counted in rawTilesBytes
+		private boolean rawTileCached;
+		public volatile int accessed;
 		public int loaded;
 		
 		private TileData(int id) {
@@ -101,8 +129,14 @@ public class IndexHeightData {
 			
 		}
 		
-		public File loadData(String srtmDataUrl, File workDir) throws IOException {
-			dataLoaded = true;
+		public File loadData(String srtmDataUrl, File workDir, File rawDir) throws IOException {
+			File raw = rawDir == null ? null : new File(rawDir, getFileName() + RAW_TILE_EXT);
+			if (raw != null && raw.exists()) {
+				// raw tile of previous run is also removed when there are too many
+				mapRawTile(raw);
+				rawTileCached = true;
+				return null;
+			}
 			File f = loadFile(getFileName() + ".tif", srtmDataUrl, workDir);
 			BufferedImage img;
 			if (f.exists()) {
@@ -112,6 +146,9 @@ public class IndexHeightData {
 				} catch (Exception e) {
 					iterativeReadData(f);
 				}
+				if (raw != null && data != null) {
+					writeRawTile(raw);
+				}
 				
 				// remove all downloaded files to save disk space
 				if (!srtmDataUrl.startsWith("/") && !srtmDataUrl.startsWith(".")) {
@@ -121,6 +158,42 @@ public class IndexHeightData {
 			}
 			return f;
 		}
+
+		private void mapRawTile(File raw) throws IOException {
+			try (RandomAccessFile rf = new RandomAccessFile(raw, "r"); FileChannel ch = rf.getChannel()) {
+				MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				buf.order(ByteOrder.nativeOrder());
+				width = buf.getInt(0);
+				height = buf.getInt(4);
+				buf.position(RAW_TILE_HEADER);
+				bytes = ch.size();
+				data = buf.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+			}
+		}
+
+		private void writeRawTile(File raw) throws IOException {
+			raw.getParentFile().mkdirs();
+			// tile is written to temp file and renamed, so concurrent generations never map partial tile
+			File tmp = File.createTempFile(getFileName(), RAW_TILE_EXT + ".tmp", raw.getParentFile());
+			ShortBuffer heights = data;
+			try (RandomAccessFile rf = new RandomAccessFile(tmp, "rw"); FileChannel ch = rf.getChannel()) {
+				MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0,
+						RAW_TILE_HEADER + 2L * heights.capacity());
+				buf.order(ByteOrder.nativeOrder());
+				buf.putInt(width);
+				buf.putInt(height);
+				buf.slice().order(ByteOrder.nativeOrder()).asShortBuffer().put(heights.duplicate());
+				buf.force();
+			}
+			if (!tmp.renameTo(raw)) {
+				tmp.delete();
+			}
+			rawTileCached = raw.exists();
+			if (rawTileCached) {
+				// release decoded image, the tile is used from the mapped file
+				mapRawTile(raw);
+			}
+		}
 		
 		private BufferedImage iterativeReadData(File file) {
 			boolean readSuccess = false;
@@ -161,7 +234,9 @@ public class IndexHeightData {
 			if (img != null) {
 				width = img.getWidth();
 				height = img.getHeight();
-				data = (DataBufferShort) img.getRaster().getDataBuffer();
+				DataBufferShort db = (DataBufferShort) img.getRaster().getDataBuffer();
+				bytes = 2L * db.getSize();
+				data = ShortBuffer.wrap(db.getData(), db.getOffset(), db.getSize()).slice();
 			}
 		}
 		
@@ -173,19 +248,16 @@ public class IndexHeightData {
 			return nd;
 		}
 		
-		public double getHeight(double x, double y, double[] array) {
-			if (data == null) {
-				return INEXISTENT_HEIGHT;
-			}
+		public double getHeight(ShortBuffer d, double x, double y, double[] array) {
 			if(USE_BILINEAR_INTERPOLATION) {
-				return bilinearInterpolation(x, y, array);
+				return bilinearInterpolation(d, x, y, array);
 			} else {
-				return bicubicInterpolation(x, y, array);
+				return bicubicInterpolation(d, x, y, array);
 			}
 //			System.out.println(" --- " + (h1 - h2) + " " + h1 + " " + h2);
 		}
 		
-		protected double bicubicInterpolation(double ix, double iy, double[] cf) {
+		protected double bicubicInterpolation(ShortBuffer d, double ix, double iy, double[] cf) {
 			double pdx = (width - 2) * ix + 1;
 			double pdy = (height - 2) * (1 - iy) + 1;
 			int px = (int) Math.round(pdx);
@@ -212,22 +284,22 @@ public class IndexHeightData {
 			double tx = y;
 			y = x;
 			x = tx;
-			cf[0] = (x-1)*(x-2)*(x+1)*(y-1)*(y-2)*(y+1) / 4 * getElem(px, py);
-			cf[1] = -(x)*(x-2)*(x+1)*(y-1)*(y-2)*(y+1) / 4 * getElem(px, py + 1);
-			cf[2] = -(x-1)*(x-2)*(x+1)*(y)*(y-2)*(y+1) / 4 * getElem(px + 1, py);
-			cf[3] = (x)*(x-2)*(x+1)*(y)*(y-2)*(y+1) / 4 * getElem(px + 1, py + 1);
-			cf[4] = -(x)*(x-2)*(x-1)*(y-1)*(y-2)*(y+1) / 12 * getElem(px, py - 1);
-			cf[5] = -(x+1)*(x-2)*(x-1)*(y-1)*(y-2)*(y) / 12 * getElem(px - 1, py);
-			cf[6] = (x)*(x-2)*(x-1)*(y+1)*(y-2)*(y) / 12 * getElem(px + 1, py - 1);
-			cf[7] = (x)*(x-2)*(x+1)*(y-1)*(y-2)*(y) / 12 * getElem(px - 1, py + 1);
-			cf[8] = (x)*(x-1)*(x+1)*(y-1)*(y-2)*(y+1) / 12 * getElem(px, py + 2);
-			cf[9] = (x-2)*(x-1)*(x+1)*(y-1)*(y)*(y+1) / 12 * getElem(px + 2, py);
-			cf[10] = (x)*(x-1)*(x-2)*(y)*(y-1)*(y-2) / 36 * getElem(px - 1, py - 1);
-			cf[11] = -(x)*(x-1)*(x+1)*(y)*(y+1)*(y-2) / 12 * getElem(px + 1, py + 2);
-			cf[12] = -(x)*(x+1)*(x-2)*(y)*(y-1)*(y+1) / 12 * getElem(px + 2, py + 1);
-			cf[13] = -(x)*(x-1)*(x+1)*(y)*(y-1)*(y-2) / 36 * getElem(px - 1, py + 2);
-			cf[14] = -(x)*(x-1)*(x-2)*(y)*(y-1)*(y+1) / 36 * getElem(px + 2, py - 1);
-			cf[15] =  (x)*(x-1)*(x+1)*(y)*(y-1)*(y+1) / 36 * getElem(px + 2, py + 2);
+			cf[0] = (x-1)*(x-2)*(x+1)*(y-1)*(y-2)*(y+1) / 4 * getElem(d, px, py);
+			cf[1] = -(x)*(x-2)*(x+1)*(y-1)*(y-2)*(y+1) / 4 * getElem(d, px, py + 1);
+			cf[2] = -(x-1)*(x-2)*(x+1)*(y)*(y-2)*(y+1) / 4 * getElem(d, px + 1, py);
+			cf[3] = (x)*(x-2)*(x+1)*(y)*(y-2)*(y+1) / 4 * getElem(d, px + 1, py + 1);
+			cf[4] = -(x)*(x-2)*(x-1)*(y-1)*(y-2)*(y+1) / 12 * getElem(d, px, py - 1);
+			cf[5] = -(x+1)*(x-2)*(x-1)*(y-1)*(y-2)*(y) / 12 * getElem(d, px - 1, py);
+			cf[6] = (x)*(x-2)*(x-1)*(y+1)*(y-2)*(y) / 12 * getElem(d, px + 1, py - 1);
+			cf[7] = (x)*(x-2)*(x+1)*(y-1)*(y-2)*(y) / 12 * getElem(d, px - 1, py + 1);
+			cf[8] = (x)*(x-1)*(x+1)*(y-1)*(y-2)*(y+1) / 12 * getElem(d, px, py + 2);
+			cf[9] = (x-2)*(x-1)*(x+1)*(y-1)*(y)*(y+1) / 12 * getElem(d, px + 2, py);
+			cf[10] = (x)*(x-1)*(x-2)*(y)*(y-1)*(y-2) / 36 * getElem(d, px - 1, py - 1);
+			cf[11] = -(x)*(x-1)*(x+1)*(y)*(y+1)*(y-2) / 12 * getElem(d, px + 1, py + 2);
+			cf[12] = -(x)*(x+1)*(x-2)*(y)*(y-1)*(y+1) / 12 * getElem(d, px + 2, py + 1);
+			cf[13] = -(x)*(x-1)*(x+1)*(y)*(y-1)*(y-2) / 36 * getElem(d, px - 1, py + 2);
+			cf[14] = -(x)*(x-1)*(x-2)*(y)*(y-1)*(y+1) / 36 * getElem(d, px + 2, py - 1);
+			cf[15] =  (x)*(x-1)*(x+1)*(y)*(y-1)*(y+1) / 36 * getElem(d, px + 2, py + 2);
 			double h = 0;
 			for(int i = 0; i < cf.length; i++) {
 				h += cf[i];
@@ -235,7 +307,7 @@ public class IndexHeightData {
 			return h;
 		}
 
-		protected double bilinearInterpolation(double x, double y, double[] array) {
+		protected double bilinearInterpolation(ShortBuffer d, double x, double y, double[] array) {
 			double pdx = (width - 2) * x + 1;
 			double pdy = (height - 2) * (1 - y) + 1;
 			int px = (int) Math.round(pdx);
@@ -243,10 +315,10 @@ public class IndexHeightData {
 			if(array == null) {
 				array = new double[4]; 
 			}
-			array[0] = getElem(px - 1, py - 1);
-			array[1] = getElem(px, py - 1);
-			array[2] = getElem(px - 1, py);
-			array[3] = getElem(px, py);
+			array[0] = getElem(d, px - 1, py - 1);
+			array[1] = getElem(d, px, py - 1);
+			array[2] = getElem(d, px - 1, py);
+			array[3] = getElem(d, px, py);
 			double cx = 0.5 + pdx - px;
 			double cy = 0.5 + pdy - py;
 			// 1.3 pdx ->  px = 1, px - 1 = 0, cx = 0.8, 1 - cx = 0.2,
@@ -259,7 +331,7 @@ public class IndexHeightData {
 			return h;
 		}
 
-		private double getElem(int px, int py) {
+		private double getElem(ShortBuffer d, int px, int py) {
 			if (px <= 0) {
 				px = 1;
 			}
@@ -274,11 +346,11 @@ public class IndexHeightData {
 			}
 			
 			int ind = px + py * width;
-			if (ind >= data.getSize()) {
+			if (ind >= d.capacity()) {
 				throw new IllegalArgumentException("Illegal access (" + px + ", " + py + ") " + ind + " - "
 						+ getFileName());
 			}
-			int h = data.getElem(ind) & 0xffff;
+			int h = d.get(ind) & 0xffff;
 			if(h > 0x7fff) {
 				return h - (0xffff);
 			}
@@ -552,9 +624,37 @@ public class IndexHeightData {
 		this.srtmWorkingDir = workingDir;
 	}
 	
+	// -1 for long living instances (server), there is no limit of tile loads
+	public void setMaxSrtmCountDownload(int maxSrtmCountDownload) {
+		this.maxSrtmCountDownload = maxSrtmCountDownload;
+	}
+	
 	public double getPointHeight(double lat, double lon) {
 		return getPointHeight(lat, lon, null, null);
 	}
+
+	/**
+	 * Heights of many points (INEXISTENT_HEIGHT if there is no data), points are processed ordered by tile, so every
+	 * tile of the batch is loaded once and all its points are calculated while it's loaded.
+	 */
+	public double[] getPointHeights(double[] lats, double[] lons, File[] fileName) {
+		int n = lats.length;
+		// tile id in the high bits, point index in the low bits
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++) {
+			int lt = (int) Math.floor(lats[i]);
+			int ln = (int) Math.floor(lons[i]);
+			order[i] = ((long) getTileId(lt, ln) << 32) | i;
+		}
+		Arrays.sort(order);
+		double[] heights = new double[n];
+		double[] neighboors = new double[16];
+		for (long o : order) {
+			int i = (int) o;
+			heights[i] = getPointHeight(lats[i], lons[i], fileName, neighboors);
+		}
+		return heights;
+	}
 	
 	public double getPointHeight(double lat, double lon, File[] fileName) {
 		return getPointHeight(lat, lon, fileName, null);
@@ -576,62 +676,130 @@ public class IndexHeightData {
 		int id = getTileId(lt, ln);
 		TileData tileData = map.get(id);
 		if (tileData == null) {
-			tileData = new TileData(id);
-			map.put(id, tileData);
+			tileData = map.computeIfAbsent(id, TileData::new);
 		}
-		if (!tileData.dataLoaded) {
-			gcTiles();
+		ShortBuffer d;
+		// buffer is read once, tile unloaded by other thread after the load is loaded again
+		while ((d = tileData.data) == null) {
+			if (tileData.noData) {
+				return INEXISTENT_HEIGHT;
+			}
+			File missingFile = loadTile(tileData, lt, ln);
+			if (fileName != null && fileName.length > 0) {
+				fileName[0] = missingFile;
+			}
+		}
+		int epoch = accessEpoch.get();
+		if (tileData.accessed != epoch) {
+			tileData.accessed = epoch;
+		}
+		
+		return tileData.getHeight(d, lonDelta, latDelta, neighboors);
+	}
+
+	private File loadTile(TileData tileData, int lt, int ln) {
+		// unload is done before tile lock is taken (unload locks the tiles it releases)
+		gcTiles();
+		File missingFile = null;
+		synchronized (tileData) {
+			if (tileData.dataLoaded) {
+				return null;
+			}
+			boolean wasCached = tileData.rawTileCached;
 			try {
 				tileData.loaded++;
-				log.info(String.format("SRTM: Load srtm data %d: %d %d", id, (int) lt, (int) ln));
-				File missingFile = tileData.loadData(srtmDataUrl, srtmWorkingDir);
-				if (fileName != null && fileName.length > 0) {
-					fileName[0] = missingFile;
-				}
-				srtmCountDownload++;
-				if (srtmCountDownload > MAX_SRTM_COUNT_DOWNLOAD) {
-					throw new RuntimeException("Max count of download SRTM data " + MAX_SRTM_COUNT_DOWNLOAD);
-				}
+				log.info(String.format("SRTM: Load srtm data %d: %d %d", tileData.id, lt, ln));
+				missingFile = tileData.loadData(srtmDataUrl, srtmWorkingDir, getRawTilesDir());
 			} catch (IOException e) {
 				log.error(e.getMessage(), e);
 			}
+			tileData.dataLoaded = true;
+			if (tileData.data != null) {
+				loadedBytes.addAndGet(tileData.bytes);
+			} else {
+				tileData.noData = true;
+			}
+			if (tileData.rawTileCached && !wasCached) {
+				rawTilesBytes.addAndGet(tileData.bytes);
+			}
+			accessEpoch.incrementAndGet();
 		}
-		tileData.accessed++;
-		
-		return tileData.getHeight(lonDelta, latDelta, neighboors);
+		if (maxSrtmCountDownload != -1 && srtmCountDownload.incrementAndGet() > maxSrtmCountDownload) {
+			throw new RuntimeException("Max count of download SRTM data " + maxSrtmCountDownload);
+		}
+		return missingFile;
 	}
 
+	/**
+	 * Removes raw tiles of previous runs, should be called before the first lookup.
+	 */
+	public void clearRawTiles() {
+		File rawDir = getRawTilesDir();
+		if (rawDir != null) {
+			Algorithms.removeAllFiles(rawDir);
+		}
+	}
 
+	private File getRawTilesDir() {
+		return srtmWorkingDir == null ? null : new File(srtmWorkingDir, "srtm_raw");
+	}
 
 	private void gcTiles() {
-		List<TileData> lst = new ArrayList<>(map.values());
-		Iterator<TileData> it = lst.iterator();
-		while (it.hasNext()) {
-			if (it.next().data == null) {
-				it.remove();
+		synchronized (gcLock) {
+			List<TileData> lst = new ArrayList<>();
+			for (TileData t : map.values()) {
+				if (t.data != null) {
+					lst.add(t);
+				}
 			}
-		}
-		if (MAXIMUM_LOADED_DATA != -1 && lst.size() >= MAXIMUM_LOADED_DATA) {
-			int toGC = MAXIMUM_LOADED_DATA / 2;
-			log.info(String.format("SRTM: GC srtm data %d of %d (total %d).", toGC, lst.size(), map.size()));
-			// sort that more accessed are not gc
+			boolean countExceeded = MAXIMUM_LOADED_DATA != -1 && lst.size() >= MAXIMUM_LOADED_DATA;
+			boolean bytesExceeded = MAXIMUM_LOADED_BYTES != -1 && loadedBytes.get() >= MAXIMUM_LOADED_BYTES;
+			if (!countExceeded && !bytesExceeded) {
+				return;
+			}
+			log.info(String.format("SRTM: GC srtm data %d tiles, %d MB (total %d).", lst.size(),
+					loadedBytes.get() >> 20, map.size()));
+			// sort that recently accessed and reloaded are not gc
 			Collections.sort(lst, new Comparator<TileData>() {
 
 				@Override
 				public int compare(TileData o1, TileData o2) {
-					return -Integer.compare(o1.accessed + 100 * o1.loaded, o2.accessed + 100 * o2.loaded);
+					if (o1.accessed != o2.accessed) {
+						return -Integer.compare(o1.accessed, o2.accessed);
+					}
+					return -Integer.compare(o1.loaded, o2.loaded);
 				}
 			});
+			long keptBytes = 0;
 			for (int i = 0; i < lst.size(); i++) {
 				TileData tile = lst.get(i);
-				if (i > toGC) {
-					// unload
-					tile.dataLoaded = false;
-					tile.data = null;
+				boolean keep = (MAXIMUM_LOADED_DATA == -1 || i < MAXIMUM_LOADED_DATA / 2)
+						&& (MAXIMUM_LOADED_BYTES == -1 || keptBytes + tile.bytes <= MAXIMUM_LOADED_BYTES / 2);
+				if (keep) {
+					keptBytes += tile.bytes;
+				} else {
+					unloadTile(tile);
+				}
+			}
+		}
+	}
+
+	private void unloadTile(TileData tile) {
+		synchronized (tile) {
+			if (tile.data == null) {
+				return;
+			}
+			// mapped buffer is released by gc when readers don't use it anymore
+			tile.dataLoaded = false;
+			tile.data = null;
+			loadedBytes.addAndGet(-tile.bytes);
+			if (tile.rawTileCached && MAXIMUM_LOADED_BYTES != -1 && rawTilesBytes.get() > 4 * MAXIMUM_LOADED_BYTES) {
+				File raw = new File(getRawTilesDir(), tile.getFileName() + RAW_TILE_EXT);
+				if (raw.delete()) {
+					tile.rawTileCached = false;
+					rawTilesBytes.addAndGet(-tile.bytes);
 				}
-				tile.accessed = 0;
 			}
-			System.gc();
 		}
 	}
 	
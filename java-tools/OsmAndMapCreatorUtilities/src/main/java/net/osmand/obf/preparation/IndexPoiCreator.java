@@ -1,6 +1,8 @@
 package net.osmand.obf.preparation;
 
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import gnu.trove.set.hash.TLongHashSet;
 import net.osmand.IProgress;
 import net.osmand.IndexConstants;
@@ -26,6 +28,10 @@ import java.io.IOException;
 import java.sql.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class IndexPoiCreator extends AbstractIndexPartCreator {
 
@@ -39,6 +45,8 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 	private static final int ZOOM_TO_SAVE_START = 6;
 	private static final int ZOOM_TO_WRITE_CATEGORIES_START = 12;
 	private static final int ZOOM_TO_WRITE_CATEGORIES_END = 16;
+	private static final int POI_BATCH_SIZE = 5000;
+	private static final int POI_BATCHES_PER_THREAD = 2;
 	private boolean useInMemoryCreator = true;
 	public static long GENERATE_OBJ_ID = -(1L << 10L);
 	private static int DUPLICATE_SPLIT = 5;
@@ -549,7 +557,7 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 		}
 		poiConnection.commit();
 
-		Map<String, Set<PoiTileBox>> namesIndex = new TreeMap<String, Set<PoiTileBox>>();
+		PoiNameIndex namesIndex = new PoiNameIndex(Math.max(1, settings.poiIndexThreads));
 
 		int zoomToStart = ZOOM_TO_SAVE_START;
 		IntBbox bbox = new IntBbox();
@@ -568,7 +576,8 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 		writer.writePoiSubtypesTable(globalCategories, topIndexAdditional);
 
 		// 2.5 write names table
-		Map<PoiTileBox, List<BinaryFileReference>> fpToWriteSeeks = writer.writePoiNameIndex(namesIndex, startFpPoiIndex);
+		Map<PoiTileBox, List<BinaryFileReference>> fpToWriteSeeks = writer.writePoiNameIndex(namesIndex.toSortedMap(),
+				startFpPoiIndex);
 
 		// 3. write boxes
 		log.info("Poi box processing finished");
@@ -711,7 +720,7 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 		return null;
 	}
 
-	private void processPOIIntoTree(Map<String, Set<PoiTileBox>> namesIndex, int zoomToStart, IntBbox bbox,
+	private void processPOIIntoTree(PoiNameIndex namesIndex, int zoomToStart, IntBbox bbox,
 			Tree<PoiTileBox> rootZoomsTree) throws SQLException {
 		ResultSet rs = poiConnection.createStatement().executeQuery("SELECT x,y,type,subtype,id,additionalTags,taggroups from poi ORDER BY id, priority");
 		rootZoomsTree.setNode(new PoiTileBox());
@@ -719,36 +728,78 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 		int count = 0;
 		ConsoleProgressImplementation console = new ConsoleProgressImplementation();
 		console.startWork(1000000);
-		Map<PoiAdditionalType, String> additionalTags = new LinkedHashMap<PoiAdditionalType, String>();
 		PoiAdditionalType nameRuleType = retrieveAdditionalType("name");
 		PoiAdditionalType nameEnRuleType = retrieveAdditionalType("name:en");
-		while (rs.next()) {
-			int x = rs.getInt(1);
-			int y = rs.getInt(2);
-			bbox.minX = Math.min(x, bbox.minX);
-			bbox.maxX = Math.max(x, bbox.maxX);
-			bbox.minY = Math.min(y, bbox.minY);
-			bbox.maxY = Math.max(y, bbox.maxY);
-			if (count++ > 10000) {
-				count = 0;
-				console.progress(10000);
+		int threads = Math.max(1, settings.poiIndexThreads);
+		ExecutorService service = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		PoiTreeBuilder builder = new PoiTreeBuilder(rootZoomsTree, zoomToStart, bbox, namesIndex);
+		ArrayDeque<Future<List<PoiRow>>> pending = new ArrayDeque<Future<List<PoiRow>>>();
+		try {
+			List<PoiRow> batch = new ArrayList<PoiRow>();
+			boolean hasNext = rs.next();
+			while (hasNext) {
+				PoiRow row = new PoiRow();
+				row.x = rs.getInt(1);
+				row.y = rs.getInt(2);
+				row.type = rs.getString(3);
+				row.subtype = rs.getString(4);
+				row.id = rs.getLong(5);
+				row.additionalTagsColumn = rs.getString(6);
+				row.tagGroupsColumn = rs.getString(7);
+				batch.add(row);
+				if (count++ > 10000) {
+					count = 0;
+					console.progress(10000);
+				}
+				hasNext = rs.next();
+				if (batch.size() >= POI_BATCH_SIZE || !hasNext) {
+					final List<PoiRow> toPrepare = batch;
+					if (service == null) {
+						builder.addRows(preparePoiRows(toPrepare, nameRuleType, nameEnRuleType), null);
+					} else {
+						pending.add(service.submit(() -> preparePoiRows(toPrepare, nameRuleType, nameEnRuleType)));
+						if (pending.size() >= threads * POI_BATCHES_PER_THREAD) {
+							builder.addRows(getPoiTaskResult(pending.poll()), service);
+						}
+					}
+					batch = new ArrayList<PoiRow>();
+				}
 			}
+			while (!pending.isEmpty()) {
+				builder.addRows(getPoiTaskResult(pending.poll()), service);
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			if (service != null) {
+				service.shutdownNow();
+			}
+			rs.close();
+		}
+		log.info("Poi processing finished");
+	}
 
-			String type = rs.getString(3);
-			String subtype = rs.getString(4);
-			decodeAdditionalInfo(rs.getString(6), additionalTags);
-
-			List<Integer> tagGroupIds = parseTaggroups(rs.getString(7));
+	/**
+	 * Decodes tags, resolves tag groups and name prefixes of rows, doesn't touch the tree so it runs concurrently.
+	 */
+	private List<PoiRow> preparePoiRows(List<PoiRow> rows, PoiAdditionalType nameRuleType,
+			PoiAdditionalType nameEnRuleType) {
+		for (PoiRow row : rows) {
+			Map<PoiAdditionalType, String> additionalTags = decodeAdditionalInfo(row.additionalTagsColumn,
+					new LinkedHashMap<PoiAdditionalType, String>());
+			List<Integer> tagGroupIds = parseTaggroups(row.tagGroupsColumn);
+			row.additionalTagsColumn = null;
+			row.tagGroupsColumn = null;
 			List<PoiCreatorTagGroup> tagGroups = new ArrayList<>();
 			if (cityQuadTree != null) {
 				List<Multipolygon> result = new ArrayList<>();
-				cityQuadTree.queryInBox(new QuadRect(x, y, x, y), result);
+				cityQuadTree.queryInBox(new QuadRect(row.x, row.y, row.x, row.y), result);
 				if (result.size() > 0) {
-					LatLon latLon = new LatLon(MapUtils.get31LatitudeY(y), MapUtils.get31LongitudeX(x));
+					LatLon latLon = new LatLon(MapUtils.get31LatitudeY(row.y), MapUtils.get31LongitudeX(row.x));
 					for (Multipolygon multipolygon : result) {
 						if (multipolygon.containsPoint(latLon)) {
 							if (!cityTagsGroup.containsKey(multipolygon)) {
-								log.error("Multipolygon for POI is not found!!! " + type + " " + subtype + " " + latLon.toString());
+								log.error("Multipolygon for POI is not found!!! " + row.type + " " + row.subtype + " " + latLon.toString());
 							} else {
 								List<PoiCreatorTagGroup> list = cityTagsGroup.get(multipolygon);
 								tagGroups.addAll(list);
@@ -763,37 +814,6 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 					}
 				}
 			}
-
-			Tree<PoiTileBox> prevTree = rootZoomsTree;
-			rootZoomsTree.getNode().categories.addCategory(type, subtype, additionalTags);
-			if (tagGroups.size() > 0) {
-				rootZoomsTree.getNode().tagGroups.addTagGroup(tagGroups);
-			}
-			for (int i = zoomToStart; i <= ZOOM_TO_SAVE_END; i++) {
-				int xs = x >> (31 - i);
-				int ys = y >> (31 - i);
-				Tree<PoiTileBox> subtree = null;
-				for (Tree<PoiTileBox> sub : prevTree.getSubtrees()) {
-					if (sub.getNode().x == xs && sub.getNode().y == ys && sub.getNode().zoom == i) {
-						subtree = sub;
-						break;
-					}
-				}
-				if (subtree == null) {
-					subtree = new Tree<PoiTileBox>();
-					PoiTileBox poiBox = new PoiTileBox();
-					subtree.setNode(poiBox);
-					poiBox.x = xs;
-					poiBox.y = ys;
-					poiBox.zoom = i;
-
-					prevTree.addSubTree(subtree);
-				}
-				subtree.getNode().categories.addCategory(type, subtype, additionalTags);
-				subtree.getNode().tagGroups.addTagGroup(tagGroups);
-
-				prevTree = subtree;
-			}
 			Set<String> otherNames = null;
 			Iterator<Entry<PoiAdditionalType, String>> it = additionalTags.entrySet().iterator();
 			while (it.hasNext()) {
@@ -806,57 +826,65 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 					otherNames.add(e.getValue());
 				}
 			}
-			addNamePrefix(additionalTags.get(nameRuleType), additionalTags.get(nameEnRuleType), prevTree.getNode(),
-					namesIndex, otherNames);
+			Set<String> prefixes = new HashSet<String>();
+			addNamePrefix(additionalTags.get(nameRuleType), additionalTags.get(nameEnRuleType), prefixes, otherNames);
+			row.prefixes = prefixes.toArray(new String[prefixes.size()]);
 
 			if (tagGroupIds.size() == 0) {
 				for (PoiCreatorTagGroup p : tagGroups) {
 					tagGroupIds.add(p.id);
 				}
 			}
+			row.additionalTags = additionalTags;
+			row.tagGroups = tagGroups;
+			row.tagGroupIds = tagGroupIds;
 			if (useInMemoryCreator) {
-				if (prevTree.getNode().poiData == null) {
-					prevTree.getNode().poiData = new ArrayList<PoiData>();
-				}
 				PoiData poiData = new PoiData();
-				poiData.x = x;
-				poiData.y = y;
-				poiData.type = type;
-				poiData.subtype = subtype;
-				poiData.id = rs.getLong(5);
+				poiData.x = row.x;
+				poiData.y = row.y;
+				poiData.type = row.type;
+				poiData.subtype = row.subtype;
+				poiData.id = row.id;
 				poiData.additionalTags.putAll(additionalTags);
 				poiData.tagGroups.addAll(tagGroupIds);
-				prevTree.getNode().poiData.add(poiData);
+				row.poiData = poiData;
+			}
+		}
+		return rows;
+	}
 
-			} else {
-				poiTagGroups.put(rs.getLong(5), tagGroupIds);
+	private static <T> T getPoiTaskResult(Future<T> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
 			}
+			throw new IllegalStateException(e.getCause());
 		}
-		log.info("Poi processing finished");
 	}
 
-	private void addNamePrefix(String name, String nameEn, PoiTileBox data, Map<String, Set<PoiTileBox>> poiData,
-			Set<String> names) {
+	private void addNamePrefix(String name, String nameEn, Set<String> prefixes, Set<String> names) {
 		if (name != null) {
-			parsePrefix(name, data, poiData);
+			parsePrefix(name, prefixes);
 			if (Algorithms.isEmpty(nameEn)) {
 				nameEn = Junidecode.unidecode(name);
 			}
 
 		}
 		if (!Algorithms.objectEquals(nameEn, name) && !Algorithms.isEmpty(nameEn)) {
-			parsePrefix(nameEn, data, poiData);
+			parsePrefix(nameEn, prefixes);
 		}
 		if (names != null) {
 			for (String nk : names) {
 				if (!Algorithms.objectEquals(nk, name) && !Algorithms.isEmpty(nk)) {
-					parsePrefix(nk, data, poiData);
+					parsePrefix(nk, prefixes);
 				}
 			}
 		}
 	}
 
-    private void parsePrefix(String name, PoiTileBox data, Map<String, Set<PoiTileBox>> poiData) {
+    private void parsePrefix(String name, Set<String> prefixes) {
         name = Algorithms.normalizeSearchText(name);
         Set<String> splitName = new HashSet<>(Algorithms.splitByWordsLowercase(name));
         if (ArabicNormalizer.isSpecialArabic(name)) {
@@ -869,13 +897,211 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
             if (str.length() > settings.charsToBuildPoiNameIndex) {
                 str = str.substring(0, settings.charsToBuildPoiNameIndex);
             }
-            if (!poiData.containsKey(str)) {
-                poiData.put(str, new LinkedHashSet<>());
-            }
-            poiData.get(str).add(data);
+            prefixes.add(str);
         }
     }
 
+	/**
+	 * Adds prepared rows to the tile tree in the order of rows. Boxes of the row path are looked up (and created in
+	 * order of appearance) on the calling thread, categories, tag groups and name postings are updated by shards:
+	 * every box and every name prefix belongs to one shard, so shards run concurrently without locks and the result
+	 * is the same as with one thread.
+	 */
+	private class PoiTreeBuilder {
+		private final Tree<PoiTileBox> root;
+		private final int zoomToStart;
+		private final IntBbox bbox;
+		private final PoiNameIndex namesIndex;
+		private final int shards;
+		private final TLongObjectHashMap<Tree<PoiTileBox>> tiles = new TLongObjectHashMap<Tree<PoiTileBox>>();
+		private int boxes = 1;
+
+		PoiTreeBuilder(Tree<PoiTileBox> root, int zoomToStart, IntBbox bbox, PoiNameIndex namesIndex) {
+			this.root = root;
+			this.zoomToStart = zoomToStart;
+			this.bbox = bbox;
+			this.namesIndex = namesIndex;
+			this.shards = namesIndex.getShardsCount();
+		}
+
+		void addRows(List<PoiRow> rows, ExecutorService service) throws InterruptedException {
+			for (PoiRow row : rows) {
+				bbox.minX = Math.min(row.x, bbox.minX);
+				bbox.maxX = Math.max(row.x, bbox.maxX);
+				bbox.minY = Math.min(row.y, bbox.minY);
+				bbox.maxY = Math.max(row.y, bbox.maxY);
+				row.path = new PoiTileBox[ZOOM_TO_SAVE_END - zoomToStart + 2];
+				row.path[0] = root.getNode();
+				Tree<PoiTileBox> prevTree = root;
+				for (int i = zoomToStart; i <= ZOOM_TO_SAVE_END; i++) {
+					prevTree = getOrCreateSubtree(prevTree, i, row.x >> (31 - i), row.y >> (31 - i));
+					row.path[i - zoomToStart + 1] = prevTree.getNode();
+				}
+				PoiTileBox leaf = prevTree.getNode();
+				if (row.poiData != null) {
+					if (leaf.poiData == null) {
+						leaf.poiData = new ArrayList<PoiData>();
+					}
+					leaf.poiData.add(row.poiData);
+				} else {
+					poiTagGroups.put(row.id, row.tagGroupIds);
+				}
+			}
+			if (service == null) {
+				for (int s = 0; s < shards; s++) {
+					updateShard(rows, s);
+				}
+			} else {
+				List<Future<Void>> futures = new ArrayList<Future<Void>>(shards);
+				for (int s = 0; s < shards; s++) {
+					final int shard = s;
+					futures.add(service.submit(() -> {
+						updateShard(rows, shard);
+						return null;
+					}));
+				}
+				for (Future<Void> f : futures) {
+					getPoiTaskResult(f);
+				}
+			}
+		}
+
+		private Tree<PoiTileBox> getOrCreateSubtree(Tree<PoiTileBox> prevTree, int zoom, int xs, int ys) {
+			long key = ((long) zoom << 56) | ((long) xs << 28) | ys;
+			Tree<PoiTileBox> subtree = tiles.get(key);
+			if (subtree == null) {
+				subtree = new Tree<PoiTileBox>();
+				PoiTileBox poiBox = new PoiTileBox();
+				subtree.setNode(poiBox);
+				poiBox.x = xs;
+				poiBox.y = ys;
+				poiBox.zoom = zoom;
+				poiBox.shard = boxes++ % shards;
+				if (zoom == ZOOM_TO_SAVE_END) {
+					poiBox.nameIndexId = namesIndex.addBox(poiBox);
+				}
+				prevTree.addSubTree(subtree);
+				tiles.put(key, subtree);
+			}
+			return subtree;
+		}
+
+		private void updateShard(List<PoiRow> rows, int shard) {
+			for (PoiRow row : rows) {
+				for (int i = 0; i < row.path.length; i++) {
+					PoiTileBox box = row.path[i];
+					if (box.shard == shard) {
+						box.categories.addCategory(row.type, row.subtype, row.additionalTags);
+						box.tagGroups.addTagGroup(row.tagGroups);
+					}
+				}
+				int leaf = row.path[row.path.length - 1].nameIndexId;
+				for (String prefix : row.prefixes) {
+					if (namesIndex.getShard(prefix) == shard) {
+						namesIndex.addPosting(shard, prefix, leaf);
+					}
+				}
+			}
+		}
+	}
+
+	private static class PoiRow {
+		int x;
+		int y;
+		long id;
+		String type;
+		String subtype;
+		String additionalTagsColumn;
+		String tagGroupsColumn;
+		Map<PoiAdditionalType, String> additionalTags;
+		List<PoiCreatorTagGroup> tagGroups;
+		List<Integer> tagGroupIds;
+		String[] prefixes;
+		PoiData poiData;
+		// root box and boxes from zoomToStart to ZOOM_TO_SAVE_END
+		PoiTileBox[] path;
+	}
+
+	/**
+	 * Name prefixes of poi with postings of leaf boxes as int lists (box ids), every box is added once per prefix in
+	 * order of appearance. Prefixes are split into shards by hash, each shard is updated by one thread.
+	 */
+	private static class PoiNameIndex {
+		private final List<PoiTileBox> boxes = new ArrayList<PoiTileBox>();
+		private final PoiNamePostings[] shards;
+
+		PoiNameIndex(int shards) {
+			this.shards = new PoiNamePostings[shards];
+			for (int i = 0; i < shards; i++) {
+				this.shards[i] = new PoiNamePostings();
+			}
+		}
+
+		int getShardsCount() {
+			return shards.length;
+		}
+
+		int getShard(String prefix) {
+			return (prefix.hashCode() & Integer.MAX_VALUE) % shards.length;
+		}
+
+		int addBox(PoiTileBox box) {
+			boxes.add(box);
+			return boxes.size() - 1;
+		}
+
+		void addPosting(int shard, String prefix, int box) {
+			shards[shard].add(prefix, box);
+		}
+
+		/**
+		 * @return prefixes in sorted order with boxes as views over postings
+		 */
+		Map<String, List<PoiTileBox>> toSortedMap() {
+			Map<String, List<PoiTileBox>> res = new TreeMap<String, List<PoiTileBox>>();
+			for (PoiNamePostings p : shards) {
+				p.added.clear();
+				for (int i = 0; i < p.prefixes.size(); i++) {
+					final TIntArrayList posting = p.postings.get(i);
+					res.put(p.prefixes.get(i), new AbstractList<PoiTileBox>() {
+
+						@Override
+						public PoiTileBox get(int index) {
+							return boxes.get(posting.get(index));
+						}
+
+						@Override
+						public int size() {
+							return posting.size();
+						}
+					});
+				}
+			}
+			return res;
+		}
+	}
+
+	private static class PoiNamePostings {
+		final TObjectIntHashMap<String> ids = new TObjectIntHashMap<String>(16, 0.5f, -1);
+		final List<String> prefixes = new ArrayList<String>();
+		final List<TIntArrayList> postings = new ArrayList<TIntArrayList>();
+		// prefix id << 32 | box id
+		final TLongHashSet added = new TLongHashSet();
+
+		void add(String prefix, int box) {
+			int id = ids.get(prefix);
+			if (id == -1) {
+				id = prefixes.size();
+				ids.put(prefix, id);
+				prefixes.add(prefix);
+				postings.add(new TIntArrayList(4));
+			}
+			if (added.add(((long) id << 32) | box)) {
+				postings.get(id).add(box);
+			}
+		}
+	}
+
 	private void writePoiBoxes(BinaryMapIndexWriter writer, Tree<PoiTileBox> tree,
 			long startFpPoiIndex, Map<PoiTileBox, List<BinaryFileReference>> fpToWriteSeeks,
 			PoiCreatorCategories globalCategories) throws IOException, SQLException {
@@ -942,6 +1168,10 @@ public class IndexPoiCreator extends AbstractIndexPartCreator {
 		PoiCreatorCategories categories = new PoiCreatorCategories();
 		List<PoiData> poiData = null;
 		PoiCreatorTagGroups tagGroups = new PoiCreatorTagGroups();
+		// thread updating categories and tag groups while the tree is built
+		int shard;
+		// id of leaf box in name index postings
+		int nameIndexId = -1;
 
 		public int getX() {
 			return x;
@@ -124,6 +124,23 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 
 	}
 
+	/**
+	 * Route types of the way encoded by {@link IndexRouteCreator#prepareMainEntity(Entity, IndexCreationContext)},
+	 * the way is inserted in db order.
+	 */
+	public static class PreparedRouteWay {
+		// relation group tags are put into the way on insert
+		private final Map<String, String> groupTags = new LinkedHashMap<String, String>();
+		private final TIntArrayList types = new TIntArrayList();
+		private final Map<MapRoutingTypes.MapRouteType, String> names = createTreeMap();
+		private final TIntArrayList baseTypes = new TIntArrayList();
+		private final Map<MapRoutingTypes.MapRouteType, String> baseNames = createTreeMap();
+		private boolean encoded;
+		private boolean baseEncoded;
+		private List<Node> baseNodes;
+		private boolean[] baseKept;
+	}
+
 	public IndexRouteCreator(MapRenderingTypesEncoder renderingTypes, Log logMapDataWarn, IndexCreatorSettings settings, PropagateToNodes propagateToNodes) {
 		this.renderingTypes = renderingTypes;
 		this.logMapDataWarn = logMapDataWarn;
@@ -230,38 +247,74 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 	}
 
 	public void iterateMainEntity(Entity es, OsmDbAccessorContext ctx, IndexCreationContext icc) throws SQLException {
-		if (es instanceof Way) {
-			Way e = (Way) es;
-			if (settings.addRegionTag) {
-				icc.calcRegionTag(e, true);
-			}
-			Map<String, String> tags = e.getTags();
-			tags = addLowEmissionZoneTag(e, tags);
-			tags = tagsTransformer.addPropogatedTags(renderingTypes, EntityConvertApplyType.ROUTING, e, tags);
+		iterateMainEntity(es, ctx, icc, prepareMainEntity(es, icc));
+	}
+
+	/**
+	 * Encodes route types and simplifies the way for base section, it's called concurrently from consumer threads, so
+	 * it only changes routing types (under lock of rendering types) and tags of the way itself. Tags of the way
+	 * shouldn't be changed by index creators before {@link #iterateMainEntity(Entity, OsmDbAccessorContext,
+	 * IndexCreationContext, PreparedRouteWay)}.
+	 */
+	public PreparedRouteWay prepareMainEntity(Entity es, IndexCreationContext icc) {
+		if (!(es instanceof Way)) {
+			return null;
+		}
+		Way e = (Way) es;
+		PreparedRouteWay prepared = new PreparedRouteWay();
+		if (settings.addRegionTag) {
+			icc.calcRegionTag(e, true);
+		}
+		Map<String, String> tags = e.getTags();
+		tags = addLowEmissionZoneTag(e, tags);
+		synchronized (renderingTypes) {
+			tags = tagsTransformer.addPropogatedTags(renderingTypes, EntityConvertApplyType.ROUTING, e, tags,
+					prepared.groupTags);
 			tags = renderingTypes.transformTags(tags, EntityType.WAY, EntityConvertApplyType.ROUTING);
-			boolean encoded = routeTypes.encodeEntity(tags, outTypes, names)
+			prepared.encoded = routeTypes.encodeEntity(tags, prepared.types, prepared.names)
 					&& e.getNodes().size() >= 2;
-			if (encoded) {
+			if (settings.generateLowLevel) {
+				prepared.baseEncoded = routeTypes.encodeBaseEntity(tags, prepared.baseTypes, prepared.baseNames)
+						&& e.getNodes().size() >= 2;
+			}
+		}
+		if (prepared.baseEncoded) {
+			// NEVER remove this simplify route due to memory limits in routing(task 11770)
+			prepared.baseNodes = new ArrayList<Node>();
+			prepared.baseKept = OsmMapUtils.simplifyDouglasPeucker(e.getNodes(), 11 /*zoom*/+ 8 + 1 /*smoothness*/, 3,
+					prepared.baseNodes, false);
+		}
+		return prepared;
+	}
+
+	public void iterateMainEntity(Entity es, OsmDbAccessorContext ctx, IndexCreationContext icc,
+			PreparedRouteWay prepared) throws SQLException {
+		if (prepared == null) {
+			return;
+		}
+		Way e = (Way) es;
+		// routing types are encoded concurrently under the same lock
+		synchronized (renderingTypes) {
+			for (Map.Entry<String, String> tag : prepared.groupTags.entrySet()) {
+				e.putTag(tag.getKey(), tag.getValue());
+			}
+			if (prepared.encoded) {
 				// Load point with tags!
 				ctx.loadEntityWay(e);
 				if (propagateToNodes != null) {
 					propagateToNodes.propagateTagsToWayNodesNoBorderRule(e);
 				}
 				routeTypes.encodePointTypes(e, pointTypes, pointNames, tagsTransformer, renderingTypes, false);
-				addWayToIndex(e.getId(), e.getNodes(), mapRouteInsertStat, routeTree, outTypes, pointTypes, pointNames, names);
+				addWayToIndex(e.getId(), e.getNodes(), mapRouteInsertStat, routeTree, prepared.types, pointTypes,
+						pointNames, prepared.names);
 			}
-			if (settings.generateLowLevel) {
-				encoded = routeTypes.encodeBaseEntity(tags, outTypes, names) && e.getNodes().size() >= 2;
-				if (encoded) {
-					List<Node> source = e.getNodes();
-					// NEVER remove this simplify route due to memory limits in routing(task 11770)
-					long id = e.getId();
-					List<Node> result = simplifyRouteForBaseSection(source, id);
-					routeTypes.encodePointTypes(e, pointTypes, pointNames, tagsTransformer, renderingTypes, true);
-					addWayToIndex(e.getId(), result, basemapRouteInsertStat, baserouteTree, outTypes, pointTypes,
-							pointNames, names);
-					// generalizeWay(e);
-				}
+			if (prepared.baseEncoded) {
+				List<Node> result = registerBaseIntersectionPoints(e.getNodes(), e.getId(), prepared.baseKept,
+						prepared.baseNodes);
+				routeTypes.encodePointTypes(e, pointTypes, pointNames, tagsTransformer, renderingTypes, true);
+				addWayToIndex(e.getId(), result, basemapRouteInsertStat, baserouteTree, prepared.baseTypes, pointTypes,
+						pointNames, prepared.baseNames);
+				// generalizeWay(e);
 			}
 			if (icc != null) {
 				Map<String, String> ntags = renderingTypes.transformTags(e.getModifiableTags(), EntityType.WAY, EntityConvertApplyType.MAP);
@@ -272,10 +325,8 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		}
 	}
 
-
-	private List<Node> simplifyRouteForBaseSection(List<Node> source, long id) {
-		ArrayList<Node> result = new ArrayList<Node>();
-		boolean[] kept = OsmMapUtils.simplifyDouglasPeucker(source, 11 /*zoom*/+ 8 + 1 /*smoothness*/, 3, result, false);
+	// simplified nodes keep intersections with the ways of base section
+	private List<Node> registerBaseIntersectionPoints(List<Node> source, long id, boolean[] kept, List<Node> result) {
 		int indexToInsertAt = 0;
 		int originalInd = 0;
 		for(int i = 0; i < kept.length; i ++) {
@@ -683,13 +734,20 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		}
 	}
 
-	public void writeBinaryRouteIndex(File fl, BinaryMapIndexWriter writer, String regionName, boolean generateLowLevel) throws IOException, SQLException {
+	public void prepareBinaryRouteIndex() throws SQLException {
 		closePreparedStatements(mapRouteInsertStat);
 		if (basemapRouteInsertStat != null) {
 			closePreparedStatements(basemapRouteInsertStat);
 		}
 		mapConnection.commit();
+	}
 
+	/**
+	 * Base routes insert missing roads into map db ({@link #isWritingMapDb()}), otherwise map db is only read with
+	 * conn (it could be a read only connection of the section).
+	 */
+	public void writeBinaryRouteIndex(File fl, BinaryMapIndexWriter writer, String regionName, boolean generateLowLevel,
+			Connection conn) throws IOException, SQLException {
 		try {
 			writer.startWriteRouteIndex(regionName);
 			// write map encoding rules
@@ -700,7 +758,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 			long fp = raf.getFilePointer();
 
 			// 1st write
-			writeRouteSections(writer);
+			writeRouteSections(writer, conn);
 			String fname = null;
 			if (baserouteTree != null) {
 				// prewrite end of file to read it
@@ -710,7 +768,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 
 				// use file to recalulate tree
 				raf.seek(0);
-				appendMissingRoadsForBaseMap(mapConnection, new BinaryMapIndexReader(raf, fl));
+				appendMissingRoadsForBaseMap(conn, new BinaryMapIndexReader(raf, fl));
 				// repack
 				fname = baserouteTree.getFileName();
 				baserouteTree = packRtreeFile(baserouteTree, fname, fname + "p");
@@ -720,7 +778,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 				raf.getChannel().truncate(fp);
 
 				// 2nd write
-				writeRouteSections(writer);
+				writeRouteSections(writer, conn);
 			}
 			writer.endWriteRouteIndex();
 			writer.flush();
@@ -732,16 +790,20 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 			throw new IllegalStateException(e);
 		}
 	}
-	private TLongObjectHashMap<BinaryFileReference> writeRouteSections(BinaryMapIndexWriter writer) throws IOException,
-			SQLException, RTreeException {
+	public boolean isWritingMapDb() {
+		return baserouteTree != null;
+	}
+
+	private TLongObjectHashMap<BinaryFileReference> writeRouteSections(BinaryMapIndexWriter writer, Connection conn)
+			throws IOException, SQLException, RTreeException {
 		TLongObjectHashMap<BinaryFileReference> route = writeBinaryRouteIndexHeader(writer, routeTree, false);
 		TLongObjectHashMap<BinaryFileReference> base = null;
 		if (baserouteTree != null) {
 			base = writeBinaryRouteIndexHeader(writer, baserouteTree, true);
 		}
-		writeBinaryRouteIndexBlocks(writer, routeTree, false, route);
+		writeBinaryRouteIndexBlocks(writer, routeTree, false, route, conn);
 		if (baserouteTree != null) {
-			writeBinaryRouteIndexBlocks(writer, baserouteTree, true, base);
+			writeBinaryRouteIndexBlocks(writer, baserouteTree, true, base, conn);
 		}
 		return base;
 	}
@@ -1437,7 +1499,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		rtree.Node root = rte.getReadNode(rootIndex);
 		Rect rootBounds = calcBounds(root);
 		if (rootBounds != null) {
-				PreparedStatement selectData = mapConnection.prepareStatement(basemap ? SELECT_BASE_STAT : SELECT_STAT);
+				PreparedStatement selectData = conn.prepareStatement(basemap ? SELECT_BASE_STAT : SELECT_STAT);
 				RouteWriteContext wc = new RouteWriteContext(logMapDataWarn, treeHeader, routeTypes, selectData);
 				wc.highwayRestrictions = highwayRestrictions;
 				if(basemap) {
@@ -1463,7 +1525,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 
 
 
-	public static void writeBinaryMapBlock(rtree.Node parent, Rect parentBounds, RTree r, BinaryMapIndexWriter writer, RouteWriteContext wc, boolean basemap)
+	public static void writeBinaryMapBlock(rtree.Node parent, Rect parentBounds, ReadableRTree r, BinaryMapIndexWriter writer, RouteWriteContext wc, boolean basemap)
 					throws IOException, RTreeException, SQLException {
 		Element[] e = parent.getAllElements();
 
@@ -1544,7 +1606,7 @@ public class IndexRouteCreator extends AbstractIndexPartCreator {
 		}
 	}
 
-	public static void writeBinaryRouteTree(rtree.Node parent, Rect re, RTree r, BinaryMapIndexWriter writer,
+	public static void writeBinaryRouteTree(rtree.Node parent, Rect re, ReadableRTree r, BinaryMapIndexWriter writer,
 			TLongObjectHashMap<BinaryFileReference> bounds, boolean basemap)
 			throws IOException, RTreeException {
 		Element[] e = parent.getAllElements();
@@ -56,6 +56,7 @@ import rtree.LeafElement;
 import rtree.RTree;
 import rtree.RTreeException;
 import rtree.RTreeInsertException;
+import rtree.ReadableRTree;
 import rtree.Rect;
 
 
@@ -209,7 +210,7 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 		}
 	}
 
-	public void writeBinaryTransportTree(rtree.Node parent, RTree r, BinaryMapIndexWriter writer,
+	public void writeBinaryTransportTree(rtree.Node parent, ReadableRTree r, BinaryMapIndexWriter writer,
 										 TLongObjectHashMap<TransportStop> transportStops,
 										 Map<String, Integer> stringTable) throws IOException, RTreeException, SQLException {
 		Element[] e = parent.getAllElements();
@@ -540,13 +541,20 @@ public class IndexTransportCreator extends AbstractIndexPartCreator {
 
 
 
-	public void writeBinaryTransportIndex(BinaryMapIndexWriter writer, String regionName,
-			Connection mapConnection) throws IOException, SQLException {
+	public void prepareBinaryTransportIndex(Connection mapConnection) throws SQLException, IOException {
+		closePreparedStatements(transRouteStat, transRouteStopsStat, transStopsStat, transRouteGeometryStat);
+		mapConnection.commit();
 		try {
-			closePreparedStatements(transRouteStat, transRouteStopsStat, transStopsStat, transRouteGeometryStat);
-			mapConnection.commit();
 			transportStopsTree.flush();
+		} catch (RTreeException e) {
+			throw new IOException(e);
+		}
+	}
 
+	// map db is only read (it could be a read only connection of the section)
+	public void writeBinaryTransportIndex(BinaryMapIndexWriter writer, String regionName,
+			Connection mapConnection) throws IOException, SQLException {
+		try {
 			visitedStops = null; // allow gc to collect it
 			PreparedStatement selectTransportRouteData = mapConnection.prepareStatement(
 					"SELECT id, dist, name, name_en, ref, operator, type, color FROM transport_route"); //$NON-NLS-1$
@@ -9,6 +9,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -18,11 +19,19 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TFloatArrayList;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.hash.TLongHashSet;
 import net.osmand.IProgress;
@@ -56,9 +65,11 @@ import net.osmand.util.MapUtils;
 import rtree.Element;
 import rtree.IllegalValueException;
 import rtree.LeafElement;
+import rtree.PackedRTree;
 import rtree.RTree;
 import rtree.RTreeException;
 import rtree.RTreeInsertException;
+import rtree.ReadableRTree;
 import rtree.Rect;
 
 public class IndexVectorMapCreator extends AbstractIndexPartCreator {
@@ -68,6 +79,8 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
     private static final int MAP_LEVELS_POWER = 3;
     private static final int MAP_LEVELS_MAX = 1 << MAP_LEVELS_POWER;
     private static final int LOW_LEVEL_COMBINE_WAY_POINS_LIMIT = 10000;
+    private static final int LOW_LEVEL_BATCH_SIZE = 1024;
+    private static final int LOW_LEVEL_BATCHES_PER_THREAD = 4;
     private static final int LOW_LEVEL_ZOOM_TO_COMBINE = 13; // 15 if use combination all the time
     private static final int LOW_LEVEL_ZOOM_COASTLINE = 1; // Don't simplify coastlines except basemap, this constant is
                                                            // not used by basemap
@@ -79,10 +92,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 
     Map<Long, TIntArrayList> multiPolygonsWays = new LinkedHashMap<Long, TIntArrayList>();
 
-    // local purpose to speed up processing cache allocation
-    TIntArrayList typeUse = new TIntArrayList(8);
-    List<MapRulType> tempNameUse = new ArrayList<MapRulType>();
-    TreeMap<MapRulType, String> namesUse = new TreeMap<MapRulType, String>(new Comparator<MapRulType>() {
+    private static final Comparator<MapRulType> NAMES_COMPARATOR = new Comparator<MapRulType>() {
 
         @Override
         public int compare(MapRulType o1, MapRulType o2) {
@@ -94,14 +104,22 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
             }
             return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
         }
-    });
+    };
+
+    // local purpose to speed up processing cache allocation
+    TIntArrayList typeUse = new TIntArrayList(8);
+    List<MapRulType> tempNameUse = new ArrayList<MapRulType>();
+    TreeMap<MapRulType, String> namesUse = new TreeMap<MapRulType, String>(NAMES_COMPARATOR);
     RelationTagsPropagation tagsTransformer = new RelationTagsPropagation();
     TIntArrayList addtypeUse = new TIntArrayList(8);
+    // main entities are encoded concurrently (see prepareMainEntity)
+    private final ThreadLocal<EncodingBuffers> encodingBuffers = ThreadLocal.withInitial(EncodingBuffers::new);
 
     private PreparedStatement mapBinaryStat;
     private PreparedStatement mapLowLevelBinaryStat;
     private int lowLevelWays = -1;
     private RTree[] mapTree = null;
+    private PackedRTree[] packedMapTree = null;
     private Connection mapConnection;
 
     private static int DUPLICATE_SPLIT = 5;
@@ -112,6 +130,51 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 	private PropagateToNodes propagateToNodes;
 	private final Long lastModifiedDate;
 
+    private static class EncodingBuffers {
+        TIntArrayList typeUse = new TIntArrayList(8);
+        TIntArrayList addtypeUse = new TIntArrayList(8);
+        TreeMap<MapRulType, String> namesUse = new TreeMap<MapRulType, String>(NAMES_COMPARATOR);
+        List<MapRulType> tempNameUse = new ArrayList<MapRulType>();
+    }
+
+    // encoded row of binary_map_objects (or low_level_map_objects), id is assigned on insert
+    private static class MapObjectRow {
+        long originalId;
+        int level;
+        boolean way;
+        boolean lowLevel;
+        boolean area;
+        long startNode;
+        long endNode;
+        // null if there are no nodes to insert
+        byte[] coordinates;
+        byte[] innerPolygons;
+        byte[] types;
+        byte[] additionalTypes;
+        byte[] labelCoordinates;
+        String name;
+        int minX;
+        int minY;
+        int maxX;
+        int maxY;
+    }
+
+    /**
+     * Map objects of the main entity encoded by {@link #prepareMainEntity(Entity)}, they're inserted by
+     * {@link #iterateMainEntity(Entity, PreparedMapEntity)} in db order.
+     */
+    public static class PreparedMapEntity {
+        // relation group tags are put into the entity on insert, so previous index creators don't see them
+        private final Map<String, String> groupTags = new LinkedHashMap<String, String>();
+        private final List<MapObjectRow> rows = new ArrayList<MapObjectRow>();
+        // center node of the small island gets id on insert
+        private List<MapObjectRow> islandRows;
+
+        public boolean hasGroupTags() {
+            return !groupTags.isEmpty();
+        }
+    }
+
     public IndexVectorMapCreator(Log logMapDataWarn, MapZooms mapZooms, MapRenderingTypesEncoder renderingTypes,
             IndexCreatorSettings settings, PropagateToNodes propagateToNodes, Long lastModifiedDate) {
         this.logMapDataWarn = logMapDataWarn;
@@ -385,7 +448,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
                 }
                 innerWays = newinnerWays;
             }
-            insertBinaryMapRenderObjectIndex(mapTree[level], outerWay, innerWays, namesUse, id, true, typeUse,
+            insertBinaryMapRenderObjectIndex(level, outerWay, innerWays, namesUse, id, true, typeUse,
                     addtypeUse, true, true);
 
         }
@@ -417,19 +480,15 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         return lowLevelWays;
     }
 
-    private void loadNodes(byte[] nodes, List<Float> toPut) {
-        toPut.clear();
-        for (int i = 0; i < nodes.length;) {
-            int lat = Algorithms.parseIntFromBytes(nodes, i);
-            i += 4;
-            int lon = Algorithms.parseIntFromBytes(nodes, i);
-            i += 4;
-            toPut.add(Float.intBitsToFloat(lat));
-            toPut.add(Float.intBitsToFloat(lon));
+    private static float[] loadNodes(byte[] nodes) {
+        float[] res = new float[nodes.length / 4];
+        for (int i = 0, k = 0; i < nodes.length; i += 4) {
+            res[k++] = Float.intBitsToFloat(Algorithms.parseIntFromBytes(nodes, i));
         }
+        return res;
     }
 
-    private void parseAndSort(TIntArrayList ts, byte[] bs) {
+    private static void parseAndSort(TIntArrayList ts, byte[] bs) {
         ts.clear();
         if (bs != null && bs.length > 0) {
             for (int j = 0; j < bs.length; j += 2) {
@@ -439,41 +498,36 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         ts.sort();
     }
 
-    private static class LowLevelWayCandidate {
-        public byte[] nodes;
-        public long wayId;
-        public long otherNodeId;
-        public Map<MapRulType, String> names;
-        public int namesCount = 0;
-
+    private static class LowLevelWay {
+        long id;
+        long startNode;
+        long endNode;
+        int level;
+        byte[] nodes;
+        String name;
+        TIntArrayList types = new TIntArrayList(4);
+        TIntArrayList addTypes = new TIntArrayList(4);
+        // decoded once per way instead of once per candidate lookup
+        Map<MapRulType, String> names;
+
+        boolean sameTypes(LowLevelWay w) {
+            return level == w.level && types.equals(w.types) && addTypes.equals(w.addTypes);
+        }
     }
 
-    public List<LowLevelWayCandidate> readLowLevelCandidates(ResultSet fs,
-            List<LowLevelWayCandidate> l, TIntArrayList temp, TIntArrayList tempAdd, TLongHashSet visitedWays)
-            throws SQLException {
-        l.clear();
-        while (fs.next()) {
-            if (!visitedWays.contains(fs.getLong(1))) {
-                parseAndSort(temp, fs.getBytes(5));
-                parseAndSort(tempAdd, fs.getBytes(6));
-                if (temp.equals(typeUse) && tempAdd.equals(addtypeUse)) {
-                    LowLevelWayCandidate llwc = new LowLevelWayCandidate();
-                    llwc.wayId = fs.getLong(1);
-                    llwc.names = decodeNames(fs.getString(4), new HashMap<MapRulType, String>());
-                    llwc.nodes = fs.getBytes(3);
-                    llwc.otherNodeId = fs.getLong(2);
-                    for (MapRulType mr : namesUse.keySet()) {
-                        if (Algorithms.objectEquals(namesUse.get(mr), llwc.names.get(mr))) {
-                            llwc.namesCount++;
-                        }
-                    }
-                    l.add(llwc);
-                }
-            }
-        }
-        return l;
+    private static class LowLevelWayResult {
+        LowLevelWay way;
+        List<Node> nodes;
+        TreeMap<MapRulType, String> names;
+        boolean cycle;
     }
 
+    /**
+     * Low level ways could be combined only with ways of the same level and types sharing start or end node, so
+     * ways are split into connected components (union find over start / end nodes). Components are independent, they
+     * are read from db in batches, combined and simplified on the thread pool and inserted back in order.
+     * Inside a component ways are processed in the original order, so the result is the same as sequential processing.
+     */
     public void processingLowLevelWays(IProgress progress) throws SQLException {
         mapLowLevelBinaryStat.executeBatch();
         mapLowLevelBinaryStat.close();
@@ -481,89 +535,232 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         mapLowLevelBinaryStat = null;
         mapConnection.commit();
 
-        PreparedStatement startStat = mapConnection
-                .prepareStatement("SELECT id, end_node, nodes, name, type, addType FROM low_level_map_objects"
-                        + " WHERE start_node = ? AND level = ?");
-        PreparedStatement endStat = mapConnection
-                .prepareStatement("SELECT id, start_node, nodes, name, type, addType FROM low_level_map_objects"
-                        + " WHERE end_node = ? AND level = ?");
+        TLongArrayList ids = new TLongArrayList();
+        TLongArrayList startNodes = new TLongArrayList();
+        TLongArrayList endNodes = new TLongArrayList();
+        TIntArrayList levels = new TIntArrayList();
+        TIntArrayList components = new TIntArrayList();
+        TLongIntHashMap nodeWays = new TLongIntHashMap(Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR,
+                Long.MIN_VALUE, -1);
+        TIntArrayList types = new TIntArrayList();
+        TIntArrayList addTypes = new TIntArrayList();
+        int coastline = renderingTypes.getCoastlineRuleType().getInternalId();
         Statement selectStatement = mapConnection.createStatement();
         ResultSet rs = selectStatement.executeQuery(
-                "SELECT id, start_node, end_node, nodes, name, type, addType, level FROM low_level_map_objects");
-        TLongHashSet visitedWays = new TLongHashSet();
-        ArrayList<Float> list = new ArrayList<Float>(100);
-        TIntArrayList temp = new TIntArrayList();
-        TIntArrayList tempAdd = new TIntArrayList();
+                "SELECT id, start_node, end_node, type, addType, level FROM low_level_map_objects");
         while (rs.next()) {
-            if (lowLevelWays != -1) {
-                progress.progress(1);
+            int ind = ids.size();
+            int level = rs.getInt(6);
+            ids.add(rs.getLong(1));
+            startNodes.add(rs.getLong(2));
+            endNodes.add(rs.getLong(3));
+            levels.add(level);
+            components.add(ind);
+            parseAndSort(types, rs.getBytes(4));
+            parseAndSort(addTypes, rs.getBytes(5));
+            if (!isLowLevelCombineDisabled(level, types, coastline)) {
+                // hash collisions only join components, that doesn't change the result
+                long typesHash = (types.hashCode() * 31L + addTypes.hashCode()) * 31L + level;
+                unionLowLevelWay(components, nodeWays, startNodes.get(ind) * 0x9E3779B97F4A7C15L + typesHash, ind);
+                unionLowLevelWay(components, nodeWays, endNodes.get(ind) * 0x9E3779B97F4A7C15L + typesHash, ind);
             }
-            long id = rs.getLong(1);
-            if (visitedWays.contains(id)) {
-                continue;
+        }
+        rs.close();
+        selectStatement.close();
+        int[] order = orderByComponent(components);
+
+        PreparedStatement selectWay = mapConnection.prepareStatement(
+                "SELECT nodes, name, type, addType FROM low_level_map_objects WHERE id = ?");
+        int threads = Math.max(1, settings.lowLevelWaysThreads);
+        ExecutorService service = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        ArrayDeque<Future<List<LowLevelWayResult>>> pending = new ArrayDeque<Future<List<LowLevelWayResult>>>();
+        TIntArrayList pendingWays = new TIntArrayList();
+        try {
+            List<List<LowLevelWay>> batch = new ArrayList<List<LowLevelWay>>();
+            int batchWays = 0;
+            for (int i = 0; i < order.length;) {
+                int root = components.get(order[i]);
+                List<LowLevelWay> component = new ArrayList<LowLevelWay>();
+                for (; i < order.length && components.get(order[i]) == root; i++) {
+                    int ind = order[i];
+                    LowLevelWay w = new LowLevelWay();
+                    w.id = ids.get(ind);
+                    w.startNode = startNodes.get(ind);
+                    w.endNode = endNodes.get(ind);
+                    w.level = levels.get(ind);
+                    selectWay.setLong(1, w.id);
+                    ResultSet ws = selectWay.executeQuery();
+                    if (ws.next()) {
+                        w.nodes = ws.getBytes(1);
+                        w.name = ws.getString(2);
+                        parseAndSort(w.types, ws.getBytes(3));
+                        parseAndSort(w.addTypes, ws.getBytes(4));
+                        component.add(w);
+                    }
+                    ws.close();
+                }
+                batch.add(component);
+                batchWays += component.size();
+                if (batchWays >= LOW_LEVEL_BATCH_SIZE || i == order.length) {
+                    final List<List<LowLevelWay>> toProcess = batch;
+                    if (service == null) {
+                        insertLowLevelResults(progress, combineLowLevelWays(toProcess, coastline), batchWays);
+                    } else {
+                        pending.add(service.submit(() -> combineLowLevelWays(toProcess, coastline)));
+                        pendingWays.add(batchWays);
+                        if (pending.size() >= threads * LOW_LEVEL_BATCHES_PER_THREAD) {
+                            insertLowLevelResults(progress, getLowLevelResults(pending.poll()), pendingWays.removeAt(0));
+                        }
+                    }
+                    batch = new ArrayList<List<LowLevelWay>>();
+                    batchWays = 0;
+                }
+            }
+            while (!pending.isEmpty()) {
+                insertLowLevelResults(progress, getLowLevelResults(pending.poll()), pendingWays.removeAt(0));
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            if (service != null) {
+                service.shutdownNow();
+            }
+            selectWay.close();
+        }
+    }
+
+    private boolean isLowLevelCombineDisabled(int level, TIntArrayList types, int coastline) {
+        int minZoom = mapZooms.getLevel(level).getMinZoom();
+        if (minZoom >= LOW_LEVEL_ZOOM_TO_COMBINE) {
+            // disable combine
+            return true;
+        }
+        // coastline
+        return minZoom >= LOW_LEVEL_ZOOM_COASTLINE && types.contains(coastline);
+    }
+
+    private static int findComponent(TIntArrayList components, int ind) {
+        int root = ind;
+        while (components.get(root) != root) {
+            root = components.get(root);
+        }
+        while (components.get(ind) != root) {
+            int next = components.get(ind);
+            components.set(ind, root);
+            ind = next;
+        }
+        return root;
+    }
+
+    private static void unionLowLevelWay(TIntArrayList components, TLongIntHashMap nodeWays, long nodeKey, int ind) {
+        int other = nodeWays.putIfAbsent(nodeKey, ind);
+        if (other != -1) {
+            int r1 = findComponent(components, ind);
+            int r2 = findComponent(components, other);
+            if (r1 != r2) {
+                // keep the smallest index as root, so components are ordered by their first way
+                components.set(Math.max(r1, r2), Math.min(r1, r2));
             }
-            visitedWays.add(id);
+        }
+    }
 
-            int level = rs.getInt(8);
-            int zoom = mapZooms.getLevel(level).getMaxZoom();
-            int minZoom = mapZooms.getLevel(level).getMinZoom();
+    /**
+     * @return indexes of ways grouped by component (components ordered by the first way), components list is
+     *         updated to contain root of every way
+     */
+    private static int[] orderByComponent(TIntArrayList components) {
+        int size = components.size();
+        int[] offsets = new int[size];
+        for (int i = 0; i < size; i++) {
+            offsets[findComponent(components, i)]++;
+        }
+        for (int i = 0, pos = 0; i < size; i++) {
+            if (components.get(i) == i) {
+                int cnt = offsets[i];
+                offsets[i] = pos;
+                pos += cnt;
+            }
+        }
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[offsets[components.get(i)]++] = i;
+        }
+        return order;
+    }
 
-            long startNode = rs.getLong(2);
-            long endNode = rs.getLong(3);
+    private List<LowLevelWayResult> getLowLevelResults(Future<List<LowLevelWayResult>> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
 
-            namesUse.clear();
-            decodeNames(rs.getString(5), namesUse);
-            parseAndSort(typeUse, rs.getBytes(6));
-            parseAndSort(addtypeUse, rs.getBytes(7));
+    private void insertLowLevelResults(IProgress progress, List<LowLevelWayResult> results, int ways)
+            throws SQLException {
+        if (lowLevelWays != -1) {
+            progress.progress(ways);
+        }
+        for (LowLevelWayResult r : results) {
+            insertBinaryMapRenderObjectIndex(r.way.level, r.nodes, null, r.names, r.way.id, false, r.way.types,
+                    r.way.addTypes, false, r.cycle);
+        }
+    }
 
-            loadNodes(rs.getBytes(4), list);
-            ArrayList<Float> wayNodes = new ArrayList<Float>(list);
+    private Map<MapRulType, String> getNames(LowLevelWay w) {
+        if (w.names == null) {
+            w.names = decodeNames(w.name, new HashMap<MapRulType, String>());
+        }
+        return w.names;
+    }
 
-            // combine startPoint with EndPoint
-            List<LowLevelWayCandidate> candidates = new ArrayList<LowLevelWayCandidate>();
-            Comparator<LowLevelWayCandidate> cmpCandidates = new Comparator<LowLevelWayCandidate>() {
-                @Override
-                public int compare(LowLevelWayCandidate o1, LowLevelWayCandidate o2) {
-                    return -Integer.compare(o1.namesCount, o2.namesCount);
-                }
-            };
-            boolean dontCombine = false;
-            if (minZoom >= LOW_LEVEL_ZOOM_TO_COMBINE) {
-                // disable combine
-                dontCombine = true;
-            }
-            if (minZoom >= LOW_LEVEL_ZOOM_COASTLINE &&
-                    typeUse.contains(renderingTypes.getCoastlineRuleType().getInternalId())) {
-                // coastline
-                dontCombine = true;
+    private List<LowLevelWayResult> combineLowLevelWays(List<List<LowLevelWay>> components, int coastline) {
+        List<LowLevelWayResult> results = new ArrayList<LowLevelWayResult>();
+        for (List<LowLevelWay> ways : components) {
+            combineLowLevelWays(ways, coastline, results);
+        }
+        return results;
+    }
+
+    private void combineLowLevelWays(List<LowLevelWay> ways, int coastline, List<LowLevelWayResult> results) {
+        TLongObjectHashMap<List<LowLevelWay>> byStart = new TLongObjectHashMap<List<LowLevelWay>>();
+        TLongObjectHashMap<List<LowLevelWay>> byEnd = new TLongObjectHashMap<List<LowLevelWay>>();
+        if (ways.size() > 1) {
+            for (LowLevelWay w : ways) {
+                addLowLevelWay(byStart, w.startNode, w);
+                addLowLevelWay(byEnd, w.endNode, w);
+            }
+        }
+        TLongHashSet visitedWays = new TLongHashSet();
+        for (LowLevelWay w : ways) {
+            if (!visitedWays.add(w.id)) {
+                continue;
             }
+            int zoom = mapZooms.getLevel(w.level).getMaxZoom();
+            long startNode = w.startNode;
+            long endNode = w.endNode;
+            TreeMap<MapRulType, String> names = new TreeMap<MapRulType, String>(namesUse.comparator());
+            names.putAll(getNames(w));
+            TFloatArrayList wayNodes = new TFloatArrayList(loadNodes(w.nodes));
+
+            boolean dontCombine = isLowLevelCombineDisabled(w.level, w.types, coastline);
+            // combine startPoint with EndPoint
             boolean combined = !dontCombine;
-
             while (combined && wayNodes.size() < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
                 combined = false;
-                endStat.setLong(1, startNode);
-                endStat.setShort(2, (short) level);
-                ResultSet fs = endStat.executeQuery();
-                readLowLevelCandidates(fs, candidates, temp, tempAdd, visitedWays);
-                fs.close();
-                LowLevelWayCandidate cand = getCandidate(candidates, cmpCandidates);
+                LowLevelWay cand = getCandidate(w, byEnd.get(startNode), names, visitedWays);
                 if (cand != null) {
                     combined = true;
-                    startNode = cand.otherNodeId;
-                    visitedWays.add(cand.wayId);
-                    loadNodes(cand.nodes, list);
-                    ArrayList<Float> li = new ArrayList<Float>(list);
+                    startNode = cand.startNode;
+                    visitedWays.add(cand.id);
                     // remove first lat/lon point
-                    wayNodes.remove(0);
-                    wayNodes.remove(0);
-                    li.addAll(wayNodes);
-                    wayNodes = li;
-                    for (MapRulType rt : new ArrayList<MapRulType>(namesUse.keySet())) {
-                        if (!Algorithms.objectEquals(namesUse.get(rt), cand.names.get(rt)) &&
-                                !checkOneLocaleHasSameName(namesUse, cand.names, rt)) {
-                            namesUse.remove(rt);
-                        }
-                    }
+                    wayNodes.remove(0, 2);
+                    wayNodes.insert(0, loadNodes(cand.nodes));
+                    retainSameNames(names, getNames(cand));
                 }
             }
 
@@ -571,26 +768,16 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
             combined = !dontCombine;
             while (combined && wayNodes.size() < LOW_LEVEL_COMBINE_WAY_POINS_LIMIT) {
                 combined = false;
-                startStat.setLong(1, endNode);
-                startStat.setShort(2, (short) level);
-                ResultSet fs = startStat.executeQuery();
-                readLowLevelCandidates(fs, candidates, temp, tempAdd, visitedWays);
-                fs.close();
-                LowLevelWayCandidate cand = getCandidate(candidates, cmpCandidates);
+                LowLevelWay cand = getCandidate(w, byStart.get(endNode), names, visitedWays);
                 if (cand != null) {
                     combined = true;
-                    endNode = cand.otherNodeId;
-                    visitedWays.add(cand.wayId);
-                    loadNodes(cand.nodes, list);
-                    for (int i = 2; i < list.size(); i++) {
-                        wayNodes.add(list.get(i));
-                    }
-                    for (MapRulType rt : new ArrayList<MapRulType>(namesUse.keySet())) {
-                        if (!Algorithms.objectEquals(namesUse.get(rt), cand.names.get(rt)) &&
-                                !checkOneLocaleHasSameName(namesUse, cand.names, rt)) {
-                            namesUse.remove(rt);
-                        }
+                    endNode = cand.endNode;
+                    visitedWays.add(cand.id);
+                    float[] candNodes = loadNodes(cand.nodes);
+                    if (candNodes.length > 2) {
+                        wayNodes.add(candNodes, 2, candNodes.length - 2);
                     }
+                    retainSameNames(names, getNames(cand));
                 }
             }
 
@@ -605,7 +792,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
                 skip = checkForSmallAreas(wNodes, zoom + Math.min(settings.zoomWaySmoothness / 2, 3), 3, 4);
             } else {
                 // coastline
-                if (!typeUse.contains(renderingTypes.getCoastlineRuleType().getInternalId())) {
+                if (!w.types.contains(coastline)) {
                     skip = checkForSmallAreas(wNodes, zoom + Math.min(settings.zoomWaySmoothness / 2, 3), 2, 8);
                 }
             }
@@ -613,15 +800,34 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
                 List<Node> res = new ArrayList<Node>();
                 OsmMapUtils.simplifyDouglasPeucker(wNodes, zoom - 1 + 8 + settings.zoomWaySmoothness, 3, res, false);
                 if (res.size() > 0) {
-                    insertBinaryMapRenderObjectIndex(mapTree[level], res, null, namesUse, id, false, typeUse,
-                            addtypeUse, false, cycle);
+                    LowLevelWayResult r = new LowLevelWayResult();
+                    r.way = w;
+                    r.nodes = res;
+                    r.names = names;
+                    r.cycle = cycle;
+                    results.add(r);
                 }
             }
-
             // end cycle
+        }
+    }
 
+    private static void addLowLevelWay(TLongObjectHashMap<List<LowLevelWay>> map, long node, LowLevelWay w) {
+        List<LowLevelWay> l = map.get(node);
+        if (l == null) {
+            l = new ArrayList<LowLevelWay>(2);
+            map.put(node, l);
         }
+        l.add(w);
+    }
 
+    private void retainSameNames(TreeMap<MapRulType, String> names, Map<MapRulType, String> candNames) {
+        for (MapRulType rt : new ArrayList<MapRulType>(names.keySet())) {
+            if (!Algorithms.objectEquals(names.get(rt), candNames.get(rt)) &&
+                    !checkOneLocaleHasSameName(names, candNames, rt)) {
+                names.remove(rt);
+            }
+        }
     }
 
     private boolean checkOneLocaleHasSameName(TreeMap<MapRulType, String> nu1, Map<MapRulType, String> nu2,
@@ -639,18 +845,41 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         return false;
     }
 
-    private LowLevelWayCandidate getCandidate(List<LowLevelWayCandidate> candidates,
-            Comparator<LowLevelWayCandidate> cmpCandidates) {
-        if (candidates.size() > 0) {
-            Collections.sort(candidates, cmpCandidates);
-            LowLevelWayCandidate cand = candidates.get(0);
-            if (cand.namesCount > 0) {
-                return cand;
+    /**
+     * Candidate with the most names equal to current names (first one in db order), it should have at least one
+     * same name or both should be without names.
+     */
+    private LowLevelWay getCandidate(LowLevelWay way, List<LowLevelWay> candidates, Map<MapRulType, String> names,
+            TLongHashSet visitedWays) {
+        if (candidates == null) {
+            return null;
+        }
+        LowLevelWay cand = null;
+        int candNamesCount = -1;
+        for (LowLevelWay c : candidates) {
+            if (visitedWays.contains(c.id) || !way.sameTypes(c)) {
+                continue;
+            }
+            Map<MapRulType, String> cnames = getNames(c);
+            int namesCount = 0;
+            for (MapRulType mr : names.keySet()) {
+                if (Algorithms.objectEquals(names.get(mr), cnames.get(mr))) {
+                    namesCount++;
+                }
             }
-            if (cand.names.isEmpty() && namesUse.isEmpty()) {
-                return cand;
+            if (namesCount > candNamesCount) {
+                cand = c;
+                candNamesCount = namesCount;
             }
-
+        }
+        if (cand == null) {
+            return null;
+        }
+        if (candNamesCount > 0) {
+            return cand;
+        }
+        if (getNames(cand).isEmpty() && names.isEmpty()) {
+            return cand;
         }
         return null;
     }
@@ -694,14 +923,19 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         return checkBelongsToSea(nodes);
     }
 
-    private boolean checkBelongsToSea(List<Node> nodes) {
-        if (nodes == null || nodes.isEmpty()) {
-            return false;
-        }
+    private synchronized BasemapProcessor getCheckSeaTile() {
         if (checkSeaTile == null) {
             checkSeaTile = new BasemapProcessor();
             checkSeaTile.constructBitSetInfo(null);
         }
+        return checkSeaTile;
+    }
+
+    private boolean checkBelongsToSea(List<Node> nodes) {
+        if (nodes == null || nodes.isEmpty()) {
+            return false;
+        }
+        BasemapProcessor checkSeaTile = getCheckSeaTile();
         int x = MapUtils.get31TileNumberX(nodes.get(0).getLongitude());
         int y = MapUtils.get31TileNumberY(nodes.get(0).getLatitude());
         int minX = x, minY = y, maxX = x, maxY = y;
@@ -734,35 +968,65 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
     }
 
     public void iterateMainEntity(Entity e, OsmDbAccessorContext ctx, IndexCreationContext icc) throws SQLException {
+        iterateMainEntity(e, prepareMainEntity(e));
+    }
+
+    /**
+     * Encodes and simplifies map objects of the entity, it's called concurrently from consumer threads, so it only
+     * changes rendering types (under their lock) and tags of the entity itself. Ids and db are assigned on insert.
+     */
+    public PreparedMapEntity prepareMainEntity(Entity e) throws SQLException {
         if ((e instanceof Way || e instanceof Node) && !settings.keepOnlyRouteRelationObjects) {
-            Map<String, String> tags = tagsTransformer.addPropogatedTags(renderingTypes, EntityConvertApplyType.MAP, e, e.getTags());
+            PreparedMapEntity prepared = new PreparedMapEntity();
+            EncodingBuffers buffers = encodingBuffers.get();
+            Map<String, String> tags;
+            synchronized (renderingTypes) {
+                tags = tagsTransformer.addPropogatedTags(renderingTypes, EntityConvertApplyType.MAP, e, e.getTags(),
+                        prepared.groupTags);
+            }
             // manipulate what kind of way to load
             long originalId = e.getId();
-            long assignedId = e.getId();
             // split doesn't work correctly with OsmAnd Live so it was disabled
 //            List<Map<String, String>> splitTags = renderingTypes.splitTags(e.getTags(), EntityType.valueOf(e));
             for (int level = 0; level < mapZooms.size(); level++) {
-                processMainEntity(e, originalId, assignedId, level, tags);
+                encodeMainEntity(e, originalId, level, tags, buffers, prepared.rows);
             }
-            createCenterNodeForSmallIsland(e, tags, originalId);
+            prepareCenterNodeForSmallIsland(e, tags, originalId, buffers, prepared);
+            return prepared;
+        }
+        return null;
+    }
+
+    public void iterateMainEntity(Entity e, PreparedMapEntity prepared) throws SQLException {
+        if (prepared == null) {
+            return;
+        }
+        for (Map.Entry<String, String> tag : prepared.groupTags.entrySet()) {
+            e.putTag(tag.getKey(), tag.getValue());
+        }
+        insertMapObjects(prepared.rows, e.getId());
+        if (prepared.islandRows != null) {
+            long assignedId = assignIdBasedOnOriginalSplit(EntityId.valueOf(e));
+            insertMapObjects(prepared.islandRows, assignedId);
         }
     }
 
-	private void createCenterNodeForSmallIsland(Entity e, Map<String, String> tags, long originalId)
-			throws SQLException {
-		long assignedId;
+	private void prepareCenterNodeForSmallIsland(Entity e, Map<String, String> tags, long originalId,
+			EncodingBuffers buffers, PreparedMapEntity prepared) throws SQLException {
 		if (e instanceof Way && tags.size() > 2 && "coastline".equals(tags.get("natural"))
 		        && ("island".equals(tags.get("place")) || "islet".equals(tags.get("place")))) {
 		    QuadRect bbox = ((Way) e).getLatLonBBox();
 		    if (bbox != null) {
 		        Node node = new Node(bbox.centerY(), bbox.centerX(), e.getId());
 		        node.copyTags(e);
+		        for (Map.Entry<String, String> tag : prepared.groupTags.entrySet()) {
+		            node.putTag(tag.getKey(), tag.getValue());
+		        }
 		        node.removeTag("natural");
 		        Map<String, String> nodeTags = node.getTags();
-		        EntityId eid = EntityId.valueOf(e);
-		        assignedId = assignIdBasedOnOriginalSplit(eid);
+		        prepared.islandRows = new ArrayList<MapObjectRow>();
 		        for (int level = 0; level < mapZooms.size(); level++) {
-		            processMainEntity(node, originalId, assignedId, level, nodeTags);
+		            encodeMainEntity(node, originalId, level, nodeTags, buffers, prepared.islandRows);
 		        }
 		    }
 		}
@@ -770,6 +1034,13 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 
     protected void processMainEntity(Entity e, long originalId, long assignedId, int level, Map<String, String> tags)
             throws SQLException {
+        List<MapObjectRow> rows = new ArrayList<MapObjectRow>();
+        encodeMainEntity(e, originalId, level, tags, encodingBuffers.get(), rows);
+        insertMapObjects(rows, assignedId);
+    }
+
+    private void encodeMainEntity(Entity e, long originalId, int level, Map<String, String> tags,
+            EncodingBuffers buffers, List<MapObjectRow> rows) throws SQLException {
         if (settings.keepOnlySeaObjects) {
             // fix issue with duplicate coastlines from seamarks
             if ("coastline".equals(tags.get("natural"))) {
@@ -782,9 +1053,15 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
                 return;
             }
         }
-        boolean area = renderingTypes.encodeEntityWithType(e instanceof Node,
-                tags, mapZooms.getLevel(level).getMaxZoom(), typeUse, addtypeUse, namesUse,
-                tempNameUse);
+        TIntArrayList typeUse = buffers.typeUse;
+        TIntArrayList addtypeUse = buffers.addtypeUse;
+        TreeMap<MapRulType, String> namesUse = buffers.namesUse;
+        boolean area;
+        synchronized (renderingTypes) {
+            area = renderingTypes.encodeEntityWithType(e instanceof Node,
+                    tags, mapZooms.getLevel(level).getMaxZoom(), typeUse, addtypeUse, namesUse,
+                    buffers.tempNameUse);
+        }
         if (typeUse.isEmpty()) {
             return;
         }
@@ -797,13 +1074,11 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
             return;
         }
 
-        long id = convertBaseIdToGeneratedId(assignedId, level);
         List<Node> res = null;
         boolean cycle = false;
         if (e instanceof Node) {
             res = Collections.singletonList((Node) e);
         } else {
-            id |= 1;
             cycle = ((Way) e).getFirstNodeId() == ((Way) e).getLastNodeId();
             // simplify route id>>1
             boolean mostDetailedLevel = level == 0 && !mapZooms.isDetailedZoomSimplified();
@@ -816,18 +1091,39 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
                         res = null;
                     }
                 } else {
-                    validateDuplicate(originalId, id);
-                    insertLowLevelMapBinaryObject(level, zoomToSimplify, typeUse, addtypeUse, id, ((Way) e).getNodes(),
-                            namesUse);
+                    MapObjectRow row = encodeLowLevelMapObject(zoomToSimplify, typeUse, addtypeUse,
+                            ((Way) e).getNodes(), namesUse);
+                    row.originalId = originalId;
+                    row.level = level;
+                    row.way = true;
+                    rows.add(row);
                 }
             } else {
                 res = ((Way) e).getNodes();
             }
         }
         if (res != null) {
-            validateDuplicate(originalId, id);
-            insertBinaryMapRenderObjectIndex(mapTree[level], res, null, namesUse, id, area, typeUse, addtypeUse, true,
-                    cycle);
+            MapObjectRow row = encodeMapObject(res, null, namesUse, area, typeUse, addtypeUse, cycle);
+            row.originalId = originalId;
+            row.level = level;
+            row.way = e instanceof Way;
+            rows.add(row);
+        }
+    }
+
+    private void insertMapObjects(List<MapObjectRow> rows, long assignedId) throws SQLException {
+        for (MapObjectRow row : rows) {
+            long id = convertBaseIdToGeneratedId(assignedId, row.level);
+            if (row.way) {
+                id |= 1;
+            }
+            validateDuplicate(row.originalId, id);
+            if (row.lowLevel) {
+                lowLevelWays++;
+                insertLowLevelMapObject(row, id);
+            } else {
+                insertMapObject(row, id, true);
+            }
         }
     }
 
@@ -842,23 +1138,28 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         }
     }
 
-    public void writeBinaryMapIndex(BinaryMapIndexWriter writer, String regionName) throws IOException, SQLException {
+    public void prepareBinaryMapIndex() throws SQLException {
         closePreparedStatements(mapBinaryStat, mapLowLevelBinaryStat);
         mapConnection.commit();
+    }
+
+    // map db is only read with conn (it could be a read only connection of the section)
+    public void writeBinaryMapIndex(BinaryMapIndexWriter writer, String regionName, Connection conn)
+            throws IOException, SQLException {
         try {
             writer.startWriteMapIndex(regionName);
             // write map encoding rules
             writer.writeMapEncodingRules(renderingTypes.getEncodingRuleTypes());
 
-            PreparedStatement selectData = mapConnection
+            PreparedStatement selectData = conn
                     .prepareStatement(
                             "SELECT area, coordinates, innerPolygons, types, additionalTypes, name, labelCoordinates FROM binary_map_objects WHERE id = ?");
 
             // write map levels and map index
             TLongObjectHashMap<BinaryFileReference> treeHeader = new TLongObjectHashMap<BinaryFileReference>();
             for (int i = 0; i < mapZooms.size(); i++) {
-                RTree rtree = mapTree[i];
-                long rootIndex = rtree.getFileHdr().getRootIndex();
+                ReadableRTree rtree = packedMapTree != null ? packedMapTree[i] : mapTree[i];
+                long rootIndex = rtree.getRootIndex();
                 rtree.Node root = rtree.getReadNode(rootIndex);
                 Rect rootBounds = calcBounds(root);
                 if (rootBounds != null) {
@@ -923,7 +1224,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         return tempNames;
     }
 
-    public void writeBinaryMapBlock(rtree.Node parent, Rect parentBounds, RTree r, BinaryMapIndexWriter writer,
+    public void writeBinaryMapBlock(rtree.Node parent, Rect parentBounds, ReadableRTree r, BinaryMapIndexWriter writer,
             PreparedStatement selectData, TLongObjectHashMap<BinaryFileReference> bounds, Map<String, Integer> tempStringTable,
             LinkedHashMap<MapRulType, String> tempNames, MapZoomPair level)
             throws IOException, RTreeException, SQLException {
@@ -1009,7 +1310,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         }
     }
 
-    public static void writeBinaryMapTree(rtree.Node parent, Rect re, RTree r, BinaryMapIndexWriter writer,
+    public static void writeBinaryMapTree(rtree.Node parent, Rect re, ReadableRTree r, BinaryMapIndexWriter writer,
             TLongObjectHashMap<BinaryFileReference> bounds)
             throws IOException, RTreeException {
         Element[] e = parent.getAllElements();
@@ -1050,7 +1351,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         return r;
     }
 
-    public static void writeBinaryMapBlock(rtree.Node parent, Rect parentBounds, RTree r, BinaryMapIndexWriter writer,
+    public static void writeBinaryMapBlock(rtree.Node parent, Rect parentBounds, ReadableRTree r, BinaryMapIndexWriter writer,
             TLongObjectHashMap<BinaryFileReference> bounds, TLongObjectHashMap<BinaryMapDataObject> objects,
             MapZooms.MapZoomPair pair, boolean doNotSimplify) throws IOException, RTreeException {
         rtree.Element[] e = parent.getAllElements();
@@ -1134,19 +1435,28 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         this.mapConnection = mapConnection;
         mapBinaryStat = createStatementMapBinaryInsert(mapConnection);
         mapLowLevelBinaryStat = createStatementLowLevelMapBinaryInsert(mapConnection);
-        try {
-            mapTree = new RTree[mapZooms.size()];
+        if (settings.packedRTree) {
+            // bulk loaded in memory, non pack file name is used only to spill elements
+            packedMapTree = new PackedRTree[mapZooms.size()];
             for (int i = 0; i < mapZooms.size(); i++) {
-                File file = new File(rtreeMapIndexNonPackFileName + i);
-                if (file.exists()) {
-                    file.delete();
+                packedMapTree[i] = new PackedRTree(new File(rtreeMapIndexNonPackFileName + i),
+                        settings.packedRTreeHeapLimit);
+            }
+        } else {
+            try {
+                mapTree = new RTree[mapZooms.size()];
+                for (int i = 0; i < mapZooms.size(); i++) {
+                    File file = new File(rtreeMapIndexNonPackFileName + i);
+                    if (file.exists()) {
+                        file.delete();
+                    }
+                    mapTree[i] = new RTree(rtreeMapIndexNonPackFileName + i);
+                    // very slow
+                    // mapTree[i].getFileHdr().setBufferPolicy(true);
                 }
-                mapTree[i] = new RTree(rtreeMapIndexNonPackFileName + i);
-                // very slow
-                // mapTree[i].getFileHdr().setBufferPolicy(true);
+            } catch (RTreeException e) {
+                throw new IOException(e);
             }
-        } catch (RTreeException e) {
-            throw new IOException(e);
         }
         pStatements.put(mapBinaryStat, 0);
         pStatements.put(mapLowLevelBinaryStat, 0);
@@ -1181,10 +1491,10 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 				"insert into low_level_map_objects(id, start_node, end_node, name, nodes, type, addType, level) values(?, ?, ?, ?, ?, ?, ?, ?)");
 	}
 
-    private void insertLowLevelMapBinaryObject(int level, int zoom, TIntArrayList types, TIntArrayList addTypes,
-            long id, List<Node> in, TreeMap<MapRulType, String> namesUse)
-            throws SQLException {
-        lowLevelWays++;
+    private MapObjectRow encodeLowLevelMapObject(int zoom, TIntArrayList types, TIntArrayList addTypes,
+            List<Node> in, TreeMap<MapRulType, String> namesUse) {
+        MapObjectRow row = new MapObjectRow();
+        row.lowLevel = true;
         List<Node> nodes = new ArrayList<Node>();
         OsmMapUtils.simplifyDouglasPeucker(in, zoom + 8 + settings.zoomWaySmoothness, 3, nodes, false);
         boolean first = true;
@@ -1209,7 +1519,7 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
             throw new IllegalStateException(e);
         }
         if (firstId == -1) {
-            return;
+            return row;
         }
         for (int j = 0; j < types.size(); j++) {
             try {
@@ -1223,22 +1533,45 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
             } catch (IOException e) {
             }
         }
+        row.startNode = firstId;
+        row.endNode = lastId;
+        row.name = encodeNames(namesUse);
+        row.coordinates = bNodes.toByteArray();
+        row.types = bTypes.toByteArray();
+        row.additionalTypes = bAddtTypes.toByteArray();
+        return row;
+    }
+
+    private void insertLowLevelMapObject(MapObjectRow row, long id) throws SQLException {
+        if (row.coordinates == null) {
+            return;
+        }
         mapLowLevelBinaryStat.setLong(1, id);
-        mapLowLevelBinaryStat.setLong(2, firstId);
-        mapLowLevelBinaryStat.setLong(3, lastId);
-        mapLowLevelBinaryStat.setString(4, encodeNames(namesUse));
-        mapLowLevelBinaryStat.setBytes(5, bNodes.toByteArray());
-        mapLowLevelBinaryStat.setBytes(6, bTypes.toByteArray());
-        mapLowLevelBinaryStat.setBytes(7, bAddtTypes.toByteArray());
-        mapLowLevelBinaryStat.setShort(8, (short) level);
+        mapLowLevelBinaryStat.setLong(2, row.startNode);
+        mapLowLevelBinaryStat.setLong(3, row.endNode);
+        mapLowLevelBinaryStat.setString(4, row.name);
+        mapLowLevelBinaryStat.setBytes(5, row.coordinates);
+        mapLowLevelBinaryStat.setBytes(6, row.types);
+        mapLowLevelBinaryStat.setBytes(7, row.additionalTypes);
+        mapLowLevelBinaryStat.setShort(8, (short) row.level);
 
         addBatch(mapLowLevelBinaryStat);
     }
 
-    private void insertBinaryMapRenderObjectIndex(RTree mapTree, Collection<Node> nodes, List<List<Node>> innerWays,
+    private void insertBinaryMapRenderObjectIndex(int level, Collection<Node> nodes, List<List<Node>> innerWays,
             Map<MapRulType, String> names, long id, boolean area, TIntArrayList types, TIntArrayList addTypes,
             boolean commit, boolean cycle)
             throws SQLException {
+        MapObjectRow row = encodeMapObject(nodes, innerWays, names, area, types, addTypes, cycle);
+        row.level = level;
+        insertMapObject(row, id, commit);
+    }
+
+    private MapObjectRow encodeMapObject(Collection<Node> nodes, List<List<Node>> innerWays,
+            Map<MapRulType, String> names, boolean area, TIntArrayList types, TIntArrayList addTypes,
+            boolean cycle) {
+        MapObjectRow row = new MapObjectRow();
+        row.area = area;
         boolean init = false;
         int minX = Integer.MAX_VALUE;
         int maxX = 0;
@@ -1303,19 +1636,41 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
             throw new IllegalStateException(es);
         }
         if (init) {
+            row.coordinates = bcoordinates.toByteArray();
+            row.innerPolygons = binnercoord.toByteArray();
+            row.types = btypes.toByteArray();
+            row.additionalTypes = badditionalTypes.toByteArray();
+            row.name = encodeNames(names);
+            row.labelCoordinates = blabelCoordinates.toByteArray();
+            row.minX = minX;
+            row.minY = minY;
+            row.maxX = maxX;
+            row.maxY = maxY;
+        }
+        return row;
+    }
+
+    private void insertMapObject(MapObjectRow row, long id, boolean commit) throws SQLException {
+        if (row.coordinates != null) {
             // conn.prepareStatement("insert into binary_map_objects(id, area, coordinates,
             // innerPolygons, types, additionalTypes, name) values(?, ?, ?, ?, ?, ?, ?)");
             mapBinaryStat.setLong(1, id);
-            mapBinaryStat.setBoolean(2, area);
-            mapBinaryStat.setBytes(3, bcoordinates.toByteArray());
-            mapBinaryStat.setBytes(4, binnercoord.toByteArray());
-            mapBinaryStat.setBytes(5, btypes.toByteArray());
-            mapBinaryStat.setBytes(6, badditionalTypes.toByteArray());
-            mapBinaryStat.setString(7, encodeNames(names));
-            mapBinaryStat.setBytes(8, blabelCoordinates.toByteArray());
+            mapBinaryStat.setBoolean(2, row.area);
+            mapBinaryStat.setBytes(3, row.coordinates);
+            mapBinaryStat.setBytes(4, row.innerPolygons);
+            mapBinaryStat.setBytes(5, row.types);
+            mapBinaryStat.setBytes(6, row.additionalTypes);
+            mapBinaryStat.setString(7, row.name);
+            mapBinaryStat.setBytes(8, row.labelCoordinates);
             addBatch(mapBinaryStat, commit);
             try {
-                mapTree.insert(new LeafElement(new Rect(minX, minY, maxX, maxY), id));
+                if (packedMapTree != null) {
+                    packedMapTree[row.level].add(row.minX, row.minY, row.maxX, row.maxY, id);
+                } else {
+                    mapTree[row.level].insert(new LeafElement(new Rect(row.minX, row.minY, row.maxX, row.maxY), id));
+                }
+            } catch (IOException e1) {
+                throw new IllegalStateException(e1);
             } catch (RTreeInsertException e1) {
                 throw new IllegalArgumentException(e1);
             } catch (IllegalValueException e1) {
@@ -1324,7 +1679,17 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
         }
     }
 
-    public void createRTreeFiles(String rTreeMapIndexPackFileName) throws RTreeException {
+    public void createRTreeFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName)
+            throws RTreeException, IOException {
+        if (settings.packedRTree) {
+            // saved by packRtreeFiles
+            packedMapTree = new PackedRTree[mapZooms.size()];
+            for (int i = 0; i < mapZooms.size(); i++) {
+                packedMapTree[i] = PackedRTree.load(new File(rTreeMapIndexPackFileName + i),
+                        new File(rTreeMapIndexNonPackFileName + i), settings.packedRTreeHeapLimit);
+            }
+            return;
+        }
         mapTree = new RTree[mapZooms.size()];
         for (int i = 0; i < mapZooms.size(); i++) {
             mapTree[i] = new RTree(rTreeMapIndexPackFileName + i);
@@ -1334,6 +1699,14 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
 
     public void packRtreeFiles(String rTreeMapIndexNonPackFileName, String rTreeMapIndexPackFileName)
             throws IOException {
+        if (packedMapTree != null) {
+            // elements are saved to pack files, so binary file could be recreated from them as for file based rtree
+            for (int i = 0; i < mapZooms.size(); i++) {
+                packedMapTree[i].pack();
+                packedMapTree[i].save(new File(rTreeMapIndexPackFileName + i));
+            }
+            return;
+        }
         for (int i = 0; i < mapZooms.size(); i++) {
             mapTree[i] = packRtreeFile(mapTree[i], rTreeMapIndexNonPackFileName + i, rTreeMapIndexPackFileName + i);
         }
@@ -1343,6 +1716,16 @@ public class IndexVectorMapCreator extends AbstractIndexPartCreator {
             boolean deleteDatabaseIndexes)
             throws IOException, SQLException {
         // delete map rtree files
+        if (packedMapTree != null) {
+            for (int i = 0; i < packedMapTree.length; i++) {
+                packedMapTree[i].close();
+                File f = new File(rTreeMapIndexPackFileName + i);
+                if (f.exists() && deleteDatabaseIndexes) {
+                    f.delete();
+                }
+            }
+            packedMapTree = null;
+        }
         if (mapTree != null) {
             for (int i = 0; i < mapTree.length; i++) {
                 if (mapTree[i] != null) {
@@ -8,6 +8,7 @@ import java.awt.image.DataBufferFloat;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.util.Iterator;
 
 import javax.imageio.ImageIO;
@@ -44,7 +45,8 @@ public class IndexWeatherData {
 		public double ECMWF_PX_SIZE_LAT = -0.28;
 
 		public final File file;
-		private DataBufferFloat data;
+		// pixel interleaved bands, absolute reads only so it could be shared between threads
+		private FloatBuffer data;
 		private int height;
 		private int width;
 		private int bands;
@@ -53,10 +55,31 @@ public class IndexWeatherData {
 			this.file = file;
 			readFile(file);
 		}
+
+		// already decoded data, i.e. memory mapped from a converted file
+		public WeatherTiff(File file, FloatBuffer data, int width, int height, int bands) {
+			this.file = file;
+			this.data = data;
+			this.width = width;
+			this.height = height;
+			this.bands = bands;
+		}
 		
 		public int getBands() {
 			return bands;
 		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public FloatBuffer getData() {
+			return data;
+		}
 		
 		
 		private BufferedImage readFile(File file) {
@@ -105,8 +128,9 @@ public class IndexWeatherData {
 			if (img != null) {
 				width = img.getWidth();
 				height = img.getHeight();
-				data = (DataBufferFloat) img.getRaster().getDataBuffer();
-				bands = data.getSize() / width / height;
+				DataBufferFloat db = (DataBufferFloat) img.getRaster().getDataBuffer();
+				data = FloatBuffer.wrap(db.getData());
+				bands = data.limit() / width / height;
 			}
 		}
 		
@@ -159,11 +183,11 @@ public class IndexWeatherData {
 				py = height - 1;
 			}
 			int ind = (px + py * width) * bands + band;
-			if (ind >= data.getSize()) {
+			if (ind >= data.limit()) {
 				throw new IllegalArgumentException("Illegal access (" + px + ", " + py + ") " + ind + " - "
 						+ file.getName());
 			}
-			return data.getElemDouble(ind) ;
+			return data.get(ind);
 		}
 		
 		protected double bilinearInterpolation(int band, double x, double y, double[] array) {
@@ -0,0 +1,237 @@
+package net.osmand.obf.preparation;
+
+import net.osmand.AllocationUtil;
+import net.osmand.osm.edit.Node;
+import net.osmand.util.MapUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * Off-heap store of node locations that replaces the sqlite node table for way and relation loading.
+ *
+ * Each node is a fixed 24 bytes record (id, x31, y31, pointer to tags) in a memory mapped file, tags are appended
+ * to a separate file in the same format as the tags blob of the node table. Records are kept in the order they
+ * arrive: pbf files are sorted by id, so every out of order id simply starts a new sorted run and lookup is
+ * a binary search over the runs (latest run wins for duplicate ids).
+ *
+ * Single writer (loading thread), concurrent readers are supported. Segments and runs written before a record are
+ * published to readers by the volatile count of records, so readers see only complete records.
+ */
+public class NodeLocationStore implements Closeable {
+
+	private static final Log log = LogFactory.getLog(NodeLocationStore.class);
+
+	public static final String LOCATIONS_EXT = ".loc";
+	public static final String TAGS_EXT = ".tags";
+
+	private static final int RECORD_SIZE = 24;
+	private static final int SEGMENT_SHIFT = 24;
+	private static final int MAX_RUNS_WARNING = 64;
+	private static final long NO_TAGS = -1;
+
+	private final File locationsFile;
+	private final File tagsFile;
+	private final RandomAccessFile locationsRaf;
+	private final RandomAccessFile tagsRaf;
+	private final DataOutputStream tagsOut;
+	private final int segmentShift;
+	private final int recordsPerSegment;
+	private final int segmentMask;
+	// segments for Integer.MAX_VALUE records, so the array is never reallocated
+	private final MappedByteBuffer[] segments;
+	// start record of each sorted run, array is replaced when it grows
+	private volatile int[] runs = new int[16];
+	private volatile int runsCount;
+
+	private volatile int count;
+	private long lastId = Long.MIN_VALUE;
+	private long tagsSize;
+	private volatile long tagsFlushed;
+
+	public NodeLocationStore(File file) throws IOException {
+		this(file, SEGMENT_SHIFT);
+	}
+
+	// smaller segments for tests
+	NodeLocationStore(File file, int segmentShift) throws IOException {
+		this.segmentShift = segmentShift;
+		recordsPerSegment = 1 << segmentShift;
+		segmentMask = recordsPerSegment - 1;
+		segments = new MappedByteBuffer[(Integer.MAX_VALUE >> segmentShift) + 1];
+		locationsFile = new File(file.getParentFile(), file.getName() + LOCATIONS_EXT);
+		tagsFile = new File(file.getParentFile(), file.getName() + TAGS_EXT);
+		locationsFile.delete();
+		tagsFile.delete();
+		locationsRaf = new RandomAccessFile(locationsFile, "rw");
+		tagsRaf = new RandomAccessFile(tagsFile, "rw");
+		tagsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tagsRaf.getFD()), 1 << 16));
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public void put(long id, double lat, double lon, byte[] tags) throws IOException {
+		long tagsPointer = NO_TAGS;
+		if (tags != null && tags.length > 0) {
+			// readers could flush tags concurrently
+			synchronized (tagsOut) {
+				tagsPointer = tagsSize;
+				tagsOut.writeInt(tags.length);
+				tagsOut.write(tags);
+				tagsSize += 4 + tags.length;
+			}
+		}
+		int ind = count;
+		if (ind == Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many nodes for node location store");
+		}
+		if (id <= lastId || ind == 0) {
+			addRun(ind);
+		}
+		lastId = id;
+		MappedByteBuffer segment = getSegment(ind >> segmentShift, true);
+		int pos = (ind & segmentMask) * RECORD_SIZE;
+		segment.putLong(pos, id);
+		segment.putInt(pos + 8, MapUtils.get31TileNumberX(lon));
+		segment.putInt(pos + 12, MapUtils.get31TileNumberY(lat));
+		segment.putLong(pos + 16, tagsPointer);
+		count = ind + 1;
+	}
+
+	private void addRun(int start) {
+		int n = runsCount;
+		if (n == runs.length) {
+			int[] grown = Arrays.copyOf(runs, n * 2);
+			grown[n] = start;
+			runs = grown;
+		} else {
+			runs[n] = start;
+		}
+		runsCount = n + 1;
+		if (n + 1 == MAX_RUNS_WARNING) {
+			log.warn("Node location store received unsorted ids, lookups could be slow (" + (n + 1) + " runs)");
+		}
+	}
+
+	/**
+	 * @return node with location (and tags if withTags) or null if node is not present
+	 */
+	public Node getNode(long id, boolean withTags) throws IOException {
+		int ind = find(id);
+		if (ind < 0) {
+			return null;
+		}
+		MappedByteBuffer segment = getSegment(ind >> segmentShift, false);
+		int pos = (ind & segmentMask) * RECORD_SIZE;
+		double lon = MapUtils.get31LongitudeX(segment.getInt(pos + 8));
+		double lat = MapUtils.get31LatitudeY(segment.getInt(pos + 12));
+		Node n = new Node(lat, lon, id);
+		if (withTags) {
+			long tagsPointer = segment.getLong(pos + 16);
+			if (tagsPointer != NO_TAGS) {
+				OsmDbAccessor.parseTags(n, readTags(tagsPointer));
+			}
+		}
+		return n;
+	}
+
+	private int find(long id) {
+		// runs which start after the count are not complete yet, they are skipped (lo > hi)
+		int size = count;
+		int runsSize = runsCount;
+		int[] rs = runs;
+		for (int r = runsSize - 1; r >= 0; r--) {
+			int lo = rs[r];
+			int hi = (r == runsSize - 1 ? size : Math.min(size, rs[r + 1])) - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				long midId = getSegment(mid >> segmentShift, false).getLong((mid & segmentMask) * RECORD_SIZE);
+				if (midId < id) {
+					lo = mid + 1;
+				} else if (midId > id) {
+					hi = mid - 1;
+				} else {
+					return mid;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private byte[] readTags(long pointer) throws IOException {
+		if (pointer + 4 > tagsFlushed) {
+			flush();
+		}
+		FileChannel channel = tagsRaf.getChannel();
+		ByteBuffer len = ByteBuffer.allocate(4);
+		readFully(channel, len, pointer);
+		ByteBuffer tags = ByteBuffer.allocate(len.getInt(0));
+		readFully(channel, tags, pointer + 4);
+		return tags.array();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer bb, long pos) throws IOException {
+		while (bb.hasRemaining()) {
+			int r = channel.read(bb, pos + bb.position());
+			if (r < 0) {
+				throw new IOException("Unexpected end of node tags file");
+			}
+		}
+	}
+
+	private MappedByteBuffer getSegment(int ind, boolean create) {
+		MappedByteBuffer segment = segments[ind];
+		if (segment != null) {
+			return segment;
+		}
+		if (!create) {
+			throw new IllegalStateException("Node location segment " + ind + " is not mapped");
+		}
+		try {
+			long start = (long) ind * recordsPerSegment * RECORD_SIZE;
+			segment = locationsRaf.getChannel().map(MapMode.READ_WRITE, start,
+					(long) recordsPerSegment * RECORD_SIZE);
+			segments[ind] = segment;
+			return segment;
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void flush() throws IOException {
+		synchronized (tagsOut) {
+			tagsOut.flush();
+			tagsFlushed = tagsSize;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		// mappings keep the file open (and not deleted on windows) till they're garbage collected
+		for (int i = 0; i < segments.length; i++) {
+			if (segments[i] != null) {
+				AllocationUtil.freeDirectBuffer(segments[i]);
+				segments[i] = null;
+			}
+		}
+		tagsOut.close();
+		locationsRaf.close();
+		tagsRaf.close();
+		locationsFile.delete();
+		tagsFile.delete();
+	}
+}
@@ -1,6 +1,7 @@
 package net.osmand.obf.preparation;
 
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -10,6 +11,11 @@ import java.sql.Statement;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import net.osmand.IProgress;
 import net.osmand.osm.edit.Entity;
@@ -42,11 +48,27 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	private PreparedStatement iterateRelations;
 	private PreparedStatement iterateWayBoundaries;
 	private OsmDbCreator dbCreator;
+	private NodeLocationStore nodeLocationStore;
 
 	public interface OsmDbVisitor {
 		public void iterateEntity(Entity e, OsmDbAccessorContext ctx) throws SQLException;
 	}
 
+	public interface OsmDbParallelVisitor<T> extends OsmDbVisitor {
+		/**
+		 * Prepares index data of the entity (tags, encoded types, simplified geometry), called concurrently from
+		 * consumer threads, so it can't use db context and shared state should be guarded. Result is passed to
+		 * {@link #iterateEntity(Entity, Object, OsmDbAccessorContext)} on the iterating thread in db order.
+		 * {@link #iterateEntity(Entity, OsmDbAccessorContext)} should do both steps for one thread.
+		 */
+		public T prepareEntity(Entity e) throws SQLException;
+
+		public void iterateEntity(Entity e, T prepared, OsmDbAccessorContext ctx) throws SQLException;
+	}
+
+	private static final int PARALLEL_BATCH_SIZE = 256;
+	private static final int PARALLEL_BATCHES_PER_THREAD = 4;
+
 	public OsmDbAccessor() {
 		
 	}
@@ -54,18 +76,28 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	public void initDatabase()
 			throws SQLException {
 		pselectNode = dbConn.prepareStatement("select n.latitude, n.longitude, n.tags from node n where n.id = ?"); //$NON-NLS-1$
-		pselectWay = dbConn.prepareStatement("select w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
-				"from ways w left join node n on w.node = n.id where w.id = ? order by w.ord"); //$NON-NLS-1$
+		if (nodeLocationStore != null) {
+			// node locations are resolved through node location store
+			pselectWay = dbConn.prepareStatement("select w.node, w.ord, w.tags " + //$NON-NLS-1$
+					"from ways w where w.id = ? order by w.ord"); //$NON-NLS-1$
+			iterateWays = dbConn.prepareStatement("select w.id, w.node, w.ord, w.tags " + //$NON-NLS-1$
+					"from ways w order by w.id, w.ord"); //$NON-NLS-1$
+			iterateWayBoundaries = dbConn.prepareStatement("select w.id, w.node, w.ord, w.tags " + //$NON-NLS-1$
+					"from ways w where w.boundary > 0 order by w.id, w.ord"); //$NON-NLS-1$
+		} else {
+			pselectWay = dbConn.prepareStatement("select w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
+					"from ways w left join node n on w.node = n.id where w.id = ? order by w.ord"); //$NON-NLS-1$
+			iterateWays = dbConn.prepareStatement("select w.id, w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
+					"from ways w left join node n on w.node = n.id order by w.id, w.ord"); //$NON-NLS-1$
+			iterateWayBoundaries = dbConn
+					.prepareStatement("select w.id, w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
+							"from ways w left join node n on w.node = n.id  where w.boundary > 0 order by w.id, w.ord"); //$NON-NLS-1$
+		}
 		pselectRelation = dbConn.prepareStatement("select r.member, r.type, r.role, r.ord, r.tags " + //$NON-NLS-1$
 				"from relations r where r.id = ? order by r.ord"); //$NON-NLS-1$
 
 		iterateNodes = dbConn
 				.prepareStatement("select n.id, n.latitude, n.longitude, n.tags from node n where length(n.tags) > 0 or n.propagate = 1"); //$NON-NLS-1$
-		iterateWays = dbConn.prepareStatement("select w.id, w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
-				"from ways w left join node n on w.node = n.id order by w.id, w.ord"); //$NON-NLS-1$
-		iterateWayBoundaries = dbConn
-				.prepareStatement("select w.id, w.node, w.ord, w.tags, n.latitude, n.longitude, n.tags " + //$NON-NLS-1$
-						"from ways w left join node n on w.node = n.id  where w.boundary > 0 order by w.id, w.ord"); //$NON-NLS-1$
 		iterateRelations = dbConn.prepareStatement("select r.id, r.tags from relations r where length(r.tags) > 0"); //$NON-NLS-1$
 	}
 
@@ -77,6 +109,14 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		}
 	}
 
+	public void setNodeLocationStore(NodeLocationStore nodeLocationStore) {
+		this.nodeLocationStore = nodeLocationStore;
+	}
+
+	public NodeLocationStore getNodeLocationStore() {
+		return nodeLocationStore;
+	}
+
 	public Connection getDbConn() {
 		return dbConn;
 	}
@@ -105,7 +145,9 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 					if (ord == 0) {
 						readTags(e, rs.getBytes(3));
 					}
-					if (rs.getObject(5) != null) {
+					if (nodeLocationStore != null) {
+						addWayNode(e, rs.getLong(1));
+					} else if (rs.getObject(5) != null) {
 						Node n = new Node(rs.getDouble(4), rs.getDouble(5), rs.getLong(1));
 						((Way) e).addNode(n);
 						readTags(n, rs.getBytes(6));
@@ -170,7 +212,9 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		Collection<RelationMember> ids = e.getMembers() ;
 		if (level > 0) {
 			for (RelationMember i : ids) {
-				if (i.getEntityId().getType() == EntityType.NODE) {
+				if (i.getEntityId().getType() == EntityType.NODE && nodeLocationStore != null) {
+					map.put(i.getEntityId(), getStoredNode(i.getEntityId().getId()));
+				} else if (i.getEntityId().getType() == EntityType.NODE) {
 					pselectNode.setLong(1, i.getEntityId().getId());
 					if (pselectNode.execute()) {
 						ResultSet rs = pselectNode.getResultSet();
@@ -210,7 +254,28 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		return dbCreator == null ? e.getId() : dbCreator.convertId(e);
 	}
 
+	private void addWayNode(Way w, long nodeId) throws SQLException {
+		Node n = getStoredNode(nodeId);
+		if (n != null) {
+			w.addNode(n);
+		} else {
+			w.addNode(nodeId);
+		}
+	}
+
+	private Node getStoredNode(long nodeId) throws SQLException {
+		try {
+			return nodeLocationStore.getNode(nodeId, true);
+		} catch (IOException e) {
+			throw new SQLException(e);
+		}
+	}
+
 	public void readTags(Entity e, byte[] tags){
+		parseTags(e, tags);
+	}
+
+	public static void parseTags(Entity e, byte[] tags) {
 		if (tags != null) {
 			try {
 				int prev = 0;
@@ -235,6 +300,11 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 	}
 
 	public int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor visitor, boolean realCounts) throws SQLException, InterruptedException {
+		return iterateOverEntities(progress, type, visitor, realCounts, 1);
+	}
+
+	public int iterateOverEntities(IProgress progress, EntityType type, OsmDbVisitor visitor, boolean realCounts,
+			int threads) throws SQLException, InterruptedException {
 
 		PreparedStatement select;
 		int count = 0;
@@ -271,6 +341,10 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 
 		Entity entityToProcess = null;
 		Entity endEntity = entityProducer.getEndingEntity();
+		if (threads > 1 && visitor instanceof OsmDbParallelVisitor) {
+			iterateInParallel(progress, toProcess, endEntity, (OsmDbParallelVisitor<?>) visitor, threads);
+			return count;
+		}
 		while ((entityToProcess = toProcess.take())  != endEntity) {
 			if (progress != null) {
 				progress.progress(1);
@@ -280,6 +354,81 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		return count;
 	}
 
+	private <T> void iterateInParallel(IProgress progress, BlockingQueue<Entity> toProcess, Entity endEntity,
+			final OsmDbParallelVisitor<T> visitor, int threads) throws SQLException, InterruptedException {
+		ExecutorService service = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<PreparedBatch<T>>> pending = new ArrayDeque<Future<PreparedBatch<T>>>();
+		int maxPending = threads * PARALLEL_BATCHES_PER_THREAD;
+		try {
+			List<Entity> batch = new ArrayList<Entity>(PARALLEL_BATCH_SIZE);
+			Entity entityToProcess;
+			while ((entityToProcess = toProcess.take()) != endEntity) {
+				batch.add(entityToProcess);
+				if (batch.size() >= PARALLEL_BATCH_SIZE) {
+					pending.add(submitPrepare(service, visitor, batch));
+					batch = new ArrayList<Entity>(PARALLEL_BATCH_SIZE);
+					if (pending.size() >= maxPending) {
+						applyPrepared(progress, visitor, pending.poll());
+					}
+				}
+			}
+			if (!batch.isEmpty()) {
+				pending.add(submitPrepare(service, visitor, batch));
+			}
+			while (!pending.isEmpty()) {
+				applyPrepared(progress, visitor, pending.poll());
+			}
+		} finally {
+			service.shutdownNow();
+		}
+	}
+
+	private static class PreparedBatch<T> {
+		final List<Entity> entities;
+		final List<T> prepared;
+
+		PreparedBatch(List<Entity> entities) {
+			this.entities = entities;
+			this.prepared = new ArrayList<T>(entities.size());
+		}
+	}
+
+	private <T> Future<PreparedBatch<T>> submitPrepare(ExecutorService service, final OsmDbParallelVisitor<T> visitor,
+			final List<Entity> batch) {
+		return service.submit(new Callable<PreparedBatch<T>>() {
+			@Override
+			public PreparedBatch<T> call() throws SQLException {
+				PreparedBatch<T> result = new PreparedBatch<T>(batch);
+				for (Entity e : batch) {
+					result.prepared.add(visitor.prepareEntity(e));
+				}
+				return result;
+			}
+		});
+	}
+
+	private <T> void applyPrepared(IProgress progress, OsmDbParallelVisitor<T> visitor,
+			Future<PreparedBatch<T>> future) throws SQLException, InterruptedException {
+		PreparedBatch<T> batch;
+		try {
+			batch = future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+		for (int i = 0; i < batch.entities.size(); i++) {
+			if (progress != null) {
+				progress.progress(1);
+			}
+			visitor.iterateEntity(batch.entities.get(i), batch.prepared.get(i), this);
+		}
+	}
+
 
 	private void computeRealCounts() throws SQLException {
 		if (!realCounts) {
@@ -318,6 +467,13 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 		if (iterateWayBoundaries != null) {
 			iterateWayBoundaries.close();
 		}
+		if (nodeLocationStore != null) {
+			try {
+				nodeLocationStore.close();
+			} catch (IOException e) {
+				throw new SQLException(e);
+			}
+		}
 
 	}
 
@@ -374,7 +530,9 @@ public class OsmDbAccessor implements OsmDbAccessorContext {
 						if (ord == 0) {
 							readTags(e, rs.getBytes(4));
 						}
-						if (rs.getObject(6) == null) {
+						if (nodeLocationStore != null) {
+							addWayNode((Way) e, rs.getLong(2));
+						} else if (rs.getObject(6) == null) {
 							((Way) e).addNode(rs.getLong(2));
 						} else {
 							Node n = new Node(rs.getDouble(5), rs.getDouble(6), rs.getLong(2));
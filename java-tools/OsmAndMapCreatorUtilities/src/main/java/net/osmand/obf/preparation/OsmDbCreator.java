@@ -24,10 +24,16 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.HashMap;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class OsmDbCreator implements IOsmStorageFilter {
 
@@ -87,6 +93,36 @@ public class OsmDbCreator implements IOsmStorageFilter {
 
 	private PropagateToNodes propagateToNodes;
 
+	// when set node locations are stored there and only nodes with tags are stored in db
+	private NodeLocationStore nodeLocationStore;
+
+	private int batchSize = BATCH_SIZE_OSM;
+
+	// when set rows are sorted in run files and inserted in primary key order by finishLoading
+	private ExternalRowSorter nodeRows;
+	private ExternalRowSorter wayRows;
+	private ExternalRowSorter relationRows;
+	private long sortBufferSize;
+
+	// when writer is started entities are converted and written to db on the writer thread
+	private static final EntityToLoad END_OF_ENTITIES = new EntityToLoad(null, null);
+	private BlockingQueue<EntityToLoad> writerQueue;
+	private Thread writerThread;
+	private volatile Throwable writerError;
+	private long loadStart = -1;
+	private long writeNanos;
+	private long writerWaitNanos;
+	private long parserWaitNanos;
+
+	private static class EntityToLoad {
+		final EntityId entityId;
+		final Entity entity;
+
+		EntityToLoad(EntityId entityId, Entity entity) {
+			this.entityId = entityId;
+			this.entity = entity;
+		}
+	}
 
 
 	public OsmDbCreator(int additionId, int shiftId) {
@@ -284,8 +320,211 @@ public class OsmDbCreator implements IOsmStorageFilter {
 	}
 	
 
+	/**
+	 * Moves id conversion, tags serialization and db batches from the parsing thread to a separate writer thread,
+	 * parser blocks only when queueSize entities are waiting. Should be called after initDatabase.
+	 */
+	public void startWriter(int queueSize) {
+		writerQueue = new ArrayBlockingQueue<EntityToLoad>(queueSize);
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						long t = System.nanoTime();
+						EntityToLoad e = writerQueue.take();
+						writerWaitNanos += System.nanoTime() - t;
+						if (e == END_OF_ENTITIES) {
+							break;
+						}
+						loadEntity(e.entityId, e.entity);
+					}
+				} catch (Throwable e) {
+					writerError = e;
+					// unblock parser
+					writerQueue.clear();
+				}
+			}
+		}, "osm-db-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Instead of inserting rows in the order of input (random b-tree pages for ids out of order), rows are buffered
+	 * up to sortBufferSize bytes of heap, sorted and spilled to run files in dir. finishLoading merges the runs and
+	 * inserts rows in primary key order. Node rows are still inserted directly when propagation reads them back from
+	 * db (no node location store). Should be called after initDatabase.
+	 */
+	public void startExternalSort(File dir, String name, long sortBufferSize) {
+		this.sortBufferSize = sortBufferSize;
+		if (nodeLocationStore != null || propagateToNodes == null) {
+			nodeRows = new ExternalRowSorter(dir, name + ".node");
+		}
+		wayRows = new ExternalRowSorter(dir, name + ".ways");
+		relationRows = new ExternalRowSorter(dir, name + ".relations");
+	}
+
+	private void checkSortBuffers() throws IOException {
+		ExternalRowSorter largest = null;
+		long total = 0;
+		for (ExternalRowSorter s : new ExternalRowSorter[] { nodeRows, wayRows, relationRows }) {
+			if (s != null) {
+				total += s.getMemoryUsage();
+				if (largest == null || s.getMemoryUsage() > largest.getMemoryUsage()) {
+					largest = s;
+				}
+			}
+		}
+		if (total > sortBufferSize) {
+			largest.spill();
+		}
+	}
+
+	private void insertSortedRows() throws SQLException, IOException {
+		long st = System.currentTimeMillis();
+		int runs = 0;
+		long rows = 0;
+		for (ExternalRowSorter s : new ExternalRowSorter[] { nodeRows, wayRows, relationRows }) {
+			if (s != null) {
+				s.spill();
+				runs += s.getRunsCount();
+				rows += s.getRowsCount();
+			}
+		}
+		final int[] count = new int[1];
+		if (nodeRows != null) {
+			nodeRows.merge((id, ord, p) -> {
+				prepNode.setLong(1, id);
+				prepNode.setDouble(2, p.getDouble());
+				prepNode.setDouble(3, p.getDouble());
+				prepNode.setBytes(4, readBytes(p));
+				prepNode.setBoolean(5, p.get() != 0);
+				prepNode.addBatch();
+				executeSortedBatch(prepNode, count);
+			});
+			prepNode.executeBatch();
+			nodeRows = null;
+		}
+		count[0] = 0;
+		prepWays.setBytes(4, null);
+		wayRows.merge((id, ord, p) -> {
+			prepWays.setLong(1, id);
+			prepWays.setLong(2, p.getLong());
+			prepWays.setLong(3, ord);
+			prepWays.setInt(5, p.getInt());
+			if (ord == 0) {
+				// as with direct insert tags parameter stays set for the following nodes of the way
+				prepWays.setBytes(4, readBytes(p));
+			}
+			prepWays.addBatch();
+			executeSortedBatch(prepWays, count);
+		});
+		prepWays.executeBatch();
+		wayRows = null;
+		count[0] = 0;
+		prepRelations.setBytes(6, null);
+		relationRows.merge((id, ord, p) -> {
+			prepRelations.setLong(1, id);
+			prepRelations.setLong(2, p.getLong());
+			prepRelations.setLong(3, p.getInt());
+			byte[] role = readBytes(p);
+			prepRelations.setString(4, role == null ? null : new String(role, StandardCharsets.UTF_8));
+			prepRelations.setLong(5, ord);
+			if (ord == 0) {
+				prepRelations.setBytes(6, readBytes(p));
+			}
+			prepRelations.addBatch();
+			executeSortedBatch(prepRelations, count);
+		});
+		prepRelations.executeBatch();
+		relationRows = null;
+		dbConn.commit();
+		log.info(String.format("Sorted osm db rows inserted in %d ms: %d rows from %d runs",
+				System.currentTimeMillis() - st, rows, runs));
+	}
+
+	private void executeSortedBatch(PreparedStatement prep, int[] count) throws SQLException {
+		if (++count[0] >= batchSize) {
+			prep.executeBatch();
+			dbConn.commit(); // clear memory
+			count[0] = 0;
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static byte[] readBytes(ByteBuffer bb) {
+		int len = bb.getInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[len];
+		bb.get(bytes);
+		return bytes;
+	}
+
+	private void stopWriter() {
+		try {
+			if (writerError == null) {
+				writerQueue.put(END_OF_ENTITIES);
+			}
+			writerThread.join();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+		writerQueue = null;
+		writerThread = null;
+		checkWriterError();
+	}
+
+	private void checkWriterError() {
+		if (writerError != null) {
+			if (writerError instanceof RuntimeException) {
+				throw (RuntimeException) writerError;
+			}
+			throw new IllegalStateException(writerError);
+		}
+	}
+
 	public void finishLoading() throws SQLException {
+		if (writerThread != null) {
+			stopWriter();
+		}
+		if (loadStart != -1) {
+			long total = (System.nanoTime() - loadStart) / 1000000;
+			long write = writeNanos / 1000000;
+			if (writerWaitNanos > 0 || parserWaitNanos > 0) {
+				log.info(String.format("Osm db loaded in %d ms: writing %d ms (waiting for parser %d ms), "
+						+ "parser waiting for writer %d ms", total, write, writerWaitNanos / 1000000,
+						parserWaitNanos / 1000000));
+			} else {
+				log.info(String.format("Osm db loaded in %d ms: parsing %d ms, writing %d ms", total, total - write,
+						write));
+			}
+		}
+		if (wayRows != null) {
+			try {
+				insertSortedRows();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
 		try {
+			if (nodeLocationStore != null) {
+				nodeLocationStore.flush();
+			}
 			if (currentCountNode > 0) {
 				prepNode.executeBatch();
 			}
@@ -302,6 +541,8 @@ public class OsmDbCreator implements IOsmStorageFilter {
 			}
 		} catch (SQLException ex) {
 			log.error("TODO FIX: Could not save in db ", ex); //$NON-NLS-1$
+		} catch (IOException ex) {
+			log.error("Could not save node locations ", ex); //$NON-NLS-1$
 		}
 		prepRelations.close();
 		prepPropagateNode.close();
@@ -358,6 +599,30 @@ public class OsmDbCreator implements IOsmStorageFilter {
 
 	@Override
 	public boolean acceptEntityToLoad(OsmBaseStorage storage, EntityId entityId, Entity e) {
+		if (loadStart == -1) {
+			loadStart = System.nanoTime();
+		}
+		if (writerQueue != null) {
+			checkWriterError();
+			EntityToLoad toLoad = new EntityToLoad(entityId, e);
+			if (!writerQueue.offer(toLoad)) {
+				long t = System.nanoTime();
+				try {
+					writerQueue.put(toLoad);
+				} catch (InterruptedException ex) {
+					throw new IllegalStateException(ex);
+				}
+				parserWaitNanos += System.nanoTime() - t;
+			}
+		} else {
+			loadEntity(entityId, e);
+		}
+		// do not add to storage
+		return false;
+	}
+
+	private void loadEntity(EntityId entityId, Entity e) {
+		long st = System.nanoTime();
 		// put all nodes into temporary db to get only required nodes after loading all data
 		if (VALIDATE_DUPLICATES) {
 			long l = (e.getId() << 2) + entityId.getType().ordinal();
@@ -367,18 +632,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 		}
 		try {
 			e.removeTags(tagsToIgnore);
-			ByteArrayOutputStream tags = new ByteArrayOutputStream();
-			try {
-				for (Entry<String, String> i : e.getTags().entrySet()) {
-					// UTF-8 default
-					tags.write(i.getKey().getBytes("UTF-8"));
-					tags.write(0);
-					tags.write(i.getValue().getBytes("UTF-8"));
-					tags.write(0);
-				}
-			} catch (IOException es) {
-				throw new RuntimeException(es);
-			}
+			ByteArrayOutputStream tags = serializeTags(e);
 			long id = convertId(e);
 			if (propagateToNodes != null && e instanceof Way) {
 				boolean firstIteration = propagateToNodes.isNoRegisteredNodes();
@@ -395,7 +649,15 @@ public class OsmDbCreator implements IOsmStorageFilter {
 						PropagateFromWayToNode pn = pnodes.points[i];
 						if (i % 2 == 0) {
 							nodeIds.add(oldNodeIds.get(i / 2));
-							if (pn != null) {
+							if (pn != null && nodeLocationStore != null) {
+								// node without tags is not present in db
+								Node existing = nodeLocationStore.getNode(pn.id, true);
+								if (existing != null) {
+									addNodeRow(pn.id, existing.getLatitude(), existing.getLongitude(),
+											serializeTags(existing).toByteArray(), true);
+								}
+								propagateToNodes.registerNode(pn);
+							} else if (pn != null) {
 								prepPropagateNode.setLong(1, pn.id);
 								prepPropagateNode.addBatch();
 								propagateCount++;
@@ -417,38 +679,48 @@ public class OsmDbCreator implements IOsmStorageFilter {
 								nodeIds.addAll(oldNodeIds);
 								break;
 							}
-							currentCountNode++;
-							prepNode.setLong(1, pn.id);
-							prepNode.setDouble(2, latLon.getLatitude());
-							prepNode.setDouble(3, latLon.getLongitude());
-							prepNode.setBytes(4, new ByteArrayOutputStream().toByteArray());
-							prepNode.setBoolean(5, true);
-							prepNode.addBatch();
+							if (nodeLocationStore != null) {
+								nodeLocationStore.put(pn.id, latLon.getLatitude(), latLon.getLongitude(), null);
+							}
+							addNodeRow(pn.id, latLon.getLatitude(), latLon.getLongitude(),
+									new ByteArrayOutputStream().toByteArray(), true);
 
 							nodeIds.add(pn.id);
 							propagateToNodes.registerNode(pn);
-							executeNodesBatch(false);
 						}
 					}
 				}
-				if (propagateCount >= BATCH_SIZE_OSM) {
+				if (propagateCount >= batchSize) {
 					prepPropagateNode.executeBatch();
 					dbConn.commit(); // clear memory
 					propagateCount = 0;
 				}
 			}
-			if (e instanceof Node) {
-				currentCountNode++;
+			if (e instanceof Node && nodeLocationStore != null) {
+				nodeLocationStore.put(id, ((Node) e).getLatitude(), ((Node) e).getLongitude(), tags.toByteArray());
 				if (!e.getTags().isEmpty()) {
 					allNodes++;
+					addNodeRow(id, ((Node) e).getLatitude(), ((Node) e).getLongitude(), tags.toByteArray(), false);
 				}
-				prepNode.setLong(1, id);
-				prepNode.setDouble(2, ((Node) e).getLatitude());
-				prepNode.setDouble(3, ((Node) e).getLongitude());
-				prepNode.setBytes(4, tags.toByteArray());
-				prepNode.setBoolean(5, false);
-				prepNode.addBatch();
-				executeNodesBatch(false);
+			} else if (e instanceof Node) {
+				if (!e.getTags().isEmpty()) {
+					allNodes++;
+				}
+				addNodeRow(id, ((Node) e).getLatitude(), ((Node) e).getLongitude(), tags.toByteArray(), false);
+			} else if (e instanceof Way && wayRows != null) {
+				allWays++;
+				TLongArrayList nodeIds = ((Way) e).getNodeIds();
+				boolean city = CityType.valueFromString(((Way) e).getTag(OSMTagKey.PLACE)) != null;
+				int boundary = ((Way) e).getTag(OSMTagKey.BOUNDARY) != null || city ? 1 : 0;
+				for (int ord = 0; ord < nodeIds.size(); ord++) {
+					DataOutputStream out = wayRows.addRow(id, ord);
+					out.writeLong(nodeIds.get(ord));
+					out.writeInt(boundary);
+					if (ord == 0) {
+						writeBytes(out, tags.toByteArray());
+					}
+				}
+				checkSortBuffers();
 			} else if (e instanceof Way) {
 				allWays++;
 				int ord = 0;
@@ -466,11 +738,24 @@ public class OsmDbCreator implements IOsmStorageFilter {
 					prepWays.setInt(5, boundary);
 					prepWays.addBatch();
 				}
-				if (currentWaysCount >= BATCH_SIZE_OSM) {
+				if (currentWaysCount >= batchSize) {
 					prepWays.executeBatch();
 					dbConn.commit(); // clear memory
 					currentWaysCount = 0;
 				}
+			} else if (relationRows != null) {
+				allRelations++;
+				int ord = 0;
+				for (RelationMember i : ((Relation) e).getMembers()) {
+					DataOutputStream out = relationRows.addRow(id, ord);
+					out.writeLong(i.getEntityId().getId());
+					out.writeInt(i.getEntityId().getType().ordinal());
+					writeBytes(out, i.getRole() == null ? null : i.getRole().getBytes(StandardCharsets.UTF_8));
+					if (ord++ == 0) {
+						writeBytes(out, tags.toByteArray());
+					}
+				}
+				checkSortBuffers();
 			} else {
 				// osm change can't handle relations properly
 				allRelations++;
@@ -488,7 +773,7 @@ public class OsmDbCreator implements IOsmStorageFilter {
 					prepRelations.addBatch();
 				}
 //				System.out.println(id + " " + delete);
-				if (currentRelationsCount >= BATCH_SIZE_OSM) {
+				if (currentRelationsCount >= batchSize) {
 					prepRelations.executeBatch();
 					dbConn.commit(); // clear memory
 					currentRelationsCount = 0;
@@ -497,13 +782,35 @@ public class OsmDbCreator implements IOsmStorageFilter {
 
 		} catch (SQLException ex) {
 			log.error("TODO FIX: Could not save in db (entity " + entityId + ") ", ex); //$NON-NLS-1$
+		} catch (IOException ex) {
+			log.error("Could not save node location (entity " + entityId + ") ", ex); //$NON-NLS-1$
 		}
-		// do not add to storage
-		return false;
+		writeNanos += System.nanoTime() - st;
+	}
+
+	private void addNodeRow(long id, double lat, double lon, byte[] tags, boolean propagate)
+			throws SQLException, IOException {
+		if (nodeRows != null) {
+			DataOutputStream out = nodeRows.addRow(id, 0);
+			out.writeDouble(lat);
+			out.writeDouble(lon);
+			writeBytes(out, tags);
+			out.writeBoolean(propagate);
+			checkSortBuffers();
+			return;
+		}
+		currentCountNode++;
+		prepNode.setLong(1, id);
+		prepNode.setDouble(2, lat);
+		prepNode.setDouble(3, lon);
+		prepNode.setBytes(4, tags);
+		prepNode.setBoolean(5, propagate);
+		prepNode.addBatch();
+		executeNodesBatch(false);
 	}
 
 	private void executeNodesBatch(boolean force) throws SQLException {
-		if (currentCountNode >= BATCH_SIZE_OSM || force) {
+		if (currentCountNode >= batchSize || force) {
 			prepNode.executeBatch();
 			dbConn.commit(); // clear memory
 			currentCountNode = 0;
@@ -512,7 +819,26 @@ public class OsmDbCreator implements IOsmStorageFilter {
 
 
 
-	private Node getNode(long l) throws SQLException {
+	private ByteArrayOutputStream serializeTags(Entity e) {
+		ByteArrayOutputStream tags = new ByteArrayOutputStream();
+		try {
+			for (Entry<String, String> i : e.getTags().entrySet()) {
+				// UTF-8 default
+				tags.write(i.getKey().getBytes("UTF-8"));
+				tags.write(0);
+				tags.write(i.getValue().getBytes("UTF-8"));
+				tags.write(0);
+			}
+		} catch (IOException es) {
+			throw new RuntimeException(es);
+		}
+		return tags;
+	}
+
+	private Node getNode(long l) throws SQLException, IOException {
+		if (nodeLocationStore != null) {
+			return nodeLocationStore.getNode(l, false);
+		}
 		selectNode.setLong(1, l);
 		ResultSet q = selectNode.executeQuery();
 		if (q.next()) {
@@ -536,6 +862,10 @@ public class OsmDbCreator implements IOsmStorageFilter {
 	public void setPropagateToNodes(PropagateToNodes propagateToNodes) {
 		this.propagateToNodes = propagateToNodes;
 	}
+
+	public void setNodeLocationStore(NodeLocationStore nodeLocationStore) {
+		this.nodeLocationStore = nodeLocationStore;
+	}
 	
 
 }
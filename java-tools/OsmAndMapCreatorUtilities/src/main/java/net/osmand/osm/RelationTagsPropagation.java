@@ -213,6 +213,27 @@ public class RelationTagsPropagation {
 	
 	
 	public Map<String, String> addPropogatedTags(MapRenderingTypesEncoder renderingTypes, EntityConvertApplyType tp, Entity e, Map<String, String> tags) {
+		return addPropogatedTags(renderingTypes, tp, e, tags, null);
+	}
+
+	public boolean hasRelationGroupTags(Entity e) {
+		PropagateEntityTags proptags = propogatedTags.get(EntityId.valueOf(e));
+		if (proptags != null) {
+			for (List<PropagateTagGroup> groups : proptags.relationGroupTags.values()) {
+				if (!groups.isEmpty()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Relation group tags are put into groupTags instead of the entity (if it's not null), so the caller can put them
+	 * later (tags of the entity are used by the next index creators).
+	 */
+	public Map<String, String> addPropogatedTags(MapRenderingTypesEncoder renderingTypes, EntityConvertApplyType tp, Entity e,
+			Map<String, String> tags, Map<String, String> groupTags) {
 		EntityId eid = EntityId.valueOf(e);
 		PropagateEntityTags proptags = propogatedTags.get(eid);
 		if (proptags != null) {
@@ -240,7 +261,11 @@ public class RelationTagsPropagation {
 				for (PropagateTagGroup g : groups) {
 					String groupPart = g.groupKey + "_" + mod ;
 					renderingTypes.checkOrCreateAdditional(groupPart, "", null);
-					e.putTag(groupPart, "");
+					if (groupTags != null) {
+						groupTags.put(groupPart, "");
+					} else {
+						e.putTag(groupPart, "");
+					}
 					for (Entry<String, String> te : g.tags.entrySet()) {
 						String targetTag = groupPart+ "_" + te.getKey();
 						String targetValue = te.getValue();
@@ -252,7 +277,11 @@ public class RelationTagsPropagation {
 						} else {
 							renderingTypes.checkOrCreateTextRule(targetTag, rt);
 						}
-						e.putTag(targetTag, targetValue);
+						if (groupTags != null) {
+							groupTags.put(targetTag, targetValue);
+						} else {
+							e.putTag(targetTag, targetValue);
+						}
 					}
 					mod++;
 				}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -15,18 +16,35 @@ import net.osmand.osm.edit.Relation;
 import net.osmand.osm.edit.Way;
 import net.osmand.osm.edit.Entity.EntityId;
 import net.osmand.osm.edit.Entity.EntityType;
+import com.google.protobuf.GeneratedMessage;
+
 import crosby.binary.BinaryParser;
 import crosby.binary.Osmformat.DenseNodes;
 import crosby.binary.Osmformat.HeaderBlock;
 import crosby.binary.Osmformat.Info;
 import crosby.binary.Osmformat.Relation.MemberType;
 import crosby.binary.file.BlockInputStream;
+import crosby.binary.file.FileBlock;
+import crosby.binary.file.FileBlockPosition;
+import crosby.binary.file.ParallelBlockInputStream;
+import crosby.binary.file.ParallelBlockReaderAdapter;
 
 public class OsmBaseStoragePbf extends OsmBaseStorage {
 
 	public synchronized void parseOSMPbf(final InputStream stream, final IProgress progress, final boolean entityInfo) throws IOException {
-		BinaryParser parser = new BinaryParser() {
-			public void updateProgress(int count) {
+		parseOSMPbf(stream, progress, entityInfo, 1);
+	}
+
+	/**
+	 * @param threads number of threads used to inflate and decode pbf blocks (1 - decode on the caller thread),
+	 *                entities are always registered on the caller thread in the file order
+	 */
+	public synchronized void parseOSMPbf(final InputStream stream, final IProgress progress, final boolean entityInfo,
+			int threads) throws IOException {
+		final EntityParser parser = new EntityParser(entityInfo) {
+
+			@Override
+			protected void updateProgress(int count) {
 				progressEntity += count;
 				if (progress != null && progressEntity > moduleProgress && !progress.isIndeterminate()) {
 					try {
@@ -38,7 +56,8 @@ public class OsmBaseStoragePbf extends OsmBaseStorage {
 				}
 			}
 
-			public void registerEntity(EntityType type, Entity e, EntityInfo info) {
+			@Override
+			protected void registerEntity(EntityType type, Entity e, EntityInfo info) {
 				EntityId entityId = new EntityId(type, e.getId());
 				if (acceptEntityToLoad(entityId, e)) {
 					Entity oldEntity = entities.put(entityId, e);
@@ -50,172 +69,255 @@ public class OsmBaseStoragePbf extends OsmBaseStorage {
 					}
 				}
 			}
+		};
 
-			@Override
-			protected void parse(HeaderBlock header) {
-			}
+		this.progressEntity = 0;
+		this.entities.clear();
+		this.entityInfo.clear();
+		if(progress != null){
+			progress.startWork(stream.available());
+		}
 
-			private DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'"); //$NON-NLS-1$
+		if (threads > 1) {
+			ParallelBlockInputStream<BlockEntities> bis = new ParallelBlockInputStream<BlockEntities>(stream,
+					new ParallelEntityAdapter(parser, entityInfo), threads);
+			bis.process();
+		} else {
+			BlockInputStream bis = new BlockInputStream(stream, parser);
+			bis.process();
+		}
 
-			@Override
-			protected void parseDense(DenseNodes n) {
-				EntityInfo info = null;
-				long changeset = 0;
-				long timestamp = 0;
-				int uid = 0;
-				int user = 0;
-				long id = 0;
-				long lat = 0;
-				long lon = 0;
-				int keyInd = 0;
-				boolean tagsEmpty = n.getKeysValsCount() == 0;
-				for (int i = 0; i < n.getIdCount(); i++) {
-					id += n.getId(i);
-					lat += n.getLat(i);
-					lon += n.getLon(i);
-					Node node = new Node(parseLat(lat), parseLon(lon), id);
-
-					if (entityInfo && n.getDenseinfo() != null) {
-						info = new EntityInfo();
-						changeset += n.getDenseinfo().getChangeset(i);
-						timestamp += n.getDenseinfo().getTimestamp(i);
-						uid += n.getDenseinfo().getUid(i);
-						user += n.getDenseinfo().getUserSid(i);
-						info.setChangeset(String.valueOf(changeset)); //$NON-NLS-1$
-						info.setTimestamp(format.format(new Date(date_granularity * (timestamp))));
-						info.setUser(getStringById(user));
-						info.setUid(String.valueOf(uid)); //$NON-NLS-1$
-						info.setVersion(String.valueOf(n.getDenseinfo().getVersion(i))); //$NON-NLS-1$
-						info.setVisible("true"); //$NON-NLS-1$
-					}
-					if (!tagsEmpty) {
-						while (n.getKeysVals(keyInd) != 0) {
-							String key = getStringById(n.getKeysVals(keyInd));
-							String val = getStringById(n.getKeysVals(keyInd + 1));
-							node.putTag(key, val);
-							keyInd += 2;
-						}
-						keyInd++;
+		if(progress != null){
+			progress.finishTask();
+		}
+		completeReading();
+	}
+
+	private abstract static class EntityParser extends BinaryParser {
+
+		protected final boolean entityInfo;
+
+		public EntityParser(boolean entityInfo) {
+			this.entityInfo = entityInfo;
+		}
+
+		protected abstract void registerEntity(EntityType type, Entity e, EntityInfo info);
+
+		protected void updateProgress(int count) {
+		}
+
+		@Override
+		protected void parse(HeaderBlock header) {
+		}
+
+		private DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'"); //$NON-NLS-1$
+
+		@Override
+		protected void parseDense(DenseNodes n) {
+			EntityInfo info = null;
+			long changeset = 0;
+			long timestamp = 0;
+			int uid = 0;
+			int user = 0;
+			long id = 0;
+			long lat = 0;
+			long lon = 0;
+			int keyInd = 0;
+			boolean tagsEmpty = n.getKeysValsCount() == 0;
+			for (int i = 0; i < n.getIdCount(); i++) {
+				id += n.getId(i);
+				lat += n.getLat(i);
+				lon += n.getLon(i);
+				Node node = new Node(parseLat(lat), parseLon(lon), id);
+
+				if (entityInfo && n.getDenseinfo() != null) {
+					info = new EntityInfo();
+					changeset += n.getDenseinfo().getChangeset(i);
+					timestamp += n.getDenseinfo().getTimestamp(i);
+					uid += n.getDenseinfo().getUid(i);
+					user += n.getDenseinfo().getUserSid(i);
+					info.setChangeset(String.valueOf(changeset)); //$NON-NLS-1$
+					info.setTimestamp(format.format(new Date(date_granularity * (timestamp))));
+					info.setUser(getStringById(user));
+					info.setUid(String.valueOf(uid)); //$NON-NLS-1$
+					info.setVersion(String.valueOf(n.getDenseinfo().getVersion(i))); //$NON-NLS-1$
+					info.setVisible("true"); //$NON-NLS-1$
+				}
+				if (!tagsEmpty) {
+					while (n.getKeysVals(keyInd) != 0) {
+						String key = getStringById(n.getKeysVals(keyInd));
+						String val = getStringById(n.getKeysVals(keyInd + 1));
+						node.putTag(key, val);
+						keyInd += 2;
 					}
-					registerEntity(EntityType.NODE, node, info);
+					keyInd++;
 				}
-				updateProgress(n.getIdCount());
+				registerEntity(EntityType.NODE, node, info);
 			}
+			updateProgress(n.getIdCount());
+		}
 
-			protected EntityInfo parseEntityInfo(Info i) {
-				EntityInfo info = new EntityInfo();
-				info.setChangeset(String.valueOf(i.getChangeset())); //$NON-NLS-1$
-				info.setTimestamp(format.format(getDate(i)));
-				info.setUser(getStringById(i.getUserSid()));
-				info.setUid(String.valueOf(i.getUid())); //$NON-NLS-1$
-				info.setVersion(String.valueOf(i.getVersion())); //$NON-NLS-1$
-				info.setVisible("true"); //$NON-NLS-1$
-				return info;
-			}
+		protected EntityInfo parseEntityInfo(Info i) {
+			EntityInfo info = new EntityInfo();
+			info.setChangeset(String.valueOf(i.getChangeset())); //$NON-NLS-1$
+			info.setTimestamp(format.format(getDate(i)));
+			info.setUser(getStringById(i.getUserSid()));
+			info.setUid(String.valueOf(i.getUid())); //$NON-NLS-1$
+			info.setVersion(String.valueOf(i.getVersion())); //$NON-NLS-1$
+			info.setVisible("true"); //$NON-NLS-1$
+			return info;
+		}
 
-			@Override
-			protected void parseNodes(List<crosby.binary.Osmformat.Node> n) {
-				EntityInfo info = null;
-				int nsize = n.size();
-				for (int i = 0; i < nsize; i++) {
-					crosby.binary.Osmformat.Node nod = n.get(i);
-					Node e = new Node(parseLat(nod.getLat()), parseLon(nod.getLon()), nod.getId());
-					for (int j = 0; j < nod.getKeysCount(); j++) {
-						String key = getStringById(nod.getKeys(j));
-						String val = getStringById(nod.getVals(j));
-						e.putTag(key, val);
-					}
-					if (entityInfo) {
-						info = parseEntityInfo(nod.getInfo());
-					}
-					registerEntity(EntityType.NODE, e, info);
+		@Override
+		protected void parseNodes(List<crosby.binary.Osmformat.Node> n) {
+			EntityInfo info = null;
+			int nsize = n.size();
+			for (int i = 0; i < nsize; i++) {
+				crosby.binary.Osmformat.Node nod = n.get(i);
+				Node e = new Node(parseLat(nod.getLat()), parseLon(nod.getLon()), nod.getId());
+				for (int j = 0; j < nod.getKeysCount(); j++) {
+					String key = getStringById(nod.getKeys(j));
+					String val = getStringById(nod.getVals(j));
+					e.putTag(key, val);
 				}
-				updateProgress(nsize);
+				if (entityInfo) {
+					info = parseEntityInfo(nod.getInfo());
+				}
+				registerEntity(EntityType.NODE, e, info);
 			}
+			updateProgress(nsize);
+		}
 
-			@Override
-			protected void parseRelations(List<crosby.binary.Osmformat.Relation> r) {
-				EntityInfo info = null;
-				int rsize = r.size();
-				for (int i = 0; i < rsize; i++) {
-					crosby.binary.Osmformat.Relation rel = r.get(i);
-					Relation e = new Relation(rel.getId());
-					long id = 0;
-					for (int j = 0; j < rel.getMemidsCount(); j++) {
-						id += rel.getMemids(j);
-						String role = getStringById(rel.getRolesSid(j));
-						MemberType t = rel.getTypes(j);
-						EntityType ts = EntityType.NODE;
-						switch (t) {
-						case NODE:
-							ts = EntityType.NODE;
-							break;
-						case WAY:
-							ts = EntityType.WAY;
-							break;
-						case RELATION:
-							ts = EntityType.RELATION;
-							break;
-						}
-						e.addMember(id, ts, role);
-					}
-					for (int j = 0; j < rel.getKeysCount(); j++) {
-						String key = getStringById(rel.getKeys(j));
-						String val = getStringById(rel.getVals(j));
-						e.putTag(key, val);
-					}
-					if (entityInfo) {
-						info = parseEntityInfo(rel.getInfo());
+		@Override
+		protected void parseRelations(List<crosby.binary.Osmformat.Relation> r) {
+			EntityInfo info = null;
+			int rsize = r.size();
+			for (int i = 0; i < rsize; i++) {
+				crosby.binary.Osmformat.Relation rel = r.get(i);
+				Relation e = new Relation(rel.getId());
+				long id = 0;
+				for (int j = 0; j < rel.getMemidsCount(); j++) {
+					id += rel.getMemids(j);
+					String role = getStringById(rel.getRolesSid(j));
+					MemberType t = rel.getTypes(j);
+					EntityType ts = EntityType.NODE;
+					switch (t) {
+					case NODE:
+						ts = EntityType.NODE;
+						break;
+					case WAY:
+						ts = EntityType.WAY;
+						break;
+					case RELATION:
+						ts = EntityType.RELATION;
+						break;
 					}
-					registerEntity(EntityType.RELATION, e, info);
+					e.addMember(id, ts, role);
+				}
+				for (int j = 0; j < rel.getKeysCount(); j++) {
+					String key = getStringById(rel.getKeys(j));
+					String val = getStringById(rel.getVals(j));
+					e.putTag(key, val);
+				}
+				if (entityInfo) {
+					info = parseEntityInfo(rel.getInfo());
 				}
-				updateProgress(rsize);
+				registerEntity(EntityType.RELATION, e, info);
 			}
+			updateProgress(rsize);
+		}
 
-			@Override
-			protected void parseWays(List<crosby.binary.Osmformat.Way> w) {
-				EntityInfo info = null;
-				int wsize = w.size();
-				for (int i = 0; i < wsize; i++) {
-					crosby.binary.Osmformat.Way way = w.get(i);
-					Way e = new Way(way.getId());
-					long id = 0;
-					for (int j = 0; j < way.getRefsCount(); j++) {
-						id += way.getRefs(j);
-						e.addNode(id);
-					}
-					for (int j = 0; j < way.getKeysCount(); j++) {
-						String key = getStringById(way.getKeys(j));
-						String val = getStringById(way.getVals(j));
-						e.putTag(key, val);
-					}
-					if (entityInfo) {
-						info = parseEntityInfo(way.getInfo());
-					}
-					registerEntity(EntityType.WAY, e, info);
+		@Override
+		protected void parseWays(List<crosby.binary.Osmformat.Way> w) {
+			EntityInfo info = null;
+			int wsize = w.size();
+			for (int i = 0; i < wsize; i++) {
+				crosby.binary.Osmformat.Way way = w.get(i);
+				Way e = new Way(way.getId());
+				long id = 0;
+				for (int j = 0; j < way.getRefsCount(); j++) {
+					id += way.getRefs(j);
+					e.addNode(id);
+				}
+				for (int j = 0; j < way.getKeysCount(); j++) {
+					String key = getStringById(way.getKeys(j));
+					String val = getStringById(way.getVals(j));
+					e.putTag(key, val);
+				}
+				if (entityInfo) {
+					info = parseEntityInfo(way.getInfo());
 				}
-				updateProgress(wsize);
+				registerEntity(EntityType.WAY, e, info);
 			}
+			updateProgress(wsize);
+		}
 
-			@Override
-			public void complete() {
-			}
+		@Override
+		public void complete() {
+		}
+	}
 
-		};
+	/**
+	 * Collects entities of one block, it is created and filled on a decoder thread.
+	 */
+	private static class BlockEntities extends EntityParser {
 
-		this.progressEntity = 0;
-		this.entities.clear();
-		this.entityInfo.clear();
-		if(progress != null){
-			progress.startWork(stream.available());
+		private final List<EntityType> types = new ArrayList<EntityType>();
+		private final List<Entity> entities = new ArrayList<Entity>();
+		private final List<EntityInfo> infos = new ArrayList<EntityInfo>();
+
+		public BlockEntities(boolean entityInfo) {
+			super(entityInfo);
 		}
 
-		BlockInputStream bis = new BlockInputStream(stream, parser);
-		bis.process();
+		@Override
+		protected void registerEntity(EntityType type, Entity e, EntityInfo info) {
+			types.add(type);
+			entities.add(e);
+			infos.add(info);
+		}
+	}
 
-		if(progress != null){
-			progress.finishTask();
+	private static class ParallelEntityAdapter implements ParallelBlockReaderAdapter<BlockEntities> {
+
+		private final EntityParser parser;
+		private final boolean entityInfo;
+
+		public ParallelEntityAdapter(EntityParser parser, boolean entityInfo) {
+			this.parser = parser;
+			this.entityInfo = entityInfo;
+		}
+
+		@Override
+		public boolean skipBlock(FileBlockPosition message) {
+			return parser.skipBlock(message);
+		}
+
+		@Override
+		public void handleBlock(FileBlock message) {
+			handleDecodedBlock(message, decodeBlock(message));
+		}
+
+		@Override
+		public BlockEntities decodeBlock(FileBlock message) {
+			GeneratedMessage decoded = parser.decodeBlock(message);
+			BlockEntities blockEntities = new BlockEntities(entityInfo);
+			blockEntities.handleDecodedBlock(message, decoded);
+			return blockEntities;
+		}
+
+		@Override
+		public void handleDecodedBlock(FileBlock message, BlockEntities decoded) {
+			int size = decoded.entities.size();
+			for (int i = 0; i < size; i++) {
+				parser.registerEntity(decoded.types.get(i), decoded.entities.get(i), decoded.infos.get(i));
+			}
+			parser.updateProgress(size);
+		}
+
+		@Override
+		public void complete() {
+			parser.complete();
 		}
-		completeReading();
 	}
 }
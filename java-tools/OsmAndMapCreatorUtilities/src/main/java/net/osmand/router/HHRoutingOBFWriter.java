@@ -49,17 +49,15 @@ import net.osmand.binary.BinaryMapIndexReader.TagValuePair;
 import net.osmand.data.QuadRect;
 import net.osmand.map.OsmandRegions;
 import net.osmand.obf.BinaryInspector;
-import net.osmand.obf.preparation.AbstractIndexPartCreator;
 import net.osmand.obf.preparation.BinaryMapIndexWriter;
 import net.osmand.obf.preparation.IndexVectorMapCreator;
 import net.osmand.router.HHRouteDataStructure.NetworkDBPoint;
 import net.osmand.util.MapUtils;
 import rtree.Element;
 import rtree.IllegalValueException;
-import rtree.LeafElement;
-import rtree.RTree;
+import rtree.PackedRTree;
 import rtree.RTreeException;
-import rtree.RTreeInsertException;
+import rtree.ReadableRTree;
 import rtree.Rect;
 
 public class HHRoutingOBFWriter {
@@ -67,6 +65,8 @@ public class HHRoutingOBFWriter {
 	private static final int BLOCK_SEGMENTS_AVG_BLOCKS_SIZE = 10;
 	private static final int BLOCK_SEGMENTS_AVG_BUCKET_SIZE = 7;
 	public static final int BUFFER_SIZE = 1 << 20;
+	// points of the tree above the limit are spilled to the rtree file
+	private static final long RTREE_HEAP_LIMIT = 64L << 20;
 	protected static boolean PREINDEX_POINTS_BY_COUNTRIES = true;
 	protected static boolean WRITE_TAG_VALUES = true;
 	protected static int THREAD_POOL = 1;
@@ -150,10 +150,6 @@ public class HHRoutingOBFWriter {
 	}
 	
 	public void writeFile(File obfPolyFileIn, File outFolder, boolean updateExistingFiles) throws IOException, SQLException, IllegalValueException {
-		if (THREAD_POOL > 1) {
-			System.err.println("Threads > 1 are not supported cause of current R-Tree limitations ");
-			THREAD_POOL = 1;
-		}
 		if (obfPolyFileIn == null) {
 			File outFile = new File(dbFile.getParentFile(),
 					dbFile.getName().substring(0, dbFile.getName().lastIndexOf('.')) + ".obf");
@@ -413,7 +409,8 @@ public class HHRoutingOBFWriter {
 			throws SQLException, IOException, IllegalValueException {
 		StringBuilder log = new StringBuilder();
 		String rTreeFile = outFile.getAbsolutePath() + ".rtree";
-		String rpTreeFile = outFile.getAbsolutePath() + ".rptree";
+		// packed rtree is not shared between instances (file rtree has static caches), so files are written in parallel
+		PackedRTree routeTree = new PackedRTree(new File(rTreeFile), RTREE_HEAP_LIMIT);
 		try {
 			
 			BinaryMapIndexReader reader = null;
@@ -448,12 +445,10 @@ public class HHRoutingOBFWriter {
 				vc = new ValidateClusterSizeStructure(points);
 			}
 			
-			final RTree routeTree = new RTree(rTreeFile);
 			String logRes = preparePointsToWrite(routeTree, points, pntsMap, bbox31, filteredPoints);
 			log.append(logRes);
-			RTree packRTree = AbstractIndexPartCreator.packRtreeFile(routeTree, rTreeFile, rpTreeFile);
-			long rootIndex = packRTree.getFileHdr().getRootIndex();
-			rtree.Node root = packRTree.getReadNode(rootIndex);
+			routeTree.pack();
+			rtree.Node root = routeTree.getReadNode(routeTree.getRootIndex());
 			Rect rootBounds = IndexVectorMapCreator.calcBounds(root);
 
 			List<String> tagValuesDictionary = null;
@@ -484,7 +479,7 @@ public class HHRoutingOBFWriter {
 			bmiw.startHHRoutingIndex(edition, profile, tagValuesDictionary, allowLongSize, profileParams);
 			if (rootBounds != null) {
 				long fp = bmiw.getFilePointer();
-				List<NetworkDBPointWrite> pntsList = writeBinaryRouteTree(root, rootBounds, packRTree, bmiw, pntsMap, new int[] {0});
+				List<NetworkDBPointWrite> pntsList = writeBinaryRouteTree(root, rootBounds, routeTree, bmiw, pntsMap, new int[] {0});
 				long size = bmiw.getFilePointer() - fp;
 				// validate number of clusters
 				if (vc != null) {
@@ -518,27 +513,23 @@ public class HHRoutingOBFWriter {
 			bmiw.endHHRoutingIndex();
 			bmiw.close();
 
-			RandomAccessFile file = packRTree.getFileHdr().getFile();
-			file.close();
 			if (reader != null) {
 				reader.close();
 				writeFile.renameTo(outFile);
 //				outFile.setLastModified(timestamp); // don't update timestamp to use to compare with latest files
 			}
-		} catch (RTreeException | RTreeInsertException e) {
+		} catch (RTreeException e) {
 			throw new IOException(e);
 		} finally {
-			new File(rTreeFile).delete();
-			new File(rpTreeFile).delete();
+			routeTree.close();
 		}
-		RTree.clearCache();
 		return log.toString();
 	}
 
 
-	private String preparePointsToWrite(final RTree routeTree, List<NetworkDBPointWrite> points, TLongObjectHashMap<NetworkDBPointWrite> pntsMap,
+	private String preparePointsToWrite(final PackedRTree routeTree, List<NetworkDBPointWrite> points, TLongObjectHashMap<NetworkDBPointWrite> pntsMap,
 			QuadRect bbox31, TLongArrayList filteredPoints)
-			throws RTreeInsertException, IllegalValueException {
+			throws IOException, IllegalValueException {
 		StringBuilder log = new StringBuilder();
 		if (filteredPoints != null) {
 			filteredPoints.forEach(new TLongProcedure() {
@@ -547,7 +538,7 @@ public class HHRoutingOBFWriter {
 					NetworkDBPointWrite p = pntsMap.get(value);
 					p.includeFlag = 1;
 					try {
-						routeTree.insert(new LeafElement(new Rect(p.pnt.midX(), p.pnt.midY(), p.pnt.midX(), p.pnt.midY()), p.pnt.index));
+						routeTree.add(p.pnt.midX(), p.pnt.midY(), p.pnt.midX(), p.pnt.midY(), p.pnt.index);
 					} catch (Exception e) {
 						throw new RuntimeException(e); 
 					}
@@ -559,7 +550,7 @@ public class HHRoutingOBFWriter {
 			for (NetworkDBPointWrite p : points) {
 				if (initialState || bbox31.contains(p.pnt.midX(), p.pnt.midY(), p.pnt.midX(), p.pnt.midY())) {
 					p.includeFlag = 1;
-					routeTree.insert(new LeafElement(new Rect(p.pnt.midX(), p.pnt.midY(), p.pnt.midX(), p.pnt.midY()), p.pnt.index));
+					routeTree.add(p.pnt.midX(), p.pnt.midY(), p.pnt.midX(), p.pnt.midY(), p.pnt.index);
 				}
 			}
 		}
@@ -581,8 +572,8 @@ public class HHRoutingOBFWriter {
 		return log.toString();
 	}
 
-	private String addIncompletePointsToFormClusters(String msg, Collection<NetworkDBPointWrite> points, RTree routeTree)
-			throws RTreeInsertException, IllegalValueException {
+	private String addIncompletePointsToFormClusters(String msg, Collection<NetworkDBPointWrite> points, PackedRTree routeTree)
+			throws IOException, IllegalValueException {
 		// IMPORTANT: same(pnt.clusterId) - forms a shape where segments look outward the shape
 		TLongHashSet clusterDualPointsForInNeeded = new TLongHashSet();
 		TLongHashSet clusterPointsForOutNeeded = new TLongHashSet();
@@ -600,8 +591,7 @@ public class HHRoutingOBFWriter {
 						clusterDualPointsForInNeeded.contains(p.pnt.clusterId)) {
 					partial++;
 					if (p.includeFlag == 0) {
-						routeTree.insert(
-								new LeafElement(new Rect(p.pnt.midX(), p.pnt.midY(), p.pnt.midX(), p.pnt.midY()), p.pnt.index));
+						routeTree.add(p.pnt.midX(), p.pnt.midY(), p.pnt.midX(), p.pnt.midY(), p.pnt.index);
 					}
 					p.includeFlag = 2;
 				}
@@ -647,7 +637,7 @@ public class HHRoutingOBFWriter {
 		writer.endHHRouteBlockSegments();
 	}
 
-	private List<NetworkDBPointWrite> writeBinaryRouteTree(rtree.Node parent, Rect re, RTree r, BinaryMapIndexWriter writer,
+	private List<NetworkDBPointWrite> writeBinaryRouteTree(rtree.Node parent, Rect re, ReadableRTree r, BinaryMapIndexWriter writer,
 			TLongObjectHashMap<NetworkDBPointWrite> points, int[] pntId)
 			throws IOException, RTreeException {
 		Element[] es = parent.getAllElements();
@@ -705,6 +695,7 @@ public class HHRoutingOBFWriter {
 				ctxPoints = convertPoints(writer.points);
 				ctxPointsList = toList(ctxPoints);
 				context.set(ctxPoints);
+				contextList.set(ctxPointsList);
 			}
 			return writer.writeObfFileByBbox(ctxPointsList, ctxPoints, outFile, bbox31, filteredPoints);
 		}
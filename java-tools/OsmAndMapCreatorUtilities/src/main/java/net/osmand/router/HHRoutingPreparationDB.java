@@ -609,19 +609,31 @@ public class HHRoutingPreparationDB extends HHRoutingDB {
 	}
 
 	public int prepareBorderPointsToInsert(int fileId, List<RouteSegmentBorderPoint> borderPoints, TLongObjectHashMap<NetworkBorderPoint> pointDbInd) {
+		int clusterIndex = assignBorderPointIds(borderPoints);
+		collectBorderPoints(fileId, borderPoints, pointDbInd);
+		return clusterIndex; 
+	}
+
+	public int assignBorderPointIds(List<RouteSegmentBorderPoint> borderPoints) {
 		int clusterIndex = ++maxClusterID;
+		for (RouteSegmentBorderPoint obj : borderPoints) {
+			obj.pointDbId = ++maxPointDBID;
+			obj.clusterDbId = clusterIndex;
+		}
+		return clusterIndex;
+	}
+
+	// border points without db ids (parallel processing assigns them later in region order)
+	public static void collectBorderPoints(int fileId, List<RouteSegmentBorderPoint> borderPoints,
+			TLongObjectHashMap<NetworkBorderPoint> pointDbInd) {
 		for (RouteSegmentBorderPoint obj : borderPoints) {
 			if (!pointDbInd.containsKey(obj.unidirId)) {
 				pointDbInd.put(obj.unidirId, new NetworkBorderPoint(obj.unidirId));
 			}
 			NetworkBorderPoint npnt = pointDbInd.get(obj.unidirId);
-			obj.pointDbId = ++maxPointDBID;
-			obj.clusterDbId = clusterIndex;
 			obj.fileDbId = fileId;
-			
 			npnt.set(obj.unidirId, obj);
 		}
-		return clusterIndex; 
 	}
 	
 	public boolean hasVisitedPoints(NetworkRouteRegion nrouteRegion) throws SQLException {
@@ -14,13 +14,15 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
@@ -55,8 +57,9 @@ public class HHRoutingShortcutCreator {
 	private static HHRoutingPrepareContext prepareContext;
 	
 	private static boolean CLEAN;
-	private static int BATCH_SIZE = 1000;
 	private static int THREAD_POOL = 2;
+	// clusters in progress or waiting to be written per thread
+	private static final int CLUSTERS_PER_THREAD = 2;
 	
 	private static String ROUTING_PROFILE = "car";
 	private static String ROUTING_PARAMS = "";
@@ -298,7 +301,7 @@ public class HHRoutingShortcutCreator {
 			throws InterruptedException, IOException, SQLException, ExecutionException {
 		TLongObjectHashMap<Entity> osmObjects = new TLongObjectHashMap<>();
 		double sz = pnts.size() / 100.0;
-		int ind = 0, prevPrintInd = 0;
+		int ind = 0;
 		TLongObjectHashMap<RouteSegment> segments = new TLongObjectHashMap<>();
 		for (NetworkDBPoint pnt : pnts.valueCollection()) {
 			RouteSegment s = new RouteSegment(null, pnt.start, pnt.end);
@@ -306,16 +309,6 @@ public class HHRoutingShortcutCreator {
 			HHRoutingUtilities.addNode(osmObjects, pnt, null, "highway", "stop");
 		}
 
-		ExecutorService service = Executors.newFixedThreadPool(THREAD_POOL);
-		List<Future<BuildNetworkShortcutResult>> results = new ArrayList<>();
-		List<NetworkDBPoint> batch = new ArrayList<>();
-		int taskId = 0;
-		int total = 0;
-		int batchSize = BATCH_SIZE;
-		if (pnts.size() / THREAD_POOL < batchSize) {
-			batchSize = pnts.size() / THREAD_POOL + 1;
-		}
-		
 		TLongObjectHashMap<NetworkDBPoint> networkPointsByGeoId = new TLongObjectHashMap<>();
 		for (NetworkDBPoint pnt : pnts.valueCollection()) {
 			networkPointsByGeoId.put(pnt.getGeoPntId() , pnt);
@@ -329,6 +322,11 @@ public class HHRoutingShortcutCreator {
 				return Integer.compare(o1.index, o2.index);
 			}
 		});
+		// points are grouped by the cluster they lead into (routing explores only that cluster), so one task
+		// loads data of one cluster and routing context is unloaded between clusters
+		List<List<NetworkDBPoint>> clusters = new ArrayList<>();
+		TLongObjectHashMap<List<NetworkDBPoint>> pointsByCluster = new TLongObjectHashMap<>();
+		int total = 0;
 		for (NetworkDBPoint pnt : lst) {
 			ind++;
 			if (pnt.connectedReverse.size() > 0) {
@@ -341,81 +339,112 @@ public class HHRoutingShortcutCreator {
 			if (ind < DEBUG_LIMIT_START_OFFSET) {
 				continue;
 			}
-			batch.add(pnt);
+			List<NetworkDBPoint> cluster = pointsByCluster.get(pnt.dualPoint.clusterId);
+			if (cluster == null) {
+				cluster = new ArrayList<>();
+				pointsByCluster.put(pnt.dualPoint.clusterId, cluster);
+				clusters.add(cluster);
+			}
+			cluster.add(pnt);
+			total++;
 			if (ind > DEBUG_LIMIT_PROCESS && DEBUG_LIMIT_PROCESS != -1) {
 				break;
 			}
-			if (batch.size() == batchSize) {
-				results.add(service.submit(new BuildNetworkShortcutTask(this, batch, segments, networkPointsByGeoId, taskId++)));
-				total += batch.size();
-				batch = new ArrayList<>();
-			}
 		}
+		pointsByCluster = null;
 		System.gc();
-		total += batch.size();
-		results.add(service.submit(new BuildNetworkShortcutTask(this, batch, segments, networkPointsByGeoId, taskId++)));
-		logf("Scheduled %d tasks, %d total points", taskId, total);
-		int maxDirectedPointsGraph = 0;
-		int maxFinalSegmentsFound = 0;
-		int totalFinalSegmentsFound = 0;
-		int totalVisitedDirectSegments = 0;
-		ind = 1;
-		service.shutdown();
-		try {
-			while (!results.isEmpty()) {
-				Thread.sleep(5000);
-				Iterator<Future<BuildNetworkShortcutResult>> it = results.iterator();
-				while (it.hasNext()) {
-					Future<BuildNetworkShortcutResult> future = it.next();
-					if (future.isDone()) {
-						BuildNetworkShortcutResult res = future.get();
-						for (int k = 0; k < res.points.size(); k++) {
-							NetworkDBPoint rpnt = res.points.get(k);
-							RouteCalculationProgress calculationProgress = res.progress.get(k);
-							ind++;
-							if (DEBUG_VERBOSE_LEVEL >= 1 || ind - prevPrintInd > 200) {
-								prevPrintInd = ind;
-								logf("%.2f%% Process %d (%d shortcuts) - %.1f ms", ind / sz, rpnt.roadId / 64,
-										res.shortcuts.get(k), rpnt.rt(false).rtDistanceFromStart);
-							}
-							networkDB.insertSegments(rpnt.connected, routingProfile);
-							if (DEBUG_VERBOSE_LEVEL >= 2) {
-								System.out.println(calculationProgress.getInfo(null));
-							}
-
-							maxDirectedPointsGraph = Math.max(maxDirectedPointsGraph,
-									calculationProgress.visitedDirectSegments);
-							totalVisitedDirectSegments += calculationProgress.visitedDirectSegments;
-							maxFinalSegmentsFound = Math.max(maxFinalSegmentsFound,
-									calculationProgress.finalSegmentsFound);
-							totalFinalSegmentsFound += calculationProgress.finalSegmentsFound;
+		logf("Scheduled %d tasks (clusters), %d total points", clusters.size(), total);
 
-							// clean up for gc
-							rpnt.connected.clear();
-							rpnt.connectedReverse.clear();
-						}
-						osmObjects.putAll(res.osmObjects);
-						it.remove();
-						logf("Task id %d executed %.1f seconds - %d (of %d) waiting completion", res.taskId,
-								res.totalTime, results.size(), taskId);
+		ExecutorService service = Executors.newFixedThreadPool(THREAD_POOL);
+		ExecutorService dbWriter = Executors.newSingleThreadExecutor();
+		CompletionService<BuildNetworkShortcutResult> completion = new ExecutorCompletionService<>(service);
+		// limits results (with geometries of shortcuts) waiting to be written into db
+		Semaphore pending = new Semaphore(THREAD_POOL * CLUSTERS_PER_THREAD);
+		try {
+			Future<ShortcutStats> writer = dbWriter.submit(() -> writeShortcuts(completion, clusters.size(), pending,
+					networkDB, routingProfile, osmObjects, sz));
+			for (int taskId = 0; taskId < clusters.size(); taskId++) {
+				while (!pending.tryAcquire(1, TimeUnit.SECONDS)) {
+					if (writer.isDone()) {
+						// writer failed, exception is thrown by get
+						writer.get();
 					}
 				}
+				completion.submit(new BuildNetworkShortcutTask(this, clusters.get(taskId), segments,
+						networkPointsByGeoId, taskId));
+				clusters.set(taskId, null);
 			}
+			ShortcutStats stats = writer.get();
+			ind = Math.max(1, stats.points);
+			System.out.println(String.format(
+					"Total segments %d: %d total shorcuts, per border point max %d, average %d shortcuts (routing sub graph max %d, avg %d segments)",
+					segments.size(), stats.totalFinalSegmentsFound, stats.maxFinalSegmentsFound,
+					stats.totalFinalSegmentsFound / ind, stats.maxDirectedPointsGraph,
+					stats.totalVisitedDirectSegments / ind));
 		} finally {
 			List<Runnable> runnable = service.shutdownNow();
-			if (!results.isEmpty()) {
-				logf("!!! %d runnable were not executed: exception occurred", runnable == null ? 0 : runnable.size());
+			if (runnable != null && !runnable.isEmpty()) {
+				logf("!!! %d runnable were not executed: exception occurred", runnable.size());
 			}
+			dbWriter.shutdownNow();
 			service.awaitTermination(5, TimeUnit.MINUTES);
+			dbWriter.awaitTermination(5, TimeUnit.MINUTES);
 		}
-
-		System.out.println(String.format(
-				"Total segments %d: %d total shorcuts, per border point max %d, average %d shortcuts (routing sub graph max %d, avg %d segments)",
-				segments.size(), totalFinalSegmentsFound, maxFinalSegmentsFound, totalFinalSegmentsFound / ind,
-				maxDirectedPointsGraph, totalVisitedDirectSegments / ind));
 		return osmObjects.valueCollection();
 	}
 
+	private static class ShortcutStats {
+		int points;
+		int maxDirectedPointsGraph;
+		int maxFinalSegmentsFound;
+		int totalFinalSegmentsFound;
+		int totalVisitedDirectSegments;
+	}
+
+	/**
+	 * Runs in the db writer thread: takes results in order of completion and inserts segments, so workers are
+	 * never blocked by db.
+	 */
+	private ShortcutStats writeShortcuts(CompletionService<BuildNetworkShortcutResult> completion, int tasks,
+			Semaphore pending, HHRoutingPreparationDB networkDB, int routingProfile,
+			TLongObjectHashMap<Entity> osmObjects, double sz) throws InterruptedException, ExecutionException, SQLException {
+		ShortcutStats stats = new ShortcutStats();
+		int prevPrintInd = 0;
+		for (int t = 0; t < tasks; t++) {
+			BuildNetworkShortcutResult res = completion.take().get();
+			for (int k = 0; k < res.points.size(); k++) {
+				NetworkDBPoint rpnt = res.points.get(k);
+				RouteCalculationProgress calculationProgress = res.progress.get(k);
+				stats.points++;
+				if (DEBUG_VERBOSE_LEVEL >= 1 || stats.points - prevPrintInd > 200) {
+					prevPrintInd = stats.points;
+					logf("%.2f%% Process %d (%d shortcuts) - %.1f ms", stats.points / sz, rpnt.roadId / 64,
+							res.shortcuts.get(k), rpnt.rt(false).rtDistanceFromStart);
+				}
+				networkDB.insertSegments(rpnt.connected, routingProfile);
+				if (DEBUG_VERBOSE_LEVEL >= 2) {
+					System.out.println(calculationProgress.getInfo(null));
+				}
+
+				stats.maxDirectedPointsGraph = Math.max(stats.maxDirectedPointsGraph,
+						calculationProgress.visitedDirectSegments);
+				stats.totalVisitedDirectSegments += calculationProgress.visitedDirectSegments;
+				stats.maxFinalSegmentsFound = Math.max(stats.maxFinalSegmentsFound,
+						calculationProgress.finalSegmentsFound);
+				stats.totalFinalSegmentsFound += calculationProgress.finalSegmentsFound;
+
+				// clean up for gc
+				rpnt.connected.clear();
+				rpnt.connectedReverse.clear();
+			}
+			osmObjects.putAll(res.osmObjects);
+			pending.release();
+			logf("Task id %d executed %.1f seconds - %d (of %d) waiting completion", res.taskId,
+					res.totalTime, tasks - t - 1, tasks);
+		}
+		return stats;
+	}
+
 	private List<RouteSegment> runDijsktra(RoutingContext ctx, BinaryRoutePlanner routePlanner, RouteSegmentPoint s, TLongObjectMap<RouteSegment> segments)
 			throws InterruptedException, IOException {
 		long pnt = calculateRoutePointInternalId(s.getRoad().getId(), s.getSegmentEnd(), s.getSegmentStart());
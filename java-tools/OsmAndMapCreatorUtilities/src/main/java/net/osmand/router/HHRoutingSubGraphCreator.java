@@ -27,6 +27,10 @@ import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -72,7 +76,6 @@ import net.osmand.util.MapUtils;
 // 3. MID-TERM Speedups, small bugs and Data research
 // 3.0 UI: Suggest that maps need to be updated (downloaded)
 // 3.1 SERVER: Speedup points: Calculate in parallel (Planet) - Combine 2 processes ? 
-// 3.2 SERVER: Speedup shortcut: group by clusters to use less memory, different unload routing context
 // 3.3 DATA: Merge clusters (and remove border points): 1-2 border point or (22 of 88 clusters has only 2 neighbor clusters)
 // 3.4 DATA: Tests 1) Straight parallel roads -> 4 points 2) parking slots -> exit points 3) road and suburb -> exit points including road?
 // 3.5 DATA: Investigate difference ALG_BY_DEPTH_REACH_POINTS = true / false (speed / network) -  TOTAL_MAX_POINTS = 99000 vs (50000), TOTAL_MIN_POINTS = 1000
@@ -133,6 +136,7 @@ public class HHRoutingSubGraphCreator {
 	static boolean CLEAN = false;
 	static String ROUTING_PROFILE = "car";
 	static String ROUTING_PARAMS = "allow_private";
+	static int THREADS = 1;
 	
 	private static File testData() {
 		DEBUG_VERBOSE_LEVEL = 1;
@@ -164,6 +168,8 @@ public class HHRoutingSubGraphCreator {
 				ALG_BY_DEPTH_REACH_POINTS = false;
 			} else if (a.equals("--clean")) {
 				CLEAN = true;
+			} else if (a.startsWith("--threads=")) {
+				THREADS = Integer.parseInt(a.substring("--threads=".length()));
 			} else if (a.equals("--merge")) {
 				onlymerge = true;
 			} else if (a.equals("--debug")) {
@@ -272,6 +278,7 @@ public class HHRoutingSubGraphCreator {
 		});
 		ctx.networkDB.insertRegions(ctx.routeRegions);
 		int procInd = 0;
+		List<NetworkRouteRegion> regionsToProcess = new ArrayList<>();
 		for (NetworkRouteRegion nrouteRegion : ctx.routeRegions) {
 			System.out.println("------------------------");
 			procInd++;
@@ -289,34 +296,19 @@ public class HHRoutingSubGraphCreator {
 				}
 				throw new IllegalStateException();
 			}
-
-			double overlapBbox = OVERLAP_FOR_ROUTING;
+			regionsToProcess.add(nrouteRegion);
+		}
+		double startOverlapBbox = OVERLAP_FOR_ROUTING;
+		if (THREADS > 1) {
+			// regions which didn't fit into overlap are recalculated one by one with bigger overlap
+			regionsToProcess = collectNetworkPointsInParallel(ctx, regionsToProcess);
+			startOverlapBbox *= 2;
+		}
+		for (NetworkRouteRegion nrouteRegion : regionsToProcess) {
+			double overlapBbox = startOverlapBbox;
 			boolean notProcessed = true;
 			while (notProcessed) {
-				ctx.startRegionProcess(nrouteRegion, overlapBbox);
-				RouteRegion routeRegion = null;
-				for (RouteRegion rr : ctx.rctx.reverseMap.keySet()) {
-					if (rr.getFilePointer() == nrouteRegion.region.getFilePointer()
-							&& nrouteRegion.region.getName().equals(rr.getName())) {
-						routeRegion = rr;
-						break;
-					}
-				}
-				BinaryMapIndexReader reader = ctx.rctx.reverseMap.get(routeRegion);
-				logf("Region %s %d of %d %s", nrouteRegion.region.getName(), procInd, ctx.routeRegions.size(),
-						new Date().toString());
-
-				List<RouteSubregion> regions = reader.searchRouteIndexTree(
-						BinaryMapIndexReader.buildSearchRequest(
-								MapUtils.get31TileNumberX(nrouteRegion.region.getLeftLongitude()),
-								MapUtils.get31TileNumberX(nrouteRegion.region.getRightLongitude()),
-								MapUtils.get31TileNumberY(nrouteRegion.region.getTopLatitude()),
-								MapUtils.get31TileNumberY(nrouteRegion.region.getBottomLatitude()), 16, null),
-						routeRegion.getSubregions());
-
-				final long estimatedRoads = 1 + routeRegion.getLength() / 150; // 5 000 / 1 MB - 1 per 200 Byte
-				RouteDataObjectProcessor proc = new RouteDataObjectProcessor(ctx, estimatedRoads);
-				reader.loadRouteIndexData(regions, proc);
+				processRegion(ctx, nrouteRegion, overlapBbox);
 				boolean ok = ctx.finishRegionProcess(overlapBbox);
 				if (!ok) {
 					overlapBbox *= 2;
@@ -336,6 +328,133 @@ public class HHRoutingSubGraphCreator {
 		return ctx;
 	}
 
+	private void processRegion(NetworkCollectPointCtx ctx, NetworkRouteRegion nrouteRegion, double overlapBbox)
+			throws IOException, SQLException {
+		ctx.startRegionProcess(nrouteRegion, overlapBbox);
+		RouteRegion routeRegion = null;
+		for (RouteRegion rr : ctx.rctx.reverseMap.keySet()) {
+			if (rr.getFilePointer() == nrouteRegion.region.getFilePointer()
+					&& nrouteRegion.region.getName().equals(rr.getName())) {
+				routeRegion = rr;
+				break;
+			}
+		}
+		BinaryMapIndexReader reader = ctx.rctx.reverseMap.get(routeRegion);
+		logf("Region %s %d of %d %s", nrouteRegion.region.getName(), ctx.routeRegions.indexOf(nrouteRegion) + 1,
+				ctx.routeRegions.size(), new Date().toString());
+
+		List<RouteSubregion> regions = reader.searchRouteIndexTree(
+				BinaryMapIndexReader.buildSearchRequest(
+						MapUtils.get31TileNumberX(nrouteRegion.region.getLeftLongitude()),
+						MapUtils.get31TileNumberX(nrouteRegion.region.getRightLongitude()),
+						MapUtils.get31TileNumberY(nrouteRegion.region.getTopLatitude()),
+						MapUtils.get31TileNumberY(nrouteRegion.region.getBottomLatitude()), 16, null),
+				routeRegion.getSubregions());
+
+		final long estimatedRoads = 1 + routeRegion.getLength() / 150; // 5 000 / 1 MB - 1 per 200 Byte
+		RouteDataObjectProcessor proc = new RouteDataObjectProcessor(ctx, estimatedRoads);
+		reader.loadRouteIndexData(regions, proc);
+	}
+
+	/**
+	 * Regions are processed in waves, every wave contains regions which routing data (with overlap) doesn't
+	 * intersect, so clusters of different threads can't reach each other. Each thread collects clusters into its own
+	 * routing context and border points map, processed regions are saved to db and border points are merged on the
+	 * main thread after the wave. Cluster and point ids are assigned while merging in wave order, so they don't depend
+	 * on thread timing. Returns regions which need to be processed again with bigger overlap.
+	 */
+	private List<NetworkRouteRegion> collectNetworkPointsInParallel(NetworkCollectPointCtx ctx,
+			List<NetworkRouteRegion> regions) throws IOException, SQLException {
+		List<NetworkRouteRegion> toReprocess = new ArrayList<>();
+		LinkedList<NetworkRouteRegion> queue = new LinkedList<>(regions);
+		ExecutorService service = Executors.newFixedThreadPool(THREADS);
+		try {
+			while (!queue.isEmpty()) {
+				List<NetworkRouteRegion> wave = new ArrayList<>();
+				List<QuadRect> waveBboxes = new ArrayList<>();
+				Iterator<NetworkRouteRegion> it = queue.iterator();
+				while (it.hasNext() && wave.size() < THREADS) {
+					NetworkRouteRegion nrouteRegion = it.next();
+					QuadRect bbox = getRoutingDataBbox(ctx, nrouteRegion);
+					boolean intersects = false;
+					for (QuadRect b : waveBboxes) {
+						if (QuadRect.intersects(b, bbox)) {
+							intersects = true;
+							break;
+						}
+					}
+					if (!intersects) {
+						wave.add(nrouteRegion);
+						waveBboxes.add(bbox);
+						it.remove();
+					}
+				}
+				logf("Process wave of %d regions in parallel, %d regions left", wave.size(), queue.size());
+				List<Future<NetworkCollectPointCtx>> futures = new ArrayList<>();
+				for (NetworkRouteRegion nrouteRegion : wave) {
+					futures.add(service.submit(() -> {
+						NetworkCollectPointCtx wctx = new NetworkCollectPointCtx(ctx);
+						try {
+							processRegion(wctx, nrouteRegion, OVERLAP_FOR_ROUTING);
+							wctx.regionBboxValid = wctx.updateRegionBbox(OVERLAP_FOR_ROUTING);
+						} finally {
+							wctx.closeRoutingContext();
+						}
+						return wctx;
+					}));
+				}
+				for (int i = 0; i < futures.size(); i++) {
+					NetworkCollectPointCtx wctx = getRegionResult(futures.get(i));
+					if (wctx.regionBboxValid) {
+						ctx.mergeProcessedRegion(wctx);
+					} else {
+						logf("Region %s will be processed again with bigger overlap", wave.get(i).getName());
+						wave.get(i).visitedVertices = null;
+						wave.get(i).points = 0;
+						toReprocess.add(wave.get(i));
+					}
+				}
+				for (NetworkRouteRegion nr : ctx.routeRegions) {
+					nr.unload();
+				}
+				ctx.printStatsNetworks();
+			}
+		} finally {
+			service.shutdownNow();
+		}
+		return toReprocess;
+	}
+
+	private NetworkCollectPointCtx getRegionResult(Future<NetworkCollectPointCtx> future)
+			throws IOException, SQLException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			} else if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			} else if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	private QuadRect getRoutingDataBbox(NetworkCollectPointCtx ctx, NetworkRouteRegion nrouteRegion) {
+		// all regions loaded for routing + overlap to validate visited + possible bbox extension
+		QuadRect qr = null;
+		for (NetworkRouteRegion nr : ctx.routeRegions) {
+			if (nr == nrouteRegion || nr.intersects(nrouteRegion, OVERLAP_FOR_ROUTING)) {
+				qr = HHRoutingUtilities.expandLatLonRect(qr, nr.rect.left, nr.rect.top, nr.rect.right, nr.rect.bottom);
+			}
+		}
+		double d = OVERLAP_FOR_ROUTING + OVERLAP_FOR_VISITED;
+		return new QuadRect(qr.left - d, qr.top + d, qr.right + d, qr.bottom - d);
+	}
+
 	private void processLongRoads(NetworkCollectPointCtx ctx) throws IOException, SQLException {
 		int size = ctx.longRoads.size();
 		if (size == 0) {
@@ -1142,7 +1261,7 @@ public class HHRoutingSubGraphCreator {
 		int shortcuts = 0;
 		
 
-		public void printStatsNetworks(long totalPoints, int clusterSize) {
+		public synchronized void printStatsNetworks(long totalPoints, int clusterSize) {
 			int borderPointsSize = borderPntsCluster.size();
 			TIntIntHashMap borderClusterDistr = new TIntIntHashMap();
 			for (int a : this.borderPntsCluster.values()) {
@@ -1161,7 +1280,7 @@ public class HHRoutingSubGraphCreator {
 		}
 
 
-		public void addCluster(NetworkIsland cluster) {
+		public synchronized void addCluster(NetworkIsland cluster) {
 			for (long k : cluster.toVisitVertices.keys()) {
 				borderPntsCluster.adjustOrPutValue(k, 1, 1);
 			}
@@ -1195,6 +1314,8 @@ public class HHRoutingSubGraphCreator {
 		RoutingContext rctx;
 		List<NetworkRouteRegion> routeRegions = new ArrayList<>();
 		List<NetworkIsland> visualClusters = new ArrayList<>();
+		// clusters of the parallel worker, dbIndex is local (1, 2, ...) till ids are assigned by mergeProcessedRegion
+		List<NetworkIsland> newClusters = new ArrayList<>();
 		
 		NetworkRouteRegion currentProcessingRegion;
 		TLongObjectHashMap<RouteSegmentVertex> allVerticesCache = new TLongObjectHashMap<>();
@@ -1202,7 +1323,11 @@ public class HHRoutingSubGraphCreator {
 		
 		List<NetworkLongRoad> longRoads = new ArrayList<>();
 		TLongObjectHashMap<NetworkBorderPoint> networkPointToDbInd = new TLongObjectHashMap<>();
+		// border points of clusters of the current region, for parallel processing they are merged after the region
+		TLongObjectHashMap<NetworkBorderPoint> newBorderPoints = networkPointToDbInd;
 		List<NetworkRouteRegion> validateIntersectionRegions = new ArrayList<>();
+		boolean parallelWorker = false;
+		boolean regionBboxValid = false;
 		
 		
 
@@ -1212,6 +1337,18 @@ public class HHRoutingSubGraphCreator {
 			this.networkDB = networkDB;
 		}
 
+		// context to process one region in a separate thread, global border points are read only
+		public NetworkCollectPointCtx(NetworkCollectPointCtx main) {
+			this.prepareContext = main.prepareContext;
+			this.networkDB = main.networkDB;
+			this.stats = main.stats;
+			this.routeRegions = main.routeRegions;
+			this.checkLongRoads = main.checkLongRoads;
+			this.networkPointToDbInd = main.networkPointToDbInd;
+			this.newBorderPoints = new TLongObjectHashMap<>();
+			this.parallelWorker = true;
+		}
+
 		public long getTotalPoints() {
 			long totalPoints = 0;
 			for (NetworkRouteRegion r : routeRegions) {
@@ -1221,6 +1358,9 @@ public class HHRoutingSubGraphCreator {
 		}
 
 		public int borderPointsSize() {
+			if (newBorderPoints != networkPointToDbInd) {
+				return networkPointToDbInd.size() + newBorderPoints.size();
+			}
 			return networkPointToDbInd.size();
 		}
 		
@@ -1268,12 +1408,15 @@ public class HHRoutingSubGraphCreator {
 				}
 				if (nr.intersects(nrouteRegion, OVERLAP_FOR_VISITED)) {
 					logf("Intersects with %s %s.", nr.getName(), nr.rect.toString());
-					nr.loadVisitedVertices(networkDB);
+					synchronized (networkDB) {
+						nr.loadVisitedVertices(networkDB);
+					}
 					validateIntersectionRegions.add(nr);
 					regionsForRouting.add(nr);
 				} else if (nr.intersects(nrouteRegion, overlapBbox)) {
 					regionsForRouting.add(nr);
-				} else {
+				} else if (!parallelWorker) {
+					// regions could be used by other threads, they are unloaded after the wave
 					nr.unload();
 				}
 			}
@@ -1286,8 +1429,16 @@ public class HHRoutingSubGraphCreator {
 		}
 
 		public void addCluster(NetworkIsland cluster) {
-			cluster.dbIndex = networkDB.prepareBorderPointsToInsert(currentProcessingRegion == null ? 0 : currentProcessingRegion.id, 
-					cluster.borderVertices, networkPointToDbInd);
+			int fileId = currentProcessingRegion == null ? 0 : currentProcessingRegion.id;
+			if (parallelWorker) {
+				// db ids are assigned on the main thread in region order, so they don't depend on thread timing
+				HHRoutingPreparationDB.collectBorderPoints(fileId, cluster.borderVertices, newBorderPoints);
+				newClusters.add(cluster);
+				cluster.dbIndex = newClusters.size();
+			} else {
+				cluster.dbIndex = networkDB.prepareBorderPointsToInsert(fileId, cluster.borderVertices,
+						newBorderPoints);
+			}
 			lastClusterInd = cluster.dbIndex;
 			stats.addCluster(cluster);
 			if (cluster.visitedVertices.size() > TOTAL_MAX_POINTS * 1.5) {
@@ -1333,6 +1484,14 @@ public class HHRoutingSubGraphCreator {
 		}
 
 		public boolean finishRegionProcess(double overlapBbox) throws SQLException {
+			if (!updateRegionBbox(overlapBbox)) {
+				return false;
+			}
+			saveProcessedRegion();
+			return true;
+		}
+
+		public boolean updateRegionBbox(double overlapBbox) {
 			logf("Tiles " + rctx.calculationProgress.getInfo(null).get("tiles"));
 			QuadRect c = currentProcessingRegion.getCalcBbox();
 			QuadRect r = currentProcessingRegion.rect;
@@ -1351,6 +1510,10 @@ public class HHRoutingSubGraphCreator {
 				}
 				currentProcessingRegion.rect = n;
 			}
+			return true;
+		}
+
+		private void saveProcessedRegion() throws SQLException {
 			int ins = 0, tl = 0;
 			for (NetworkBorderPoint npnt : networkPointToDbInd.valueCollection()) {
 				if (npnt.positiveObj != null) {
@@ -1373,14 +1536,54 @@ public class HHRoutingSubGraphCreator {
 			
 			currentProcessingRegion.unload();
 			currentProcessingRegion = null;
-			return true;
+		}
+
+		public void mergeProcessedRegion(NetworkCollectPointCtx wctx) throws SQLException {
+			// same ids as sequential processing of regions in this order
+			int[] clusterIds = new int[wctx.newClusters.size() + 1];
+			for (int i = 0; i < wctx.newClusters.size(); i++) {
+				NetworkIsland cluster = wctx.newClusters.get(i);
+				cluster.dbIndex = networkDB.assignBorderPointIds(cluster.borderVertices);
+				clusterIds[i + 1] = cluster.dbIndex;
+				lastClusterInd = cluster.dbIndex;
+			}
+			wctx.currentProcessingRegion.visitedVertices.transformValues(c -> clusterIds[c]);
+			for (NetworkBorderPoint npnt : wctx.newBorderPoints.valueCollection()) {
+				NetworkBorderPoint existing = networkPointToDbInd.get(npnt.unidirId);
+				if (existing == null) {
+					networkPointToDbInd.put(npnt.unidirId, npnt);
+				} else {
+					// opposite direction of the point from already processed region
+					if (npnt.positiveObj != null) {
+						existing.set(npnt.unidirId, npnt.positiveObj);
+					}
+					if (npnt.negativeObj != null) {
+						existing.set(npnt.unidirId, npnt.negativeObj);
+					}
+				}
+			}
+			longRoads.addAll(wctx.longRoads);
+			visualClusters.addAll(wctx.visualClusters);
+			currentProcessingRegion = wctx.currentProcessingRegion;
+			saveProcessedRegion();
+		}
 
+		public void closeRoutingContext() throws IOException {
+			if (rctx != null) {
+				for (BinaryMapIndexReader r : rctx.map.keySet()) {
+					r.close();
+				}
+				rctx = null;
+			}
 		}
 		
 		public boolean testIfNetworkPoint(long pntId) {
 			if (networkPointToDbInd.contains(pntId)) {
 				return true;
 			}
+			if (newBorderPoints != networkPointToDbInd && newBorderPoints.contains(pntId)) {
+				return true;
+			}
 			return false;
 		}
 
@@ -1426,7 +1629,7 @@ public class HHRoutingSubGraphCreator {
 				for (int pos = 0; pos < object.getPointsLength() - 1; pos++) {
 					RouteSegmentPoint pntAround = new RouteSegmentPoint(object, pos, 0);
 					long mainPoint = calcUniDirRoutePointInternalId(pntAround);
-					if (ctx.testGlobalVisited(mainPoint) || ctx.networkPointToDbInd.containsKey(mainPoint)) {
+					if (ctx.testGlobalVisited(mainPoint) || ctx.testIfNetworkPoint(mainPoint)) {
 						// already existing cluster
 						continue;
 					}
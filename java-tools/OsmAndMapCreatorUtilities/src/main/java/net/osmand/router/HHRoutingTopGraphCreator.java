@@ -12,10 +12,18 @@ import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
 
 import org.apache.commons.logging.Log;
 
+import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.hash.TIntHashSet;
 import gnu.trove.map.hash.TLongObjectHashMap;
 import net.osmand.PlatformUtil;
 import net.osmand.router.HHRouteDataStructure.HHRoutingConfig;
@@ -40,6 +48,7 @@ public class HHRoutingTopGraphCreator {
 	static int LOG_STAT_THRESHOLD = 10;
 	static int LOG_STAT_MAX_DEPTH = 30;
 	static int PROCESS = PROC_CH;
+	static int THREADS = 1;
 
 	static long DEBUG_START_TIME = 0;
 	
@@ -93,6 +102,8 @@ public class HHRoutingTopGraphCreator {
 				PERCENT_CH = Integer.parseInt(a.substring("--percent=".length()));
 			} else if (a.startsWith("--maxdepth=")) {
 				MAX_DEPTH = Integer.parseInt(a.substring("--maxdepth=".length()));
+			} else if (a.startsWith("--threads=")) {
+				THREADS = Integer.parseInt(a.substring("--threads=".length()));
 			}
 		}
 		File folder = obfFile.isDirectory() ? obfFile : obfFile.getParentFile();
@@ -294,6 +305,13 @@ public class HHRoutingTopGraphCreator {
 		calculateAndPrintVertexDegree(list);
 		
 		time = System.nanoTime();
+		if (THREADS > 1) {
+			List<NetworkDBSegment> allShortcuts = runParallelContraction(list, maxPoints, list.size() * percent);
+			saveContractionHierarchy(hctx, list, allShortcuts);
+			System.out.printf("Added %d shortcuts \n", allShortcuts.size());
+			System.out.printf("Contraction finished %.2f ms\n", (System.nanoTime() - startTime) / 1e6);
+			return;
+		}
 
 		TIntIntHashMap edgeDiffMap = new TIntIntHashMap();
 		PriorityQueue<NetworkDBPointPrep> pq = new PriorityQueue<>(new Comparator<NetworkDBPointPrep>() {
@@ -345,34 +363,11 @@ public class HHRoutingTopGraphCreator {
 				reindex++;
 				continue;
 			}
-			for (NetworkDBSegment sh : shortcuts) {
-				NetworkDBSegment dup = sh.start.getSegment(sh.end, true);
-				if (dup != null) {
-					if (dup.dist < sh.dist) {
-						// skip shortcut (not needed) - not enough depth for Dijkstra
-						continue;
-					} else {
-						if (!dup.shortcut) {
-							// possible situation due triangle inequality not guaranteed  
-						} else {
-							allShortcuts.remove(dup);
-							sh.start.connected.remove(dup);
-							sh.end.connectedReverse.remove(sh.end.getSegment(sh.start, false));
-						}
-					}
-				}
-				allShortcuts.add(sh);
-				sh.start.connected.add(sh);
-				NetworkDBSegment rev = new NetworkDBSegment(sh.start, sh.end, sh.dist, !sh.direction, sh.shortcut);
-				rev.getGeometry().addAll(sh.getGeometry());
-				sh.end.connectedReverse.add(rev);
-			}
+			addShortcuts(shortcuts, allShortcuts);
 			pnt.chFinalInd = contracted++;
 			pnt.rtExclude = true;
 		}
-		networkDB.updatePointsCHInd(list);
-		networkDB.deleteShortcuts();
-		networkDB.insertSegments(allShortcuts, hctx.regions.get(0).routingProfile);
+		saveContractionHierarchy(hctx, list, allShortcuts);
 		
 		System.out.printf("Added %d shortcuts, reindexed %d \n", allShortcuts.size(), reindex);
 		
@@ -384,6 +379,180 @@ public class HHRoutingTopGraphCreator {
 	}
 
 
+	private void saveContractionHierarchy(HHRoutingContext<NetworkDBPointPrep> hctx, List<NetworkDBPointPrep> list,
+			List<NetworkDBSegment> allShortcuts) throws SQLException {
+		networkDB.updatePointsCHInd(list);
+		networkDB.deleteShortcuts();
+		networkDB.insertSegments(allShortcuts, hctx.regions.get(0).routingProfile);
+	}
+
+	private int addShortcuts(List<NetworkDBSegment> shortcuts, List<NetworkDBSegment> allShortcuts) {
+		int added = 0;
+		for (NetworkDBSegment sh : shortcuts) {
+			NetworkDBSegment dup = sh.start.getSegment(sh.end, true);
+			if (dup != null) {
+				if (dup.dist < sh.dist) {
+					// skip shortcut (not needed) - not enough depth for Dijkstra
+					continue;
+				} else {
+					if (!dup.shortcut) {
+						// possible situation due triangle inequality not guaranteed  
+					} else {
+						allShortcuts.remove(dup);
+						sh.start.connected.remove(dup);
+						sh.end.connectedReverse.remove(sh.end.getSegment(sh.start, false));
+					}
+				}
+			}
+			allShortcuts.add(sh);
+			added++;
+			sh.start.connected.add(sh);
+			// reverse shortcut is used as incoming segment of the next shortcuts, so it keeps segments as well
+			NetworkDBSegmentPrep rev = new NetworkDBSegmentPrep(sh.start, sh.end, sh.dist, !sh.direction, sh.shortcut);
+			rev.getGeometry().addAll(sh.getGeometry());
+			if (sh instanceof NetworkDBSegmentPrep) {
+				rev.segmentsStartEnd.addAll(((NetworkDBSegmentPrep) sh).segmentsStartEnd);
+			}
+			sh.end.connectedReverse.add(rev);
+		}
+		return added;
+	}
+
+	/**
+	 * Contracts vertices in rounds. Every round takes the vertices which edge difference is smaller than edge
+	 * difference of all not contracted neighbors (so they're never neighbors of each other), calculates their shortcuts
+	 * in parallel on the graph without all vertices of the round, adds shortcuts in the order of priority and
+	 * recalculates edge difference of the neighbors in parallel. Witness searches use their own state (not the routing
+	 * state of points), so they can run concurrently.
+	 */
+	List<NetworkDBSegment> runParallelContraction(List<NetworkDBPointPrep> list, int maxPoints,
+			double toContract) {
+		List<NetworkDBSegment> allShortcuts = new ArrayList<>();
+		ExecutorService service = Executors.newFixedThreadPool(THREADS);
+		try {
+			long time = System.nanoTime();
+			runInParallel(service, list.size(),
+					i -> calculateWitnessEdgeDiff(new CHWitnessSearch(maxPoints), list.get(i), null));
+			logf("Calculated edge difference for %,d points - %.2f ms (%d threads)", list.size(),
+					(System.nanoTime() - time) / 1e6, THREADS);
+			List<NetworkDBPointPrep> remaining = new ArrayList<>(list);
+			int contracted = 0, round = 0;
+			while (contracted <= toContract && !remaining.isEmpty()) {
+				round++;
+				long roundTime = System.nanoTime();
+				remaining.removeIf(p -> p.rtExclude);
+				remaining.sort(CH_PRIORITY);
+				List<NetworkDBPointPrep> independent = new ArrayList<>();
+				int limit = (int) (toContract - contracted) + 1;
+				for (NetworkDBPointPrep p : remaining) {
+					if (independent.size() >= limit) {
+						break;
+					}
+					if (isLocalMinimum(p)) {
+						independent.add(p);
+					}
+				}
+				long selectTime = System.nanoTime();
+				// vertices of the round could share neighbors, witness path through other vertex of the round is lost
+				// when both are contracted, so all of them are excluded from witness searches
+				for (NetworkDBPointPrep p : independent) {
+					p.rtExclude = true;
+				}
+
+				List<List<NetworkDBSegment>> roundShortcuts = new ArrayList<>(
+						Collections.nCopies(independent.size(), null));
+				runInParallel(service, independent.size(), i -> {
+					List<NetworkDBSegment> shortcuts = new ArrayList<>();
+					calculateWitnessEdgeDiff(new CHWitnessSearch(maxPoints), independent.get(i), shortcuts);
+					roundShortcuts.set(i, shortcuts);
+				});
+				long shortcutsTime = System.nanoTime();
+
+				int added = 0;
+				TIntObjectHashMap<NetworkDBPointPrep> neighbors = new TIntObjectHashMap<>();
+				for (int i = 0; i < independent.size(); i++) {
+					NetworkDBPointPrep pnt = independent.get(i);
+					added += addShortcuts(roundShortcuts.get(i), allShortcuts);
+					pnt.chFinalInd = contracted++;
+					for (NetworkDBSegment s : pnt.connected) {
+						neighbors.put(s.end.index, (NetworkDBPointPrep) s.end);
+					}
+					for (NetworkDBSegment s : pnt.connectedReverse) {
+						neighbors.put(s.start.index, (NetworkDBPointPrep) s.start);
+					}
+				}
+				List<NetworkDBPointPrep> toUpdate = new ArrayList<>();
+				for (NetworkDBPointPrep p : neighbors.valueCollection()) {
+					if (!p.rtExclude) {
+						toUpdate.add(p);
+					}
+				}
+				runInParallel(service, toUpdate.size(),
+						i -> calculateWitnessEdgeDiff(new CHWitnessSearch(maxPoints), toUpdate.get(i), null));
+				long updateTime = System.nanoTime();
+				logf("Round %d: contracted %,d points (%.1f%%) - %,d shortcuts (total %,d), updated %,d neighbors. "
+						+ "Select %.2f ms, shortcuts %.2f ms, update %.2f ms", round, independent.size(),
+						contracted / toContract * 100.0, added, allShortcuts.size(), toUpdate.size(),
+						(selectTime - roundTime) / 1e6, (shortcutsTime - selectTime) / 1e6,
+						(updateTime - shortcutsTime) / 1e6);
+			}
+		} finally {
+			service.shutdownNow();
+		}
+		return allShortcuts;
+	}
+
+	private static final Comparator<NetworkDBPointPrep> CH_PRIORITY = new Comparator<NetworkDBPointPrep>() {
+
+		@Override
+		public int compare(NetworkDBPointPrep o1, NetworkDBPointPrep o2) {
+			int c = Integer.compare(o1.chIndexEdgeDiff, o2.chIndexEdgeDiff);
+			if (c != 0) {
+				return c;
+			}
+			return Integer.compare(o1.index, o2.index);
+		}
+	};
+
+	private boolean isLocalMinimum(NetworkDBPointPrep p) {
+		for (NetworkDBSegment s : p.connected) {
+			if (!s.end.rtExclude && s.end != p && CH_PRIORITY.compare((NetworkDBPointPrep) s.end, p) < 0) {
+				return false;
+			}
+		}
+		for (NetworkDBSegment s : p.connectedReverse) {
+			if (!s.start.rtExclude && s.start != p && CH_PRIORITY.compare((NetworkDBPointPrep) s.start, p) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void runInParallel(ExecutorService service, int size, IntConsumer task) {
+		int chunk = Math.max(1, size / (THREADS * 4));
+		List<Future<?>> futures = new ArrayList<>();
+		for (int start = 0; start < size; start += chunk) {
+			int from = start, to = Math.min(size, start + chunk);
+			futures.add(service.submit(() -> {
+				for (int i = from; i < to; i++) {
+					task.accept(i);
+				}
+			}));
+		}
+		try {
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
 	private void calculateAndPrintVertexDegree(List<NetworkDBPointPrep> list) {
 		TIntIntHashMap degreeIn = new TIntIntHashMap();
 		TIntIntHashMap degreeOut = new TIntIntHashMap();
@@ -452,25 +621,7 @@ public class HHRoutingTopGraphCreator {
 				if (out.end.rt(false).rtDistanceFromStart == 0 || out.end.rt(false).rtDistanceFromStart > out.dist) {
 					p.chIndexCnt++;
 					if (shortcuts != null) {
-						if (DEBUG_VERBOSE_LEVEL >= 1) {
-							System.out.printf("Shortcut %d -> %d via %d %.2f cost \n ", in.start.index, out.end.index,
-									in.end.index, in.dist + out.dist);
-						}
-						NetworkDBSegmentPrep sh = new NetworkDBSegmentPrep(in.start, out.end,
-								in.dist + out.dist, true, true);
-						if (in.shortcut) {
-							sh.segmentsStartEnd.addAll(((NetworkDBSegmentPrep)in).segmentsStartEnd);
-						} else {
-							sh.segmentsStartEnd.add(in.start.index);
-							sh.segmentsStartEnd.add(in.end.index);
-						}
-						if (out.shortcut) {
-							sh.segmentsStartEnd.addAll(((NetworkDBSegmentPrep)out).segmentsStartEnd);
-						} else {
-							sh.segmentsStartEnd.add(out.start.index);
-							sh.segmentsStartEnd.add(out.end.index);
-						}
-						shortcuts.add(sh);
+						shortcuts.add(createShortcut(in, out));
 					}
 				}
 			}
@@ -480,6 +631,117 @@ public class HHRoutingTopGraphCreator {
 		p.chIndexEdgeDiff = p.chIndexCnt - p.connected.size() - p.connectedReverse.size();
 		p.rtExclude = false;
 	}
+
+	// same as above but with separate witness search state, point itself is excluded from search (contracted points
+	// and points of the current parallel round by rtExclude)
+	private void calculateWitnessEdgeDiff(CHWitnessSearch search, NetworkDBPointPrep p, List<NetworkDBSegment> shortcuts) {
+		double maxCost = 0;
+		for (NetworkDBSegment out : p.connected) {
+			maxCost = Math.max(out.dist, maxCost);
+		}
+		int cnt = 0;
+		for (NetworkDBSegment in : p.connectedReverse) {
+			if (in.start.rtExclude) {
+				continue;
+			}
+			search.run(in.start, p, maxCost);
+			for (NetworkDBSegment out : p.connected) {
+				if (out.end.rtExclude) {
+					continue;
+				}
+				double dist = search.getDistance(out.end);
+				if (dist == 0 || dist > out.dist) {
+					cnt++;
+					if (shortcuts != null) {
+						shortcuts.add(createShortcut(in, out));
+					}
+				}
+			}
+		}
+		p.chIndexCnt = cnt;
+		p.chIndexEdgeDiff = p.chIndexCnt - p.connected.size() - p.connectedReverse.size();
+	}
+
+	private NetworkDBSegment createShortcut(NetworkDBSegment in, NetworkDBSegment out) {
+		if (DEBUG_VERBOSE_LEVEL >= 1) {
+			System.out.printf("Shortcut %d -> %d via %d %.2f cost \n ", in.start.index, out.end.index,
+					in.end.index, in.dist + out.dist);
+		}
+		NetworkDBSegmentPrep sh = new NetworkDBSegmentPrep(in.start, out.end,
+				in.dist + out.dist, true, true);
+		if (in.shortcut) {
+			sh.segmentsStartEnd.addAll(((NetworkDBSegmentPrep)in).segmentsStartEnd);
+		} else {
+			sh.segmentsStartEnd.add(in.start.index);
+			sh.segmentsStartEnd.add(in.end.index);
+		}
+		if (out.shortcut) {
+			sh.segmentsStartEnd.addAll(((NetworkDBSegmentPrep)out).segmentsStartEnd);
+		} else {
+			sh.segmentsStartEnd.add(out.start.index);
+			sh.segmentsStartEnd.add(out.end.index);
+		}
+		return sh;
+	}
+
+	private static class CHWitnessVertex {
+		final NetworkDBPoint point;
+		final double dist;
+
+		CHWitnessVertex(NetworkDBPoint point, double dist) {
+			this.point = point;
+			this.dist = dist;
+		}
+	}
+
+	// Dijkstra limited by cost and settled points (as HHRoutingConfig.dijkstra().maxSettlePoints()), 0 - not reached
+	private static class CHWitnessSearch {
+		final int maxSettlePoints;
+		final TIntDoubleHashMap distances = new TIntDoubleHashMap();
+		final TIntHashSet settled = new TIntHashSet();
+		final PriorityQueue<CHWitnessVertex> queue = new PriorityQueue<>(new Comparator<CHWitnessVertex>() {
+
+			@Override
+			public int compare(CHWitnessVertex o1, CHWitnessVertex o2) {
+				return Double.compare(o1.dist, o2.dist);
+			}
+		});
+
+		CHWitnessSearch(int maxSettlePoints) {
+			this.maxSettlePoints = maxSettlePoints;
+		}
+
+		void run(NetworkDBPoint start, NetworkDBPoint exclude, double maxCost) {
+			distances.clear();
+			settled.clear();
+			queue.clear();
+			queue.add(new CHWitnessVertex(start, 0));
+			while (!queue.isEmpty() && settled.size() < maxSettlePoints) {
+				CHWitnessVertex v = queue.poll();
+				if (v.dist > maxCost) {
+					break;
+				}
+				if (!settled.add(v.point.index)) {
+					continue;
+				}
+				for (NetworkDBSegment s : v.point.connected) {
+					NetworkDBPoint t = s.end;
+					if (t == exclude || t.rtExclude || settled.contains(t.index)) {
+						continue;
+					}
+					double d = v.dist + s.dist;
+					if (!distances.containsKey(t.index) || d < distances.get(t.index)) {
+						distances.put(t.index, d);
+						queue.add(new CHWitnessVertex(t, d));
+					}
+				}
+			}
+		}
+
+		double getDistance(NetworkDBPoint p) {
+			return distances.get(p.index);
+		}
+	}
 	
 
 	
@@ -1,4 +1,4 @@
-//BufferHeader.java,CachedNodes.java
+//CachedNodes.java
 //
 //This library is free software; you can redistribute it and/or
 //modify it under the terms of the GNU Lesser General Public
@@ -11,295 +11,298 @@
 //Lesser General Public License for more details.
 package rtree;
 //package rtree;
-import java.util.*;
-import java.io.*;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 import rtree.seeded.SdNode;
 /**
-   <b>A circular linked list of cached nodes using hashtable ?!!</b>
-   <p>This class will wrap a list of recently used nodes.
-   If the requested node is in <tt>Hashtable</tt> of the class then the node would
-   be returned from the <tt>Hashtable</tt>, else it would be read from the
-   disk.
+   <b>Striped cache of nodes.</b>
+   <p>If the requested node is in the cache then the node would be returned from the cache,
+   else it would be read from the disk.
    <br>This will be a static object in the class RTree. Therefore no matter how
    many RTree objects you create they all would have one cache for all the files
    the object handles.
-   TODO : keep a set that keeps all the nodes that are dirty. With each node registering themselves
-   hara when thhey are dity, this is maageable.
+   <p>Nodes are keyed by a primitive <code>long</code> (file id in the high bits, node index in the
+   low bits) and spread over independent stripes, each with its own lock and CLOCK (second chance)
+   replacement. Readers of different nodes don't wait for each other, only reading of a missing node
+   from the file is serialized per file because all nodes of a file share one <code>RandomAccessFile</code>.
    @author Prachuryya Barua
 */
-class BufferHeader
+public class CachedNodes
 {
-  int recent;//the most recently inserted node
-  int last;//the least recently inserted node
-  int size;//max size of the link list
-  Hashtable cache;
-  BufferHeader(int size,Hashtable ch)
-  {
-    this.cache = ch;
-    this.size = size;
-  }
+  private static final int NODE = 0;
+  private static final int SDNODE = 1;
+  private static final int STRIPES = 64;
 
-  void flush()
-    throws NodeWriteException
-  {
-    //if(!RTree.writeThr){
-    for (Iterator it = cache.values().iterator(); it.hasNext();){
-      NodeValue node = (NodeValue)it.next();
-      node.node.flush();
-    } // end of for (Iterator  = .iterator(); .hasNext();)
-    //}
-  }
-  /*for a fresh key when the array is not full.This will be called when the
-    buffer is not fully warm*/
-  void put(int key, Node node)
-  {
-    try{
-      //the following two conditions  happens in multithreaded programs
-      if(cache.containsKey(new Integer(key))){
-        update(key);
-        return;
-      }
-      if(cache.size() == size){
-        replace(key,node);
-        return;
-      }
-      if(cache.size() == 0){
-        last = key;
-        cache.put(new Integer(key), new NodeValue(node,key,key));
-      }else{
-        //remove recent
-        NodeValue tmpPrev = (NodeValue)(cache.remove(new Integer(recent)));
-        if(last == recent){//there is only one node in cache
-          cache.put(new Integer(key), new NodeValue(node,tmpPrev.next,tmpPrev.next));
-          cache.put(new Integer(recent), new NodeValue(tmpPrev.node,key,key));
-        }
-        else{
-          //remove next of previous
-          NodeValue tmpPNext = (NodeValue)(cache.remove(new Integer(tmpPrev.next)));
-          cache.put(new Integer(key), new NodeValue(node,tmpPrev.next,recent));
-          cache.put(new Integer(tmpPrev.next), new NodeValue(tmpPNext.node,tmpPNext.next,key));
-          cache.put(new Integer(recent), new NodeValue(tmpPrev.node,key,tmpPrev.prev));
-        }
-      }
-      recent = key;
-    }
-    catch(Exception e){
-      e.printStackTrace();
-    }
-  }
-  /*a new key in a filled array*/
-  void replace(int key,Node node)
-    throws NodeWriteException
+  private volatile Stripe[] stripes;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  int size = Node.CACHE_SIZE;
+
+  /**One part of the cache, all methods must be called with the stripe locked*/
+  private static class Stripe
   {
-    try{
-      if(cache.containsKey(new Integer(key))){
-        update(key);
-        return;
-      }
-      if(cache.size() < size){
-        put(key,node);
-        return;
-      }
-      //remove the 'last' node
-      NodeValue lastNode = (NodeValue)(cache.remove(new Integer(last)));
-      lastNode.node.flush();
-      NodeValue pNode = (NodeValue)(cache.remove(new Integer(lastNode.prev)));
-      NodeValue nNode = (NodeValue)(cache.remove(new Integer(lastNode.next)));
-      //put back the three nodes
-      cache.put(new Integer(key), new NodeValue(node,lastNode.next, lastNode.prev));
-      cache.put(new Integer(lastNode.prev), new NodeValue(pNode.node,key,pNode.prev));
-      cache.put(new Integer(lastNode.next), new NodeValue(nNode.node,nNode.next,key));
-      recent = key;//this is the latest node
-      last = lastNode.next;//set the next in chain as the new 'last'
+    final TLongIntHashMap slots;
+    final long[] keys;
+    final Node[] nodes;
+    final boolean[] referenced;
+    final int[] free;
+    int freeCount;
+    int used;
+    int hand;
 
+    Stripe(int capacity)
+    {
+      slots = new TLongIntHashMap(capacity * 2, 0.5f, -1L, -1);
+      keys = new long[capacity];
+      nodes = new Node[capacity];
+      referenced = new boolean[capacity];
+      free = new int[capacity];
     }
-    catch(Exception e){
-      e.printStackTrace();
-    }
-  }
-  /**make a node that is present as 'recent'*/
-  void update(int key)
-  {
-    try{
-      if(key != recent){
-        NodeValue node,nextNode,prevNode,rcntNode,lastNode;//temp variables
-        node = (NodeValue)(cache.remove(new Integer(key)));
-        if(node == null){//will not happen
-          System.out.println("CachedNodes.update: unlikely flow");
-          return;
-        }
-        if(key == last){
-          last = node.next;
-          cache.put(new Integer(key), new NodeValue(node.node, node.next, node.prev));
-        }
-        else{
-          //adjust next node and the recent node
-          nextNode = (NodeValue)(cache.remove(new Integer(node.next)));
-          if(recent != node.next){//if next node is not the recent node
-            rcntNode = (NodeValue)(cache.remove(new Integer(recent)));
-            rcntNode.next = key;
-            cache.put(new Integer(recent), new NodeValue(rcntNode.node, rcntNode.next,rcntNode.prev));
-          }
-          else{//next node is the recent node
-            nextNode.next = key;
-          }
-          cache.put(new Integer(node.next), new NodeValue(nextNode.node, nextNode.next,node.prev));
 
-          //adjust previous node and the last node - if unequal
-          prevNode = (NodeValue)(cache.remove(new Integer(node.prev)));
-          if(last != node.prev){//if last node is not the prev node
-            lastNode = (NodeValue)(cache.remove(new Integer(last)));
-            lastNode.prev = key;
-            cache.put(new Integer(last),new NodeValue(lastNode.node, lastNode.next,lastNode.prev));
-          }
-          else{//if the last node is the prev node.
-            prevNode.prev = key;
-          }
-          cache.put(new Integer(node.prev), new NodeValue(prevNode.node, node.next,prevNode.prev));
+    Node get(long key)
+    {
+      int slot = slots.get(key);
+      if(slot == -1)
+        return null;
+      referenced[slot] = true;
+      return nodes[slot];
+    }
 
-          //put the new node
-          cache.put(new Integer(key), new NodeValue(node.node,last,recent));
+    /**@return the evicted or replaced node or null*/
+    Node put(long key, Node node)
+    {
+      int slot = slots.get(key);
+      if(slot != -1){
+        Node replaced = nodes[slot];
+        nodes[slot] = node;
+        referenced[slot] = true;
+        return replaced == node ? null : replaced;
+      }
+      Node evicted = null;
+      if(freeCount > 0){
+        slot = free[--freeCount];
+      }else if(used < nodes.length){
+        slot = used++;
+      }else{
+        while(referenced[hand]){
+          referenced[hand] = false;
+          hand = (hand + 1) % nodes.length;
         }
-        //update local variables
+        slot = hand;
+        hand = (hand + 1) % nodes.length;
+        evicted = nodes[slot];
+        slots.remove(keys[slot]);
       }
-      recent = key;
+      keys[slot] = key;
+      nodes[slot] = node;
+      referenced[slot] = true;//a new node gets its second chance as well
+      slots.put(key, slot);
+      return evicted;
     }
-    catch(Exception e){
-      e.printStackTrace();
+
+    Node remove(long key)
+    {
+      int slot = slots.remove(key);
+      if(slot == -1)
+        return null;
+      Node node = nodes[slot];
+      nodes[slot] = null;
+      referenced[slot] = false;
+      free[freeCount++] = slot;
+      return node;
     }
-  }
-  void remove(int key)
-    throws NodeWriteException
-  {
-    try{
-      NodeValue node = (NodeValue)(cache.remove(new Integer(key)));
-      if((cache.size() != 0) && (node != null)){
-        //if(!RTree.writeThr)
-        node.node.flush();
-        if(cache.size() == 1){
-          NodeValue oNode = (NodeValue)(cache.remove(new Integer(node.prev)));
-          cache.put(new Integer(node.prev), new NodeValue(oNode.node, node.prev,node.prev));
-          recent = last = node.prev;
-        }
-        else{
-          //if(!RTree.writeThr)
-          node.node.flush();
-          NodeValue pNode = (NodeValue)(cache.remove(new Integer(node.prev)));
-          NodeValue nNode = (NodeValue)(cache.remove(new Integer(node.next)));
-          cache.put(new Integer(node.prev), new NodeValue(pNode.node, node.next,pNode.prev));
-          cache.put(new Integer(node.next), new NodeValue(nNode.node, nNode.next,node.prev));
-          if(key == recent)
-            recent = node.prev;
-          if(key == last)
-            last = node.next;
-        }
-      }
+
+    void collect(List<Node> list)
+    {
+      for(int i = 0; i < used; i++)
+        if(nodes[i] != null)
+          list.add(nodes[i]);
     }
-    catch(Exception e){
-      e.printStackTrace();
+
+    int size()
+    {
+      return slots.size();
     }
   }
-  void reset()
-    throws NodeWriteException
-  {
-    //if(!RTree.writeThr)
-    flush();
-    cache.clear();
-  }
-}
-public class CachedNodes
-{
-  private static final int NODE = 0;
-  private static final int SDNODE = 1;
-  Hashtable cache;
-  BufferHeader buffHeader;
-  int size = Node.CACHE_SIZE;
+
   CachedNodes()
   {
-    //System.out.println("CachedNodes : cache called");
-    cache = new Hashtable(Node.CACHE_SIZE+1,1);
-    buffHeader = new BufferHeader(Node.CACHE_SIZE,cache);
-    size = Node.CACHE_SIZE;
+    this(Node.CACHE_SIZE);
   }
-  /**
-     This one is still under construction.
-  */
+
   CachedNodes(int size)
   {
     if(size < 0)
       throw new IllegalArgumentException("CachedNodes:: size is less than zero");
-    cache = new Hashtable(size+1,1);
-    buffHeader = new BufferHeader(size, cache);
+    stripes = createStripes(size);
     this.size = size;
   }
+
+  private static Stripe[] createStripes(int size)
+  {
+    Stripe[] st = new Stripe[STRIPES];
+    int capacity = Math.max(1, (size + STRIPES - 1) / STRIPES);
+    for(int i = 0; i < STRIPES; i++)
+      st[i] = new Stripe(capacity);
+    return st;
+  }
+
+  /**
+     Capacity is split evenly between the stripes (rounded up).
+  */
   public synchronized void setCacheSize(int size)
     throws NodeWriteException
   {
     if(size < 0)
       throw new IllegalArgumentException("CachedNodes:: size is less than zero");
     removeAll();
-    cache = new Hashtable(size+1,1);
-    buffHeader = new BufferHeader(size, cache);
+    stripes = createStripes(size);
     this.size = size;
   }
-  public synchronized int getSize()
+
+  public int getCacheSize()
   {
-    return cache.size();
+    return size;
   }
+
+  /**
+     @return the number of nodes in the cache
+  */
+  public int getSize()
+  {
+    int sz = 0;
+    for(Stripe st : stripes){
+      synchronized(st){
+        sz += st.size();
+      }
+    }
+    return sz;
+  }
+
+  public long getHits()
+  {
+    return hits.sum();
+  }
+
+  public long getMisses()
+  {
+    return misses.sum();
+  }
+
+  public void resetStats()
+  {
+    hits.reset();
+    misses.reset();
+  }
+
+  private Stripe getStripe(long key)
+  {
+    Stripe[] st = stripes;
+    long h = key * 0x9E3779B97F4A7C15L;
+    return st[(int) (h >>> 58) & (st.length - 1)];
+  }
+
   private Node getNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr, int type)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     int ndIndex = (int)lndIndex;
-    int key = calKey(fileName,ndIndex);
-    NodeValue node = (NodeValue)(cache.get(new Integer(key)));
+    long key = calKey(fileName,ndIndex);
+    Stripe st = getStripe(key);
+    synchronized(st){
+      Node node = st.get(key);
+      if(node != null){//node found in the cache
+        hits.increment();
+        node.sweepSort();
+        return node;
+      }
+    }
+    misses.increment();
     Node nNode;
-    if(node == null){//Node not in cache
+    synchronized(file){
       if(type == NODE){
         nNode = new Node(file, fileName, ndIndex, flHdr);
       }else{
         nNode = new SdNode(file, fileName, ndIndex, flHdr);
       }
-      key = calKey(fileName, (int)nNode.getNodeIndex());//this is for the case where index is NOT_DEFINED
-      nNode.sweepSort();
-      //cache not full
-      if(cache.size() < Node.CACHE_SIZE){
-        buffHeader.put(key,nNode);//(Node)nNode.clone());
-      }else if(cache.size() == Node.CACHE_SIZE){//cache Is full
-        buffHeader.replace(key,nNode);//(Node)nNode.clone());
-      }
-      return nNode;
-    }
-    else{//node found in the cache
-      buffHeader.update(key);
-      node.node.sweepSort();
-      return (node.node);
     }
+    key = calKey(fileName, (int)nNode.getNodeIndex());//this is for the case where index is NOT_DEFINED
+    nNode.sweepSort();
+    return cacheNode(key, nNode, false);
   }
+
   private Node getNode(RandomAccessFile file,String fileName,long parentIndex, int elmtType, FileHdr flHdr,
                        int type)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     Node nNode;
-    if(type == NODE){
-      nNode = new Node(file,fileName,parentIndex, elmtType, flHdr);
-    }else{
-      nNode = new SdNode(file,fileName,parentIndex, elmtType, flHdr);
+    synchronized(file){
+      if(type == NODE){
+        nNode = new Node(file,fileName,parentIndex, elmtType, flHdr);
+      }else{
+        nNode = new SdNode(file,fileName,parentIndex, elmtType, flHdr);
+      }
     }
-    int key = calKey(fileName, (int)nNode.getNodeIndex());
+    long key = calKey(fileName, (int)nNode.getNodeIndex());
     nNode.sweepSort();
-    //cache not full
-    if(cache.size() < Node.CACHE_SIZE)
-      buffHeader.put(key,nNode);
-    //cache Is full
-    else if(cache.size() == Node.CACHE_SIZE)
-      buffHeader.replace(key,nNode);
-    return nNode;
+    return cacheNode(key, nNode, true);
+  }
+
+  /**
+     Puts the node to the cache. If another thread has read the same node meanwhile, then
+     the cached one is returned unless <code>replace</code> is set (a new node in a reused slot).
+     <br>Evicted node is flushed with the stripe locked, so a thread which misses it reads the
+     node from the file only after its changes are written.
+  */
+  private Node cacheNode(long key, Node node, boolean replace)
+    throws NodeWriteException
+  {
+    Stripe st = getStripe(key);
+    synchronized(st){
+      if(!replace){
+        Node cached = st.get(key);
+        if(cached != null)
+          return cached;
+      }
+      Node evicted = st.put(key, node);
+      if(evicted != null && flushNode(evicted) && calKey(evicted.fileName, (int)evicted.getNodeIndex()) == key){
+        //the replaced node had the same place in the file, write the new one over it
+        node.setDirty(true);
+        flushNode(node);
+      }
+    }
+    return node;
+  }
+
+  /**
+     Stripe lock (if any) is taken before the file lock, flush of a node doesn't use the cache.
+  */
+  private static boolean flushNode(Node node)
+    throws NodeWriteException
+  {
+    if(node.file != null){
+      synchronized(node.file){
+        return node.flush();
+      }
+    }else{
+      return node.flush();
+    }
   }
+
   //-----------------------Methods for client to get Node they prefer------------
   /**
      This one returns an existing <code>SdNode</code>
   */
-  public synchronized SdNode getSdNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
+  public SdNode getSdNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return (SdNode)getNode(file,fileName,lndIndex,flHdr, SDNODE);
@@ -307,8 +310,8 @@ public class CachedNodes
   /**
      This one returns an existing <code>SdNode</code>.
   */
-  public synchronized SdNode getSdNode(RandomAccessFile file,String fileName,long parentIndex,
-                                       int elmtType, FileHdr flHdr)
+  public SdNode getSdNode(RandomAccessFile file,String fileName,long parentIndex,
+                          int elmtType, FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return (SdNode)getNode(file,fileName,parentIndex, elmtType, flHdr, SDNODE);
@@ -316,7 +319,7 @@ public class CachedNodes
   /**
      This one returns an existing <code>Node</code>.
   */
-  public synchronized Node getNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
+  public Node getNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return getNode(file,fileName,lndIndex,flHdr, NODE);
@@ -324,8 +327,8 @@ public class CachedNodes
   /**
      This one returns an new <code>SdNode</code>.
   */
-  public synchronized Node getNode(RandomAccessFile file,String fileName,long parentIndex,
-                                   int elmtType, FileHdr flHdr)
+  public Node getNode(RandomAccessFile file,String fileName,long parentIndex,
+                      int elmtType, FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return getNode(file,fileName,parentIndex, elmtType, flHdr, NODE);
@@ -333,8 +336,8 @@ public class CachedNodes
   /**
      This one returns an new <code>Node</code>.
   */
-  public synchronized Node getNode(RandomAccessFile file,String fileName,long parentIndex,
-                                   int elmtType, FileHdr flHdr, Node type)
+  public Node getNode(RandomAccessFile file,String fileName,long parentIndex,
+                      int elmtType, FileHdr flHdr, Node type)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     if(type instanceof SdNode)
@@ -348,7 +351,7 @@ public class CachedNodes
      return a clones ReadNode, so that concurrent reads can take place (because none of the methods
      of <code>Node</code> are <code>synchronized</code>.
   */
-  public synchronized ReadNode getReadNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
+  public ReadNode getReadNode(RandomAccessFile file,String fileName,long lndIndex,FileHdr flHdr)
     throws IllegalValueException, NodeReadException, FileNotFoundException, IOException, NodeWriteException
   {
     return ReadNode.makeReadNode(getNode(file,fileName,lndIndex,flHdr));
@@ -356,69 +359,62 @@ public class CachedNodes
   /**
      Write all the diry nodes to the disc.
   */
-  synchronized void flush()
+  void flush()
     throws NodeWriteException
   {
-    //if(!RTree.writeThr)
-    buffHeader.flush();
+    for(Node node : allNodes())
+      flushNode(node);
+  }
+
+  private List<Node> allNodes()
+  {
+    List<Node> list = new ArrayList<Node>();
+    for(Stripe st : stripes){
+      synchronized(st){
+        st.collect(list);
+      }
+    }
+    return list;
   }
   /**
      This method would be called only by those threads that need to modify the
-     tree. Hence this method is automatically synchronized.
+     tree.
   */
-  synchronized void remove(String fileName,long ndIndex)
+  void remove(String fileName,long ndIndex)
     throws NodeWriteException
   {
-    int key = calKey(fileName,(int)ndIndex);
-    buffHeader.remove(key);
+    long key = calKey(fileName,(int)ndIndex);
+    Stripe st = getStripe(key);
+    synchronized(st){
+      Node node = st.remove(key);
+      if(node != null)
+        flushNode(node);
+    }
   }
 
 
   synchronized void removeAll()
     throws NodeWriteException
   {
-    buffHeader.reset();
+    flush();
+    stripes = createStripes(size);
   }
 
-  static Map<String, Integer> fileNamesMap = new LinkedHashMap<String, Integer>();
+  private static final Map<String, Integer> fileNamesMap = new ConcurrentHashMap<String, Integer>();
+  private static final AtomicInteger fileIds = new AtomicInteger();
 
   static void clearFileNamesMap(){
 	  fileNamesMap.clear();
   }
 
-  int calKey(String fileName,int idx)
+  long calKey(String fileName,int idx)
   {
     if(fileName != null) {
-    	Integer i = fileNamesMap.get(fileName);
-    	if(i == null){
-    		if(fileNamesMap.size() > 1023){
-    			throw new ArrayIndexOutOfBoundsException();
-    		}
-    		fileNamesMap.put(fileName, fileNamesMap.size());
-    		i = fileNamesMap.get(fileName);
-    	}
-//      System.out.println(idx + " " + fileName + " " + ((idx << 5)+ fileName.toLowerCase().hashCode() % 32));
-      return ((idx << 10)+ i);
+      Integer i = fileNamesMap.computeIfAbsent(fileName, f -> fileIds.getAndIncrement());
+      return (((long) i) << 32) | (idx & 0xffffffffL);
     } else{
       System.out.println("CachedNodes.calKey: fileName null");
       return 0;
     }
   }
 }
-class NodeValue
-{
-  Node node;
-  int next;//the next node's key
-  int prev;//the prev node's key
-  NodeValue(Node node,int n,int p)
-  {
-    this.node = node;
-    next = n;
-    prev = p;
-  }
-}
-/**
-   TODO:
-   2) A way to pin an node. Obviously the client must also unpinn the node.
-
-*/
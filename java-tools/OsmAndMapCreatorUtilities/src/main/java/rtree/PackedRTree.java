@@ -0,0 +1,339 @@
+//PackedRTree.java
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+package rtree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+   Static tree that is bulk loaded with Sort-Tile-Recursive packing instead of inserting
+   elements one by one into the file based <code>RTree</code> and packing it afterwards.
+   <p>Leaf elements (rect and pointer, 24 bytes) are collected in chunks on the heap, once
+   <code>maxHeapBytes</code> is exceeded further chunks are memory mapped from the spill file.
+   <code>pack</code> sorts the elements (in parallel) by center X, cuts them into vertical
+   slices of <code>sqrt(nodes)</code> nodes, sorts every slice by center Y and groups
+   <code>Node.MAX</code> elements into a node. Upper levels are packed the same way until a
+   single root remains.
+   <p>Nodes are created on demand by <code>getReadNode</code>: leaves have indexes
+   [0, leaves), the root has the biggest index. <code>add</code> is not thread safe, after
+   <code>pack</code> the tree could be read from many threads.
+   <p>Only the elements are saved to a file by <code>save</code>, <code>load</code> packs them
+   again (packing doesn't depend on the heap limit, so the tree is the same).
+*/
+public class PackedRTree implements ReadableRTree, Closeable
+{
+  private final static int ELEMENT_SIZE = 24;
+  private final static int CHUNK_SHIFT = 18;
+  private final static int CHUNK_ELEMENTS = 1 << CHUNK_SHIFT;
+  private final static int CHUNK_MASK = CHUNK_ELEMENTS - 1;
+  private final static long CHUNK_BYTES = (long) CHUNK_ELEMENTS * ELEMENT_SIZE;
+  private final static int PARALLEL_THRESHOLD = 1 << 14;
+
+  private final File spillFile;
+  private final long maxHeapBytes;
+  private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  private RandomAccessFile spillRaf;
+  private int heapChunks;
+  private int size;
+  /**packed levels, leaves first*/
+  private Level[] levels;
+
+  private static class Level
+  {
+    /**index of the first node of the level*/
+    long offset;
+    int nodes;
+    /**children of node j are order[j * MAX, (j + 1) * MAX), positions in the level below*/
+    int[] order;
+    /**minX, minY, maxX, maxY of every node*/
+    int[] bounds;
+    /**position of the parent node in the level above*/
+    int[] parent;
+  }
+
+  private interface Bounds
+  {
+    /**@param field 0 - minX, 1 - minY, 2 - maxX, 3 - maxY*/
+    int get(int item, int field);
+  }
+
+  private static class PackedNode extends Node
+  {
+    PackedNode(long index, int type, Element[] elmts, int total, long prnt)
+    {
+      nodeIndex = index;
+      elementType = type;
+      elements = elmts;
+      totalElements = total;
+      parent = prnt;
+    }
+  }
+
+  /**
+     @param spillFile file to map elements to when the heap limit is exceeded, deleted on close
+     @param maxHeapBytes bytes of elements to keep on heap
+  */
+  public PackedRTree(File spillFile, long maxHeapBytes)
+  {
+    this.spillFile = spillFile;
+    this.maxHeapBytes = maxHeapBytes;
+  }
+
+  public void add(int minX, int minY, int maxX, int maxY, long ptr)
+    throws IllegalValueException, IOException
+  {
+    if(levels != null)
+      throw new IllegalStateException("PackedRTree.add: tree is already packed");
+    if((minX > maxX) || (minY > maxY))
+      throw new IllegalValueException("rtree.PackedRTree.add: wrong order of params.");
+    if(size == Integer.MAX_VALUE)
+      throw new IllegalStateException("PackedRTree.add: too many elements");
+    int chunk = size >> CHUNK_SHIFT;
+    if(chunk == chunks.size())
+      chunks.add(allocateChunk(chunk));
+    ByteBuffer bb = chunks.get(chunk);
+    int pos = (size & CHUNK_MASK) * ELEMENT_SIZE;
+    bb.putInt(pos, minX);
+    bb.putInt(pos + 4, minY);
+    bb.putInt(pos + 8, maxX);
+    bb.putInt(pos + 12, maxY);
+    bb.putLong(pos + 16, ptr);
+    size++;
+  }
+
+  private ByteBuffer allocateChunk(int chunk)
+    throws IOException
+  {
+    if((chunk + 1) * CHUNK_BYTES <= maxHeapBytes){
+      heapChunks++;
+      return ByteBuffer.allocate((int) CHUNK_BYTES);
+    }
+    if(spillRaf == null){
+      spillFile.delete();
+      spillRaf = new RandomAccessFile(spillFile, "rw");
+    }
+    return spillRaf.getChannel().map(MapMode.READ_WRITE, (chunk - heapChunks) * CHUNK_BYTES, CHUNK_BYTES);
+  }
+
+  private int getElementInt(int elmt, int field)
+  {
+    return chunks.get(elmt >> CHUNK_SHIFT).getInt((elmt & CHUNK_MASK) * ELEMENT_SIZE + 4 * field);
+  }
+
+  private long getElementPtr(int elmt)
+  {
+    return chunks.get(elmt >> CHUNK_SHIFT).getLong((elmt & CHUNK_MASK) * ELEMENT_SIZE + 16);
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean isPacked()
+  {
+    return levels != null;
+  }
+
+  /**
+     Builds all levels of the tree, no elements could be added afterwards.
+  */
+  public void pack()
+  {
+    if(levels != null)
+      return;
+    List<Level> lvls = new ArrayList<Level>();
+    Level level = packLevel(size, this::getElementInt);
+    lvls.add(level);
+    while(level.nodes > 1){
+      final int[] bounds = level.bounds;
+      Level upper = packLevel(level.nodes, (item, field) -> bounds[4 * item + field]);
+      upper.offset = level.offset + level.nodes;
+      level.parent = new int[level.nodes];
+      for(int k = 0; k < upper.order.length; k++)
+        level.parent[upper.order[k]] = k / Node.MAX;
+      lvls.add(upper);
+      level = upper;
+    }
+    levels = lvls.toArray(new Level[lvls.size()]);
+  }
+
+  private static Level packLevel(final int count, final Bounds b)
+  {
+    Level level = new Level();
+    level.nodes = Math.max(1, (count + Node.MAX - 1) / Node.MAX);
+    final long[] keys = new long[count];
+    range(count).forEach(i -> keys[i] = key(b.get(i, 0), b.get(i, 2), i));
+    Arrays.parallelSort(keys);
+    int slices = (int) Math.ceil(Math.sqrt(level.nodes));
+    final int sliceSize = slices * Node.MAX;
+    int sliceCount = (count + sliceSize - 1) / sliceSize;
+    IntStream st = IntStream.range(0, sliceCount);
+    (count >= PARALLEL_THRESHOLD ? st.parallel() : st).forEach(s -> {
+      int from = s * sliceSize;
+      int to = Math.min(count, from + sliceSize);
+      for(int k = from; k < to; k++){
+        int i = (int) keys[k];
+        keys[k] = key(b.get(i, 1), b.get(i, 3), i);
+      }
+      Arrays.sort(keys, from, to);
+    });
+    final int[] order = new int[count];
+    range(count).forEach(k -> order[k] = (int) keys[k]);
+    final int[] bounds = new int[4 * level.nodes];
+    range(level.nodes).forEach(j -> {
+      int from = j * Node.MAX;
+      int to = Math.min(count, from + Node.MAX);
+      int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+      int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+      for(int k = from; k < to; k++){
+        int i = order[k];
+        minX = Math.min(minX, b.get(i, 0));
+        minY = Math.min(minY, b.get(i, 1));
+        maxX = Math.max(maxX, b.get(i, 2));
+        maxY = Math.max(maxY, b.get(i, 3));
+      }
+      bounds[4 * j] = minX;
+      bounds[4 * j + 1] = minY;
+      bounds[4 * j + 2] = maxX;
+      bounds[4 * j + 3] = maxY;
+    });
+    level.order = order;
+    level.bounds = bounds;
+    return level;
+  }
+
+  /**center coordinate in the high bits, position in the low bits*/
+  private static long key(int min, int max, int i)
+  {
+    return ((((long) min + max) >> 1) << 32) | i;
+  }
+
+  private static IntStream range(int count)
+  {
+    IntStream st = IntStream.range(0, count);
+    return count >= PARALLEL_THRESHOLD ? st.parallel() : st;
+  }
+
+  /**
+     Writes the number of elements and the elements in the order they were added.
+  */
+  public void save(File file)
+    throws IOException
+  {
+    try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+      out.writeInt(size);
+      for(int i = 0; i < size; i++){
+        for(int field = 0; field < 4; field++)
+          out.writeInt(getElementInt(i, field));
+        out.writeLong(getElementPtr(i));
+      }
+    }
+  }
+
+  /**
+     @return packed tree with the elements saved by <code>save</code>
+  */
+  public static PackedRTree load(File file, File spillFile, long maxHeapBytes)
+    throws IOException
+  {
+    PackedRTree tree = new PackedRTree(spillFile, maxHeapBytes);
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+      int count = in.readInt();
+      for(int i = 0; i < count; i++){
+        int minX = in.readInt();
+        int minY = in.readInt();
+        int maxX = in.readInt();
+        int maxY = in.readInt();
+        tree.add(minX, minY, maxX, maxY, in.readLong());
+      }
+    }catch(IllegalValueException e){
+      tree.close();
+      throw new IOException("PackedRTree.load: " + e.getMessage());
+    }
+    tree.pack();
+    return tree;
+  }
+
+  @Override
+  public long getRootIndex()
+    throws RTreeException
+  {
+    if(levels == null)
+      throw new RTreeException("PackedRTree.getRootIndex: tree is not packed");
+    return levels[levels.length - 1].offset;
+  }
+
+  @Override
+  public Node getReadNode(long index)
+    throws RTreeException
+  {
+    if(levels == null)
+      throw new RTreeException("PackedRTree.getReadNode: tree is not packed");
+    int l = 0;
+    while(l < levels.length - 1 && index >= levels[l + 1].offset)
+      l++;
+    Level level = levels[l];
+    long j = index - level.offset;
+    if(j < 0 || j >= level.nodes)
+      throw new RTreeException("PackedRTree.getReadNode: no node with index " + index);
+    int from = (int) j * Node.MAX;
+    int to = Math.min(level.order.length, from + Node.MAX);
+    Element[] elmts = new Element[Node.MAX];
+    try{
+      for(int k = from; k < to; k++){
+        int c = level.order[k];
+        if(l == 0){
+          elmts[k - from] = new LeafElement(new Rect(getElementInt(c, 0), getElementInt(c, 1),
+                                                     getElementInt(c, 2), getElementInt(c, 3)),
+                                            getElementPtr(c));
+        }else{
+          Level below = levels[l - 1];
+          elmts[k - from] = new NonLeafElement(new Rect(below.bounds[4 * c], below.bounds[4 * c + 1],
+                                                        below.bounds[4 * c + 2], below.bounds[4 * c + 3]),
+                                               below.offset + c);
+        }
+      }
+    }catch(IllegalValueException e){
+      throw new RTreeException("PackedRTree.getReadNode: " + e.getMessage());
+    }
+    long prnt = l == levels.length - 1 ? Node.NOT_DEFINED : levels[l + 1].offset + level.parent[(int) j];
+    return new PackedNode(index, l == 0 ? Node.LEAF_NODE : Node.NONLEAF_NODE, elmts, to - from, prnt);
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    levels = null;
+    chunks.clear();
+    if(spillRaf != null){
+      spillRaf.close();
+      spillRaf = null;
+      spillFile.delete();
+    }
+  }
+}
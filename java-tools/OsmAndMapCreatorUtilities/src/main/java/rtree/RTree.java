@@ -47,7 +47,7 @@ import rtree.join.SweepLine;
  * <p><b>9:</b>To adjust the cache buffer size, see the <code>Node</code> class documentation.
  * @author Prachuryya Barua
  ******************************************************************************************************/
-public class RTree //the tree that would be made
+public class RTree implements ReadableRTree //the tree that would be made
 {
   /**<b>Caution:</b> The file name (of the rtree) is case insensitive in spite
      of the fact that this package was developed on a Linux(RH7.0) platform.
@@ -68,8 +68,10 @@ public class RTree //the tree that would be made
       flHdr = flH;
     }
   }
+  /**max no. of nodes in the cache shared by all the trees*/
+  private static int cacheSize = Node.CACHE_SIZE;
   public static void clearCache(){
-	  chdNodes = new CachedNodes();
+	  chdNodes = new CachedNodes(cacheSize);
 	  fileList = new HashMap();
 	  CachedNodes.clearFileNamesMap();
   }
@@ -91,13 +93,28 @@ public class RTree //the tree that would be made
         fileHdr = ((Header)fileList.get(fileName)).flHdr;
         //the cache of nodes - one cache for all the tree files.
         if(chdNodes == null)
-          chdNodes = new CachedNodes();
+          chdNodes = new CachedNodes(cacheSize);
       }
     }
     catch(Exception e){
       throw new  RTreeException("RTree.RTree: " +e.getMessage());
     }
   }
+  /**
+     Changes the capacity of the node cache, cached nodes are flushed and dropped.
+  */
+  public static synchronized void setCacheSize(int size)
+    throws RTreeException
+  {
+    cacheSize = size;
+    if(chdNodes != null){
+      try{
+        chdNodes.setCacheSize(size);
+      }catch(NodeWriteException e){
+        throw new RTreeException("RTree.setCacheSize: " + e.getMessage());
+      }
+    }
+  }
   /**
      This method is used to ask the fileHdr to update itself. This method is package parivate used by
      <code>Pack</code> class only.
@@ -121,6 +138,11 @@ public class RTree //the tree that would be made
     }
   }
 
+  public long getRootIndex()
+  {
+    return fileHdr.getRootIndex();
+  }
+
   public String getFileName()
   {
     return fileName;
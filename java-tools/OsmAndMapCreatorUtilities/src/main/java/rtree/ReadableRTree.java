@@ -0,0 +1,32 @@
+//ReadableRTree.java
+//
+//This library is free software; you can redistribute it and/or
+//modify it under the terms of the GNU Lesser General Public
+//License as published by the Free Software Foundation; either
+//version 2.1 of the License, or (at your option) any later version.
+//
+//This library is distributed in the hope that it will be useful,
+//but WITHOUT ANY WARRANTY; without even the implied warranty of
+//MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+//Lesser General Public License for more details.
+package rtree;
+
+/**
+   Read only traversal of a tree: start at the root and follow the pointers of the
+   non leaf elements. Implemented by the file based <code>RTree</code> and by the
+   in memory <code>PackedRTree</code>.
+*/
+public interface ReadableRTree
+{
+  /**
+     @return index of the root node, to be passed to <code>getReadNode</code>
+  */
+  long getRootIndex()
+    throws RTreeException;
+
+  /**
+     The returned node must not be modified.
+  */
+  Node getReadNode(long index)
+    throws RTreeException;
+}
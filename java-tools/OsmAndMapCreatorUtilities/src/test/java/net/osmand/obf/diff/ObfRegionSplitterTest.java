@@ -0,0 +1,147 @@
+package net.osmand.obf.diff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.osmand.IProgress;
+import net.osmand.binary.MapZooms;
+import net.osmand.binary.MapZooms.MapZoomPair;
+import net.osmand.obf.preparation.IndexCreator;
+import net.osmand.obf.preparation.IndexCreatorSettings;
+import net.osmand.osm.MapRenderingTypesEncoder;
+import net.osmand.util.Algorithms;
+
+public class ObfRegionSplitterTest {
+
+	// lat, lon of poi and of the first point of the road
+	private static final double[][] POINTS = {
+			// Chukotka on both sides of the antimeridian
+			{ 65.0, 177.5 }, { 65.5, -175.0 }, { 66.0, -172.0 },
+			// Fiji
+			{ -17.8, 178.0 }, { -18.2, -178.8 },
+			// regions far from each other
+			{ 48.85, 2.35 }, { 52.52, 13.40 }, { 52.37, 4.90 }, { 48.58, 7.75 }, { 35.68, 139.69 },
+			{ -33.87, 151.21 }, { 40.71, -74.01 } };
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("obf-split").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		Algorithms.removeAllFiles(dir);
+	}
+
+	@Test
+	public void testStreamingSameAsInMemory() throws Exception {
+		File obf = createWorldObf();
+		File inMemory = new File(dir, "in_memory");
+		File streaming = new File(dir, "streaming");
+		new ObfRegionSplitter().splitInMemory(obf, inMemory, "", "_test", null);
+		new ObfRegionSplitter().splitStreaming(obf, streaming, "", "_test", null);
+
+		Map<String, File> expected = listObfFiles(inMemory, inMemory, new TreeMap<>());
+		Map<String, File> actual = listObfFiles(streaming, streaming, new TreeMap<>());
+		Assert.assertTrue("Too few regions " + expected.keySet(), expected.size() > 3);
+		Assert.assertEquals(expected.keySet(), actual.keySet());
+		for (String name : expected.keySet()) {
+			Assert.assertEquals(name, readIds(expected.get(name)), readIds(actual.get(name)));
+		}
+	}
+
+	private File createWorldObf() throws Exception {
+		File osm = new File(dir, "world.osm");
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(osm), StandardCharsets.UTF_8)) {
+			w.write("<?xml version='1.0' encoding='UTF-8'?>\n<osm version='0.6'>\n");
+			long id = 1;
+			for (int i = 0; i < POINTS.length; i++) {
+				double lat = POINTS[i][0];
+				double lon = POINTS[i][1];
+				w.write(String.format(Locale.US, "<node id='%d' version='1' lat='%.5f' lon='%.5f'>"
+						+ "<tag k='amenity' v='cafe'/><tag k='name' v='Cafe %d'/></node>\n", id++, lat, lon, i));
+				long start = id;
+				for (int k = 0; k < 3; k++) {
+					// last point of some roads is in the next region
+					double dlon = k == 2 && i % 2 == 0 ? 1 : k * 0.01;
+					w.write(String.format(Locale.US, "<node id='%d' version='1' lat='%.5f' lon='%.5f'/>\n", id++,
+							lat + k * 0.01, normalizeLon(lon + dlon)));
+				}
+				w.write(String.format("<way id='%d' version='1'>", 1000 + i));
+				for (long n = start; n < id; n++) {
+					w.write(String.format("<nd ref='%d'/>", n));
+				}
+				w.write(String.format("<tag k='highway' v='primary'/><tag k='name' v='Road %d'/></way>\n", i));
+			}
+			w.write("</osm>\n");
+		}
+		IndexCreatorSettings settings = new IndexCreatorSettings();
+		settings.indexMap = true;
+		settings.indexPOI = true;
+		settings.indexRouting = true;
+		IndexCreator creator = new IndexCreator(dir, settings);
+		creator.setMapFileName("World.obf");
+		return creator.generateIndexes(osm, IProgress.EMPTY_PROGRESS, null, MapZooms.getDefault(),
+				new MapRenderingTypesEncoder(null, osm.getName()), null);
+	}
+
+	private static double normalizeLon(double lon) {
+		return lon > 180 ? lon - 360 : lon;
+	}
+
+	private static Map<String, File> listObfFiles(File root, File folder, Map<String, File> result) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.isDirectory()) {
+					listObfFiles(root, f, result);
+				} else if (f.getName().endsWith(".obf.gz")) {
+					result.put(root.toPath().relativize(f.toPath()).toString(), f);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static String readIds(File file) throws IOException {
+		ObfFileInMemory obf = new ObfFileInMemory();
+		obf.readObfFiles(Collections.singletonList(file));
+		StringBuilder ids = new StringBuilder();
+		// zooms in the order of the file could differ
+		Map<String, TreeSet<Long>> mapIds = new TreeMap<>();
+		for (MapZoomPair pair : obf.getZooms()) {
+			mapIds.put(pair.getMinZoom() + "-" + pair.getMaxZoom(), sortedIds(obf.get(pair)));
+		}
+		ids.append("map: ").append(mapIds).append('\n');
+		ids.append("route: ").append(sortedIds(obf.getRoutingData())).append('\n');
+		ids.append("poi: ").append(sortedIds(obf.getPoiObjects())).append('\n');
+		ids.append("transport: ").append(sortedIds(obf.getTransportStops())).append('\n');
+		return ids.toString();
+	}
+
+	private static TreeSet<Long> sortedIds(TLongObjectHashMap<?> objects) {
+		TreeSet<Long> ids = new TreeSet<>();
+		for (long id : objects.keys()) {
+			ids.add(id);
+		}
+		return ids;
+	}
+}
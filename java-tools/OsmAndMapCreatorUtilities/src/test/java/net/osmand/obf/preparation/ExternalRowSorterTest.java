@@ -0,0 +1,80 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExternalRowSorterTest {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("row-sorter").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testRunsCountForBudget() throws IOException, SQLException {
+		int budget = 1 << 20;
+		int count = 200000;
+		ExternalRowSorter sorter = new ExternalRowSorter(dir, "test");
+		Random rnd = new Random(1);
+		for (int i = 0; i < count; i++) {
+			sorter.addRow(rnd.nextInt(count), 0).writeLong(i);
+			// same check as OsmDbCreator.checkSortBuffers
+			if (sorter.getMemoryUsage() > budget) {
+				sorter.spill();
+				Assert.assertEquals(0, sorter.getMemoryUsage());
+			}
+		}
+		// row is 8 bytes of payload and 24 bytes of keys, so every run has 32769 rows
+		Assert.assertEquals(count / (budget / 32 + 1), sorter.getRunsCount());
+		Assert.assertEquals(count, sorter.getRowsCount());
+		final long[] prev = { -1 };
+		sorter.merge((id, ord, payload) -> {
+			Assert.assertTrue(id > prev[0]);
+			prev[0] = id;
+		});
+		Assert.assertEquals(0, sorter.getRunsCount());
+	}
+
+	@Test
+	public void testLastDuplicateWins() throws IOException, SQLException {
+		ExternalRowSorter sorter = new ExternalRowSorter(dir, "test");
+		for (int i = 0; i < 10; i++) {
+			sorter.addRow(10 - i, 0).writeInt(i);
+		}
+		sorter.addRow(5, 1).writeInt(100);
+		// duplicates in the same run and in the later runs
+		sorter.addRow(3, 0).writeInt(101);
+		sorter.spill();
+		sorter.addRow(3, 0).writeInt(102);
+		sorter.addRow(5, 1).writeInt(103);
+		sorter.spill();
+		sorter.addRow(5, 1).writeInt(104);
+		final List<String> rows = new ArrayList<>();
+		sorter.merge((id, ord, payload) -> rows.add(id + ":" + ord + "=" + payload.getInt()));
+		Assert.assertEquals("[1:0=9, 2:0=8, 3:0=102, 4:0=6, 5:0=5, 5:1=104, 6:0=4, 7:0=3, 8:0=2, 9:0=1, 10:0=0]",
+				rows.toString());
+	}
+}
@@ -0,0 +1,140 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexHeightDataTest {
+
+	private static final int TILES = 6;
+	private static final int TILE_SIZE = 121;
+	private static final int LAT = 50;
+	private static final int LON = 10;
+
+	private File dir;
+	private int maxLoadedData;
+	private long maxLoadedBytes;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("srtm").toFile();
+		File rawDir = new File(dir, "srtm_raw");
+		rawDir.mkdirs();
+		for (int i = 0; i < TILES; i++) {
+			writeRawTile(new File(rawDir, String.format("N%02dE%03d.raw", LAT, LON + i)), (short) (100 + i));
+		}
+		maxLoadedData = IndexHeightData.MAXIMUM_LOADED_DATA;
+		maxLoadedBytes = IndexHeightData.MAXIMUM_LOADED_BYTES;
+		// every load of a new tile unloads the others
+		IndexHeightData.MAXIMUM_LOADED_DATA = 2;
+	}
+
+	@After
+	public void tearDown() {
+		IndexHeightData.MAXIMUM_LOADED_DATA = maxLoadedData;
+		IndexHeightData.MAXIMUM_LOADED_BYTES = maxLoadedBytes;
+		File rawDir = new File(dir, "srtm_raw");
+		File[] files = rawDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		rawDir.delete();
+		dir.delete();
+	}
+
+	private static void writeRawTile(File raw, short height) throws IOException {
+		try (RandomAccessFile rf = new RandomAccessFile(raw, "rw"); FileChannel ch = rf.getChannel()) {
+			MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, 8 + 2L * TILE_SIZE * TILE_SIZE);
+			buf.order(ByteOrder.nativeOrder());
+			buf.putInt(TILE_SIZE);
+			buf.putInt(TILE_SIZE);
+			ShortBuffer sb = buf.slice().order(ByteOrder.nativeOrder()).asShortBuffer();
+			for (int i = 0; i < TILE_SIZE * TILE_SIZE; i++) {
+				sb.put(height);
+			}
+			buf.force();
+		}
+	}
+
+	@Test
+	public void testConcurrentLookupsUnderEviction() throws Exception {
+		IndexHeightData hd = new IndexHeightData();
+		hd.setSrtmData(dir.getAbsolutePath(), dir);
+		ExecutorService service = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				final long seed = t;
+				futures.add(service.submit(() -> {
+					Random rnd = new Random(seed);
+					// less than MAX_SRTM_COUNT_DOWNLOAD loads
+					for (int i = 0; i < 2000; i++) {
+						// tile after the last one doesn't exist
+						int tile = rnd.nextInt(TILES + 1);
+						double lat = LAT + 0.1 + rnd.nextDouble() * 0.8;
+						double lon = LON + tile + 0.1 + rnd.nextDouble() * 0.8;
+						double expected = tile < TILES ? 100 + tile : IndexHeightData.INEXISTENT_HEIGHT;
+						Assert.assertEquals(expected, hd.getPointHeight(lat, lon), 0.01);
+					}
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			service.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testBatchHeights() {
+		IndexHeightData hd = new IndexHeightData();
+		hd.setSrtmData(dir.getAbsolutePath(), dir);
+		Random rnd = new Random(1);
+		int n = 1000;
+		double[] lats = new double[n];
+		double[] lons = new double[n];
+		for (int i = 0; i < n; i++) {
+			lats[i] = LAT + 0.1 + rnd.nextDouble() * 0.8;
+			lons[i] = LON + (i % TILES) + 0.1 + rnd.nextDouble() * 0.8;
+		}
+		double[] heights = hd.getPointHeights(lats, lons, null);
+		for (int i = 0; i < n; i++) {
+			Assert.assertEquals(100 + i % TILES, heights[i], 0.01);
+		}
+		// there is no tile
+		Assert.assertEquals(IndexHeightData.INEXISTENT_HEIGHT, hd.getPointHeight(LAT - 5.5, LON + 0.5), 0);
+	}
+
+	@Test
+	public void testRawTilesOfPreviousRunAreRemoved() {
+		IndexHeightData hd = new IndexHeightData();
+		hd.setSrtmData(dir.getAbsolutePath(), dir);
+		// raw tiles of 1 tile size are kept loaded and 4 on disk
+		IndexHeightData.MAXIMUM_LOADED_BYTES = 8 + 2L * TILE_SIZE * TILE_SIZE;
+		for (int i = 0; i < TILES; i++) {
+			Assert.assertEquals(100 + i, hd.getPointHeight(LAT + 0.5, LON + i + 0.5), 0.01);
+		}
+		Assert.assertTrue(new File(dir, "srtm_raw").listFiles().length < TILES);
+		hd.clearRawTiles();
+		Assert.assertFalse(new File(dir, "srtm_raw").exists());
+	}
+}
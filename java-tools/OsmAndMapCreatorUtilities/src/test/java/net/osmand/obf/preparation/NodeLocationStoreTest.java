@@ -0,0 +1,149 @@
+package net.osmand.obf.preparation;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.osmand.osm.edit.Node;
+
+public class NodeLocationStoreTest {
+
+	// 4096 records per segment
+	private static final int SEGMENT_SHIFT = 12;
+	private static final int NODES = 20000;
+	// coordinates are stored as 31 tile numbers
+	private static final double EPS = 1e-6;
+
+	private File dir;
+	private NodeLocationStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("node-locations").toFile();
+		store = new NodeLocationStore(new File(dir, "nodes"), SEGMENT_SHIFT);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		store.close();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testRoundTripAcrossSegments() throws Exception {
+		Random rnd = new Random(0);
+		double[][] locations = new double[NODES][];
+		for (int i = 0; i < NODES; i++) {
+			locations[i] = new double[] { rnd.nextDouble() * 170 - 85, rnd.nextDouble() * 360 - 180 };
+			store.put(id(i), locations[i][0], locations[i][1], i % 3 == 0 ? tags(i) : null);
+		}
+		Assert.assertEquals(NODES, store.size());
+		for (int i = 0; i < NODES; i++) {
+			checkNode(i, locations[i]);
+		}
+		Assert.assertNull(store.getNode(id(NODES), false));
+		Assert.assertNull(store.getNode(id(0) - 1, false));
+		Assert.assertNull(store.getNode(id(1) - 1, false));
+	}
+
+	@Test
+	public void testUnsortedRuns() throws Exception {
+		// runs of decreasing ids which cross the segment borders, the last run wins for the duplicate id
+		int runs = 5;
+		int perRun = (1 << SEGMENT_SHIFT) + 100;
+		for (int r = 0; r < runs; r++) {
+			for (int i = 0; i < perRun; i++) {
+				long id = (long) (runs - r) * perRun * 2 + i * 2;
+				store.put(id, r, i * 1e-3, null);
+			}
+		}
+		store.put(runs * perRun * 2, 10, 10, null);
+		Assert.assertEquals(runs * perRun + 1, store.size());
+		for (int r = 0; r < runs; r++) {
+			for (int i = 0; i < perRun; i++) {
+				long id = (long) (runs - r) * perRun * 2 + i * 2;
+				Node n = store.getNode(id, false);
+				Assert.assertNotNull("Node " + id, n);
+				if (id != runs * perRun * 2) {
+					Assert.assertEquals(r, n.getLatitude(), EPS);
+					Assert.assertEquals(i * 1e-3, n.getLongitude(), EPS);
+				}
+				Assert.assertNull(store.getNode(id + 1, false));
+			}
+		}
+		Assert.assertEquals(10, store.getNode(runs * perRun * 2, false).getLatitude(), EPS);
+	}
+
+	@Test
+	public void testConcurrentReadsWhileWriting() throws Exception {
+		ExecutorService service = Executors.newFixedThreadPool(3);
+		try {
+			List<Future<?>> readers = new ArrayList<>();
+			for (int t = 0; t < 3; t++) {
+				readers.add(service.submit(() -> {
+					Random rnd = new Random();
+					while (store.size() < NODES) {
+						int size = store.size();
+						if (size > 0) {
+							int i = rnd.nextInt(size);
+							Node n = store.getNode(id(i), i % 3 == 0);
+							Assert.assertNotNull("Node " + id(i), n);
+							Assert.assertEquals(lat(i), n.getLatitude(), EPS);
+						}
+					}
+					return null;
+				}));
+			}
+			for (int i = 0; i < NODES; i++) {
+				store.put(id(i), lat(i), 0, i % 3 == 0 ? tags(i) : null);
+			}
+			for (Future<?> f : readers) {
+				f.get();
+			}
+		} finally {
+			service.shutdownNow();
+		}
+	}
+
+	private void checkNode(int i, double[] location) throws Exception {
+		Node n = store.getNode(id(i), i % 3 == 0);
+		Assert.assertNotNull("Node " + id(i), n);
+		Assert.assertEquals(id(i), n.getId());
+		Assert.assertEquals(location[0], n.getLatitude(), EPS);
+		Assert.assertEquals(location[1], n.getLongitude(), EPS);
+		if (i % 3 == 0) {
+			Assert.assertEquals("v" + i, n.getTag("k" + i));
+		}
+	}
+
+	private static long id(int i) {
+		// ids with gaps, so missing ids are between the stored ones
+		return 1000L + i * 3L;
+	}
+
+	private static double lat(int i) {
+		return (i % 1700) * 0.1 - 85;
+	}
+
+	// the same format as tags blob of node table
+	private static byte[] tags(int i) {
+		return ("k" + i + "\u0000v" + i + "\u0000").getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,167 @@
+package net.osmand.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.osmand.router.HHRouteDataStructure.NetworkDBSegment;
+import net.osmand.router.HHRoutingPreparationDB.NetworkDBPointPrep;
+
+public class HHRoutingTopGraphCreatorTest {
+
+	private static final int MAX_SETTLE_POINTS = 1000;
+
+	private int threads;
+	private List<NetworkDBPointPrep> points;
+	// original graph: from, to, weight
+	private List<double[]> edges;
+
+	@Before
+	public void setUp() {
+		threads = HHRoutingTopGraphCreator.THREADS;
+		HHRoutingTopGraphCreator.THREADS = 4;
+	}
+
+	@After
+	public void tearDown() {
+		HHRoutingTopGraphCreator.THREADS = threads;
+	}
+
+	@Test
+	public void testGridSameWeights() throws Exception {
+		// cells of the grid share neighbors, so many vertices of one round have common neighbors
+		int side = 8;
+		createPoints(side * side);
+		for (int y = 0; y < side; y++) {
+			for (int x = 0; x < side; x++) {
+				int p = y * side + x;
+				if (x + 1 < side) {
+					addEdge(p, p + 1, 1);
+					addEdge(p + 1, p, 1);
+				}
+				if (y + 1 < side) {
+					addEdge(p, p + side, 1);
+					addEdge(p + side, p, 1);
+				}
+			}
+		}
+		contractAndCompare();
+	}
+
+	@Test
+	public void testRandomGraphs() throws Exception {
+		for (int seed = 0; seed < 20; seed++) {
+			Random rnd = new Random(seed);
+			int n = 60;
+			createPoints(n);
+			for (int i = 0; i < n * 3; i++) {
+				int from = rnd.nextInt(n);
+				int to = rnd.nextInt(n);
+				if (from != to && points.get(from).getSegment(points.get(to), true) == null) {
+					// small integer weights, so there are equal paths
+					addEdge(from, to, 1 + rnd.nextInt(4));
+				}
+			}
+			contractAndCompare();
+		}
+	}
+
+	private void createPoints(int n) {
+		points = new ArrayList<>();
+		edges = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			NetworkDBPointPrep p = new NetworkDBPointPrep();
+			p.index = i;
+			points.add(p);
+		}
+	}
+
+	private void addEdge(int from, int to, double dist) {
+		NetworkDBPointPrep s = points.get(from);
+		NetworkDBPointPrep e = points.get(to);
+		s.connected.add(new NetworkDBSegment(s, e, dist, true, false));
+		e.connectedReverse.add(new NetworkDBSegment(s, e, dist, false, false));
+		edges.add(new double[] { from, to, dist });
+	}
+
+	private void contractAndCompare() throws Exception {
+		HHRoutingTopGraphCreator creator = new HHRoutingTopGraphCreator(null, null);
+		creator.runParallelContraction(points, MAX_SETTLE_POINTS, points.size());
+		for (NetworkDBPointPrep p : points) {
+			Assert.assertTrue("Point is not contracted " + p.index, p.rtExclude);
+		}
+		for (int s = 0; s < points.size(); s++) {
+			double[] expected = dijkstra(s);
+			double[] forward = upwardSearch(s, true);
+			for (int t = 0; t < points.size(); t++) {
+				double[] backward = upwardSearch(t, false);
+				double ch = Double.POSITIVE_INFINITY;
+				for (int m = 0; m < points.size(); m++) {
+					ch = Math.min(ch, forward[m] + backward[m]);
+				}
+				Assert.assertEquals("Distance " + s + " -> " + t, expected[t], ch, 1e-9);
+			}
+		}
+	}
+
+	private double[] dijkstra(int start) {
+		List<List<double[]>> out = new ArrayList<>();
+		for (int i = 0; i < points.size(); i++) {
+			out.add(new ArrayList<>());
+		}
+		for (double[] e : edges) {
+			out.get((int) e[0]).add(e);
+		}
+		double[] dist = new double[points.size()];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		dist[start] = 0;
+		PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[1], b[1]));
+		queue.add(new double[] { start, 0 });
+		while (!queue.isEmpty()) {
+			double[] v = queue.poll();
+			int p = (int) v[0];
+			if (v[1] > dist[p]) {
+				continue;
+			}
+			for (double[] e : out.get(p)) {
+				int t = (int) e[1];
+				if (v[1] + e[2] < dist[t]) {
+					dist[t] = v[1] + e[2];
+					queue.add(new double[] { t, dist[t] });
+				}
+			}
+		}
+		return dist;
+	}
+
+	// contraction hierarchy search: only edges to the points contracted later
+	private double[] upwardSearch(int start, boolean forward) {
+		double[] dist = new double[points.size()];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		dist[start] = 0;
+		PriorityQueue<double[]> queue = new PriorityQueue<>((a, b) -> Double.compare(a[1], b[1]));
+		queue.add(new double[] { start, 0 });
+		while (!queue.isEmpty()) {
+			double[] v = queue.poll();
+			NetworkDBPointPrep p = points.get((int) v[0]);
+			if (v[1] > dist[p.index]) {
+				continue;
+			}
+			for (NetworkDBSegment s : forward ? p.connected : p.connectedReverse) {
+				NetworkDBPointPrep t = (NetworkDBPointPrep) (forward ? s.end : s.start);
+				if (t.chFinalInd > p.chFinalInd && v[1] + s.dist < dist[t.index]) {
+					dist[t.index] = v[1] + s.dist;
+					queue.add(new double[] { t.index, dist[t.index] });
+				}
+			}
+		}
+		return dist;
+	}
+}
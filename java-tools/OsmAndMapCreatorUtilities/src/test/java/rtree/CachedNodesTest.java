@@ -0,0 +1,120 @@
+package rtree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachedNodesTest {
+
+	private static final int WRITERS = 3;
+	private static final int READERS = 3;
+	private static final int ELEMENTS = 10000;
+	private static final int SIZE = 1 << 16;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("cached-nodes").toFile();
+		RTree.clearCache();
+		// 16 nodes per stripe: enough for one insert, but nodes of all trees are evicted all the time
+		RTree.setCacheSize(1024);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		RTree.clearCache();
+		RTree.setCacheSize(Node.CACHE_SIZE);
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testConcurrentReadWrite() throws Exception {
+		// dirty nodes of the tree are evicted by inserts into other trees while it's read
+		RTree read = createTree("read");
+		List<Rect> readRects = insertRandom(read, new Random(0));
+		ExecutorService service = Executors.newFixedThreadPool(WRITERS + READERS);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < WRITERS; i++) {
+				int seed = i + 1;
+				futures.add(service.submit(() -> {
+					RTree tree = createTree("write" + seed);
+					Random rnd = new Random(seed);
+					List<Rect> rects = insertRandom(tree, rnd);
+					checkSearch(tree, rects, rnd);
+					return null;
+				}));
+			}
+			for (int i = 0; i < READERS; i++) {
+				int seed = -i - 1;
+				futures.add(service.submit(() -> {
+					Random rnd = new Random(seed);
+					for (int k = 0; k < 20; k++) {
+						checkSearch(read, readRects, rnd);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			service.shutdownNow();
+		}
+		read.flush();
+		RTree.clearCache();
+		// all changes are in the file
+		checkSearch(new RTree(new File(dir, "read").getAbsolutePath()), readRects, new Random(100));
+	}
+
+	private RTree createTree(String name) throws RTreeException {
+		return new RTree(new File(dir, name).getAbsolutePath());
+	}
+
+	private List<Rect> insertRandom(RTree tree, Random rnd) throws Exception {
+		List<Rect> rects = new ArrayList<>();
+		for (int i = 0; i < ELEMENTS; i++) {
+			Rect r = randomRect(rnd, 64);
+			tree.insert(new LeafElement(r, i));
+			rects.add(r);
+		}
+		return rects;
+	}
+
+	private void checkSearch(RTree tree, List<Rect> rects, Random rnd) throws Exception {
+		for (int k = 0; k < 10; k++) {
+			Rect box = randomRect(rnd, SIZE / 4);
+			int expected = 0;
+			for (Rect r : rects) {
+				if (r.overlaps(box)) {
+					expected++;
+				}
+			}
+			Assert.assertEquals(expected, tree.overlaps(box).size());
+		}
+	}
+
+	private static Rect randomRect(Random rnd, int maxSide) throws IllegalValueException {
+		int x = rnd.nextInt(SIZE);
+		int y = rnd.nextInt(SIZE);
+		return new Rect(x, y, x + rnd.nextInt(maxSide), y + rnd.nextInt(maxSide));
+	}
+}
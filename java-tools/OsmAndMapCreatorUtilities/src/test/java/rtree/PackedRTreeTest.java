@@ -0,0 +1,155 @@
+package rtree;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PackedRTreeTest {
+
+	private static final int ELEMENTS = 10000;
+	private static final int SIZE = 1 << 16;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("packed-rtree").toFile();
+		RTree.clearCache();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		RTree.clearCache();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testSameSearchAsRTree() throws Exception {
+		checkTrees(ELEMENTS, 256L << 20, new Random(0));
+	}
+
+	@Test
+	public void testSpilledElements() throws Exception {
+		// no heap chunks, all elements are mapped from the spill file
+		checkTrees(ELEMENTS, 0, new Random(1));
+	}
+
+	@Test
+	public void testSmallTrees() throws Exception {
+		Random rnd = new Random(2);
+		for (int count : new int[] { 1, 2, Node.MAX, Node.MAX + 1, Node.MAX * Node.MAX + 1 }) {
+			checkTrees(count, 256L << 20, rnd);
+		}
+	}
+
+	@Test
+	public void testSaveLoad() throws Exception {
+		Random rnd = new Random(3);
+		PackedRTree packed = new PackedRTree(new File(dir, "spill"), 256L << 20);
+		List<Rect> rects = new ArrayList<>();
+		for (int i = 0; i < ELEMENTS; i++) {
+			Rect r = randomRect(rnd, 64);
+			packed.add(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(), i);
+			rects.add(r);
+		}
+		packed.pack();
+		File saved = new File(dir, "saved");
+		packed.save(saved);
+		PackedRTree loaded = PackedRTree.load(saved, new File(dir, "spill2"), 0);
+		try {
+			Assert.assertEquals(packed.size(), loaded.size());
+			Assert.assertEquals(packed.getRootIndex(), loaded.getRootIndex());
+			for (int k = 0; k < 50; k++) {
+				Rect box = randomRect(rnd, SIZE / 4);
+				Assert.assertEquals(search(packed, box), search(loaded, box));
+				Assert.assertEquals(expected(rects, box), search(loaded, box));
+			}
+		} finally {
+			packed.close();
+			loaded.close();
+		}
+	}
+
+	private void checkTrees(int count, long maxHeapBytes, Random rnd) throws Exception {
+		RTree tree = new RTree(new File(dir, "tree" + count).getAbsolutePath());
+		PackedRTree packed = new PackedRTree(new File(dir, "spill" + count), maxHeapBytes);
+		List<Rect> rects = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			// same rects and duplicates, so the order of equal keys matters
+			Rect r = i > 0 && rnd.nextInt(10) == 0 ? rects.get(rnd.nextInt(i)) : randomRect(rnd, 64);
+			tree.insert(new LeafElement(r, i));
+			packed.add(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(), i);
+			rects.add(r);
+		}
+		packed.pack();
+		try {
+			Assert.assertEquals(count, packed.size());
+			for (int k = 0; k < 50; k++) {
+				Rect box = randomRect(rnd, SIZE / 4);
+				Set<Long> result = search(tree, box);
+				Assert.assertEquals(expected(rects, box), result);
+				Assert.assertEquals(result, search(packed, box));
+			}
+			Rect all = new Rect(0, 0, SIZE * 2, SIZE * 2);
+			Assert.assertEquals(count, search(packed, all).size());
+		} finally {
+			packed.close();
+		}
+	}
+
+	private static Set<Long> expected(List<Rect> rects, Rect box) throws IllegalValueException {
+		Set<Long> res = new TreeSet<>();
+		for (int i = 0; i < rects.size(); i++) {
+			if (rects.get(i).overlaps(box)) {
+				res.add((long) i);
+			}
+		}
+		return res;
+	}
+
+	// traversal as in the writing of obf map blocks
+	private static Set<Long> search(ReadableRTree tree, Rect box) throws Exception {
+		Set<Long> res = new TreeSet<>();
+		search(tree, tree.getReadNode(tree.getRootIndex()), box, res);
+		return res;
+	}
+
+	private static void search(ReadableRTree tree, Node node, Rect box, Set<Long> res) throws Exception {
+		Element[] e = node.getAllElements();
+		for (int i = 0; i < node.getTotalElements(); i++) {
+			if (!e[i].getRect().overlaps(box)) {
+				continue;
+			}
+			if (e[i].getElementType() == Node.LEAF_NODE) {
+				Assert.assertTrue("Duplicate element " + e[i].getPtr(), res.add(e[i].getPtr()));
+			} else {
+				Node child = tree.getReadNode(e[i].getPtr());
+				if (tree instanceof PackedRTree) {
+					Assert.assertEquals(node.getNodeIndex(), child.getParent());
+				}
+				search(tree, child, box, res);
+			}
+		}
+	}
+
+	private static Rect randomRect(Random rnd, int maxSide) throws IllegalValueException {
+		int x = rnd.nextInt(SIZE);
+		int y = rnd.nextInt(SIZE);
+		return new Rect(x, y, x + rnd.nextInt(maxSide), y + rnd.nextInt(maxSide));
+	}
+}
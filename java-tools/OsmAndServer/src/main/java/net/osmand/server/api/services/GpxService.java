@@ -25,6 +25,7 @@ import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -38,6 +39,9 @@ public class GpxService {
     @Autowired
     WebGpxParser webGpxParser;
     
+    @Autowired
+    SrtmService srtmService;
+    
     @Value("${osmand.srtm.location}")
     String srtmLocation;
     
@@ -168,17 +172,29 @@ public class GpxService {
             }
             return null;
         } else {
-            File srtmFolder = new File(srtmLocation);
-            if (!srtmFolder.exists()) {
+            List<WptPt> points = new ArrayList<>();
+            for (Track tr : gpxFile.getTracks()) {
+                for (TrkSegment s : tr.getSegments()) {
+                    points.addAll(s.getPoints());
+                }
+            }
+            double[] lats = new double[points.size()];
+            double[] lons = new double[points.size()];
+            for (int i = 0; i < points.size(); i++) {
+                lats[i] = points.get(i).getLat();
+                lons[i] = points.get(i).getLon();
+            }
+            // heights of all points at once, so every srtm tile is processed once
+            double[] heights = srtmService.getHeights(lats, lons, missingFile);
+            if (heights == null) {
                 return null;
             }
-            IndexHeightData hd = new IndexHeightData();
-            hd.setSrtmData(srtmFolder.getAbsolutePath(), srtmFolder);
+            int ind = 0;
             for (Track tr : gpxFile.getTracks()) {
                 for (TrkSegment s : tr.getSegments()) {
                     for (int i = 0; i < s.getPoints().size(); i++) {
                         WptPt wpt = s.getPoints().get(i);
-                        double h = hd.getPointHeight(wpt.getLat(), wpt.getLon(), missingFile);
+                        double h = heights[ind++];
                         if (h != IndexHeightData.INEXISTENT_HEIGHT) {
                             wpt.setEle(h);
                         } else if (i == 0) {
@@ -26,6 +26,7 @@ import javax.annotation.Nullable;
 import net.osmand.router.*;
 import net.osmand.server.WebSecurityConfiguration;
 import net.osmand.server.api.repo.PremiumUserDevicesRepository;
+import net.osmand.server.tileManager.NativeRendererPool;
 import net.osmand.server.tileManager.TileMemoryCache;
 import net.osmand.server.tileManager.VectorMetatile;
 import net.osmand.server.utils.TimezoneMapper;
@@ -121,6 +122,8 @@ public class OsmAndMapsService {
 
 	NativeJavaRendering nativelib;
 
+	NativeRendererPool rendererPool;
+
 	File tempDir;
 
 	@Autowired
@@ -547,6 +550,10 @@ public class OsmAndMapsService {
 				ios.close();
 			}
 			nativelib = NativeJavaRendering.getDefault(null, tileConfig.obfLocation, fontsFolder.getAbsolutePath());
+			if (nativelib != null) {
+				rendererPool = new NativeRendererPool(nativelib, tileConfig.rendererPoolSize,
+						tileConfig.rendererMaxQueue, tileConfig.rendererMaxWaitSeconds * 1000L);
+			}
 		}
 		return tileConfig.initErrorMessage == null;
 	}
@@ -559,7 +566,15 @@ public class OsmAndMapsService {
 	}
 
 	public ResponseEntity<String> renderMetaTile(VectorMetatile tile, TileMemoryCache<VectorMetatile> tileMemoryCache) throws XmlPullParserException, IOException, SAXException {
-		return tile.renderMetaTile(nativelib, tileMemoryCache);
+		return tile.renderMetaTile(rendererPool, tileMemoryCache);
+	}
+
+	public ResponseEntity<String> prefetchMetaTile(VectorMetatile tile, TileMemoryCache<VectorMetatile> tileMemoryCache) throws XmlPullParserException, IOException, SAXException {
+		return tile.renderMetaTile(rendererPool, tileMemoryCache, true);
+	}
+
+	public NativeRendererPool getRendererPool() {
+		return rendererPool;
 	}
 
 	public BufferedImage renderGeotiffTile(String tilePath, String outColorFilename, String midColorFilename,
@@ -8,6 +8,7 @@ import java.util.Map;
 import java.util.TreeMap;
 
 import net.osmand.data.LatLonEle;
+import net.osmand.obf.preparation.IndexHeightData;
 import net.osmand.shared.gpx.ElevationApproximator;
 import net.osmand.router.*;
 import net.osmand.shared.gpx.ElevationDiffsCalculator;
@@ -40,6 +41,9 @@ public class RoutingService {
     @Autowired
     WebGpxParser webGpxParser;
 
+    @Autowired
+    SrtmService srtmService;
+
 	public List<WebGpxParser.Point> updateRouteBetweenPoints(LatLon startLatLon, LatLon endLatLon, String routeMode,
 			boolean hasRouting, boolean disableOldRouting, RouteCalculationProgress progress)
 			throws IOException, InterruptedException {
@@ -248,8 +252,31 @@ public class RoutingService {
                 features.add(f);
             }
         }
+        fillSrtmElevations(resListEle);
         return resListEle;
     }
+
+    // segments without heights in the maps take heights from srtm tiles
+    private void fillSrtmElevations(List<LatLonEle> points) {
+        List<LatLonEle> missing = new ArrayList<>();
+        for (LatLonEle p : points) {
+            if (Double.isNaN(p.getElevation())) {
+                missing.add(p);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        double[] heights = srtmService.getHeights(missing);
+        if (heights == null) {
+            return;
+        }
+        for (int i = 0; i < missing.size(); i++) {
+            if (heights[i] != IndexHeightData.INEXISTENT_HEIGHT) {
+                missing.get(i).setElevation((float) heights[i]);
+            }
+        }
+    }
     
     public List<Double> calculateElevationDiffs(List<LatLonEle> points) {
         ElevationApproximator approximator = getElevationApproximator(points);
@@ -0,0 +1,86 @@
+package net.osmand.server.api.services;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import net.osmand.data.LatLon;
+import net.osmand.obf.preparation.IndexHeightData;
+import net.osmand.util.Algorithms;
+
+/**
+ * Heights from srtm tiles shared by all requests. Tiles are decoded into raw files of the cache folder (srtm folder is
+ * only read) and kept memory mapped between requests, number and size of loaded tiles are limited by IndexHeightData.
+ * Raw tiles of the previous run are removed on start, IndexHeightData removes unloaded raw tiles when there are too
+ * many, so the cache folder doesn't grow.
+ * Heights are calculated concurrently: IndexHeightData reads the buffer of a tile once per lookup and loads the tile
+ * again if it was unloaded by another request.
+ */
+@Service
+public class SrtmService {
+
+	protected static final Log LOGGER = LogFactory.getLog(SrtmService.class);
+
+	@Value("${osmand.srtm.location}")
+	String srtmLocation;
+
+	@Value("${osmand.srtm.cache-location:}")
+	String cacheLocation;
+
+	private volatile IndexHeightData heightData;
+
+	// srtm location could be url of other server (processes gpx there), local heights are only for srtm folder
+	public IndexHeightData getHeightData() {
+		IndexHeightData hd = heightData;
+		if (hd != null) {
+			return hd;
+		}
+		if (srtmLocation == null || srtmLocation.startsWith("http://") || srtmLocation.startsWith("https://")) {
+			return null;
+		}
+		File srtmFolder = new File(srtmLocation);
+		if (!srtmFolder.exists()) {
+			return null;
+		}
+		synchronized (this) {
+			if (heightData == null) {
+				File cacheFolder = Algorithms.isEmpty(cacheLocation)
+						? new File(System.getProperty("java.io.tmpdir"), "srtm-cache") : new File(cacheLocation);
+				hd = new IndexHeightData();
+				hd.setSrtmData(srtmFolder.getAbsolutePath(), cacheFolder);
+				hd.setMaxSrtmCountDownload(-1);
+				hd.clearRawTiles();
+				LOGGER.info("Init srtm heights " + srtmFolder.getAbsolutePath() + " (decoded tiles "
+						+ cacheFolder.getAbsolutePath() + ")");
+				heightData = hd;
+			}
+			return heightData;
+		}
+	}
+
+	/**
+	 * Heights of the points or null if srtm data is not available, IndexHeightData.INEXISTENT_HEIGHT for the points
+	 * without data.
+	 */
+	public double[] getHeights(double[] lats, double[] lons, File[] missingFile) {
+		IndexHeightData hd = getHeightData();
+		if (hd == null) {
+			return null;
+		}
+		return hd.getPointHeights(lats, lons, missingFile);
+	}
+
+	public double[] getHeights(List<? extends LatLon> points) {
+		double[] lats = new double[points.size()];
+		double[] lons = new double[points.size()];
+		for (int i = 0; i < points.size(); i++) {
+			lats[i] = points.get(i).getLatitude();
+			lons[i] = points.get(i).getLongitude();
+		}
+		return getHeights(lats, lons, null);
+	}
+}
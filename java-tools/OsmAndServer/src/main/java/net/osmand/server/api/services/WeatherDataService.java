@@ -0,0 +1,221 @@
+package net.osmand.server.api.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import net.osmand.obf.preparation.IndexWeatherData.WeatherTiff;
+import net.osmand.util.Algorithms;
+
+/**
+ * Weather forecast files decoded once into memory mapped float files (same pixel interleaved layout as tiff raster),
+ * so point requests only read a few floats of every forecast hour instead of decoding the whole tiff.
+ * New forecast files are converted in background, missing ones on the first request.
+ */
+@Service
+public class WeatherDataService {
+
+	private static final Log LOGGER = LogFactory.getLog(WeatherDataService.class);
+
+	private static final int MAGIC = 0x57544846;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final String TIFF_EXT = ".tiff";
+	private static final String STORE_EXT = ".bin";
+	private static final long CONVERT_INTERVAL_MILLIS = 60 * 1000;
+
+	@Value("${osmand.weather.location}")
+	String weatherLocation;
+
+	@Value("${osmand.weather.store-location:}")
+	String storeLocation;
+
+	private final Map<String, WeatherStore> stores = new ConcurrentHashMap<>();
+
+	private static class WeatherStore {
+		final WeatherTiff data;
+		final long sourceModified;
+		final long sourceLength;
+
+		WeatherStore(WeatherTiff data, long sourceModified, long sourceLength) {
+			this.data = data;
+			this.sourceModified = sourceModified;
+			this.sourceLength = sourceLength;
+		}
+
+		boolean isValid(File tiff) {
+			return tiff.lastModified() == sourceModified && tiff.length() == sourceLength;
+		}
+	}
+
+	public WeatherTiff getWeatherData(String weatherType, File tiff) throws IOException {
+		String key = tiff.getAbsolutePath();
+		WeatherStore store = stores.get(key);
+		if (store != null && store.isValid(tiff)) {
+			return store.data;
+		}
+		try {
+			// concurrent requests for the same file wait for one conversion
+			store = stores.compute(key, (k, old) -> {
+				if (old != null && old.isValid(tiff)) {
+					return old;
+				}
+				try {
+					return openStore(weatherType, tiff);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return store.data;
+	}
+
+	@Scheduled(fixedDelay = CONVERT_INTERVAL_MILLIS)
+	public void convertForecasts() {
+		if (Algorithms.isEmpty(weatherLocation)) {
+			return;
+		}
+		File[] types = new File(weatherLocation).listFiles(File::isDirectory);
+		if (types == null) {
+			return;
+		}
+		int converted = 0;
+		long start = System.currentTimeMillis();
+		for (File type : types) {
+			File tiffFolder = new File(type, "tiff");
+			File[] tiffs = tiffFolder.listFiles((dir, name) -> name.endsWith(TIFF_EXT));
+			if (tiffs != null) {
+				for (File tiff : tiffs) {
+					WeatherStore store = stores.get(tiff.getAbsolutePath());
+					if (store != null && store.isValid(tiff)) {
+						continue;
+					}
+					try {
+						getWeatherData(type.getName(), tiff);
+						converted++;
+					} catch (IOException e) {
+						LOGGER.warn(String.format("Error converting %s: %s", tiff.getName(), e.getMessage()));
+					}
+				}
+			}
+			// old forecasts are deleted
+			File[] storeFiles = getStoreFolder(type.getName()).listFiles((dir, name) -> name.endsWith(STORE_EXT));
+			if (storeFiles != null) {
+				for (File storeFile : storeFiles) {
+					String tiffName = storeFile.getName().substring(0, storeFile.getName().length() - STORE_EXT.length());
+					File tiff = new File(tiffFolder, tiffName);
+					if (!tiff.exists()) {
+						stores.remove(tiff.getAbsolutePath());
+						if (!storeFile.delete()) {
+							LOGGER.warn("Can't delete " + storeFile.getAbsolutePath());
+						}
+					}
+				}
+			}
+		}
+		if (converted > 0) {
+			LOGGER.info(String.format("Weather forecasts converted: %d (%d ms)", converted,
+					System.currentTimeMillis() - start));
+		}
+	}
+
+	private File getStoreFolder(String weatherType) {
+		File root = Algorithms.isEmpty(storeLocation) ? new File(System.getProperty("java.io.tmpdir"), "weather-store")
+				: new File(storeLocation);
+		return new File(root, weatherType);
+	}
+
+	private WeatherStore openStore(String weatherType, File tiff) throws IOException {
+		// stat before reading, so the file changed during conversion is converted again next time
+		long sourceModified = tiff.lastModified();
+		long sourceLength = tiff.length();
+		File storeFile = new File(getStoreFolder(weatherType), tiff.getName() + STORE_EXT);
+		// converted before restart
+		WeatherStore store = mapStore(tiff, storeFile, sourceModified, sourceLength);
+		if (store != null) {
+			return store;
+		}
+		WeatherTiff wt = new WeatherTiff(tiff);
+		if (wt.getData() == null) {
+			throw new IOException("Can't read weather data " + tiff.getName());
+		}
+		writeStore(wt, storeFile, sourceModified, sourceLength);
+		store = mapStore(tiff, storeFile, sourceModified, sourceLength);
+		if (store == null) {
+			throw new IOException("Can't read converted weather data " + storeFile.getAbsolutePath());
+		}
+		return store;
+	}
+
+	private WeatherStore mapStore(File tiff, File storeFile, long sourceModified, long sourceLength) throws IOException {
+		if (!storeFile.exists()) {
+			return null;
+		}
+		try (FileChannel ch = FileChannel.open(storeFile.toPath(), StandardOpenOption.READ)) {
+			long size = ch.size();
+			if (size < HEADER_SIZE) {
+				return null;
+			}
+			// mapping stays valid after the channel is closed
+			MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			int width = buf.getInt(4);
+			int height = buf.getInt(8);
+			int bands = buf.getInt(12);
+			if (buf.getInt(0) != MAGIC || buf.getInt(16) != VERSION || buf.getLong(20) != sourceModified
+					|| buf.getLong(28) != sourceLength || size != HEADER_SIZE + 4L * width * height * bands) {
+				return null;
+			}
+			FloatBuffer data = buf.slice(HEADER_SIZE, (int) (size - HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN)
+					.asFloatBuffer();
+			return new WeatherStore(new WeatherTiff(tiff, data, width, height, bands), sourceModified, sourceLength);
+		}
+	}
+
+	private void writeStore(WeatherTiff wt, File storeFile, long sourceModified, long sourceLength) throws IOException {
+		File folder = storeFile.getParentFile();
+		if (!folder.exists() && !folder.mkdirs()) {
+			throw new IOException("Can't create folder " + folder.getAbsolutePath());
+		}
+		FloatBuffer src = wt.getData().duplicate();
+		src.position(0).limit(wt.getWidth() * wt.getHeight() * wt.getBands());
+		long size = HEADER_SIZE + 4L * src.remaining();
+		File tmp = new File(folder, storeFile.getName() + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(0, MAGIC);
+			buf.putInt(4, wt.getWidth());
+			buf.putInt(8, wt.getHeight());
+			buf.putInt(12, wt.getBands());
+			buf.putInt(16, VERSION);
+			buf.putLong(20, sourceModified);
+			buf.putLong(28, sourceLength);
+			ByteBuffer body = buf.slice(HEADER_SIZE, (int) (size - HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+			body.asFloatBuffer().put(src);
+			buf.force();
+		}
+		// requests never see partly written files
+		Files.move(tmp.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
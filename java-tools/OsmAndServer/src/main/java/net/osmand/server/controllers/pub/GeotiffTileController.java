@@ -42,6 +42,7 @@ public class GeotiffTileController {
 	private static final long CLEANUP_CACHE_BEFORE_ZOOM_7 = TimeUnit.DAYS.toMillis(400);
 	private static final long CLEANUP_INTERVAL_MILLIS = 12 * 60 * 60 * 1000L; // 12 hours
 	private static final int UNDERSCALED_BASE_ZOOM = 9;
+	private static final int MAX_RUNTIME_IMAGES = 80;
 
 	@Autowired
 	OsmAndMapsService osmAndMapsService;
@@ -54,6 +55,11 @@ public class GeotiffTileController {
 
 	private final TileMemoryCache<GeotiffTile> tileMemoryCache = new TileMemoryCache<>();
 
+	public GeotiffTileController() {
+		// images are limited by count as before, default memory limit of the cache is for metatiles
+		tileMemoryCache.setMaxImages(MAX_RUNTIME_IMAGES);
+	}
+
 	private ResponseEntity<?> errorConfig(String msg) {
 		return ResponseEntity.badRequest()
 				.body(msg);
@@ -2,12 +2,19 @@ package net.osmand.server.controllers.pub;
 
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
 
+import javax.annotation.PostConstruct;
 import javax.imageio.ImageIO;
 
 import com.google.gson.JsonObject;
+import net.osmand.server.tileManager.NativeRendererPool;
 import net.osmand.server.tileManager.TileMemoryCache;
+import net.osmand.server.tileManager.TilePngCache;
 import net.osmand.server.tileManager.TileServerConfig;
 import net.osmand.server.tileManager.VectorMetatile;
 import org.apache.commons.logging.Log;
@@ -15,6 +22,7 @@ import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.http.*;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -41,8 +49,32 @@ public class VectorTileController {
 	@Autowired
 	TileServerConfig config;
 
+	private static final int PREFETCH_QUEUE_SIZE = 16;
+
 	private final TileMemoryCache<VectorMetatile> tileMemoryCache = new TileMemoryCache<>();
 
+	private TilePngCache tilePngCache;
+
+	private final ThreadPoolTaskExecutor prefetchExecutor = new ThreadPoolTaskExecutor();
+
+	public VectorTileController() {
+		prefetchExecutor.setThreadNamePrefix("TilePrefetch");
+		prefetchExecutor.setCorePoolSize(1);
+		prefetchExecutor.setMaxPoolSize(1);
+		prefetchExecutor.setQueueCapacity(PREFETCH_QUEUE_SIZE);
+		prefetchExecutor.setKeepAliveSeconds(60);
+		prefetchExecutor.setAllowCoreThreadTimeOut(true);
+		prefetchExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
+		prefetchExecutor.initialize();
+	}
+
+	@PostConstruct
+	public void initCache() {
+		// tiles are cached in layers: encoded png tiles, metatile images in memory and metatile png files on disk
+		tilePngCache = new TilePngCache(config.tileMemoryMb * 1024L * 1024);
+		tileMemoryCache.setMaxImageBytes(config.metatileMemoryMb * 1024L * 1024);
+	}
+
 	Gson gson = new Gson();
 
 	private ResponseEntity<?> errorConfig(String msg) {
@@ -65,6 +97,25 @@ public class VectorTileController {
 		return ResponseEntity.ok(gson.toJson(config.style));
 	}
 
+	@GetMapping(path = "/renderer-stats", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<?> getRendererStats() {
+		NativeRendererPool pool = osmAndMapsService.getRendererPool();
+		if (pool == null) {
+			return errorConfig("Tile rendering engine is not initialized");
+		}
+		Map<String, Object> stats = pool.getStats();
+		stats.put("renderingMetatiles", tileMemoryCache.getInFlightSize());
+		return ResponseEntity.ok(gson.toJson(stats));
+	}
+
+	@GetMapping(path = "/cache-stats", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<?> getCacheStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("png", tilePngCache.getStats());
+		stats.putAll(tileMemoryCache.getStats());
+		return ResponseEntity.ok(gson.toJson(stats));
+	}
+
 	@RequestMapping(path = "/{style}/{z}/{x}/{y}.png", produces = MediaType.IMAGE_PNG_VALUE)
 	public ResponseEntity<?> getTile(@PathVariable String style, @PathVariable int z, @PathVariable int x, @PathVariable int y)
 			throws IOException, XmlPullParserException, SAXException {
@@ -83,27 +134,55 @@ public class VectorTileController {
 			return ResponseEntity.badRequest().body("Rendering style is undefined: " + currentStyle);
 		}
 
+		String pngKey = TilePngCache.getKey(interactiveKey != null ? interactiveKey : vectorStyle.key, z, x, y);
+		byte[] png = tilePngCache.get(pngKey);
+		if (png != null) {
+			return pngResponse(png);
+		}
 		tileMemoryCache.conditionalCleanupCache();
 		VectorMetatile tile = getMetaTile(vectorStyle, z, x, y, interactiveKey);
 		// for local debug :
 		//BufferedImage img = null;
-		BufferedImage img = tile.getCacheRuntimeImage();
+		BufferedImage img = tile.runtimeImage;
+		if (img != null) {
+			tileMemoryCache.countImageHit();
+		} else {
+			img = tile.getCacheRuntimeImage();
+			if (img != null) {
+				tileMemoryCache.countDiskHit();
+			}
+		}
 		tile.touch();
 		if (img == null) {
-			ResponseEntity<String> err = osmAndMapsService.renderMetaTile(tile, tileMemoryCache);
-			img = tile.runtimeImage;
+			tileMemoryCache.countMiss();
+			ResponseEntity<String> err = renderMetaTile(tile);
+			img = tile.getCacheRuntimeImage();
+			if (err == null && img == null) {
+				// request waited for the prefetch which was skipped
+				err = renderMetaTile(tile);
+				img = tile.getCacheRuntimeImage();
+			}
 			if (err != null) {
 				return err;
 			} else if (img == null) {
 				return ResponseEntity.badRequest().body("Unexpected error during rendering");
 			}
 		}
+		if (config.prefetch) {
+			prefetchNeighborTiles(vectorStyle, tile, z, x, y, interactiveKey);
+		}
 		BufferedImage subimage = tile.readSubImage(img, x, y);
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		ImageIO.write(subimage, "png", baos);
+		png = baos.toByteArray();
+		tilePngCache.put(pngKey, png);
+		return pngResponse(png);
+	}
+
+	private ResponseEntity<?> pngResponse(byte[] png) {
 		return ResponseEntity.ok()
 				.header("Cache-Control", "public, max-age=2592000")
-				.body(new ByteArrayResource(baos.toByteArray()));
+				.body(new ByteArrayResource(png));
 	}
 
 	@GetMapping(path = "/info/{style}/{z}/{x}/{y}.json", produces = MediaType.APPLICATION_JSON_VALUE)
@@ -133,11 +212,58 @@ public class VectorTileController {
 		int metaSizeLog = Math.min(vectorStyle.metaTileSizeLog, z - 1);
 		String key = interactiveKey != null ? interactiveKey : vectorStyle.key;
 		String tileId = config.createTileId(key, x, y, z, metaSizeLog, vectorStyle.tileSizeLog);
-		VectorMetatile tile = tileMemoryCache.get(tileId);
-		if (tile == null) {
-			tile = new VectorMetatile(config, tileId, vectorStyle, z, x, y, metaSizeLog, vectorStyle.tileSizeLog, interactiveKey);
-			tileMemoryCache.put(tile.key, tile);
+		// same instance for concurrent requests, so they could wait for one rendering
+		return tileMemoryCache.getTile(tileId, k -> new VectorMetatile(config, k, vectorStyle, z, x, y, metaSizeLog,
+				vectorStyle.tileSizeLog, interactiveKey));
+	}
+
+	private ResponseEntity<String> renderMetaTile(VectorMetatile tile) throws IOException {
+		// requests for the other tiles of the metatile wait for the first rendering
+		return tileMemoryCache.loadOnce(tile.key, () -> osmAndMapsService.renderMetaTile(tile, tileMemoryCache));
+	}
+
+	private void prefetchNeighborTiles(VectorStyle vectorStyle, VectorMetatile tile, int z, int x, int y,
+			String interactiveKey) {
+		int size = 1 << tile.metaSizeLog;
+		if (size < 2) {
+			return;
+		}
+		// user requests the tiles on the side of the metatile while panning to the next metatile
+		int subx = x & (size - 1);
+		int suby = y & (size - 1);
+		int dx = subx == 0 ? -1 : (subx == size - 1 ? 1 : 0);
+		int dy = suby == 0 ? -1 : (suby == size - 1 ? 1 : 0);
+		if (dx != 0) {
+			prefetchMetaTile(vectorStyle, z, x + dx * size, y, interactiveKey);
+		}
+		if (dy != 0) {
+			prefetchMetaTile(vectorStyle, z, x, y + dy * size, interactiveKey);
 		}
-		return tile;
+	}
+
+	private void prefetchMetaTile(VectorStyle vectorStyle, int z, int x, int y, String interactiveKey) {
+		int max = 1 << z;
+		if (x < 0 || y < 0 || x >= max || y >= max) {
+			return;
+		}
+		NativeRendererPool pool = osmAndMapsService.getRendererPool();
+		if (pool == null || !pool.canPrefetch()) {
+			return;
+		}
+		VectorMetatile tile = getMetaTile(vectorStyle, z, x, y, interactiveKey);
+		if (tile.runtimeImage != null) {
+			return;
+		}
+		prefetchExecutor.execute(() -> {
+			try {
+				File cacheFile = tile.getCacheFile(".png");
+				// prefetch takes a renderer only if another one stays idle for user requests
+				if ((cacheFile == null || !cacheFile.exists()) && tile.runtimeImage == null) {
+					tileMemoryCache.loadOnce(tile.key, () -> osmAndMapsService.prefetchMetaTile(tile, tileMemoryCache));
+				}
+			} catch (Exception e) {
+				LOGGER.warn("Error prefetching metatile " + tile.key + ": " + e.getMessage());
+			}
+		});
 	}
 }
@@ -17,6 +17,7 @@ import net.osmand.search.SearchUICore;
 import net.osmand.search.core.SearchResult;
 import net.osmand.server.api.services.OsmAndMapsService;
 import net.osmand.server.api.services.SearchService;
+import net.osmand.server.api.services.WeatherDataService;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -30,7 +31,6 @@ import org.springframework.web.bind.annotation.RequestParam;
 
 import com.google.gson.Gson;
 
-import net.osmand.obf.preparation.IndexWeatherData;
 import net.osmand.obf.preparation.IndexWeatherData.WeatherTiff;
 import org.springframework.web.bind.annotation.ResponseBody;
 
@@ -56,6 +56,9 @@ public class WeatherController {
 	
 	@Autowired
 	OsmAndMapsService osmAndMapsService;
+
+	@Autowired
+	WeatherDataService weatherDataService;
 	
 	private static final String ECWMF_WEATHER_TYPE = "ecmwf";
 	
@@ -93,7 +96,7 @@ public class WeatherController {
 						Object[] data = new Object[8];
 						data[0] = c.getTimeInMillis();
 						data[1] = sdf.format(c.getTime()).substring(4).replace('_', ' ') + ":00";
-						WeatherTiff wt = new IndexWeatherData.WeatherTiff(fl);
+						WeatherTiff wt = weatherDataService.getWeatherData(weatherType, fl);
 						for (int i = 0; i < wt.getBands() && i < 5; i++) {
 							data[2 + i] = wt.getValue(i, lat, lon, weatherType);
 						}
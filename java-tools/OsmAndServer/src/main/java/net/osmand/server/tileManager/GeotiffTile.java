@@ -105,6 +105,11 @@ public class GeotiffTile implements TileCacheProvider, Comparable<GeotiffTile> {
 		runtimeImage = img;
 	}
 
+	@Override
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
 	@Override
 	public int compareTo(@NotNull GeotiffTile o) {
 		return Long.compare(lastAccess, o.lastAccess);
@@ -0,0 +1,265 @@
+package net.osmand.server.tileManager;
+
+import net.osmand.NativeJavaRendering;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renderers for vector metatiles. Every renderer keeps the last loaded style, so a request takes an idle renderer with
+ * the same style if possible and switches the style of any other idle renderer otherwise. Requests wait for an idle
+ * renderer in a bounded queue, rejected requests (queue is full or waiting too long) return null.
+ * <p>
+ * Native library is global for the process and its search and rendering (searchObjectsForRendering,
+ * generateRenderingIndirect) aren't known to be reentrant, so they run one at a time under {@link #getNativeLock()}
+ * as before the pool. Renderers only overlap in java work: png decoding and saving of the rendered metatiles. The pool
+ * bounds the queue, keeps the style loaded for the next requests and leaves a renderer for user requests during
+ * prefetch.
+ * <p>
+ * Rules storage of the native library keeps only one style (loadRuleStorage clears it), so styles are loaded
+ * exclusively: the renderer which has to load a style is acquired only when no other renderer is busy and other
+ * requests wait until {@link #styleLoaded(PooledRenderer)}. Requests of the loaded style aren't started while a
+ * request of another style waits, so style switches are not starved.
+ */
+public class NativeRendererPool {
+
+	protected static final Log LOGGER = LogFactory.getLog(NativeRendererPool.class);
+
+	// idle renderers which prefetch leaves for user requests
+	private static final int RESERVED_FOR_REQUESTS = 1;
+
+	private final List<PooledRenderer> renderers = new ArrayList<>();
+	private final Object nativeLock = new Object();
+	private final int maxQueueSize;
+	private final long maxWaitMs;
+
+	// guarded by this
+	private int waiting;
+	private int maxWaiting;
+	private long renders;
+	private long renderTimeMs;
+	private long maxRenderTimeMs;
+	private long waitTimeMs;
+	private long rejected;
+	private long styleSwitches;
+	// style of the rules storage in the native library, null when it's unknown or being loaded
+	private String nativeStyle;
+	private boolean loading;
+	private int pendingLoads;
+
+	public static class PooledRenderer {
+		public final NativeJavaRendering nativelib;
+		private String styleName;
+		private boolean busy;
+		private boolean loadStyle;
+		private long lastUsed;
+
+		PooledRenderer(NativeJavaRendering nativelib) {
+			this.nativelib = nativelib;
+		}
+
+		public boolean isStyleLoaded(String style) {
+			return style.equalsIgnoreCase(styleName);
+		}
+
+		/**
+		 * Style should be loaded with loadRuleStorage before rendering, other renderers are idle till
+		 * {@link NativeRendererPool#styleLoaded(PooledRenderer)} or release.
+		 */
+		public boolean isStyleLoadRequired() {
+			return loadStyle;
+		}
+	}
+
+	public NativeRendererPool(NativeJavaRendering nativelib, int size, int maxQueueSize, long maxWaitMs) {
+		this.maxQueueSize = maxQueueSize;
+		this.maxWaitMs = maxWaitMs;
+		renderers.add(new PooledRenderer(nativelib));
+		// map files and fonts are loaded into the native library once, other renderers only keep their own style
+		// (constructor loads default style into the native library, pool isn't used for rendering yet)
+		for (int i = 1; i < size; i++) {
+			renderers.add(new PooledRenderer(new NativeJavaRendering()));
+		}
+		LOGGER.info(String.format("Init %d native renderers (max queue %d, max wait %d ms)", renderers.size(),
+				maxQueueSize, maxWaitMs));
+	}
+
+	/**
+	 * Lock for the calls of the native library: style loading, search and rendering.
+	 */
+	public Object getNativeLock() {
+		return nativeLock;
+	}
+
+	public synchronized PooledRenderer acquire(String style) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		PooledRenderer renderer = selectIdle(style);
+		if (renderer == null) {
+			if (waiting >= maxQueueSize) {
+				rejected++;
+				return null;
+			}
+			waiting++;
+			maxWaiting = Math.max(maxWaiting, waiting);
+			boolean load = !isShared(style);
+			if (load) {
+				pendingLoads++;
+			}
+			try {
+				while ((renderer = selectIdle(style)) == null) {
+					long timeout = start + maxWaitMs - System.currentTimeMillis();
+					if (timeout <= 0) {
+						rejected++;
+						return null;
+					}
+					wait(timeout);
+					if (load && isShared(style)) {
+						// style was loaded by other request
+						load = false;
+						pendingLoads--;
+					}
+				}
+			} finally {
+				waiting--;
+				if (load) {
+					pendingLoads--;
+				}
+			}
+		}
+		renderer.busy = true;
+		if (!renderer.isStyleLoaded(style) || !style.equalsIgnoreCase(nativeStyle)) {
+			// selected only when other renderers are idle
+			if (renderer.styleName != null) {
+				styleSwitches++;
+			}
+			renderer.styleName = style;
+			renderer.loadStyle = true;
+			loading = true;
+			nativeStyle = null;
+		}
+		waitTimeMs += System.currentTimeMillis() - start;
+		return renderer;
+	}
+
+	/**
+	 * Renderer for prefetch without waiting and style loading: only when other requests don't wait and another
+	 * renderer stays idle for user requests (so prefetch is disabled for one renderer), null otherwise.
+	 */
+	public synchronized PooledRenderer acquireForPrefetch(String style) {
+		if (!canPrefetch()) {
+			return null;
+		}
+		PooledRenderer renderer = selectIdle(style);
+		if (renderer == null || !renderer.isStyleLoaded(style) || !style.equalsIgnoreCase(nativeStyle)) {
+			return null;
+		}
+		renderer.busy = true;
+		return renderer;
+	}
+
+	public synchronized boolean canPrefetch() {
+		if (waiting > 0 || loading) {
+			return false;
+		}
+		int idle = 0;
+		for (PooledRenderer r : renderers) {
+			if (!r.busy) {
+				idle++;
+			}
+		}
+		return idle > RESERVED_FOR_REQUESTS;
+	}
+
+	/**
+	 * Style of the renderer is loaded into the native library, renderers of the same style can be acquired.
+	 */
+	public synchronized void styleLoaded(PooledRenderer renderer) {
+		renderer.loadStyle = false;
+		loading = false;
+		nativeStyle = renderer.styleName;
+		notifyAll();
+	}
+
+	public synchronized void release(PooledRenderer renderer, long renderTime) {
+		if (renderer.loadStyle) {
+			// style is not loaded (error), state of the native library is unknown
+			renderer.loadStyle = false;
+			renderer.styleName = null;
+			loading = false;
+		}
+		renderer.busy = false;
+		renderer.lastUsed = System.currentTimeMillis();
+		renders++;
+		renderTimeMs += renderTime;
+		maxRenderTimeMs = Math.max(maxRenderTimeMs, renderTime);
+		notifyAll();
+	}
+
+	private boolean isShared(String style) {
+		if (!style.equalsIgnoreCase(nativeStyle)) {
+			return false;
+		}
+		for (PooledRenderer r : renderers) {
+			if (r.isStyleLoaded(style)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private PooledRenderer selectIdle(String style) {
+		if (loading) {
+			return null;
+		}
+		boolean busy = false;
+		PooledRenderer same = null;
+		PooledRenderer idle = null;
+		for (PooledRenderer r : renderers) {
+			if (r.busy) {
+				busy = true;
+			} else if (r.isStyleLoaded(style)) {
+				same = r;
+			} else if (idle == null || r.lastUsed < idle.lastUsed) {
+				idle = r;
+			}
+		}
+		if (same != null && style.equalsIgnoreCase(nativeStyle) && pendingLoads == 0) {
+			return same;
+		}
+		if (busy) {
+			return null;
+		}
+		// no renders, style is loaded exclusively
+		return same != null ? same : idle;
+	}
+
+	public synchronized Map<String, Object> getStats() {
+		int busy = 0;
+		List<String> styles = new ArrayList<>();
+		for (PooledRenderer r : renderers) {
+			if (r.busy) {
+				busy++;
+			}
+			styles.add(r.styleName);
+		}
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("renderers", renderers.size());
+		stats.put("busy", busy);
+		stats.put("styles", styles);
+		stats.put("nativeStyle", nativeStyle);
+		stats.put("queue", waiting);
+		stats.put("maxQueue", maxWaiting);
+		stats.put("queueLimit", maxQueueSize);
+		stats.put("renders", renders);
+		stats.put("avgRenderTimeMs", renders == 0 ? 0 : renderTimeMs / renders);
+		stats.put("maxRenderTimeMs", maxRenderTimeMs);
+		stats.put("avgWaitTimeMs", renders == 0 ? 0 : waitTimeMs / renders);
+		stats.put("rejected", rejected);
+		stats.put("styleSwitches", styleSwitches);
+		return stats;
+	}
+}
@@ -57,6 +57,8 @@ public interface TileCacheProvider {
 
 	String getTileId();
 
+	long getLastAccess();
+
 	BufferedImage getImg();
 
 	void setImg(BufferedImage img);
@@ -1,17 +1,34 @@
 package net.osmand.server.tileManager;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class TileMemoryCache<T extends TileCacheProvider> {
 	private final Map<String, T> cacheMap = new ConcurrentHashMap<>();
 	private final Map<String, Object> lockMap = new ConcurrentHashMap<>();
+	private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
 	private final AtomicInteger cacheTouch = new AtomicInteger(0);
 
-	private static final int MAX_RUNTIME_IMAGE_CACHE_SIZE = 80;
+	private static final int CLEANUP_TOUCHES = 80;
 	private static final int MAX_RUNTIME_TILES_CACHE_SIZE = 10000;
+	public static final long DEFAULT_MAX_IMAGE_BYTES = 1024L * 1024 * 1024;
+
+	private volatile long maxImageBytes = DEFAULT_MAX_IMAGE_BYTES;
+	private volatile int maxImages = Integer.MAX_VALUE;
+	private volatile long imageBytes;
+	private volatile int images;
+	private final AtomicLong imageHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong imageEvictions = new AtomicLong();
+	private final AtomicLong tileEvictions = new AtomicLong();
 
 	private final AtomicLong lastCleanupTime = new AtomicLong(0);
 	private static final long CLEANUP_INTERVAL_MILLIS = 10000;
@@ -36,43 +53,185 @@ public class TileMemoryCache<T extends TileCacheProvider> {
 		lockMap.remove(tileId);
 	}
 
+	/**
+	 * Only the first of concurrent calls with the same tile id runs the loader, others wait for its result (or
+	 * exception) instead of running it again.
+	 */
+	@SuppressWarnings("unchecked")
+	public <R> R loadOnce(String tileId, TileLoader<R> loader) throws IOException {
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		CompletableFuture<Object> running = inFlight.putIfAbsent(tileId, future);
+		if (running != null) {
+			try {
+				return (R) running.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for tile " + tileId, e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				} else if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+		try {
+			R result = loader.load();
+			future.complete(result);
+			return result;
+		} catch (IOException | RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+			throw new IOException(e);
+		} finally {
+			inFlight.remove(tileId, future);
+		}
+	}
+
+	public int getInFlightSize() {
+		return inFlight.size();
+	}
+
+	public void setMaxImageBytes(long maxImageBytes) {
+		this.maxImageBytes = maxImageBytes;
+	}
+
+	// for images which memory size doesn't reflect their cost
+	public void setMaxImages(int maxImages) {
+		this.maxImages = maxImages;
+	}
+
+	public void countImageHit() {
+		imageHits.incrementAndGet();
+	}
+
+	public void countDiskHit() {
+		diskHits.incrementAndGet();
+	}
+
+	public void countMiss() {
+		misses.incrementAndGet();
+	}
+
+	public Map<String, Object> getStats() {
+		long memoryHits = imageHits.get();
+		long fileHits = diskHits.get();
+		long rendered = misses.get();
+		Map<String, Object> memory = new LinkedHashMap<>();
+		memory.put("tiles", cacheMap.size());
+		memory.put("images", images);
+		memory.put("imageBytes", imageBytes);
+		memory.put("maxImageBytes", maxImageBytes);
+		if (maxImages != Integer.MAX_VALUE) {
+			memory.put("maxImages", maxImages);
+		}
+		memory.put("hits", memoryHits);
+		memory.put("hitRatio", ratio(memoryHits, memoryHits + fileHits + rendered));
+		memory.put("imageEvictions", imageEvictions.get());
+		memory.put("tileEvictions", tileEvictions.get());
+		Map<String, Object> disk = new LinkedHashMap<>();
+		disk.put("hits", fileHits);
+		disk.put("misses", rendered);
+		disk.put("hitRatio", ratio(fileHits, fileHits + rendered));
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("memory", memory);
+		stats.put("disk", disk);
+		return stats;
+	}
+
+	static double ratio(long hits, long total) {
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
 	public void conditionalCleanupCache() {
 		long currentTime = System.currentTimeMillis();
 		long lastTime = lastCleanupTime.get();
 		if (currentTime - lastTime >= CLEANUP_INTERVAL_MILLIS && lastCleanupTime.compareAndSet(lastTime, currentTime)) {
-			cleanupCache();
+			evict();
 		}
 	}
 
 	public void cleanupCache() {
 		int version = cacheTouch.incrementAndGet();
 		// so with atomic only 1 thread will get % X == 0
-		if (version % MAX_RUNTIME_IMAGE_CACHE_SIZE == 0 && version > 0) {
+		if (version % CLEANUP_TOUCHES == 0 && version > 0) {
 			cacheTouch.set(0);
-			SortedSet<T> sortedCache = Collections.synchronizedSortedSet(new TreeSet<>(cacheMap.values()));
-			List<T> imageTiles = new ArrayList<>();
-			for (T tile : sortedCache) {
-				if (tile.getImg() != null) {
-					imageTiles.add(tile);
-				}
+			evict();
+		}
+	}
+
+	private synchronized void evict() {
+		// only tiles with images are sorted, images are limited by their memory size (and count if it's set)
+		List<T> imageTiles = new ArrayList<>();
+		long bytes = 0;
+		for (T tile : cacheMap.values()) {
+			BufferedImage img = tile.getImg();
+			if (img != null) {
+				imageTiles.add(tile);
+				bytes += getImageBytes(img);
 			}
-			if (imageTiles.size() >= MAX_RUNTIME_IMAGE_CACHE_SIZE) {
-				for (int i = 0; i < MAX_RUNTIME_IMAGE_CACHE_SIZE / 2; i++) {
-					T tile = imageTiles.get(i);
+		}
+		boolean bytesExceeded = bytes > maxImageBytes;
+		boolean countExceeded = imageTiles.size() >= maxImages;
+		if (bytesExceeded || countExceeded) {
+			imageTiles = sortByLastAccess(imageTiles);
+			Iterator<T> it = imageTiles.iterator();
+			while (((bytesExceeded && bytes > maxImageBytes / 2) || (countExceeded && imageTiles.size() > maxImages / 2))
+					&& it.hasNext()) {
+				T tile = it.next();
+				BufferedImage img = tile.getImg();
+				if (img != null) {
+					bytes -= getImageBytes(img);
 					tile.setImg(null);
+					imageEvictions.incrementAndGet();
 				}
+				it.remove();
 			}
-			if (cacheMap.size() >= MAX_RUNTIME_TILES_CACHE_SIZE) {
-				Iterator<T> it = sortedCache.iterator();
-				while (cacheMap.size() >= MAX_RUNTIME_TILES_CACHE_SIZE / 2 && it.hasNext()) {
-					T tile = it.next();
-					cacheMap.remove(tile.getTileId());
+		}
+		imageBytes = bytes;
+		images = imageTiles.size();
+		if (cacheMap.size() >= MAX_RUNTIME_TILES_CACHE_SIZE) {
+			List<T> sortedCache = sortByLastAccess(cacheMap.values());
+			Iterator<T> it = sortedCache.iterator();
+			while (cacheMap.size() >= MAX_RUNTIME_TILES_CACHE_SIZE / 2 && it.hasNext()) {
+				T tile = it.next();
+				if (cacheMap.remove(tile.getTileId()) != null) {
+					tileEvictions.incrementAndGet();
 				}
 			}
 		}
 	}
 
+	// last access is changed by requests while sorting (comparator would violate its contract), so it's copied before
+	private static <T extends TileCacheProvider> List<T> sortByLastAccess(Collection<T> tiles) {
+		List<T> list = new ArrayList<>(tiles);
+		long[] lastAccess = new long[list.size()];
+		Integer[] order = new Integer[list.size()];
+		for (int i = 0; i < order.length; i++) {
+			lastAccess[i] = list.get(i).getLastAccess();
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(lastAccess[a], lastAccess[b]));
+		List<T> sorted = new ArrayList<>(order.length);
+		for (Integer i : order) {
+			sorted.add(list.get(i));
+		}
+		return sorted;
+	}
+
+	private static long getImageBytes(BufferedImage img) {
+		DataBuffer db = img.getRaster().getDataBuffer();
+		return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+	}
+
 	public interface TileProvider<T> {
 		T createTile(String key);
 	}
+
+	public interface TileLoader<R> {
+		R load() throws Exception;
+	}
 }
@@ -0,0 +1,100 @@
+package net.osmand.server.tileManager;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoded png tiles limited by memory size. Segmented LRU: new tiles go to the probation segment and are moved to the
+ * protected segment on the second request, so one time requests (crawlers, map panning) can't evict popular tiles.
+ * Tiles evicted from the protected segment get another chance in the probation segment.
+ */
+public class TilePngCache {
+
+	private static final double PROTECTED_PART = 0.8;
+	// single tile can't take more than this part of the cache
+	private static final int MAX_TILE_PART = 16;
+
+	private final long maxBytes;
+	private final long maxProtectedBytes;
+	private final LinkedHashMap<String, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, byte[]> protectedTiles = new LinkedHashMap<>(16, 0.75f, true);
+
+	// guarded by this
+	private long probationBytes;
+	private long protectedBytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public TilePngCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.maxProtectedBytes = (long) (maxBytes * PROTECTED_PART);
+	}
+
+	public static String getKey(String styleKey, int z, int x, int y) {
+		return styleKey + "/" + z + "/" + x + "/" + y;
+	}
+
+	public synchronized byte[] get(String key) {
+		byte[] data = protectedTiles.get(key);
+		if (data != null) {
+			hits++;
+			return data;
+		}
+		data = probation.remove(key);
+		if (data == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		probationBytes -= data.length;
+		protectedTiles.put(key, data);
+		protectedBytes += data.length;
+		Iterator<Map.Entry<String, byte[]>> it = protectedTiles.entrySet().iterator();
+		while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+			Map.Entry<String, byte[]> e = it.next();
+			it.remove();
+			protectedBytes -= e.getValue().length;
+			probation.put(e.getKey(), e.getValue());
+			probationBytes += e.getValue().length;
+		}
+		evictProbation();
+		return data;
+	}
+
+	public synchronized void put(String key, byte[] data) {
+		if (data.length > maxBytes / MAX_TILE_PART || protectedTiles.containsKey(key)) {
+			return;
+		}
+		byte[] prev = probation.put(key, data);
+		if (prev != null) {
+			probationBytes -= prev.length;
+		}
+		probationBytes += data.length;
+		evictProbation();
+	}
+
+	private void evictProbation() {
+		Iterator<Map.Entry<String, byte[]>> it = probation.entrySet().iterator();
+		while (probationBytes + protectedBytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, byte[]> e = it.next();
+			it.remove();
+			probationBytes -= e.getValue().length;
+			evictions++;
+		}
+	}
+
+	public synchronized Map<String, Object> getStats() {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("tiles", probation.size() + protectedTiles.size());
+		stats.put("protectedTiles", protectedTiles.size());
+		stats.put("bytes", probationBytes + protectedBytes);
+		stats.put("maxBytes", maxBytes);
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("hitRatio", TileMemoryCache.ratio(hits, hits + misses));
+		stats.put("evictions", evictions);
+		return stats;
+	}
+}
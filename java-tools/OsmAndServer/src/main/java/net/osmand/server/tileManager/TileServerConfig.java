@@ -34,9 +34,27 @@ public class TileServerConfig {
 	@Value("${tile-server.cache.max-zoom}")
 	int maxZoomCache = 16;
 
+	@Value("${tile-server.cache.tile-memory-mb:128}")
+	public int tileMemoryMb = 128;
+
+	@Value("${tile-server.cache.metatile-memory-mb:1024}")
+	public int metatileMemoryMb = 1024;
+
 	@Value("${tile-server.metatile-size}")
 	int metatileSize;
 
+	@Value("${tile-server.renderer.pool-size:1}")
+	public int rendererPoolSize = 1;
+
+	@Value("${tile-server.renderer.max-queue:32}")
+	public int rendererMaxQueue = 32;
+
+	@Value("${tile-server.renderer.max-wait-seconds:120}")
+	public int rendererMaxWaitSeconds = 120;
+
+	@Value("${tile-server.prefetch:false}")
+	public boolean prefetch;
+
 	public String initErrorMessage;
 
 	protected static final Log LOGGER = LogFactory.getLog(TileServerConfig.class);
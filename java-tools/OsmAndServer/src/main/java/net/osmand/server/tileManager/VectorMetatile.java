@@ -3,7 +3,9 @@ package net.osmand.server.tileManager;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import net.osmand.NativeJavaRendering;
+import net.osmand.NativeLibrary;
 import net.osmand.server.tileManager.TileServerConfig.VectorStyle;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.xml.sax.SAXException;
 import org.xmlpull.v1.XmlPullParserException;
@@ -76,6 +78,11 @@ public class VectorMetatile implements TileCacheProvider, Comparable<VectorMetat
 		lastAccess = System.currentTimeMillis();
 	}
 
+	@Override
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
 	@Override
 	public int compareTo(VectorMetatile o) {
 		return Long.compare(lastAccess, o.lastAccess);
@@ -143,64 +150,95 @@ public class VectorMetatile implements TileCacheProvider, Comparable<VectorMetat
 		}
 	}
 
-	public ResponseEntity<String> renderMetaTile(NativeJavaRendering nativelib, TileMemoryCache<VectorMetatile> tileCache)
+	public ResponseEntity<String> renderMetaTile(NativeRendererPool rendererPool, TileMemoryCache<VectorMetatile> tileCache)
 			throws IOException, XmlPullParserException, SAXException {
+		return renderMetaTile(rendererPool, tileCache, false);
+	}
+
+	// prefetch is skipped (returns null without image) if there is no spare renderer
+	public ResponseEntity<String> renderMetaTile(NativeRendererPool rendererPool, TileMemoryCache<VectorMetatile> tileCache,
+			boolean prefetch) throws IOException, XmlPullParserException, SAXException {
 
 		int ZOOM_EN_PREFERRED_LANG = 6;
 
-		// don't synchronize this to not block routing
-		synchronized (this.cfg) {
-			// for local debug :
-			// VectorMetatile rendered = null;
-			VectorMetatile rendered = tileCache.get(this.key);
-			if (rendered != null && rendered.runtimeImage != null) {
-				this.runtimeImage = rendered.runtimeImage;
-				this.setInfo(rendered.getInfo());
-				return null;
-			}
-			int imgTileSize = (256 << this.tileSizeLog) << Math.min(this.z, this.metaSizeLog);
-			int tilesize = (1 << Math.min(31 - this.z + this.metaSizeLog, 31));
-			if (tilesize <= 0) {
-				tilesize = Integer.MAX_VALUE;
-			}
-			int right = this.left + tilesize;
-			if (right <= 0) {
-				right = Integer.MAX_VALUE;
-			}
-			int bottom = this.top + tilesize;
-			if (bottom <= 0) {
-				bottom = Integer.MAX_VALUE;
-			}
-			long now = System.currentTimeMillis();
-			String props = String.format("density=%d,textScale=%d", 1 << this.tileSizeLog, 1 << this.tileSizeLog);
+		// for local debug :
+		// VectorMetatile rendered = null;
+		if (readRenderedTile(tileCache)) {
+			return null;
+		}
+		int imgTileSize = (256 << this.tileSizeLog) << Math.min(this.z, this.metaSizeLog);
+		int tilesize = (1 << Math.min(31 - this.z + this.metaSizeLog, 31));
+		if (tilesize <= 0) {
+			tilesize = Integer.MAX_VALUE;
+		}
+		int right = this.left + tilesize;
+		if (right <= 0) {
+			right = Integer.MAX_VALUE;
+		}
+		int bottom = this.top + tilesize;
+		if (bottom <= 0) {
+			bottom = Integer.MAX_VALUE;
+		}
+		String props = String.format("density=%d,textScale=%d", 1 << this.tileSizeLog, 1 << this.tileSizeLog);
 
-			if (this.z < ZOOM_EN_PREFERRED_LANG) {
-				props += ",lang=en";
-			}
-			if (nativelib == null) {
-				return null;
-			}
-			if (!this.style.name.equalsIgnoreCase(nativelib.getRenderingRuleStorage().getName())) {
-				nativelib.loadRuleStorage(this.style.name + ".render.xml", props);
-			} else {
-				nativelib.setRenderingProps(props);
-			}
-			NativeJavaRendering.RenderingImageContext ctx = new NativeJavaRendering.RenderingImageContext(this.left, right, this.top, bottom, this.z);
+		if (this.z < ZOOM_EN_PREFERRED_LANG) {
+			props += ",lang=en";
+		}
+		if (rendererPool == null) {
+			return null;
+		}
+		NativeJavaRendering.RenderingImageContext ctx = new NativeJavaRendering.RenderingImageContext(this.left, right, this.top, bottom, this.z);
 
-			if (this.getInteractiveKey() != null) {
-				ctx.saveTextTile = true;
-			}
+		if (this.getInteractiveKey() != null) {
+			ctx.saveTextTile = true;
+		}
 
-			if (ctx.width > 8192) {
-				return ResponseEntity.badRequest().body("Metatile exceeds 8192x8192 size");
+		if (ctx.width > 8192) {
+			return ResponseEntity.badRequest().body("Metatile exceeds 8192x8192 size");
 
+		}
+		if (imgTileSize != ctx.width << this.tileSizeLog || imgTileSize != ctx.height << this.tileSizeLog) {
+			return ResponseEntity.badRequest().body(String.format("Metatile has wrong size (%d != %d)", imgTileSize,
+					ctx.width << this.tileSizeLog));
+		}
+		// only native calls are synchronized (not waiting for renderer) to not block routing
+		NativeRendererPool.PooledRenderer renderer;
+		if (prefetch) {
+			renderer = rendererPool.acquireForPrefetch(this.style.name);
+			if (renderer == null) {
+				return null;
 			}
-			if (imgTileSize != ctx.width << this.tileSizeLog || imgTileSize != ctx.height << this.tileSizeLog) {
-				return ResponseEntity.badRequest().body(String.format("Metatile has wrong size (%d != %d)", imgTileSize,
-						ctx.width << this.tileSizeLog));
+		} else {
+			try {
+				renderer = rendererPool.acquire(this.style.name);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				renderer = null;
 			}
-
-			NativeJavaRendering.RenderingImageResult result = nativelib.renderImage(ctx);
+		}
+		if (renderer == null) {
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Tile rendering queue is full");
+		}
+		long now = System.currentTimeMillis();
+		try {
+			// tile could be rendered while waiting for renderer
+			if (readRenderedTile(tileCache)) {
+				return null;
+			}
+			NativeJavaRendering nativelib = renderer.nativelib;
+			NativeLibrary.RenderingGenerationResult generated;
+			synchronized (rendererPool.getNativeLock()) {
+				if (renderer.isStyleLoadRequired()) {
+					// rules storage of native library is shared, other renderers are idle
+					nativelib.loadRuleStorage(this.style.name + ".render.xml", props);
+					rendererPool.styleLoaded(renderer);
+				} else {
+					nativelib.setRenderingProps(props);
+				}
+				generated = nativelib.render(ctx);
+			}
+			// png is decoded and saved concurrently with the next native render
+			NativeJavaRendering.RenderingImageResult result = nativelib.readImage(generated);
 			this.runtimeImage = result.getImage();
 			if (this.runtimeImage != null) {
 				this.setInfo(result.getGenerationResult().getInfo());
@@ -209,12 +247,24 @@ public class VectorMetatile implements TileCacheProvider, Comparable<VectorMetat
 					this.saveImageToCache(this, cacheFile);
 				}
 			}
-			String msg = String.format("Rendered %d %d at %d (%s %s): %dx%d - %d ms", this.left, this.top, this.z,
-					this.style.name, props, ctx.width, ctx.height, (int) (System.currentTimeMillis() - now));
-			System.out.println(msg);
-			// LOGGER.debug();
-			return null;
+		} finally {
+			rendererPool.release(renderer, System.currentTimeMillis() - now);
+		}
+		String msg = String.format("Rendered %d %d at %d (%s %s): %dx%d - %d ms", this.left, this.top, this.z,
+				this.style.name, props, ctx.width, ctx.height, (int) (System.currentTimeMillis() - now));
+		System.out.println(msg);
+		// LOGGER.debug();
+		return null;
+	}
+
+	private boolean readRenderedTile(TileMemoryCache<VectorMetatile> tileCache) {
+		VectorMetatile rendered = tileCache.get(this.key);
+		if (rendered != null && rendered.runtimeImage != null) {
+			this.runtimeImage = rendered.runtimeImage;
+			this.setInfo(rendered.getInfo());
+			return true;
 		}
+		return false;
 	}
 
 	@Override